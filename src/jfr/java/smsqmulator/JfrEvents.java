@@ -0,0 +1,283 @@
+package smsqmulator;
+
+/**
+ * The Java Flight Recorder (JFR) events defined in <code>FlightRecorderEvents</code>.
+ * <p>
+ * This uses the JFR API (java 8u262 and later), it is in a separate source directory and only compiled by the <code>jfr</code> maven
+ * profile, so that the rest of the emulator still compiles without that API. It is loaded by reflection by <code>FlightRecorderEvents</code>.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version, event classes moved here from FlightRecorderEvents 1.00.
+ */
+public class JfrEvents implements FlightRecorderEvents.Factory
+{
+    @Override
+    public FlightRecorderEvents.TrapEvent beginTrap(int trapType,smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        TrapEvent event=new TrapEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        event.keep(trapType,cpu);
+        return event;
+    }
+
+    @Override
+    public FlightRecorderEvents.WinDriveEvent beginWinDrive()
+    {
+        WinDriveEvent event=new WinDriveEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public FlightRecorderEvents.XfaFileEvent beginXfaFile()
+    {
+        XfaFileEvent event=new XfaFileEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public FlightRecorderEvents.IPEvent beginIP()
+    {
+        IPEvent event=new IPEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public FlightRecorderEvents.ScreenEvent beginScreen()
+    {
+        ScreenEvent event=new ScreenEvent();
+        if (!event.isEnabled())
+            return null;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * A trap handled by the TrapDispatcher.
+     */
+    @jdk.jfr.Name("smsqmulator.Trap")
+    @jdk.jfr.Label("Trap")
+    @jdk.jfr.Category({"SMSQmulator","Traps"})
+    @jdk.jfr.Description("A trap handled in java on behalf of SMSQ/E")
+    public static class TrapEvent extends jdk.jfr.Event implements FlightRecorderEvents.TrapEvent
+    {
+        @jdk.jfr.Label("Trap") String trap;
+        @jdk.jfr.Label("Trap key") int trapKey;
+        @jdk.jfr.Label("Device") String device;
+        @jdk.jfr.Label("PC") int pc;
+        @jdk.jfr.Label("D1") int d1;
+        @jdk.jfr.Label("A0") int a0;
+        @jdk.jfr.Label("A1") int a1;
+        @jdk.jfr.Label("Result (D0)") int result;
+        private int trapType;
+        private int deviceID;
+
+        /**
+         * Keeps the parameters of the trap, which may be modified by the trap itself.
+         */
+        private void keep(int type,smsqmulator.cpu.MC68000Cpu cpu)
+        {
+            if (type>0xaaff)
+            {
+                this.trapType=TrapStatistics.ARITH_TRAP;
+                this.trapKey=type-TrapStatistics.ARITH_TRAP;
+            }
+            else
+            {
+                this.trapType=type;
+                this.trapKey=cpu.data_regs[0];
+            }
+            this.deviceID=TrapStatistics.getDeviceID(this.trapType,this.trapKey,cpu);
+            this.pc=cpu.pc_reg*2;
+            this.d1=cpu.data_regs[1];
+            this.a0=cpu.addr_regs[0];
+            this.a1=cpu.addr_regs[1];
+        }
+
+        /**
+         * Ends the trap event and commits it if need be.
+         *
+         * @param cpu the cpu having called the trap.
+         */
+        @Override
+        public void finish(smsqmulator.cpu.MC68000Cpu cpu)
+        {
+            end();
+            if (shouldCommit())
+            {
+                this.trap=TrapStatistics.getTrapName(this.trapType);
+                this.device=TrapStatistics.getDeviceName(this.deviceID);
+                this.result=cpu.data_regs[0];
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Clusters read from or written to a WIN drive.
+     */
+    @jdk.jfr.Name("smsqmulator.WinDriveIO")
+    @jdk.jfr.Label("WIN Drive I/O")
+    @jdk.jfr.Category({"SMSQmulator","Drives"})
+    @jdk.jfr.Description("Clusters read from or written to a QXL.WIN drive")
+    public static class WinDriveEvent extends jdk.jfr.Event implements FlightRecorderEvents.WinDriveEvent
+    {
+        @jdk.jfr.Label("Drive file") String drive;
+        @jdk.jfr.Label("Write") boolean write;
+        @jdk.jfr.Label("First cluster") int firstCluster;
+        @jdk.jfr.Label("Clusters") int clusters;
+        @jdk.jfr.Label("Bytes") @jdk.jfr.DataAmount int bytes;
+
+        /**
+         * Ends the event and commits it if need be.
+         *
+         * @param drive the name of the native qxl.win file.
+         * @param write <code>true</code> if clusters were written.
+         * @param firstCluster the first cluster read or written.
+         * @param clusters how many clusters were read or written.
+         * @param bytes how many bytes were read or written.
+         */
+        @Override
+        public void finish(String drive,boolean write,int firstCluster,int clusters,int bytes)
+        {
+            end();
+            if (shouldCommit())
+            {
+                this.drive=drive;
+                this.write=write;
+                this.firstCluster=firstCluster;
+                this.clusters=clusters;
+                this.bytes=bytes;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * An NFA or SFA file being loaded or saved.
+     */
+    @jdk.jfr.Name("smsqmulator.XfaFileIO")
+    @jdk.jfr.Label("NFA/SFA File I/O")
+    @jdk.jfr.Category({"SMSQmulator","Drives"})
+    @jdk.jfr.Description("Bytes loaded from or saved to a native file through an NFA or SFA drive")
+    public static class XfaFileEvent extends jdk.jfr.Event implements FlightRecorderEvents.XfaFileEvent
+    {
+        @jdk.jfr.Label("File") String file;
+        @jdk.jfr.Label("Save") boolean save;
+        @jdk.jfr.Label("File position") int position;
+        @jdk.jfr.Label("Bytes") @jdk.jfr.DataAmount int bytes;
+        @jdk.jfr.Label("Memory address") int address;
+
+        /**
+         * Ends the event and commits it if need be.
+         *
+         * @param file the native file.
+         * @param save <code>true</code> if bytes were saved.
+         * @param position the position in the file where the operation started.
+         * @param bytes how many bytes were loaded or saved.
+         * @param address where in memory the bytes were loaded to or saved from.
+         */
+        @Override
+        public void finish(java.io.File file,boolean save,int position,int bytes,int address)
+        {
+            end();
+            if (shouldCommit())
+            {
+                this.file=file==null?null:file.getPath();
+                this.save=save;
+                this.position=position;
+                this.bytes=bytes;
+                this.address=address;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * An IP connect, send or receive operation.
+     */
+    @jdk.jfr.Name("smsqmulator.IP")
+    @jdk.jfr.Label("IP Operation")
+    @jdk.jfr.Category({"SMSQmulator","Network"})
+    @jdk.jfr.Description("An IP connect, send or receive operation on behalf of SMSQ/E")
+    public static class IPEvent extends jdk.jfr.Event implements FlightRecorderEvents.IPEvent
+    {
+        @jdk.jfr.Label("Operation") String operation;
+        @jdk.jfr.Label("Socket") String socket;
+        @jdk.jfr.Label("Bytes") @jdk.jfr.DataAmount int bytes;
+        @jdk.jfr.Label("Result") int result;
+
+        /**
+         * Ends the event and commits it if need be.
+         *
+         * @param operation the operation ("connect", "send", "receive").
+         * @param socket the socket the operation was made on.
+         * @param bytes how many bytes were sent or received.
+         * @param result the SMSQ/E result (0 or error code).
+         */
+        @Override
+        public void finish(String operation,IPSocket socket,int bytes,int result)
+        {
+            end();
+            if (shouldCommit())
+            {
+                this.operation=operation;
+                this.socket=socket.getName();
+                this.bytes=bytes;
+                this.result=result;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * A repaint of the screen or a block operation in the screen.
+     */
+    @jdk.jfr.Name("smsqmulator.Screen")
+    @jdk.jfr.Label("Screen Operation")
+    @jdk.jfr.Category({"SMSQmulator","Screen"})
+    @jdk.jfr.Description("A repaint of the screen or a block operation (fill, xor, move, combine)")
+    public static class ScreenEvent extends jdk.jfr.Event implements FlightRecorderEvents.ScreenEvent
+    {
+        @jdk.jfr.Label("Operation") String operation;
+        @jdk.jfr.Label("X origin") int x;
+        @jdk.jfr.Label("Y origin") int y;
+        @jdk.jfr.Label("Width") int width;
+        @jdk.jfr.Label("Height") int height;
+
+        /**
+         * Ends the event and commits it if need be.
+         *
+         * @param operation the operation ("repaint", "fill", "xor", "move", "combine").
+         * @param x the x origin of the area.
+         * @param y the y origin of the area.
+         * @param width the width of the area.
+         * @param height the height of the area.
+         */
+        @Override
+        public void finish(String operation,int x,int y,int width,int height)
+        {
+            end();
+            if (shouldCommit())
+            {
+                this.operation=operation;
+                this.x=x;
+                this.y=y;
+                this.width=width;
+                this.height=height;
+                commit();
+            }
+        }
+    }
+}
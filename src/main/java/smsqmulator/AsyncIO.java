@@ -0,0 +1,318 @@
+package smsqmulator;
+
+/**
+ * This does slow host I/O operations for the device drivers in a pool of worker threads, so that SMSQ/E keeps running whilst
+ * they take place.
+ * <p>
+ * A trap #3 call that is made asynchronous starts its host I/O operation here and returns <code>Types.ERR_NC</code> ("not complete")
+ * to SMSQ/E, without changing D1 or A1. As for any other device that isn't ready, SMSQ/E then suspends the job and calls the trap
+ * again later : other jobs run in the meantime. When the trap is called again and the operation is done, its result is given to
+ * SMSQ/E as if the operation had been done at once. The scheduler retries the trap on each of its runs. When SMSQ/E is idle, the
+ * TrapDispatcher makes the emulation thread sleep between two scheduler runs (trap #7) : it does so through <code>sleep</code>, which
+ * ends as soon as an operation is done, so that the trap is retried at once. No interrupt is generated for this (the only
+ * interrupt is the 50 Hz tick, SMSQ/E's clock would go too fast).
+ * <p>
+ * The worker threads never touch the emulated memory : data to be written is copied from it when the operation is started, data
+ * that is read is copied into it, by the emulation thread, when the result is given to SMSQ/E.
+ * <p>
+ * Only operations on at least <code>threshold</code> bytes are worth this, smaller ones are done at once, as before.
+ * <p>
+ * Operations that were started but not yet delivered are finished when the program ends.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class AsyncIO
+{
+    private final int threshold;                                // min nbr of bytes for an operation to be done asynchronously
+    private final java.util.concurrent.ThreadPoolExecutor pool;
+    // statistics
+    private final java.util.concurrent.atomic.AtomicLong started=new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong completed=new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong bytes=new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong ioTime=new java.util.concurrent.atomic.AtomicLong();// in nanoseconds
+    private volatile long notComplete;                          // nbr of times ERR_NC was returned
+    private volatile long abandoned;                            // nbr of operations whose result was never asked for
+    private final Object wakeUp=new Object();                   // notified when an operation is done
+    private boolean doneSinceSleep;                             // an operation was done since the last sleep (guarded by wakeUp)
+
+    /**
+     * The host I/O part of an operation, done by a worker thread.
+     */
+    public interface Task
+    {
+        /**
+         * Does the host I/O.
+         *
+         * @param data the data to write, or where to read to, from position to limit.
+         *
+         * @return the number of bytes read or written, or a negative SMSQ/E error code.
+         *
+         * @throws java.io.IOException any I/O exception from the host.
+         */
+        public int run(java.nio.ByteBuffer data) throws java.io.IOException;
+    }
+
+    /**
+     * One operation started for a trap #3 call.
+     */
+    public class Operation implements Runnable
+    {
+        private final int trapKey;                              // the trap call (D0) ...
+        private final int address;                              // ... A1 ...
+        private final int length;                               // ... and D2 this was started for
+        private final java.nio.ByteBuffer data;
+        private final Task task;
+        private final java.util.concurrent.CountDownLatch done=new java.util.concurrent.CountDownLatch(1);
+        private volatile int result;
+        private volatile java.io.IOException error;
+
+        private Operation(int trapKey,int address,int length,java.nio.ByteBuffer data,Task task)
+        {
+            this.trapKey=trapKey;
+            this.address=address;
+            this.length=length;
+            this.data=data;
+            this.task=task;
+        }
+
+        @Override
+        public void run()
+        {
+            long start=System.nanoTime();
+            try
+            {
+                this.result=this.task.run(this.data);
+            }
+            catch (java.io.IOException e)
+            {
+                this.error=e;
+            }
+            catch (RuntimeException e)
+            {
+                this.error=new java.io.IOException(e);
+            }
+            AsyncIO.this.ioTime.addAndGet(System.nanoTime()-start);
+            if (this.result>0)
+                AsyncIO.this.bytes.addAndGet(this.result);
+            AsyncIO.this.completed.incrementAndGet();
+            this.done.countDown();
+            synchronized (AsyncIO.this.wakeUp)                  // get an idle SMSQ/E to retry the trap soon
+            {
+                AsyncIO.this.doneSinceSleep=true;
+                AsyncIO.this.wakeUp.notifyAll();
+            }
+        }
+
+        /**
+         * Checks whether a trap #3 call is the same as the one this operation was started for (i.e. SMSQ/E retries it).
+         *
+         * @param key the trap call (D0).
+         * @param A1 the A1 register of the call.
+         * @param D2 the length (D2) of the call.
+         *
+         * @return <code>true</code> if it is the same call.
+         */
+        public boolean isRetryOf(int key,int A1,int D2)
+        {
+            return key==this.trapKey && A1==this.address && D2==this.length;
+        }
+
+        /**
+         * Checks whether the host I/O is done. If not, the trap call should return ERR_NC.
+         *
+         * @return <code>true</code> if done.
+         */
+        public boolean isDone()
+        {
+            if (this.done.getCount()==0)
+                return true;
+            AsyncIO.this.notComplete++;
+            return false;
+        }
+
+        /**
+         * Gets the result of the operation, waiting for it to be done if need be.
+         *
+         * @return the number of bytes read or written, or a negative SMSQ/E error code.
+         *
+         * @throws java.io.IOException the exception the host I/O threw.
+         */
+        public int getResult() throws java.io.IOException
+        {
+            waitUntilDone();
+            if (this.error!=null)
+                throw this.error;
+            return this.result;
+        }
+
+        /**
+         * Gets the data of the operation : what was read goes from 0 to the position.
+         *
+         * @return the data.
+         */
+        public java.nio.ByteBuffer getData()
+        {
+            return this.data;
+        }
+
+        /**
+         * Waits until the operation is done, its result will not be used (SMSQ/E made another call in the meantime).
+         */
+        public void abandon()
+        {
+            waitUntilDone();
+            AsyncIO.this.abandoned++;
+        }
+
+        private void waitUntilDone()
+        {
+            boolean interrupted=false;
+            while (this.done.getCount()!=0)
+            {
+                try
+                {
+                    this.done.await();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted=true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates the object and its worker threads.
+     *
+     * @param threads the number of worker threads, at least 1.
+     * @param threshold operations on fewer bytes than this are not done asynchronously.
+     */
+    public AsyncIO(int threads,int threshold)
+    {
+        this.threshold=Math.max(threshold,1);
+        threads=Math.max(threads,1);
+        this.pool=new java.util.concurrent.ThreadPoolExecutor(threads,threads,0,java.util.concurrent.TimeUnit.MILLISECONDS,
+                        new java.util.concurrent.LinkedBlockingQueue<Runnable>(),new java.util.concurrent.ThreadFactory()
+        {
+            private int count;
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t=new Thread(r,"SMSQmulator async I/O "+(++this.count));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final java.util.concurrent.ThreadPoolExecutor p=this.pool;
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                p.shutdown();                                   // operations already started must be finished before the program ends
+                try
+                {
+                    p.awaitTermination(60,java.util.concurrent.TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                { /*NOP*/ }
+            }
+        },"SMSQmulator async I/O at shutdown"));
+    }
+
+    /**
+     * Makes the emulation thread sleep while SMSQ/E is idle, but only until an operation is done.
+     * If an operation was done since the last call, this returns at once.
+     *
+     * @param millis the max time to sleep, in milliseconds.
+     *
+     * @throws InterruptedException if the thread was interrupted.
+     */
+    public void sleep(long millis) throws InterruptedException
+    {
+        synchronized (this.wakeUp)
+        {
+            if (!this.doneSinceSleep)
+                this.wakeUp.wait(millis);
+            this.doneSinceSleep=false;
+        }
+    }
+
+    /**
+     * Checks whether an operation on that many bytes should be done asynchronously.
+     *
+     * @param length the number of bytes.
+     *
+     * @return <code>true</code> if the operation should be started here.
+     */
+    public boolean isWorthIt(int length)
+    {
+        return length>=this.threshold;
+    }
+
+    /**
+     * Starts an operation for a trap #3 call. The caller should then return ERR_NC to SMSQ/E.
+     *
+     * @param trapKey the trap call (D0).
+     * @param A1 the A1 register of the call.
+     * @param D2 the length (D2) of the call.
+     * @param data the data to write, or where to read to.
+     * @param task the host I/O to do.
+     *
+     * @return the operation.
+     */
+    public Operation start(int trapKey,int A1,int D2,java.nio.ByteBuffer data,Task task)
+    {
+        Operation op=new Operation(trapKey,A1,D2,data,task);
+        this.started.incrementAndGet();
+        this.notComplete++;                                     // the first ERR_NC
+        this.pool.execute(op);
+        return op;
+    }
+
+    /**
+     * Starts a host I/O operation that SMSQ/E doesn't wait for (such as writing back a drive).
+     *
+     * @param data the data to write.
+     * @param task the host I/O to do.
+     *
+     * @return the operation.
+     */
+    public Operation start(java.nio.ByteBuffer data,Task task)
+    {
+        Operation op=new Operation(0,0,0,data,task);
+        this.started.incrementAndGet();
+        this.pool.execute(op);
+        return op;
+    }
+
+    /**
+     * Gets the statistics of the asynchronous operations.
+     *
+     * @param reset if <code>true</code>, the statistics are reset afterwards.
+     *
+     * @return the statistics, as a string.
+     */
+    public String getStatistics(boolean reset)
+    {
+        long done=this.completed.get();
+        String result=String.format("%d operations started, %d done (%d bytes, %.1f ms host I/O on average), %d running or queued, %d times not complete, %d abandoned\n",
+                this.started.get(),done,this.bytes.get(),done==0?0.0:this.ioTime.get()/1e6/done,this.pool.getActiveCount()+this.pool.getQueue().size(),
+                this.notComplete,this.abandoned);
+        if (reset)
+        {
+            this.started.set(0);
+            this.completed.set(0);
+            this.bytes.set(0);
+            this.ioTime.set(0);
+            this.notComplete=0;
+            this.abandoned=0;
+        }
+        return result;
+    }
+}
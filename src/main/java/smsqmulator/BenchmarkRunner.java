@@ -0,0 +1,337 @@
+package smsqmulator;
+
+/**
+ * Runs SMSQ/E macro benchmarks without any window and compares the results against a baseline.
+ * <p>
+ * A benchmark suite is a text file, with one scenario per line : <code>name inifile instructions [runs]</code>. Empty lines and lines
+ * starting with # are ignored. The ini file (relative paths are relative to the suite file) is a normal SMSQmulator ini file giving
+ * the ROM image, drives, memory and screen mode for the scenario. The workload itself is started by the boot program on the boot
+ * drive (e.g. a SuperBASIC loop, copying a directory tree from WIN1_ to NFA1_, scrolling windows, compiling a C68 program), or
+ * typed in by a replayed InputJournal (INPUT-REPLAY-FILE in the ini file). The suite of the project, with these workloads, is in
+ * <code>src/bench</code>.
+ * <p>
+ * Each scenario boots SMSQ/E and runs for exactly the given number of instructions. The 50 Hz interrupt and the time seen by SMSQ/E
+ * are those of an InputJournal (one tick every INPUT-JOURNAL-TICK instructions), the scheduler never sleeps, so that the work done is
+ * the same for every run. The scenario is run <code>runs</code> times (default 3), the best wall time is kept.
+ * <p>
+ * The baseline file has one line per scenario : <code>name milliseconds instructions</code>. A scenario that takes more than
+ * <code>tolerance</code> percent (default 10) longer than its baseline is a regression. With <code>-update</code> the baseline file
+ * is (re)written with the new results.
+ * <p>
+ * Usage : <code>java -cp SMSQmulator.jar smsqmulator.BenchmarkRunner suitefile [baselinefile] [-tolerance=percent] [-update]</code>
+ * <br>The exit code is 0 if all went well, 1 if there was a regression, 2 if a scenario couldn't be run.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.01 a ROM image file starting with ./ is relative to the ini file, as the drives. The suite is in src/bench.
+ * 1.00 initial version.
+ */
+public class BenchmarkRunner
+{
+    private static final long TIMEOUT=60*60*1000L;              // max time a scenario may take, in milliseconds
+    private static final int DEFAULT_RUNS=3;
+    private static final int DEFAULT_TOLERANCE=10;              // in percent
+
+    /**
+     * A scenario of the suite, and its results.
+     */
+    private static class Scenario
+    {
+        private String name;
+        private java.io.File iniFile;
+        private long instructions;
+        private int runs;
+        private long bestTime=-1;                               // best wall time in ns, -1 if scenario couldn't be run
+        private long ticks;                                     // nbr of 50 Hz ticks = virtual time
+    }
+
+    /**
+     * Runs the suite.
+     *
+     * @param args the command line arguments : suitefile [baselinefile] [-tolerance=percent] [-update].
+     */
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless","true");         // no window, ever
+        String suiteName=null,baselineName=null;
+        int tolerance=BenchmarkRunner.DEFAULT_TOLERANCE;
+        boolean update=false;
+        for (String arg:args)
+        {
+            if (arg.equals("-update"))
+                update=true;
+            else if (arg.startsWith("-tolerance="))
+                tolerance=Integer.parseInt(arg.substring(11));
+            else if (suiteName==null)
+                suiteName=arg;
+            else
+                baselineName=arg;
+        }
+        if (suiteName==null)
+        {
+            System.err.println("Usage : BenchmarkRunner suitefile [baselinefile] [-tolerance=percent] [-update]");
+            System.exit(2);
+        }
+        java.util.ArrayList<Scenario> suite;
+        try
+        {
+            suite=readSuite(new java.io.File(suiteName));
+        }
+        catch (Exception e)
+        {
+            System.err.println("Can't read suite file "+suiteName+" : "+e.toString());
+            System.exit(2);
+            return;
+        }
+        new Localization(2);                                    // initialise this once!
+
+        boolean failed=false;
+        for (Scenario sc:suite)
+        {
+            for (int run=0;run<sc.runs;run++)
+            {
+                long time=runScenario(sc);
+                if (time<0)
+                {
+                    sc.bestTime=-1;
+                    failed=true;
+                    break;
+                }
+                if (sc.bestTime<0 || time<sc.bestTime)
+                    sc.bestTime=time;
+            }
+        }
+
+        java.util.HashMap<String,long[]> baseline=new java.util.HashMap<>();
+        if (baselineName!=null && !update)
+        {
+            try
+            {
+                baseline=readBaseline(new java.io.File(baselineName));
+            }
+            catch (Exception e)
+            {
+                System.err.println("Can't read baseline file "+baselineName+" : "+e.toString());
+            }
+        }
+        boolean regression=report(suite,baseline,tolerance);
+
+        if (update && baselineName!=null)
+        {
+            try
+            {
+                writeBaseline(new java.io.File(baselineName),suite);
+            }
+            catch (java.io.IOException e)
+            {
+                System.err.println("Can't write baseline file "+baselineName+" : "+e.toString());
+                failed=true;
+            }
+        }
+        System.exit(failed?2:regression?1:0);
+    }
+
+    /**
+     * Reads the scenarios from a suite file.
+     *
+     * @param file the suite file.
+     *
+     * @return the list of scenarios.
+     *
+     * @throws java.io.IOException if the file couldn't be read.
+     * @throws NumberFormatException if a line is wrong.
+     */
+    private static java.util.ArrayList<Scenario> readSuite(java.io.File file) throws java.io.IOException
+    {
+        java.util.ArrayList<Scenario> suite=new java.util.ArrayList<>();
+        java.io.File dir=file.getAbsoluteFile().getParentFile();
+        for (String line:java.nio.file.Files.readAllLines(file.toPath(),java.nio.charset.StandardCharsets.UTF_8))
+        {
+            line=line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] parts=line.split("\\s+");
+            if (parts.length<3)
+                throw new NumberFormatException("wrong line : "+line);
+            Scenario sc=new Scenario();
+            sc.name=parts[0];
+            sc.iniFile=new java.io.File(parts[1]);
+            if (!sc.iniFile.isAbsolute())
+                sc.iniFile=new java.io.File(dir,parts[1]);
+            sc.instructions=Long.parseLong(parts[2]);
+            sc.runs=parts.length>3?Integer.parseInt(parts[3]):BenchmarkRunner.DEFAULT_RUNS;
+            suite.add(sc);
+        }
+        return suite;
+    }
+
+    /**
+     * Boots SMSQ/E for a scenario and runs it once.
+     *
+     * @param sc the scenario.
+     *
+     * @return the wall time (in nanoseconds) taken to execute the instructions, or -1 if the scenario couldn't be run.
+     */
+    private static long runScenario(Scenario sc)
+    {
+        inifile.IniFile inifile=new inifile.IniFile();
+        SMSQmulator.presetOptions(inifile,"");
+        inifile.setFilename(sc.iniFile.getAbsolutePath());
+        try
+        {
+            inifile.readIniFile();
+        }
+        catch (Exception e)
+        {
+            System.err.println(sc.name+" : can't read ini file "+sc.iniFile+" : "+e.toString());
+            return -1;
+        }
+        inifile.addOption("EXPANDED_DIR",sc.iniFile.getAbsoluteFile().getParent()+java.io.File.separator,"./ will be expanded to this - do not modify, will be overwritten!");
+        Warnings warnings=new Warnings();
+        warnings.setWarnings(inifile);
+
+        int xsize=Math.max(inifile.getOptionAsInt("WDW_XSIZE",512),512);
+        int ysize=Math.max(inifile.getOptionAsInt("WDW_YSIZE",256),256);
+        xsize=xsize+ ( (xsize % 8)==0?  0 : (8-(xsize % 8))); // make this a multiple of 8
+        int memSize=inifile.getOptionAsInt("MEM_SIZE",1);
+        Screen screen;
+        switch (inifile.getOptionAsInt("SCREEN-MODE",0))
+        {
+            case 2:
+                screen=new Screen16(xsize,ysize,0,inifile.getTrueOrFalse("VIBRANT-COLOURS"),null,false);
+                memSize=Math.max(memSize,8);
+                break;
+            case 3:
+                screen=new Screen32(xsize,ysize,0,inifile.getTrueOrFalse("VIBRANT-COLOURS"),null,false);
+                memSize=Math.max(memSize,8);
+                break;
+            default:
+                screen=new Screen0(xsize,ysize,0,null,false);
+        }
+        smsqmulator.cpu.MC68000Cpu cpu;
+        if (inifile.getTrueOrFalse("QL-SCREEN-EMULATION"))
+            cpu = new smsqmulator.cpu.CPUforScreenEmulation(memSize*1024*1024,screen,inifile,350000);
+        else
+            cpu = new smsqmulator.cpu.MC68000Cpu(memSize*1024*1024,screen,inifile,350000);
+        SampledSound sam =new SampledSound(cpu,0,warnings,inifile.getOptionValue("SSSS-FREQUENCY"));
+        Monitor moni=new Monitor(cpu,false,false,sam,null,null,true,warnings,0,inifile.getOptionAsInt("TIME-OFFSET", 0),null,0,
+                                 new SoundDevice(sam),inifile);
+        screen.setMonitor(moni);
+        moni.setDriveNamesFromIniFile();
+
+        InputJournal journal=moni.getInputJournal();
+        if (journal==null)
+        {
+            journal=new InputJournal(null,false,inifile.getOptionAsInt("INPUT-JOURNAL-TICK",100000),moni);
+            moni.setInputJournal(journal);
+        }
+        journal.setInstructionLimit(sc.instructions);
+        String rom=inifile.getOptionValue("ROM_IMAGE_FILE");
+        if (rom.startsWith("./"))                               // relative to the ini file, as for the drives
+            rom=inifile.getOptionValue("EXPANDED_DIR")+rom.substring(2);
+        if (!moni.loadRom(rom,null))
+        {
+            System.err.println(sc.name+" : can't load ROM image "+rom);
+            moni.stopEmulation();
+            return -1;
+        }
+        moni.goCommand(null,-1);
+        long time;
+        try
+        {
+            time=journal.waitForLimit(BenchmarkRunner.TIMEOUT);
+        }
+        catch (InterruptedException e)
+        {
+            time=-1;
+        }
+        sc.ticks=journal.getTicks();
+        moni.stopEmulation();
+        if (time<0)
+            System.err.println(sc.name+" : didn't execute "+sc.instructions+" instructions in time");
+        return time;
+    }
+
+    /**
+     * Reads a baseline file.
+     *
+     * @param file the baseline file.
+     *
+     * @return a map with, for each scenario name, the time (in ms) and the number of instructions.
+     *
+     * @throws java.io.IOException if the file couldn't be read.
+     */
+    private static java.util.HashMap<String,long[]> readBaseline(java.io.File file) throws java.io.IOException
+    {
+        java.util.HashMap<String,long[]> baseline=new java.util.HashMap<>();
+        for (String line:java.nio.file.Files.readAllLines(file.toPath(),java.nio.charset.StandardCharsets.UTF_8))
+        {
+            String[] parts=line.trim().split("\\s+");
+            if (parts.length<3 || parts[0].startsWith("#"))
+                continue;
+            baseline.put(parts[0],new long[]{Long.parseLong(parts[1]),Long.parseLong(parts[2])});
+        }
+        return baseline;
+    }
+
+    /**
+     * Writes the results of the suite as a new baseline file.
+     *
+     * @param file the baseline file.
+     * @param suite the scenarios, with their results.
+     *
+     * @throws java.io.IOException if the file couldn't be written.
+     */
+    private static void writeBaseline(java.io.File file,java.util.ArrayList<Scenario> suite) throws java.io.IOException
+    {
+        StringBuilder sb=new StringBuilder("# name milliseconds instructions\n");
+        for (Scenario sc:suite)
+        {
+            if (sc.bestTime>=0)
+                sb.append(sc.name).append(' ').append(sc.bestTime/1000000).append(' ').append(sc.instructions).append('\n');
+        }
+        java.nio.file.Files.write(file.toPath(),sb.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Prints the results and compares them to the baseline.
+     *
+     * @param suite the scenarios, with their results.
+     * @param baseline the baseline results, may be empty.
+     * @param tolerance the tolerance in percent.
+     *
+     * @return <code>true</code> if there was a regression.
+     */
+    private static boolean report(java.util.ArrayList<Scenario> suite,java.util.HashMap<String,long[]> baseline,int tolerance)
+    {
+        boolean regression=false;
+        System.out.println("Scenario               Instructions  Virtual s    Best ms     MIPS  Baseline ms   Change");
+        for (Scenario sc:suite)
+        {
+            if (sc.bestTime<0)
+            {
+                System.out.format("%-20s %14d  FAILED\n",sc.name,sc.instructions);
+                continue;
+            }
+            long ms=sc.bestTime/1000000;
+            double mips=sc.bestTime==0?0:sc.instructions*1000.0/sc.bestTime;
+            long[] base=baseline.get(sc.name);
+            if (base==null)
+            {
+                System.out.format("%-20s %14d %10d %10d %8.1f %12s\n",sc.name,sc.instructions,sc.ticks/50,ms,mips,"-");
+                continue;
+            }
+            double change=base[0]==0?0:(ms-base[0])*100.0/base[0];
+            String verdict="";
+            if (base[1]!=sc.instructions)
+                verdict="  (baseline has "+base[1]+" instructions, not compared)";
+            else if (change>tolerance)
+            {
+                verdict="  REGRESSION";
+                regression=true;
+            }
+            System.out.format("%-20s %14d %10d %10d %8.1f %12d %+7.1f%%%s\n",sc.name,sc.instructions,sc.ticks/50,ms,mips,base[0],change,verdict);
+        }
+        return regression;
+    }
+}
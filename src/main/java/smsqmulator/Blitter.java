@@ -0,0 +1,372 @@
+package smsqmulator;
+
+/**
+ * The blitter does the block operations (fill, xor, move) for the 8 and 16 bit colour screens.
+ * <p>
+ * Blocks are handled in the main memory (an array of shorts) and, if they are in the screen, in the image data buffer
+ * (an array of ARGB ints), one whole row at a time :
+ * <ul>
+ * <li> For fills and xors, the (stipple) pattern of the memory words and of the image pixels is made only once for even and once
+ *      for odd rows. A row is then filled with <code>System.arraycopy</code> or xored in one simple loop over the words.</li>
+ * <li> Moves are done with <code>System.arraycopy</code>, both in memory and in the image data buffer. Overlapping blocks are handled
+ *      by choosing the order of the rows. Rows starting at an odd address are moved as bytes, without any screen callback.</li>
+ * </ul>
+ * The only thing the screen objects have to supply is their pixel format : the number of bytes per pixel (1 for mode 16, 2 for
+ * mode 32) and the colour look up table, converting a pixel value into an RGB value.
+ * <p>
+ * Block operations are only called from the emulation thread, the buffers here are thus re-used without synchronisation.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class Blitter
+{
+    private final int bytesPerPixel;                            // 1 (mode 16) or 2 (mode 32)
+    private final int[] clut;                                   // colour look up table : pixel value -> RGB
+    private short[] evenWords=new short[0];                     // memory pattern for even rows
+    private short[] oddWords=new short[0];                      // memory pattern for odd rows
+    private int[] evenPixels=new int[0];                        // image pattern for even rows
+    private int[] oddPixels=new int[0];                         // image pattern for odd rows
+    private int keepFirst,keepLast;                             // bits to keep in first and last word of a row (0 = none)
+    private static byte[] rowBytes=new byte[0];                 // used for moving rows between odd and even addresses
+
+    /**
+     * Creates the blitter for a pixel format.
+     *
+     * @param bytesPerPixel how many bytes a pixel takes in memory : 1 or 2.
+     * @param clut the colour look up table for the pixel values. This is NOT copied, changes to it are used immediately.
+     */
+    public Blitter(int bytesPerPixel,int[]clut)
+    {
+        this.bytesPerPixel=bytesPerPixel;
+        this.clut=clut;
+    }
+
+    /**
+     * Fills or xors a block with colour, in memory and, possibly, in the image.
+     *
+     * @param memory the main memory.
+     * @param base the base address of the area the block is in.
+     * @param rowInc the row increment of that area, in bytes.
+     * @param size the size of the block : x size (in pixels) in high word, y size in low word.
+     * @param origin the origin of the block, x|y as for the size.
+     * @param evenColours colours for two pixels of even rows : high/low word (mode 32) or high/low byte of low word (mode 16).
+     * @param oddColours same for the odd rows.
+     * @param xor <code>true</code> if the colours are to be xored, <code>false</code> if the block is to be filled.
+     * @param pixels the image data buffer, or <code>null</code> if the block is not in the screen.
+     * @param width the width of a row in the image data buffer, in pixels.
+     */
+    public void fill(short[]memory,int base,int rowInc,int size,int origin,int evenColours,int oddColours,boolean xor,int[]pixels,int width)
+    {
+        int xs=size>>>16;
+        int ys=size&0xffff;
+        int xo=origin>>>16;
+        int yo=origin&0xffff;
+        if (pixels!=null)                                       // never go outside of the screen
+        {
+            xs=Math.min(xs,width-xo);
+            ys=Math.min(ys,pixels.length/width-yo);
+        }
+        if (xs<1 || ys<1)
+            return;
+        int nbrWords=makePatterns(xo,xs,evenColours,oddColours);
+        int address=base+yo*rowInc+xo*this.bytesPerPixel;       // address of first pixel
+        int pos=yo*width+xo;                                    // index of first pixel in image
+        boolean even=(yo&1)==0;
+        for (int iy=0;iy<ys;iy++)
+        {
+            short[]words=even?this.evenWords:this.oddWords;
+            int index=address>>>1;                              // index of first word in memory array
+            if (xor)
+            {
+                for (int i=0;i<nbrWords;i++)
+                {
+                    memory[index+i]^=words[i];                  // the patterns have 0 where nothing changes
+                }
+                if (pixels!=null)
+                    toImage(memory,address,pixels,pos,xs);      // xored pixels must be made from memory
+            }
+            else
+            {
+                int first=0,last=nbrWords;
+                if (this.keepFirst!=0)                          // partial first word
+                {
+                    memory[index]=(short)((memory[index]&this.keepFirst)|words[0]);
+                    first=1;
+                }
+                if (this.keepLast!=0)                           // partial last word
+                {
+                    last--;
+                    memory[index+last]=(short)((memory[index+last]&this.keepLast)|words[last]);
+                }
+                if (last>first)
+                    System.arraycopy(words,first,memory,index+first,last-first);
+                if (pixels!=null)
+                    System.arraycopy(even?this.evenPixels:this.oddPixels,0,pixels,pos,xs);
+            }
+            address+=rowInc;
+            pos+=width;
+            even=!even;
+        }
+    }
+
+    /**
+     * Makes the memory and image patterns for the even and odd rows of a block.
+     *
+     * @param xo the x origin of the block.
+     * @param xs the x size of the block.
+     * @param evenColours colours for two pixels of even rows.
+     * @param oddColours colours for two pixels of odd rows.
+     *
+     * @return the number of memory words in one row of the block.
+     */
+    private int makePatterns(int xo,int xs,int evenColours,int oddColours)
+    {
+        int nbrWords=this.bytesPerPixel==2?xs:((xo+xs+1)>>>1)-(xo>>>1);
+        if (this.evenWords.length<nbrWords)
+        {
+            this.evenWords=new short[nbrWords];
+            this.oddWords=new short[nbrWords];
+        }
+        if (this.evenPixels.length<xs)
+        {
+            this.evenPixels=new int[xs];
+            this.oddPixels=new int[xs];
+        }
+        makePattern(xo,xs,nbrWords,evenColours,this.evenWords,this.evenPixels);
+        makePattern(xo,xs,nbrWords,oddColours,this.oddWords,this.oddPixels);
+        return nbrWords;
+    }
+
+    /**
+     * Makes the memory and image pattern for one row.
+     */
+    private void makePattern(int xo,int xs,int nbrWords,int colours,short[]words,int[]pixels)
+    {
+        int high,low;                                           // pixel values for even and odd x
+        if (this.bytesPerPixel==2)
+        {
+            high=colours>>>16;
+            low=colours&0xffff;
+            for (int i=0;i<xs;i++)
+            {
+                words[i]=(short)(((xo+i)&1)==0?high:low);
+            }
+            this.keepFirst=0;
+            this.keepLast=0;
+        }
+        else
+        {
+            high=(colours>>>8)&0xff;
+            low=colours&0xff;
+            java.util.Arrays.fill(words,0,nbrWords,(short)((high<<8)|low));
+            this.keepFirst=0;
+            this.keepLast=0;
+            if ((xo&1)!=0)                                      // leading pixel is the low byte of the first word
+            {
+                words[0]=(short)low;
+                this.keepFirst=0xff00;
+            }
+            if (((xo+xs)&1)!=0)                                 // trailing pixel is the high byte of the last word
+            {
+                words[nbrWords-1]=(short)(high<<8);
+                this.keepLast=0x00ff;
+            }
+        }
+        high=this.clut[high];
+        low=this.clut[low];
+        for (int i=0;i<xs;i++)
+        {
+            pixels[i]=((xo+i)&1)==0?high:low;
+        }
+    }
+
+    /**
+     * Converts pixels from memory into RGB values in the image.
+     *
+     * @param memory the main memory.
+     * @param address the address of the first pixel in memory.
+     * @param pixels the image data buffer.
+     * @param pos the index of the first pixel in the image data buffer.
+     * @param nbr the number of pixels to convert.
+     */
+    private void toImage(short[]memory,int address,int[]pixels,int pos,int nbr)
+    {
+        if (this.bytesPerPixel==2)
+        {
+            int index=address>>>1;
+            for (int i=0;i<nbr;i++)
+            {
+                pixels[pos+i]=this.clut[memory[index+i]&0xffff];
+            }
+        }
+        else
+        {
+            for (int i=0;i<nbr;i++,address++)
+            {
+                int word=memory[address>>>1];
+                pixels[pos+i]=this.clut[((address&1)==0?word>>>8:word)&0xff];
+            }
+        }
+    }
+
+    /**
+     * Paints a block of the screen from the screen memory into the image.
+     *
+     * @param memory the main memory.
+     * @param base the start address of the screen memory.
+     * @param rowInc the number of bytes per line of the screen.
+     * @param size the size of the block : x size (in pixels) in high word, y size in low word.
+     * @param origin the origin of the block, x|y as for the size.
+     * @param pixels the image data buffer.
+     * @param width the width of a row in the image data buffer, in pixels.
+     */
+    public void paint(short[]memory,int base,int rowInc,int size,int origin,int[]pixels,int width)
+    {
+        int xo=origin>>>16;
+        int yo=origin&0xffff;
+        int xs=Math.min(size>>>16,width-xo);
+        int ys=Math.min(size&0xffff,pixels.length/width-yo);
+        int address=base+yo*rowInc+xo*this.bytesPerPixel;
+        int pos=yo*width+xo;
+        for (int iy=0;iy<ys;iy++,address+=rowInc,pos+=width)
+        {
+            toImage(memory,address,pixels,pos,xs);
+        }
+    }
+
+    /**
+     * Moves a block of pixels within the image, the source and destination may overlap.
+     *
+     * @param pixels the image data buffer.
+     * @param width the width of a row in the image data buffer, in pixels.
+     * @param size the size of the block : x size (in pixels) in high word, y size in low word.
+     * @param srcOrigin the origin of the source block, x|y as for the size.
+     * @param destOrigin the origin of the destination block.
+     */
+    public static void moveImage(int[]pixels,int width,int size,int srcOrigin,int destOrigin)
+    {
+        int height=pixels.length/width;
+        int srcXo=srcOrigin>>>16;
+        int srcYo=srcOrigin&0xffff;
+        int destXo=destOrigin>>>16;
+        int destYo=destOrigin&0xffff;
+        int xs=Math.min(size>>>16,width-Math.max(srcXo,destXo));
+        int ys=Math.min(size&0xffff,height-Math.max(srcYo,destYo));
+        if (xs<1 || ys<1)
+            return;
+        int src=srcYo*width+srcXo;
+        int dest=destYo*width+destXo;
+        int inc=width;
+        if (src<dest)                                           // moving down : start with the last row
+        {
+            src+=(ys-1)*width;
+            dest+=(ys-1)*width;
+            inc=-width;
+        }
+        for (int iy=0;iy<ys;iy++,src+=inc,dest+=inc)
+        {
+            System.arraycopy(pixels,src,pixels,dest,xs);
+        }
+    }
+
+    /**
+     * Moves a block of bytes within the memory, the source and destination may overlap.
+     *
+     * @param memory the main memory.
+     * @param src the address of the first byte of the source block.
+     * @param srcInc the row increment of the source, in bytes.
+     * @param dest the address of the first byte of the destination block.
+     * @param destInc the row increment of the destination, in bytes.
+     * @param nbrBytes the number of bytes per row.
+     * @param ys the number of rows.
+     *
+     * @return <code>false</code> if the block doesn't lie within the memory (nothing is moved), else <code>true</code>.
+     */
+    public static boolean moveMemory(short[]memory,int src,int srcInc,int dest,int destInc,int nbrBytes,int ys)
+    {
+        if (nbrBytes<1 || ys<1)
+            return true;
+        int limit=memory.length*2;
+        int srcLast=src+(ys-1)*srcInc;
+        int destLast=dest+(ys-1)*destInc;
+        if (Math.min(src,srcLast)<0 || Math.min(dest,destLast)<0 ||
+            Math.max(src,srcLast)+nbrBytes>limit || Math.max(dest,destLast)+nbrBytes>limit)
+            return false;
+        if (src<dest)                                           // start with the last row
+        {
+            src=srcLast;
+            dest=destLast;
+            srcInc=-srcInc;
+            destInc=-destInc;
+        }
+        for (int iy=0;iy<ys;iy++,src+=srcInc,dest+=destInc)
+        {
+            moveBytes(memory,src,dest,nbrBytes);
+        }
+        return true;
+    }
+
+    /**
+     * Moves bytes within the memory, the source and destination may overlap.
+     *
+     * @param memory the main memory.
+     * @param src the address of the first source byte.
+     * @param dest the address of the first destination byte.
+     * @param nbr the number of bytes to move.
+     */
+    private static void moveBytes(short[]memory,int src,int dest,int nbr)
+    {
+        if (((src^dest)&1)!=0)                                  // one is odd, one is even : go through a byte buffer
+        {
+            if (Blitter.rowBytes.length<nbr)
+                Blitter.rowBytes=new byte[nbr];
+            byte[]bytes=Blitter.rowBytes;
+            for (int i=0;i<nbr;i++,src++)
+            {
+                int word=memory[src>>>1];
+                bytes[i]=(byte)((src&1)==0?word>>>8:word);
+            }
+            for (int i=0;i<nbr;i++,dest++)
+            {
+                int index=dest>>>1;
+                if ((dest&1)==0)
+                    memory[index]=(short)((memory[index]&0x00ff)|(bytes[i]<<8));
+                else
+                    memory[index]=(short)((memory[index]&0xff00)|(bytes[i]&0xff));
+            }
+            return;
+        }
+        boolean leading=(src&1)!=0;                             // both are odd : leading byte
+        boolean trailing=((src+nbr)&1)!=0;                      // the last byte is in the high byte of a word
+        int first=leading?src+1:src;                            // first byte of the whole words
+        int words=(src+nbr-first)>>>1;                          // nbr of whole words
+        int offset=dest-src;
+        if (offset>0)                                           // highest addresses first
+        {
+            if (trailing)
+                moveByte(memory,src+nbr-1,dest+nbr-1);
+            System.arraycopy(memory,first>>>1,memory,(first+offset)>>>1,words);
+            if (leading)
+                moveByte(memory,src,dest);
+        }
+        else
+        {
+            if (leading)
+                moveByte(memory,src,dest);
+            System.arraycopy(memory,first>>>1,memory,(first+offset)>>>1,words);
+            if (trailing)
+                moveByte(memory,src+nbr-1,dest+nbr-1);
+        }
+    }
+
+    /**
+     * Moves one byte between two addresses which are both odd or both even.
+     */
+    private static void moveByte(short[]memory,int src,int dest)
+    {
+        int mask=(src&1)==0?0xff00:0x00ff;
+        memory[dest>>>1]=(short)((memory[dest>>>1]&~mask)|(memory[src>>>1]&mask));
+    }
+}
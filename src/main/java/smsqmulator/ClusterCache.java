@@ -0,0 +1,358 @@
+package smsqmulator;
+
+/**
+ * This is a cache for the clusters of one QXL.WIN drive.
+ * <p>
+ * All cluster reads and writes of the drive go through here. A cluster that is read is kept in the cache, so that
+ * opening the same file again, or reading a directory again, doesn't go to the native file. A cluster that is written is
+ * only marked as "dirty" here and written to the native file later : when the drive is flushed (which happens whenever a file
+ * is flushed or closed or the FAT is written) or when the cluster is thrown out of the cache to make room for another one.
+ * Dirty clusters are written in ascending order, those that follow each other on the drive with one gathering write.
+ * Each dirty cluster holds a kind of content : file data, directory or FAT. When the cache is flushed, all data clusters are
+ * written first, then the directory clusters, then the FAT clusters, so that the FAT on the drive never refers to directory
+ * entries or data that aren't there yet. A directory or FAT cluster that is thrown out of the cache first makes the kinds before
+ * it be written.
+ * Clusters that aren't in the cache and follow each other on the drive are read with one scattering read.
+ * <p>
+ * When the cache is full, the least recently used cluster is thrown out. The buffer of that cluster is then used for the new one.
+ * <p>
+ * This is not thread safe : every call, except for the statistics, must be made while holding the lock of the WinDrive. The
+ * emulation thread gets it through the synchronized entry points of the drive, the thread doing the deferred flushes through
+ * <code>WinDrive.flushNow</code>.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.03 (doc) calls must hold the lock of the drive, they are also made by the deferred flush thread.
+ * 1.02 clusters have a kind (DATA, DIRECTORY, FAT), they are flushed in that order.
+ * 1.01 reads and writes runs of clusters, misses are read and dirty clusters written back in runs.
+ * 1.00 initial version.
+ */
+public class ClusterCache
+{
+    public static final int DATA=0;                             // kinds of clusters, in the order they are flushed
+    public static final int DIRECTORY=1;
+    public static final int FAT=2;
+    private final WinDrive drive;                               // the drive the clusters are on
+    private final int clusterSize;
+    private final int maxClusters;                              // max nbr of clusters in the cache
+    private final java.util.LinkedHashMap<Integer,Entry> clusters;// in access order : the first one is the least recently used
+    private int dirtyCount;                                     // nbr of dirty clusters
+    // statistics
+    private volatile long hits;
+    private volatile long misses;
+    private volatile long writes;                               // clusters written to the cache
+    private volatile long writeBacks;                           // clusters written to the drive
+    private volatile long evictions;
+
+    /**
+     * One cluster in the cache.
+     */
+    private static class Entry
+    {
+        private final java.nio.ByteBuffer data;
+        private int length;                                     // nbr of valid bytes in data (less than a cluster at the end of the drive)
+        private boolean dirty;                                  // must be written back to the drive
+        private int kind;                                       // DATA, DIRECTORY or FAT, if dirty
+
+        private Entry(int size)
+        {
+            this.data=java.nio.ByteBuffer.allocate(size);
+        }
+    }
+
+    /**
+     * Creates the cache.
+     *
+     * @param drive the drive the clusters are on.
+     * @param clusterSize the size of a cluster on that drive.
+     * @param maxClusters the max number of clusters to keep, at least 1.
+     */
+    public ClusterCache(WinDrive drive,int clusterSize,int maxClusters)
+    {
+        this.drive=drive;
+        this.clusterSize=clusterSize;
+        this.maxClusters=Math.max(maxClusters,1);
+        this.clusters=new java.util.LinkedHashMap<>(16,0.75f,true);
+    }
+
+    /**
+     * Reads clusters that follow each other on the drive, from the cache if they are there. Those that aren't are read from
+     * the drive (and kept in the cache), clusters that follow each other with one read.
+     *
+     * @param firstCluster the first cluster to read.
+     * @param buffers where to read the clusters to, one buffer per cluster, each from position to limit. The positions are
+     *        increased by the number of bytes read.
+     * @param offset the index of the buffer for the first cluster.
+     * @param count the number of clusters.
+     *
+     * @return the number of bytes read, -1 if end of drive.
+     *
+     * @throws java.io.IOException  any i/o exception from the java i/o operations.
+     */
+    public int read(int firstCluster,java.nio.ByteBuffer[]buffers,int offset,int count) throws java.io.IOException
+    {
+        int total=0;
+        for (int i=0;i<count;)
+        {
+            Entry e=this.clusters.get(firstCluster+i);
+            if (e!=null)
+            {
+                this.hits++;
+                total+=copy(e,buffers[offset+i]);
+                i++;
+                continue;
+            }
+            int nbr=1;                                          // nbr of clusters not in the cache, as of this one
+            while (i+nbr<count && nbr<this.maxClusters && !this.clusters.containsKey(firstCluster+i+nbr))
+                nbr++;
+            this.misses+=nbr;
+            Entry[]entries=new Entry[nbr];
+            java.nio.ByteBuffer[]data=new java.nio.ByteBuffer[nbr];
+            for (int j=0;j<nbr;j++)
+            {
+                entries[j]=newEntry(j);
+                data[j]=entries[j].data;
+                data[j].clear();
+            }
+            int bytesRead=this.drive.readDriveClusters(firstCluster+i,data,0,nbr);
+            if (bytesRead<=0)
+                return total==0?bytesRead:total;            // end of drive
+            for (int j=0;j<nbr;j++,i++)
+            {
+                entries[j].length=Math.max(Math.min(bytesRead-j*this.clusterSize,this.clusterSize),0);
+                if (entries[j].length==0)
+                    return total;                           // end of drive
+                this.clusters.put(firstCluster+i,entries[j]);
+                total+=copy(entries[j],buffers[offset+i]);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Writes clusters that follow each other on the drive into the cache, they are marked as dirty.
+     *
+     * @param firstCluster the first cluster to write.
+     * @param buffers what to write, one buffer per cluster, each from position to limit (at most one cluster). The positions are
+     *        increased by the number of bytes written.
+     * @param offset the index of the buffer for the first cluster.
+     * @param count the number of clusters.
+     * @param kind what the clusters contain : DATA, DIRECTORY or FAT.
+     *
+     * @return the number of bytes written.
+     *
+     * @throws java.io.IOException  any i/o exception from the java i/o operations (when reading the rest of a partly written cluster
+     * or writing back a cluster to make room).
+     */
+    public int write(int firstCluster,java.nio.ByteBuffer[]buffers,int offset,int count,int kind) throws java.io.IOException
+    {
+        int total=0;
+        for (int i=0;i<count;i++)
+        {
+            total+=write(firstCluster+i,buffers[offset+i],kind);
+        }
+        return total;
+    }
+
+    /**
+     * Writes a cluster into the cache, it is marked as dirty.
+     */
+    private int write(int cluster,java.nio.ByteBuffer buffer,int kind) throws java.io.IOException
+    {
+        int nbr=Math.min(buffer.remaining(),this.clusterSize);
+        Entry e=this.clusters.get(cluster);
+        if (e==null)
+        {
+            if (nbr<this.clusterSize)                           // only part of the cluster is written : get the rest first
+                e=load(cluster);
+            if (e==null)
+            {
+                e=newEntry(0);
+                this.clusters.put(cluster,e);
+            }
+        }
+        e.data.limit(nbr);
+        e.data.position(0);
+        int oldLimit=buffer.limit();
+        buffer.limit(buffer.position()+nbr);
+        e.data.put(buffer);
+        buffer.limit(oldLimit);
+        if (nbr>e.length)
+            e.length=nbr;
+        if (!e.dirty)
+        {
+            e.dirty=true;
+            e.kind=kind;
+            this.dirtyCount++;
+        }
+        else if (kind>e.kind)
+            e.kind=kind;
+        this.writes++;
+        return nbr;
+    }
+
+    /**
+     * Copies a cluster from the cache into a buffer.
+     *
+     * @return the number of bytes copied.
+     */
+    private int copy(Entry e,java.nio.ByteBuffer buffer)
+    {
+        int nbr=Math.min(buffer.remaining(),e.length);
+        e.data.limit(nbr);
+        e.data.position(0);
+        buffer.put(e.data);
+        return nbr;
+    }
+
+    /**
+     * Writes all dirty clusters to the drive : data, then directories, then the FAT, each in ascending order.
+     *
+     * @throws java.io.IOException  any i/o exception from the java i/o operations.
+     */
+    public void flush() throws java.io.IOException
+    {
+        for (int kind=ClusterCache.DATA;kind<=ClusterCache.FAT;kind++)
+        {
+            flush(kind);
+        }
+    }
+
+    /**
+     * Writes all dirty clusters of one kind to the drive, in ascending order.
+     */
+    private void flush(int kind) throws java.io.IOException
+    {
+        if (this.dirtyCount==0)
+            return;
+        java.util.TreeMap<Integer,Entry> dirty=new java.util.TreeMap<>();// sorted by cluster
+        for (java.util.Map.Entry<Integer,Entry> me:this.clusters.entrySet())
+        {
+            if (me.getValue().dirty && me.getValue().kind==kind)
+                dirty.put(me.getKey(),me.getValue());
+        }
+        java.util.ArrayList<Entry> run=new java.util.ArrayList<>();// dirty clusters that follow each other
+        int first=0;
+        for (java.util.Map.Entry<Integer,Entry> me:dirty.entrySet())
+        {
+            if (!run.isEmpty() && me.getKey()!=first+run.size())
+            {
+                writeBack(first,run);
+                run.clear();
+            }
+            if (run.isEmpty())
+                first=me.getKey();
+            run.add(me.getValue());
+        }
+        writeBack(first,run);
+    }
+
+    /**
+     * Throws all clusters out of the cache, after writing back those that are dirty.
+     *
+     * @throws java.io.IOException  any i/o exception from the java i/o operations.
+     */
+    public void clear() throws java.io.IOException
+    {
+        flush();
+        this.clusters.clear();
+    }
+
+    /**
+     * Gets the statistics of the cache.
+     *
+     * @param reset if <code>true</code>, the statistics are reset afterwards.
+     *
+     * @return the statistics, as a string.
+     */
+    public String getStatistics(boolean reset)
+    {
+        long h=this.hits,m=this.misses;
+        String result=String.format("%d/%d clusters of %d bytes, %d dirty, %d hits, %d misses (%.1f%% hits), %d written, %d written back, %d evicted\n",
+                this.clusters.size(),this.maxClusters,this.clusterSize,this.dirtyCount,h,m,h+m==0?0.0:100.0*h/(h+m),this.writes,
+                this.writeBacks,this.evictions);
+        if (reset)
+        {
+            this.hits=0;
+            this.misses=0;
+            this.writes=0;
+            this.writeBacks=0;
+            this.evictions=0;
+        }
+        return result;
+    }
+
+    /**
+     * Reads a cluster from the drive into a new cache entry.
+     *
+     * @return the entry, or <code>null</code> if end of drive.
+     */
+    private Entry load(int cluster) throws java.io.IOException
+    {
+        Entry e=newEntry(0);
+        e.data.clear();
+        int nbr=this.drive.readDriveClusters(cluster,new java.nio.ByteBuffer[]{e.data},0,1);
+        if (nbr<0)
+            return null;
+        e.length=nbr;
+        this.clusters.put(cluster,e);
+        return e;
+    }
+
+    /**
+     * Makes a new, empty, entry. If the cache is full, the least recently used cluster is thrown out (and written back if it is
+     * dirty), its entry is used again.
+     *
+     * @param pending the number of new entries that are not in the cache yet, but will be.
+     */
+    private Entry newEntry(int pending) throws java.io.IOException
+    {
+        Entry e=null;
+        if (this.clusters.size()+pending>=this.maxClusters && !this.clusters.isEmpty())
+        {
+            Entry eldestEntry=this.clusters.values().iterator().next();
+            if (eldestEntry.dirty)
+            {
+                for (int kind=ClusterCache.DATA;kind<eldestEntry.kind;kind++)
+                {
+                    flush(kind);                                // what must be on the drive before this one
+                }
+            }
+            java.util.Iterator<java.util.Map.Entry<Integer,Entry>> it=this.clusters.entrySet().iterator();
+            java.util.Map.Entry<Integer,Entry> eldest=it.next();
+            e=eldest.getValue();
+            if (e.dirty)
+                writeBack(eldest.getKey(),java.util.Collections.singletonList(e));
+            it.remove();
+            this.evictions++;
+        }
+        if (e==null)
+            e=new Entry(this.clusterSize);
+        e.length=0;
+        return e;
+    }
+
+    /**
+     * Writes dirty clusters that follow each other to the drive, in one go.
+     */
+    private void writeBack(int firstCluster,java.util.List<Entry> entries) throws java.io.IOException
+    {
+        if (entries.isEmpty())
+            return;
+        java.nio.ByteBuffer[]data=new java.nio.ByteBuffer[entries.size()];
+        for (int i=0;i<data.length;i++)
+        {
+            Entry e=entries.get(i);
+            data[i]=e.data;
+            data[i].limit(e.length);
+            data[i].position(0);
+        }
+        this.drive.writeDriveClusters(firstCluster,data,0,data.length);
+        for (Entry e:entries)
+        {
+            e.dirty=false;
+        }
+        this.dirtyCount-=data.length;
+        this.writeBacks+=data.length;
+    }
+}
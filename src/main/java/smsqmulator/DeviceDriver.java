@@ -9,9 +9,11 @@ package smsqmulator;
  *     <code>boolean</code> returned by a method does <b> <i> NOT </i>  </b> signal that an I/O operation succeeded (or not), 
  *     but has some other meaning : See the individual methods for more information on the returned <code>boolean</code>.
  * 
- * <p> ATM, device driver operations will always seem atomic to SMSQE, i.e. when the TRAP call returns, the operation in its entirety will
+ * <p> Normally, device driver operations will seem atomic to SMSQE, i.e. when the TRAP call returns, the operation in its entirety will
  *     have succeeded (or not). In other words, the timeout for the trap #3 calls is totally ignored. This has the unfortunate side effect
  *     that SMSQE will appear to be frozen whilst file i/o takes place.
+ *     A driver may instead start a (big) operation in the background (see <code>AsyncIO</code>) and return ERR_NC, until SMSQE
+ *     retries the call and the operation is done. Other SMSQE jobs then keep running in the meantime.
  * 
  * <p> In keeping with standard SMSQE practice, it is presumed throughout that each device may have 8 drives.
  *
@@ -21,6 +23,7 @@ package smsqmulator;
  * 
  * @author and copyright (c) 2012 -2014 Wolfgang Lenerz. See the licence in the licence.txt file.
  * @version 
+ *  1.02 drivers may do operations asynchronously (doc only).
  *  1.01 setNames takes additional parameter to force removal of existing drive before resetting it.
  *  1.00 added writeBack (for MEM device)
  *  0.00 initial version
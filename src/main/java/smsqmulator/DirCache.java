@@ -0,0 +1,349 @@
+package smsqmulator;
+
+/**
+ * This is a cache of the directory buffers of an NFA or SFA device : the 64 byte SMSQ/E file headers made for all files of a
+ * native directory when SMSQ/E opens it as a directory (see <code>XfaFile.makeDirBuffer</code>).
+ * <p>
+ * Making such a buffer means listing the native directory and, for SFA drives, opening every file to read its header. When the
+ * same directory is opened again and hasn't changed, the buffer is taken from here instead. Since the filenames in the buffer
+ * depend on the drive, there is one buffer per drive and directory.
+ * <p>
+ * Each cached directory is watched with a <code>java.nio.file.WatchService</code> : when anything in it changes outside of
+ * SMSQ/E, the watcher thread throws its buffers out of the cache (and those of its parent directory, which show its size). A
+ * directory that can't be watched is checked instead, when its buffer is asked for : the dates of the directory and the dates and
+ * lengths of its files must be the same as when the buffer was made.
+ * <p>
+ * A watch service isn't always to be trusted : on some systems it polls (and only sees changes seconds later), on network file
+ * systems it may never see changes made by other machines. So the date of a watched directory is also checked when its buffer is
+ * asked for : files added, removed or renamed are then always seen. Directories that changed less than 2 seconds before their
+ * buffer is made are not cached, as some file systems only keep dates to the second.
+ * <p>
+ * The watcher thread only sees the changes some time after they happened : the driver must call <code>invalidate</code> for every
+ * change SMSQ/E makes itself (the files do so when the bytes they write reach the native file).
+ * <p>
+ * When the cache holds more than <code>maxBytes</code>, the least recently used directories are thrown out.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.01 the date of watched directories is checked too.
+ * 1.00 initial version.
+ */
+public class DirCache
+{
+    private static final long MIN_AGE=2000;                     // min age, in ms, of a dir for it to be cached
+    private final long maxBytes;                                // max nbr of bytes of all buffers
+    private final java.util.LinkedHashMap<java.nio.file.Path,Entry> dirs;// in access order : the first one is the least recently used
+    private final java.util.HashMap<java.nio.file.Path,java.nio.file.WatchKey> watchKeys=new java.util.HashMap<>();
+    private java.nio.file.WatchService watchService;            // null if dirs can't be watched
+    private long bytes;                                         // nbr of bytes of all buffers
+    private long generation;                                    // incremented whenever the watcher throws something out
+    // statistics
+    private long hits;
+    private long misses;
+    private long invalidations;                                 // dirs thrown out because they changed
+    private long evictions;
+    private long unwatched;                                     // dirs that couldn't be watched
+
+    /**
+     * The buffers of one directory.
+     */
+    private static class Entry
+    {
+        private final byte[][] data=new byte[8][];              // the buffer for each drive, null if none
+        private int bytes;                                      // nbr of bytes of all buffers
+        private java.io.File dir;
+        private long modified;                                  // date of the dir
+        // for unwatched dirs only
+        private java.io.File[] files;                           // the files in it, null for a watched dir
+        private long[] dates;                                   // their dates...
+        private long[] lengths;                                 // ...and lengths
+    }
+
+    /**
+     * Creates the cache and the thread watching the directories (if the file system allows this).
+     *
+     * @param maxBytes max number of bytes of all buffers in the cache.
+     */
+    public DirCache(long maxBytes)
+    {
+        this.maxBytes=maxBytes;
+        this.dirs=new java.util.LinkedHashMap<>(16,0.75f,true);
+        try
+        {
+            this.watchService=java.nio.file.FileSystems.getDefault().newWatchService();
+        }
+        catch (java.io.IOException | UnsupportedOperationException e)
+        {
+            this.watchService=null;                             // all dirs will be checked instead
+            return;
+        }
+        Thread watcher=new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                watch();
+            }
+        },"SMSQmulator dir watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Gets the buffer of a directory, if it is in the cache and hasn't changed.
+     *
+     * @param drive the drive the directory was opened on (0...7).
+     * @param dir the native directory.
+     *
+     * @return the buffer, which must not be modified, or <code>null</code> if it isn't in the cache.
+     */
+    public synchronized byte[] get(int drive,java.io.File dir)
+    {
+        java.nio.file.Path path=getPath(dir);
+        Entry e=path==null?null:this.dirs.get(path);
+        if (e==null || e.data[drive]==null)
+        {
+            this.misses++;
+            return null;
+        }
+        if (!isUnchanged(e))                                    // changed, but the watcher didn't (yet) see it, or it's unwatched
+        {
+            remove(path);
+            this.invalidations++;
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return e.data[drive];
+    }
+
+    /**
+     * Prepares the cache for a new buffer of a directory : this must be called before the directory is listed, so that no change
+     * made in the meantime gets lost.
+     *
+     * @param dir the native directory.
+     *
+     * @return what must be passed to <code>put</code> with the buffer.
+     */
+    public synchronized long prepare(java.io.File dir)
+    {
+        java.nio.file.Path path=getPath(dir);
+        if (path!=null && this.watchService!=null && !this.watchKeys.containsKey(path))
+        {
+            try
+            {
+                this.watchKeys.put(path,path.register(this.watchService,java.nio.file.StandardWatchEventKinds.ENTRY_CREATE,
+                                    java.nio.file.StandardWatchEventKinds.ENTRY_DELETE,java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY));
+            }
+            catch (java.io.IOException | RuntimeException e)
+            { /*NOP*/ }                                         // e.g. too many watched dirs : this one will be checked instead
+        }
+        return this.generation;
+    }
+
+    /**
+     * Puts the buffer of a directory into the cache.
+     *
+     * @param drive the drive the directory was opened on (0...7).
+     * @param dir the native directory.
+     * @param data the buffer, which must not be modified afterwards.
+     * @param files the files in the directory, as listed for the buffer.
+     * @param stamp what <code>prepare</code> returned before the directory was listed.
+     */
+    public synchronized void put(int drive,java.io.File dir,byte[] data,java.io.File[] files,long stamp)
+    {
+        java.nio.file.Path path=getPath(dir);
+        if (path==null)
+            return;
+        Entry e=this.dirs.get(path);
+        boolean watched=this.watchKeys.containsKey(path);
+        if (stamp!=this.generation || data.length>this.maxBytes || System.currentTimeMillis()-dir.lastModified()<DirCache.MIN_AGE)
+        {
+            if (e==null)
+                cancel(path);                                   // something changed while the buffer was made, or won't fit
+            return;
+        }
+        if (e==null)
+        {
+            e=new Entry();
+            e.dir=dir;
+            e.modified=dir.lastModified();
+            if (!watched)
+            {
+                e.files=files;
+                e.dates=new long[files.length];
+                e.lengths=new long[files.length];
+                for (int i=0;i<files.length;i++)
+                {
+                    e.dates[i]=files[i].lastModified();
+                    e.lengths[i]=files[i].length();
+                }
+                this.unwatched++;
+            }
+            this.dirs.put(path,e);
+        }
+        if (e.data[drive]!=null)
+        {
+            e.bytes-=e.data[drive].length;
+            this.bytes-=e.data[drive].length;
+        }
+        e.data[drive]=data;
+        e.bytes+=data.length;
+        this.bytes+=data.length;
+        java.util.Iterator<java.util.Map.Entry<java.nio.file.Path,Entry>> it=this.dirs.entrySet().iterator();
+        while (this.bytes>this.maxBytes && it.hasNext())        // make room, least recently used first
+        {
+            java.util.Map.Entry<java.nio.file.Path,Entry> eldest=it.next();
+            if (eldest.getValue()==e)
+                continue;
+            it.remove();
+            this.bytes-=eldest.getValue().bytes;
+            cancel(eldest.getKey());
+            this.evictions++;
+        }
+    }
+
+    /**
+     * Throws a file or directory that SMSQ/E changed out of the cache, together with the directory it is in, and the one that
+     * directory is in (which shows its size).
+     *
+     * @param file the file or directory that changed.
+     */
+    public synchronized void invalidate(java.io.File file)
+    {
+        java.nio.file.Path path=getPath(file);
+        for (int i=0;i<3 && path!=null;i++)
+        {
+            if (remove(path))
+                this.invalidations++;
+            path=path.getParent();
+        }
+    }
+
+    /**
+     * Throws all directories out of the cache (e.g. when the drives or the way filenames are shown change).
+     */
+    public synchronized void clear()
+    {
+        for (java.nio.file.WatchKey key:this.watchKeys.values())
+        {
+            key.cancel();
+        }
+        this.watchKeys.clear();
+        this.dirs.clear();
+        this.bytes=0;
+    }
+
+    /**
+     * Gets the statistics of the cache.
+     *
+     * @param reset if <code>true</code>, the statistics are reset afterwards.
+     *
+     * @return the statistics, as a string.
+     */
+    public synchronized String getStatistics(boolean reset)
+    {
+        String result=String.format("%d dirs, %d/%d bytes, %d watched, %d hits, %d misses (%.1f%% hits), %d changed, %d evicted, %d not watched%s\n",
+                this.dirs.size(),this.bytes,this.maxBytes,this.watchKeys.size(),this.hits,this.misses,
+                this.hits+this.misses==0?0.0:100.0*this.hits/(this.hits+this.misses),this.invalidations,this.evictions,this.unwatched,
+                this.watchService==null?" (no watch service)":"");
+        if (reset)
+        {
+            this.hits=0;
+            this.misses=0;
+            this.invalidations=0;
+            this.evictions=0;
+            this.unwatched=0;
+        }
+        return result;
+    }
+
+    /**
+     * The watcher thread : throws the directories in which something changed out of the cache.
+     */
+    private void watch()
+    {
+        while (true)
+        {
+            java.nio.file.WatchKey key;
+            try
+            {
+                key=this.watchService.take();
+            }
+            catch (InterruptedException | java.nio.file.ClosedWatchServiceException e)
+            {
+                return;
+            }
+            key.pollEvents();                                   // what changed doesn't matter (and may have been an overflow)
+            java.nio.file.Path path=(java.nio.file.Path)key.watchable();
+            synchronized (this)
+            {
+                this.generation++;
+                if (remove(path))
+                    this.invalidations++;
+                if (path.getParent()!=null && remove(path.getParent()))
+                    this.invalidations++;
+                cancel(path);                                   // watched again when it is cached again
+            }
+        }
+    }
+
+    /**
+     * Removes a directory from the cache and stops watching it.
+     *
+     * @return <code>true</code> if it was in the cache.
+     */
+    private boolean remove(java.nio.file.Path path)
+    {
+        cancel(path);
+        Entry e=this.dirs.remove(path);
+        if (e==null)
+            return false;
+        this.bytes-=e.bytes;
+        return true;
+    }
+
+    /**
+     * Stops watching a directory.
+     */
+    private void cancel(java.nio.file.Path path)
+    {
+        java.nio.file.WatchKey key=this.watchKeys.remove(path);
+        if (key!=null)
+            key.cancel();
+    }
+
+    /**
+     * Checks whether a directory (and, if it is unwatched, its files) is still as it was when its buffer was made.
+     */
+    private static boolean isUnchanged(Entry e)
+    {
+        if (e.dir.lastModified()!=e.modified)
+            return false;                                       // files were added, removed or renamed
+        if (e.files==null)
+            return true;                                        // watched : the watcher sees the rest
+        for (int i=0;i<e.files.length;i++)
+        {
+            if (e.files[i].lastModified()!=e.dates[i] || e.files[i].length()!=e.lengths[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the path used as key for a file.
+     *
+     * @return the path, or <code>null</code> if the file has no valid path.
+     */
+    private static java.nio.file.Path getPath(java.io.File file)
+    {
+        try
+        {
+            return file.getAbsoluteFile().toPath().normalize();
+        }
+        catch (java.nio.file.InvalidPathException e)
+        {
+            return null;
+        }
+    }
+}
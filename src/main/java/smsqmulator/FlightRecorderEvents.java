@@ -0,0 +1,196 @@
+package smsqmulator;
+
+/**
+ * Java Flight Recorder (JFR) events for the main activities of the emulator.
+ * <p>
+ * These events allow profiling SMSQmulator with the standard JFR tools (e.g. <code>-XX:StartFlightRecording</code>, JDK Mission Control) :
+ * the guest level causes of delays (traps, drive I/O, network, screen operations) are then shown next to GC and JIT events.
+ * <p>
+ * The JFR API only exists from java 8u262 onwards, so this class doesn't use it : it only defines what the rest of the emulator
+ * sees of the events. The JFR event classes are in <code>JfrEvents</code>, which is in a separate source directory
+ * (<code>src/jfr/java</code>) and only compiled by the <code>jfr</code> maven profile (active by default on java 11 and later).
+ * <code>JfrEvents</code> is loaded by reflection : if it, or the JFR API, is not there, <code>AVAILABLE</code> is <code>false</code>.
+ * <p>
+ * All <code>begin</code> methods return <code>null</code> if the event type is not available or not enabled, so that there is next
+ * to no overhead when no recording is going on. The fields of an event are only filled in when the event is actually committed.
+ * <p>
+ * There are no snapshot events, as SMSQmulator has no snapshots.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.02 the JfrEvents object is made through its constructor (Class.newInstance is deprecated).
+ * 1.01 no compile time dependency on the JFR API : the events are interfaces here, implemented by JfrEvents.
+ * 1.00 initial version : trap, WIN drive I/O, NFA/SFA file I/O, IP and screen events.
+ */
+public class FlightRecorderEvents
+{
+    private static final Factory FACTORY=loadFactory();
+
+    /**
+     * <code>true</code> if the JFR API and the JFR event classes are available in this JVM.
+     */
+    public static final boolean AVAILABLE=FlightRecorderEvents.FACTORY!=null;
+
+    /**
+     * What makes the events : implemented by <code>JfrEvents</code>. Each method returns <code>null</code> if the event type is not enabled.
+     */
+    public interface Factory
+    {
+        public TrapEvent beginTrap(int trapType,smsqmulator.cpu.MC68000Cpu cpu);
+        public WinDriveEvent beginWinDrive();
+        public XfaFileEvent beginXfaFile();
+        public IPEvent beginIP();
+        public ScreenEvent beginScreen();
+    }
+
+    /**
+     * Loads the JFR event classes, if the JFR API exists.
+     *
+     * @return the factory making the events, or <code>null</code> if there is none.
+     */
+    private static Factory loadFactory()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event");
+            return (Factory)Class.forName("smsqmulator.JfrEvents").getDeclaredConstructor().newInstance();
+        }
+        catch (Throwable t)
+        {
+            return null;                                        // no JFR API, or compiled without the jfr profile
+        }
+    }
+
+    /**
+     * Starts a trap event.
+     *
+     * @param trapType the trap type (Types.TRAPx, or the opcode for maths ops).
+     * @param cpu the cpu calling the trap.
+     *
+     * @return the event, or <code>null</code> if no event is to be recorded.
+     */
+    public static TrapEvent beginTrap(int trapType,smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        return FlightRecorderEvents.FACTORY==null?null:FlightRecorderEvents.FACTORY.beginTrap(trapType,cpu);
+    }
+
+    /**
+     * Starts a WIN drive I/O event.
+     *
+     * @return the event, or <code>null</code> if no event is to be recorded.
+     */
+    public static WinDriveEvent beginWinDrive()
+    {
+        return FlightRecorderEvents.FACTORY==null?null:FlightRecorderEvents.FACTORY.beginWinDrive();
+    }
+
+    /**
+     * Starts an NFA/SFA file load or save event.
+     *
+     * @return the event, or <code>null</code> if no event is to be recorded.
+     */
+    public static XfaFileEvent beginXfaFile()
+    {
+        return FlightRecorderEvents.FACTORY==null?null:FlightRecorderEvents.FACTORY.beginXfaFile();
+    }
+
+    /**
+     * Starts an IP event.
+     *
+     * @return the event, or <code>null</code> if no event is to be recorded.
+     */
+    public static IPEvent beginIP()
+    {
+        return FlightRecorderEvents.FACTORY==null?null:FlightRecorderEvents.FACTORY.beginIP();
+    }
+
+    /**
+     * Starts a screen event (repaint or block operation).
+     *
+     * @return the event, or <code>null</code> if no event is to be recorded.
+     */
+    public static ScreenEvent beginScreen()
+    {
+        return FlightRecorderEvents.FACTORY==null?null:FlightRecorderEvents.FACTORY.beginScreen();
+    }
+
+    /**
+     * A trap handled by the TrapDispatcher.
+     */
+    public interface TrapEvent
+    {
+        /**
+         * Ends the trap event and commits it if need be.
+         *
+         * @param cpu the cpu having called the trap.
+         */
+        public void finish(smsqmulator.cpu.MC68000Cpu cpu);
+    }
+
+    /**
+     * Clusters read from or written to a WIN drive.
+     */
+    public interface WinDriveEvent
+    {
+        /**
+         * Ends the event and commits it if need be.
+         *
+         * @param drive the name of the native qxl.win file.
+         * @param write <code>true</code> if clusters were written.
+         * @param firstCluster the first cluster read or written.
+         * @param clusters how many clusters were read or written.
+         * @param bytes how many bytes were read or written.
+         */
+        public void finish(String drive,boolean write,int firstCluster,int clusters,int bytes);
+    }
+
+    /**
+     * An NFA or SFA file being loaded or saved.
+     */
+    public interface XfaFileEvent
+    {
+        /**
+         * Ends the event and commits it if need be.
+         *
+         * @param file the native file.
+         * @param save <code>true</code> if bytes were saved.
+         * @param position the position in the file where the operation started.
+         * @param bytes how many bytes were loaded or saved.
+         * @param address where in memory the bytes were loaded to or saved from.
+         */
+        public void finish(java.io.File file,boolean save,int position,int bytes,int address);
+    }
+
+    /**
+     * An IP connect, send or receive operation.
+     */
+    public interface IPEvent
+    {
+        /**
+         * Ends the event and commits it if need be.
+         *
+         * @param operation the operation ("connect", "send", "receive").
+         * @param socket the socket the operation was made on.
+         * @param bytes how many bytes were sent or received.
+         * @param result the SMSQ/E result (0 or error code).
+         */
+        public void finish(String operation,IPSocket socket,int bytes,int result);
+    }
+
+    /**
+     * A repaint of the screen or a block operation in the screen.
+     */
+    public interface ScreenEvent
+    {
+        /**
+         * Ends the event and commits it if need be.
+         *
+         * @param operation the operation ("repaint", "fill", "xor", "move", "combine").
+         * @param x the x origin of the area.
+         * @param y the y origin of the area.
+         * @param width the width of the area.
+         * @param height the height of the area.
+         */
+        public void finish(String operation,int x,int y,int width,int height);
+    }
+}
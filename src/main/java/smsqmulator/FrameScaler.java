@@ -0,0 +1,229 @@
+package smsqmulator;
+
+/**
+ * This scales regions of a frame of the screen into a larger (or smaller) image, when the screen is shown enlarged.
+ * <p>
+ * The scaled image is kept by the screen and only the regions that changed are scaled again, by the screen thread, so that the
+ * EDT just has to draw the scaled image as is :
+ * <ul>
+ * <li> If the size of the scaled image is an exact multiple of the frame size (e.g. 2x, 3x, 4x), the pixels are just replicated,
+ *      one source row is made once and then copied with <code>System.arraycopy</code>.</li>
+ * <li> Else, the filter decides : either the nearest source pixel is used, or the four nearest source pixels are mixed (smooth).</li>
+ * </ul>
+ * The tables mapping the destination columns and rows to the source are only made again when the sizes change.
+ * This is used from the screen thread only.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class FrameScaler
+{
+    public static final int NEAREST=0;                          // filter : nearest pixel (pixel replication)
+    public static final int SMOOTH=1;                           // filter : bilinear for non integer sizes
+    public static final int NONE=2;                             // no scaled image, Java2D scales at each repaint
+    private int filter=FrameScaler.NEAREST;
+    private int srcWidth,srcHeight,destWidth,destHeight;        // sizes the tables were made for
+    private int[] xMap=new int[0],yMap=new int[0];              // per dest column/row : source column/row
+    private int[] xFrac=new int[0],yFrac=new int[0];            // per dest column/row : weight (0...256) of next column/row (smooth)
+
+    /**
+     * Sets the filter used for non integer sizes.
+     *
+     * @param filter one of NEAREST, SMOOTH, NONE. Any other value is taken as NEAREST.
+     */
+    public void setFilter(int filter)
+    {
+        if (filter!=FrameScaler.SMOOTH && filter!=FrameScaler.NONE)
+            filter=FrameScaler.NEAREST;
+        if (filter!=this.filter)
+        {
+            this.filter=filter;
+            this.destWidth=0;                                   // make sure tables are made again
+        }
+    }
+
+    /**
+     * Gets the filter used for non integer sizes.
+     *
+     * @return one of NEAREST, SMOOTH, NONE.
+     */
+    public int getFilter()
+    {
+        return this.filter;
+    }
+
+    /**
+     * Scales a region of the source image into the destination image.
+     *
+     * @param src the pixels of the source image.
+     * @param srcWidth the width of the source image.
+     * @param srcHeight the height of the source image.
+     * @param dest the pixels of the destination image.
+     * @param destWidth the width of the destination image.
+     * @param destHeight the height of the destination image.
+     * @param r the region, in source image coordinates.
+     */
+    public void scale(int[]src,int srcWidth,int srcHeight,int[]dest,int destWidth,int destHeight,java.awt.Rectangle r)
+    {
+        int x0=Math.max(r.x,0);
+        int y0=Math.max(r.y,0);
+        int x1=Math.min(r.x+r.width,srcWidth);
+        int y1=Math.min(r.y+r.height,srcHeight);
+        if (x1<=x0 || y1<=y0)
+            return;
+        if (destWidth%srcWidth==0 && destHeight%srcHeight==0)
+        {
+            replicate(src,srcWidth,dest,destWidth,destWidth/srcWidth,destHeight/srcHeight,x0,y0,x1,y1);
+            return;
+        }
+        makeTables(srcWidth,srcHeight,destWidth,destHeight);
+        int reach=this.filter==FrameScaler.SMOOTH?1:0;          // smooth : a dest pixel also uses the next source column/row
+        int dx0=firstAtLeast(this.xMap,x0-reach);               // dest columns/rows using the region
+        int dx1=firstAtLeast(this.xMap,x1);
+        int dy0=firstAtLeast(this.yMap,y0-reach);
+        int dy1=firstAtLeast(this.yMap,y1);
+        if (this.filter==FrameScaler.SMOOTH)
+            smooth(src,srcWidth,dest,destWidth,dx0,dy0,dx1,dy1);
+        else
+        {
+            for (int dy=dy0;dy<dy1;dy++)
+            {
+                int s=this.yMap[dy]*srcWidth;
+                int d=dy*destWidth;
+                for (int dx=dx0;dx<dx1;dx++)
+                {
+                    dest[d+dx]=src[s+this.xMap[dx]];
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the first entry of a table that is at least a certain value.
+     *
+     * @param map the table, in ascending order.
+     * @param value the value.
+     *
+     * @return the index of the first entry &gt;= value, or the length of the table if there is none.
+     */
+    private static int firstAtLeast(int[]map,int value)
+    {
+        int low=0,high=map.length;
+        while (low<high)
+        {
+            int middle=(low+high)>>>1;
+            if (map[middle]<value)
+                low=middle+1;
+            else
+                high=middle;
+        }
+        return low;
+    }
+
+    /**
+     * Scales by integer factors : every pixel is replicated.
+     */
+    private void replicate(int[]src,int srcWidth,int[]dest,int destWidth,int kx,int ky,int x0,int y0,int x1,int y1)
+    {
+        int len=(x1-x0)*kx;
+        for (int y=y0;y<y1;y++)
+        {
+            int s=y*srcWidth+x0;
+            int first=y*ky*destWidth+x0*kx;                     // first dest pixel of the first dest row
+            int d=first;
+            for (int x=x0;x<x1;x++,s++)
+            {
+                int pixel=src[s];
+                for (int k=0;k<kx;k++)
+                {
+                    dest[d++]=pixel;
+                }
+            }
+            for (int k=1;k<ky;k++)                              // the other rows are just copies of the first one
+            {
+                System.arraycopy(dest,first,dest,first+k*destWidth,len);
+            }
+        }
+    }
+
+    /**
+     * Scales with bilinear interpolation.
+     */
+    private void smooth(int[]src,int srcWidth,int[]dest,int destWidth,int dx0,int dy0,int dx1,int dy1)
+    {
+        int lastRow=(src.length/srcWidth-1)*srcWidth;
+        for (int dy=dy0;dy<dy1;dy++)
+        {
+            int row0=this.yMap[dy]*srcWidth;
+            int row1=Math.min(row0+srcWidth,lastRow);
+            int fy=this.yFrac[dy];
+            int d=dy*destWidth;
+            for (int dx=dx0;dx<dx1;dx++)
+            {
+                int sx=this.xMap[dx];
+                int sx1=Math.min(sx+1,srcWidth-1);
+                int fx=this.xFrac[dx];
+                int top=mix(src[row0+sx],src[row0+sx1],fx);
+                int bottom=mix(src[row1+sx],src[row1+sx1],fx);
+                dest[d+dx]=mix(top,bottom,fy);
+            }
+        }
+    }
+
+    /**
+     * Mixes two RGB pixels.
+     *
+     * @param a the first pixel.
+     * @param b the second pixel.
+     * @param f the weight of the second pixel, 0...256.
+     *
+     * @return the mixed pixel.
+     */
+    private static int mix(int a,int b,int f)
+    {
+        if (f==0 || a==b)
+            return a;
+        int g=256-f;
+        int rb=((a&0xff00ff)*g+(b&0xff00ff)*f)>>>8;             // red and blue together, they can't overflow into each other
+        int gr=((a&0x00ff00)*g+(b&0x00ff00)*f)>>>8;
+        return (rb&0xff00ff)|(gr&0x00ff00);
+    }
+
+    /**
+     * Makes the tables mapping destination columns and rows to the source, if the sizes changed.
+     */
+    private void makeTables(int srcWidth,int srcHeight,int destWidth,int destHeight)
+    {
+        if (srcWidth==this.srcWidth && srcHeight==this.srcHeight && destWidth==this.destWidth && destHeight==this.destHeight)
+            return;
+        this.xMap=new int[destWidth];
+        this.xFrac=new int[destWidth];
+        makeTable(this.xMap,this.xFrac,srcWidth,destWidth);
+        this.yMap=new int[destHeight];
+        this.yFrac=new int[destHeight];
+        makeTable(this.yMap,this.yFrac,srcHeight,destHeight);
+        this.srcWidth=srcWidth;
+        this.srcHeight=srcHeight;
+        this.destWidth=destWidth;
+        this.destHeight=destHeight;
+    }
+
+    /**
+     * Makes one table.
+     */
+    private void makeTable(int[]map,int[]frac,int srcSize,int destSize)
+    {
+        for (int d=0;d<destSize;d++)
+        {
+            if (this.filter==FrameScaler.SMOOTH)
+            {
+                long pos=Math.max(((2L*d+1)*srcSize*256)/(2L*destSize)-128,0);// centre of dest pixel in source, in 1/256 pixels
+                map[d]=(int)Math.min(pos>>>8,srcSize-1);
+                frac[d]=(int)(pos&0xff);
+            }
+            else
+                map[d]=(int)((long)d*srcSize/destSize);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package smsqmulator;
+
+/**
+ * This is an index of the free clusters of one QXL.WIN drive, kept in memory next to the FAT.
+ * <p>
+ * In the FAT, the free clusters are a linked list, sorted in increasing order. Walking that list one cluster at a time to find
+ * a free cluster, or to find where to insert a freed one, is slow on big drives, and taking the first free cluster each time
+ * scatters files all over the drive.
+ * <p>
+ * Here, the free clusters are kept as runs (clusters that follow each other on the drive), indexed by their first cluster and by
+ * their length. Clusters are then allocated by runs : a chain that is extended first gets the clusters right after its last
+ * cluster, if they are free, else the smallest run that is big enough is taken (best fit). If there is none, the biggest runs
+ * are taken until there are enough clusters. Freed clusters are merged with the runs next to them.
+ * <p>
+ * The free list in the FAT is kept in step with this index, only the links around the clusters that change are written. The FAT
+ * is not written to the drive here.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class FreeSpaceMap
+{
+    private final java.nio.ByteBuffer fat;                      // the FAT (+ header) of the drive
+    private final int totalClusters;                            // nbr of clusters in the FAT
+    private final java.util.TreeMap<Integer,Integer> runs=new java.util.TreeMap<>();// first cluster of a run -> length of run
+    private final java.util.TreeMap<Integer,java.util.TreeSet<Integer>> runsBySize=new java.util.TreeMap<>();// length -> first clusters
+    private int freeClusters;
+    // statistics
+    private long allocations;                                   // nbr of times clusters were allocated
+    private long runsAllocated;                                 // nbr of runs taken for that
+    private long clustersFreed;
+
+    /**
+     * Creates the index from the free list in the FAT.
+     * <p>
+     * If the free list isn't sorted, or if the number of free clusters in the header is wrong, the free list and the number
+     * are set anew in the FAT.
+     *
+     * @param fat the FAT (+ header) of the drive.
+     */
+    public FreeSpaceMap(java.nio.ByteBuffer fat)
+    {
+        this.fat=fat;
+        this.totalClusters=Math.min(fat.getShort(WinDrive.QWA_NGRP)&0xffff,(fat.capacity()-WinDrive.QWA_GMAP)/2);
+        java.util.BitSet free=new java.util.BitSet(this.totalClusters);
+        boolean sorted=true;
+        int previous=0;
+        int cluster=fat.getShort(WinDrive.QWA_FREE)&0xffff;
+        while (cluster!=0 && cluster<this.totalClusters && !free.get(cluster))
+        {
+            free.set(cluster);
+            if (cluster<previous)
+                sorted=false;
+            previous=cluster;
+            cluster=getLink(cluster);
+        }
+        if (cluster!=0)                                         // bad link or loop : the list stops here
+            sorted=false;
+        for (int i=free.nextSetBit(0);i>=0;)
+        {
+            int end=free.nextClearBit(i);
+            addRun(i,end-i);
+            i=free.nextSetBit(end);
+        }
+        this.freeClusters=free.cardinality();
+        if (!sorted || this.freeClusters!=(fat.getShort(WinDrive.QWA_FGRP)&0xffff))
+            relink();
+    }
+
+    /**
+     * Gets the number of free clusters.
+     *
+     * @return the number of free clusters.
+     */
+    public int getFreeClusters()
+    {
+        return this.freeClusters;
+    }
+
+    /**
+     * Allocates clusters and adds them at the end of a clusterchain. They are linked in the FAT.
+     *
+     * @param clustersNeeded the number of clusters needed.
+     * @param clusterchain the clusterchain, may be empty (a new one is then made).
+     *
+     * @return <code>true</code> if OK, <code>false</code> if there weren't enough free clusters or the last cluster of the chain
+     *         isn't the end of a chain in the FAT. In that case, nothing is allocated.
+     */
+    public boolean allocate(int clustersNeeded,java.util.ArrayList<Integer> clusterchain)
+    {
+        if (clustersNeeded>this.freeClusters)
+            return false;                                       // there are not enough free clusters
+        int last=clusterchain.isEmpty()?0:clusterchain.get(clusterchain.size()-1);
+        if (last!=0 && getLink(last)!=0)
+            return false;                                       // there is something very wrong here!
+        if (clustersNeeded<1)
+            return true;
+        this.allocations++;
+        int first=clusterchain.size();                          // index of first new cluster
+        Integer length=this.runs.get(last+1);
+        if (last!=0 && length!=null)                            // the clusters right after the chain are free, take them first
+            clustersNeeded-=take(last+1,Math.min(length,clustersNeeded),clusterchain);
+        while (clustersNeeded>0)
+        {
+            java.util.Map.Entry<Integer,java.util.TreeSet<Integer>> e=this.runsBySize.ceilingEntry(clustersNeeded);// best fit...
+            if (e==null)
+                e=this.runsBySize.lastEntry();                  // ... or the biggest run there is
+            clustersNeeded-=take(e.getValue().first(),Math.min(e.getKey(),clustersNeeded),clusterchain);
+        }
+        if (last!=0)
+            setLink(last,clusterchain.get(first));              // link the old end of chain to the new clusters
+        for (int i=first;i<clusterchain.size()-1;i++)
+        {
+            setLink(clusterchain.get(i),clusterchain.get(i+1));
+        }
+        setLink(clusterchain.get(clusterchain.size()-1),0);     // there is no next cluster in the clusterchain
+        return true;
+    }
+
+    /**
+     * Frees all clusters of a clusterchain.
+     *
+     * @param cluster the first cluster of the chain, all other clusters this cluster refers to will also be freed.
+     */
+    public void free(int cluster)
+    {
+        int[]chain=new int[16];
+        int nbr=0;
+        for (int i=0;cluster!=0 && cluster<this.totalClusters && i<this.totalClusters;i++)// guard against loops
+        {
+            if (nbr==chain.length)
+                chain=java.util.Arrays.copyOf(chain,nbr*2);
+            chain[nbr++]=cluster;
+            cluster=getLink(cluster);
+        }
+        java.util.Arrays.sort(chain,0,nbr);
+        for (int i=0;i<nbr;)                                    // free run by run
+        {
+            int start=chain[i];
+            int end=start+1;
+            for (i++;i<nbr && chain[i]<=end;i++)
+            {
+                if (chain[i]==end)                              // (a cluster twice in a bad chain is only freed once)
+                    end++;
+            }
+            Integer next=this.runs.higherKey(start);
+            if (!isFree(start) && (next==null || next>=end))    // the normal case : none of these clusters is free
+            {
+                release(start,end);
+                continue;
+            }
+            for (int c=start;c<end;)                            // don't free clusters that are free already
+            {
+                while (c<end && isFree(c))
+                    c++;
+                int e=c;
+                while (e<end && !isFree(e))
+                    e++;
+                if (e>c)
+                    release(c,e);
+                c=e;
+            }
+        }
+    }
+
+    /**
+     * Gets the statistics of the free space.
+     *
+     * @param reset if <code>true</code>, the allocation statistics are reset afterwards.
+     *
+     * @return the statistics, as a string.
+     */
+    public String getStatistics(boolean reset)
+    {
+        String result=String.format("%d free clusters in %d runs, biggest run %d, %d allocations in %d runs, %d clusters freed\n",
+                this.freeClusters,this.runs.size(),this.runsBySize.isEmpty()?0:this.runsBySize.lastKey(),this.allocations,
+                this.runsAllocated,this.clustersFreed);
+        if (reset)
+        {
+            this.allocations=0;
+            this.runsAllocated=0;
+            this.clustersFreed=0;
+        }
+        return result;
+    }
+
+    /**
+     * Takes clusters from the start of a free run and adds them to a clusterchain. The free list is linked around them.
+     *
+     * @return the number of clusters taken.
+     */
+    private int take(int start,int count,java.util.ArrayList<Integer> clusterchain)
+    {
+        int length=this.runs.get(start);
+        removeRun(start,length);
+        if (count<length)
+            addRun(start+count,length-count);
+        Integer next=this.runs.higherKey(start);
+        linkBefore(start,next==null?0:next);
+        for (int i=start;i<start+count;i++)
+        {
+            clusterchain.add(i);
+        }
+        this.freeClusters-=count;
+        this.fat.putShort(WinDrive.QWA_FGRP,(short)this.freeClusters);
+        this.runsAllocated++;
+        return count;
+    }
+
+    /**
+     * Frees the clusters from start (inclusive) to end (exclusive), none of which is free, merging them with the runs next to them.
+     */
+    private void release(int start,int end)
+    {
+        for (int i=start;i<end-1;i++)
+        {
+            setLink(i,i+1);
+        }
+        int runStart=start;
+        int runEnd=end;
+        java.util.Map.Entry<Integer,Integer> before=this.runs.lowerEntry(start);
+        if (before!=null && before.getKey()+before.getValue()==start)// merge with run before
+        {
+            runStart=before.getKey();
+            removeRun(before.getKey(),before.getValue());
+        }
+        Integer after=this.runs.get(end);
+        if (after!=null)                                        // merge with run after
+        {
+            removeRun(end,after);
+            runEnd=end+after;
+            setLink(end-1,end);
+        }
+        else
+        {
+            Integer next=this.runs.higherKey(start);
+            setLink(end-1,next==null?0:next);
+        }
+        if (runStart<start)
+            setLink(start-1,start);
+        else
+            linkBefore(start,start);
+        addRun(runStart,runEnd-runStart);
+        this.freeClusters+=end-start;
+        this.clustersFreed+=end-start;
+        this.fat.putShort(WinDrive.QWA_FGRP,(short)this.freeClusters);
+    }
+
+    /**
+     * Sets the link to a cluster from the last free cluster before a position (or from the header, if there is none).
+     */
+    private void linkBefore(int position,int cluster)
+    {
+        java.util.Map.Entry<Integer,Integer> before=this.runs.lowerEntry(position);
+        if (before==null)
+            this.fat.putShort(WinDrive.QWA_FREE,(short)cluster);// this becomes the first free cluster
+        else
+            setLink(before.getKey()+before.getValue()-1,cluster);
+    }
+
+    /**
+     * Links all free clusters in the FAT anew, in increasing order, and sets the number of free clusters.
+     */
+    private void relink()
+    {
+        int previous=-1;
+        for (java.util.Map.Entry<Integer,Integer> e:this.runs.entrySet())
+        {
+            if (previous<0)
+                this.fat.putShort(WinDrive.QWA_FREE,(short)(int)e.getKey());
+            else
+                setLink(previous,e.getKey());
+            int end=e.getKey()+e.getValue();
+            for (int i=e.getKey();i<end-1;i++)
+            {
+                setLink(i,i+1);
+            }
+            previous=end-1;
+        }
+        if (previous<0)
+            this.fat.putShort(WinDrive.QWA_FREE,(short)0);      // no free cluster at all
+        else
+            setLink(previous,0);
+        this.fat.putShort(WinDrive.QWA_FGRP,(short)this.freeClusters);
+    }
+
+    /**
+     * Checks whether a cluster is free.
+     */
+    private boolean isFree(int cluster)
+    {
+        java.util.Map.Entry<Integer,Integer> e=this.runs.floorEntry(cluster);
+        return e!=null && cluster<e.getKey()+e.getValue();
+    }
+
+    private void addRun(int start,int length)
+    {
+        this.runs.put(start,length);
+        java.util.TreeSet<Integer> starts=this.runsBySize.get(length);
+        if (starts==null)
+        {
+            starts=new java.util.TreeSet<>();
+            this.runsBySize.put(length,starts);
+        }
+        starts.add(start);
+    }
+
+    private void removeRun(int start,int length)
+    {
+        this.runs.remove(start);
+        java.util.TreeSet<Integer> starts=this.runsBySize.get(length);
+        starts.remove(start);
+        if (starts.isEmpty())
+            this.runsBySize.remove(length);
+    }
+
+    private int getLink(int cluster)
+    {
+        return this.fat.getShort(WinDrive.QWA_GMAP+cluster*2)&0xffff;
+    }
+
+    private void setLink(int cluster,int next)
+    {
+        this.fat.putShort(WinDrive.QWA_GMAP+cluster*2,(short)next);
+    }
+}
@@ -8,6 +8,7 @@ package smsqmulator;
  * @author and copyright (C) Wolfgang Lenerz 2010-2014.
  * 
  * @version 
+ * 1.05 reportError writes to the console if there is no display (headless).
  * 1.04 handles conversion for øå¿æÑÆŒ€
  * 1.03 convertToSMSQE (char c) introduced.
  * 1.02 writeSMSQEString no longer used (is in cpu anyway)
@@ -30,6 +31,11 @@ public class Helper
      */
     public static final void reportError(String title,String text,javax.swing.JFrame frame)
     {
+        if (java.awt.GraphicsEnvironment.isHeadless())
+        {
+            System.err.println(title+" : "+text);           // no display : e.g. headless benchmark run
+            return;
+        }
         java.awt.Toolkit.getDefaultToolkit().beep();
         javax.swing.JOptionPane.showMessageDialog(frame,text,title,javax.swing.JOptionPane.ERROR_MESSAGE);
     }
@@ -20,6 +20,7 @@ package smsqmulator;
  * @author Wolfgang Lenerz copyright (c) 2016
  * 
  * @version 
+ * 1.01 connect, send and receive generate JFR events if JFR is recording.
  * 1.00 several tweeks, should be ready for release.
  * 0.02 use IPReadAheadBuffer.
  * 0.01 handles unnamed SCK, all cases of client TCP. UDP not yet handled    
@@ -348,6 +349,22 @@ public class IPSocket
      * @return SMSQ/E error code or 0
      */
     public int connect(smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        FlightRecorderEvents.IPEvent event=FlightRecorderEvents.beginIP();
+        int result=doConnect(cpu);
+        if (event!=null)
+            event.finish("connect",this,0,result);
+        return result;
+    }
+    
+    /**
+     * Connects an existing socket, see connect.
+     * 
+     * @param cpu the smsqmulator.cpu.MC68000Cpu (A1 points to a sockaddr structure)
+     * 
+     * @return SMSQ/E error code or 0
+     */
+    private int doConnect(smsqmulator.cpu.MC68000Cpu cpu)
     {
         switch (this.type)
         {
@@ -525,6 +542,23 @@ public class IPSocket
      * @return nbr of bytes sent or negative SMSQ/E error code.
      */
     public int send(smsqmulator.cpu.MC68000Cpu cpu,int size)
+    {
+        FlightRecorderEvents.IPEvent event=FlightRecorderEvents.beginIP();
+        int result=doSend(cpu,size);
+        if (event!=null)
+            event.finish("send",this,result>0?result:0,result<0?result:0);
+        return result;
+    }
+    
+    /**
+     * Sends data over a TCP connection, see send.
+     * 
+     * @param cpu the cpu to get data to be sent from, it lies at (A1), ndr of bytes to be sent in D2.L.
+     * @param size nbr of bytes to send
+     * 
+     * @return nbr of bytes sent or negative SMSQ/E error code.
+     */
+    private int doSend(smsqmulator.cpu.MC68000Cpu cpu,int size)
     {
         if (size==0)
         {
@@ -701,6 +735,25 @@ public class IPSocket
      * @return SMSQ/E negative error code or the number of bytes I got
      */
     public int receive(smsqmulator.cpu.MC68000Cpu cpu,int size,boolean checkD1,byte[]byt)
+    {
+        FlightRecorderEvents.IPEvent event=FlightRecorderEvents.beginIP();
+        int result=doReceive(cpu,size,checkD1,byt);
+        if (event!=null)
+            event.finish("receive",this,result>0?result:0,result<0?result:0);
+        return result;
+    }
+    
+    /**
+     * Receives data from a TCP connection, see receive.
+     * 
+     * @param cpu the CPU used.
+     * @param size nbr of bytes to read
+     * @param checkD1 if true, should check D1 for flags.
+     * @param byt byt array into which to receive, if null, a temporary one will be used here.
+     * 
+     * @return SMSQ/E negative error code or the number of bytes I got
+     */
+    private int doReceive(smsqmulator.cpu.MC68000Cpu cpu,int size,boolean checkD1,byte[]byt)
     {
         this.errorNumber=0;
         switch (this.type)
@@ -0,0 +1,369 @@
+package smsqmulator;
+
+/**
+ * This records the input events (keys, mouse) going into SMSQ/E into a file, or replays them from such a file.
+ * <p>
+ * Normally, keys and mouse events are written into the linkage block from the swing EDT, i.e. at any time, and the 50 Hz interrupt
+ * comes from a separate thread (see QL50HzInterrupt). An interactive session can thus never be repeated exactly. When a journal
+ * is used, this is different :
+ * <ul>
+ *   <li> The 50 Hz interrupt is generated by this object, from the emulation thread, every <code>instructionsPerTick</code>
+ *        instructions (the QL50HzInterrupt object no longer generates it). This is called a "tick".</li>
+ *   <li> When recording, input events from the EDT are queued and only put into the linkage block at the next tick. They are
+ *        written to the journal file together with the number of instructions executed so far.</li>
+ *   <li> When replaying, the input events from the file are put into the linkage block after exactly the same number of instructions.
+ *        Input events from the EDT are ignored. The TrapDispatcher does not put the emulation thread to sleep when the machine is idle.</li>
+ *   <li> The time given to SMSQ/E (real time clock and timer traps) is virtual : it advances by 20 ms with every tick.
+ *        The start time is stored in the journal file, as is the random number given to SMSQ/E.</li>
+ * </ul>
+ * A recorded session may thus be used as a repeatable workload, e.g. for performance regression tests.
+ * <p>
+ * A journal may also be used without a file, only for its deterministic ticks and virtual time, and it may stop the emulation
+ * after a given number of instructions : this is used by the BenchmarkRunner.
+ * <p>
+ * The journal starts when the emulation is started for the first time after the OS was loaded. Resets and memory size changes
+ * are not journalled. Native file I/O (file dates, contents of native files) remains outside of the journal.
+ * <p>
+ * File format (big endian) : header = magic 'SMIJ' (long), version (word), instructions per tick (long), RTC at start (long),
+ * random number (word). Then, for each event : instruction count (8 bytes), event type (byte), and 1 (4 for the mouse) long word(s).
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.02 when the instruction limit is reached, the emulation thread ends (ExecutionStoppedException) instead of blocking.
+ * 1.01 may be used without a file ; instruction limit (setInstructionLimit, waitForLimit) ; isReplaying becomes isUnattended.
+ * 1.00 initial version.
+ */
+public class InputJournal implements smsqmulator.cpu.InstructionCountListener
+{
+    public static final int KEY=1;                              // event types : key typed
+    public static final int MOUSE=2;                            // mouse moved
+    public static final int BUTTON=3;                           // mouse button
+    public static final int WHEEL=4;                            // mouse wheel
+    private static final int MAGIC=0x534d494a;                  // 'SMIJ'
+    private static final int VERSION=1;
+    private static final int TICK_MILLIS=20;                    // 50 Hz
+    private final java.io.File file;                            // the journal file
+    private final boolean replay;                               // true if replaying, false if recording
+    private int instructionsPerTick;                            // nbr of instructions between two 50 Hz interrupts
+    private final Monitor monitor;                              // puts the events into the linkage block
+    private boolean started=false;
+    private java.io.DataOutputStream out;                       // when recording
+    private java.io.DataInputStream in;                         // when replaying
+    private int rtc;                                            // SMSQ/E time at start
+    private long ticks=0;                                       // nbr of ticks so far
+    private long nextTick;                                      // instruction count for next tick
+    private final java.util.concurrent.ConcurrentLinkedQueue<int[]> pending=new java.util.concurrent.ConcurrentLinkedQueue<>();// recorded events waiting for next tick
+    private long nextEventCount=Long.MAX_VALUE;                 // instruction count of next replayed event
+    private final int[] nextEvent=new int[5];                   // next replayed event : type + parameters
+    private long nbrOfEvents=0;
+    private long wallStart;                                     // real time (ns) when the journal started
+    private long limit=Long.MAX_VALUE;                          // instruction count at which the emulation stops
+    private long elapsed=-1;                                    // real time (ns) from start until limit was reached, -1 if not yet
+
+    /**
+     * Creates the object.
+     *
+     * @param filename the name of the journal file, <code>null</code> if there is no file (ticks and virtual time only).
+     * @param replay <code>true</code> if the file is to be replayed, <code>false</code> if it is to be recorded.
+     * @param instructionsPerTick nbr of instructions between two 50 Hz interrupts (when recording, replay takes the value in the file).
+     * @param monitor the monitor, used to put the events into the linkage block.
+     */
+    public InputJournal(String filename,boolean replay,int instructionsPerTick,Monitor monitor)
+    {
+        this.file=filename==null?null:new java.io.File(filename);
+        this.replay=replay;
+        this.instructionsPerTick=instructionsPerTick<1000?1000:instructionsPerTick;
+        this.monitor=monitor;
+    }
+
+    /**
+     * Starts the journal : opens the file, sets the time and random number for SMSQ/E and registers with the cpu.
+     * This only does something the first time it is called. It must be called before the emulation thread starts.
+     *
+     * @param cpu the cpu executing SMSQ/E, the OS must have been loaded.
+     *
+     * @return <code>true</code> if the journal was started now, <code>false</code> if it was started before or couldn't be started.
+     */
+    public boolean start(smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        if (this.started)
+            return false;
+        this.started=true;
+        int random=0;
+        try
+        {
+            if (this.file==null)
+                this.rtc=(int)((System.currentTimeMillis()/1000)+Monitor.TIME_OFFSET);
+            else if (this.replay)
+            {
+                this.in=new java.io.DataInputStream(new java.io.BufferedInputStream(new java.io.FileInputStream(this.file)));
+                if (this.in.readInt()!=InputJournal.MAGIC || this.in.readUnsignedShort()!=InputJournal.VERSION)
+                {
+                    System.err.println("Input journal: "+this.file+" is not a valid journal file");
+                    this.in.close();
+                    this.in=null;
+                    return false;
+                }
+                this.instructionsPerTick=this.in.readInt();
+                this.rtc=this.in.readInt();
+                random=this.in.readUnsignedShort();
+                readNextEvent();
+            }
+            else
+            {
+                this.rtc=(int)((System.currentTimeMillis()/1000)+Monitor.TIME_OFFSET);
+                random=new java.util.Random().nextInt(65535);
+                this.out=new java.io.DataOutputStream(new java.io.BufferedOutputStream(new java.io.FileOutputStream(this.file)));
+                this.out.writeInt(InputJournal.MAGIC);
+                this.out.writeShort(InputJournal.VERSION);
+                this.out.writeInt(this.instructionsPerTick);
+                this.out.writeInt(this.rtc);
+                this.out.writeShort(random);
+                this.out.flush();
+            }
+        }
+        catch (java.io.IOException e)
+        {
+            System.err.println("Input journal: can't open "+this.file+" : "+e.toString());
+            this.in=null;
+            this.out=null;
+            return false;
+        }
+        cpu.writeMemoryLong(cpu.getLinkageBlock()+Types.LINKAGE_RTC,this.rtc);
+        cpu.writeMemoryWord(cpu.getLinkageBlock()+Types.LINKAGE_RANDOM,random);
+        cpu.instructionCount=0;
+        this.nextTick=this.instructionsPerTick;
+        this.wallStart=System.nanoTime();
+        cpu.setInstructionCountListener(this,Math.min(Math.min(this.nextTick,this.nextEventCount),this.limit));
+        if (this.file!=null)
+            System.err.format("Input journal: %s %s, %d instructions per tick\n",this.replay?"replaying":"recording",this.file,this.instructionsPerTick);
+        return true;
+    }
+
+    /**
+     * Checks whether nobody is supposed to be at the keyboard : events are being replayed, or there is no journal file at all.
+     * The emulation thread should then never sleep.
+     *
+     * @return <code>true</code> if this replays a journal or has no file.
+     */
+    public boolean isUnattended()
+    {
+        return this.file==null || (this.replay && this.in!=null);
+    }
+
+    /**
+     * Gets the virtual time, in SMSQ/E format.
+     *
+     * @return the time in seconds, as SMSQ/E expects it.
+     */
+    public int getRTC()
+    {
+        return this.rtc+(int)(this.ticks*InputJournal.TICK_MILLIS/1000);
+    }
+
+    /**
+     * Gets the virtual time in milliseconds since the journal started.
+     *
+     * @return the virtual time in milliseconds.
+     */
+    public long getMillis()
+    {
+        return this.ticks*InputJournal.TICK_MILLIS;
+    }
+
+    /**
+     * Queues an input event, to be put into the linkage block at the next tick.
+     * This is called from the EDT.
+     *
+     * @param type the event type (KEY, MOUSE, BUTTON or WHEEL).
+     * @param p1 first parameter of the event.
+     * @param p2 second parameter (MOUSE only).
+     * @param p3 third parameter (MOUSE only).
+     * @param p4 fourth parameter (MOUSE only).
+     *
+     * @return <code>true</code> if the event was handled (queued or ignored), <code>false</code> if the journal isn't running and
+     * the event should be put into the linkage block directly.
+     */
+    public boolean queueEvent(int type,int p1,int p2,int p3,int p4)
+    {
+        if (this.replay)
+            return this.in!=null;                               // live input is ignored when replaying
+        if (this.out==null)
+            return false;
+        this.pending.add(new int[]{type,p1,p2,p3,p4});
+        return true;
+    }
+
+    /**
+     * Called by the CPU, from the emulation thread : generates the 50 Hz interrupt and handles the events.
+     *
+     * @param cpu the CPU calling this.
+     * @param count the number of instructions executed so far.
+     *
+     * @return the instruction count at which this should be called again.
+     */
+    @Override
+    public long instructionCountReached(smsqmulator.cpu.MC68000Cpu cpu,long count)
+    {
+        if (count>=this.nextTick)
+        {
+            this.ticks++;
+            this.nextTick+=this.instructionsPerTick;
+            cpu.generateInterrupt();
+            if (!this.replay)
+                recordEvents(count);
+        }
+        while (count>=this.nextEventCount)
+        {
+            this.monitor.applyInput(this.nextEvent[0],this.nextEvent[1],this.nextEvent[2],this.nextEvent[3],this.nextEvent[4]);
+            readNextEvent();
+        }
+        if (count>=this.limit)
+            limitReached();
+        return Math.min(Math.min(this.nextTick,this.nextEventCount),this.limit);
+    }
+
+    /**
+     * Sets the number of instructions after which the emulation stops. Must be called before the journal is started.
+     *
+     * @param limit the instruction count at which the emulation is to stop.
+     */
+    public void setInstructionLimit(long limit)
+    {
+        this.limit=limit;
+    }
+
+    /**
+     * The instruction limit has been reached : notes the time and stops the execution, the emulation thread then ends.
+     * 
+     * @throws smsqmulator.cpu.ExecutionStoppedException always.
+     */
+    private synchronized void limitReached()
+    {
+        this.elapsed=System.nanoTime()-this.wallStart;
+        notifyAll();
+        throw new smsqmulator.cpu.ExecutionStoppedException();
+    }
+
+    /**
+     * Waits until the instruction limit has been reached.
+     *
+     * @param timeout max time to wait, in milliseconds.
+     *
+     * @return the real time (in nanoseconds) the emulation took to get from the start to the limit, or -1 if the timeout
+     * expired before that.
+     *
+     * @throws InterruptedException if the waiting thread was interrupted.
+     */
+    public synchronized long waitForLimit(long timeout) throws InterruptedException
+    {
+        long end=System.currentTimeMillis()+timeout;
+        while (this.elapsed<0)
+        {
+            long remaining=end-System.currentTimeMillis();
+            if (remaining<=0)
+                break;
+            wait(remaining);
+        }
+        return this.elapsed;
+    }
+
+    /**
+     * Gets the number of 50 Hz ticks generated so far.
+     *
+     * @return the number of ticks.
+     */
+    public long getTicks()
+    {
+        return this.ticks;
+    }
+
+    /**
+     * Puts all pending events into the linkage block and writes them to the journal file.
+     *
+     * @param count the number of instructions executed so far.
+     */
+    private void recordEvents(long count)
+    {
+        if (this.out==null || this.pending.isEmpty())
+            return;
+        int[] event;
+        try
+        {
+            while ((event=this.pending.poll())!=null)
+            {
+                this.monitor.applyInput(event[0],event[1],event[2],event[3],event[4]);
+                this.out.writeLong(count);
+                this.out.writeByte(event[0]);
+                this.out.writeInt(event[1]);
+                if (event[0]==InputJournal.MOUSE)
+                {
+                    this.out.writeInt(event[2]);
+                    this.out.writeInt(event[3]);
+                    this.out.writeInt(event[4]);
+                }
+                this.nbrOfEvents++;
+            }
+            this.out.flush();                                   // the journal must be complete whenever the emulation is stopped
+        }
+        catch (java.io.IOException e)
+        {
+            System.err.println("Input journal: error writing "+this.file+" : "+e.toString()+" - recording stopped");
+            close();
+        }
+    }
+
+    /**
+     * Reads the next event from the journal file. If there is none, the replay is finished.
+     */
+    private void readNextEvent()
+    {
+        try
+        {
+            long count=this.in.readLong();
+            this.nextEvent[0]=this.in.readByte();
+            this.nextEvent[1]=this.in.readInt();
+            if (this.nextEvent[0]==InputJournal.MOUSE)
+            {
+                this.nextEvent[2]=this.in.readInt();
+                this.nextEvent[3]=this.in.readInt();
+                this.nextEvent[4]=this.in.readInt();
+            }
+            this.nextEventCount=count;
+            this.nbrOfEvents++;
+        }
+        catch (java.io.EOFException e)
+        {
+            this.nextEventCount=Long.MAX_VALUE;
+            System.err.format("Input journal: replay finished, %d events, %d ticks, %d ms wall time\n",this.nbrOfEvents,this.ticks,
+                    (System.nanoTime()-this.wallStart)/1000000);
+            close();
+        }
+        catch (java.io.IOException e)
+        {
+            this.nextEventCount=Long.MAX_VALUE;
+            System.err.println("Input journal: error reading "+this.file+" : "+e.toString()+" - replay stopped");
+            close();
+        }
+    }
+
+    /**
+     * Closes the journal file. The ticks (and virtual time) go on.
+     */
+    public void close()
+    {
+        try
+        {
+            if (this.out!=null)
+                this.out.close();
+            if (this.in!=null)
+                this.in.close();
+        }
+        catch (java.io.IOException e)
+        {
+            /*nop*/
+        }
+        this.out=null;
+        this.in=null;
+    }
+}
@@ -7,6 +7,13 @@ package smsqmulator;
  * @author and copyright (c) wolfgang lenerz 2013
  * 
  * @version  
+ * 1.06 asynchronous writeBack still writes the drive after a failed previous write back, reuses its copy of the drive and
+ *      is only done for drives up to ASYNC_WRITEBACK_LIMIT.
+ * 1.05 writeBack may write a copy of the drive asynchronously.
+ * 1.04 writeClusterRun gets the kind of clusters (ignored here).
+ * 1.03 the free space index is made when the FAT is read.
+ * 1.02 readClusterRun and writeClusterRun implemented instead of readCluster and writeCluster.
+ * 1.01 readCluster and writeCluster implemented.
  * 1.00 initial version
  */
 public class MemDrive extends WinDrive
@@ -15,6 +22,9 @@ public class MemDrive extends WinDrive
     public static final int MAX_FILESIZE= 500*1024*1024;    // the totally artificial file size limit for such a file is 500MiB.
     private int fileSize;                                   // size of file
     private boolean isLocal=false;                          // <code> true </code> if thiq file is local, not over the internet.    
+    public static final int ASYNC_WRITEBACK_LIMIT=64*1024*1024;// bigger drives are written back synchronously, not copied
+    private AsyncIO.Operation pendingWriteBack;             // asynchronous write back that may still be going on
+    private java.nio.ByteBuffer writeBackCopy;              // the copy of the drive written back asynchronously, reused
     
     /**
      * Creates the object.
@@ -203,6 +213,7 @@ public class MemDrive extends WinDrive
         this.totalFile.limit(this.totalFile.capacity());
         this.driveFAT.position(0);
         this.totalFile.position(0);
+        this.freeSpace=new FreeSpaceMap(this.driveFAT);
     }
     
     /**
@@ -388,6 +399,86 @@ public class MemDrive extends WinDrive
         this.totalFile.limit(this.totalFile.capacity());
     }
     
+    /**
+     * Reads clusters that follow each other from the drive.
+     * 
+     * @param firstCluster the first cluster to read.
+     * @param buffers where to read the clusters to, one buffer per cluster, each from position to limit.
+     * @param offset the index of the buffer for the first cluster.
+     * @param count the number of clusters.
+     * 
+     * @return the number of bytes read, -1 if end of drive.
+     */
+    @Override
+    protected int readClusterRun(int firstCluster,java.nio.ByteBuffer[]buffers,int offset,int count)
+    {
+        int total=0;
+        for (int i=0;i<count;i++)
+        {
+            int bytesRead=readCluster(firstCluster+i,buffers[offset+i]);
+            if (bytesRead<0)
+                return total==0?-1:total;
+            total+=bytesRead;
+        }
+        return total;
+    }
+    
+    /**
+     * Reads one cluster from the drive.
+     */
+    private int readCluster(int cluster,java.nio.ByteBuffer buffer)
+    {
+        int filePosition=cluster*this.clusterSize;          // where the cluster lies in the drive
+        if (filePosition>=this.totalFile.capacity())
+            return -1;
+        int bytesRead=Math.min(buffer.remaining(),this.totalFile.capacity()-filePosition);
+        this.totalFile.limit(filePosition+bytesRead);       // nbr of bytes to read
+        this.totalFile.position(filePosition);
+        buffer.put(this.totalFile);
+        this.totalFile.position(0);
+        this.totalFile.limit(this.totalFile.capacity());
+        return bytesRead;
+    }
+    
+    /**
+     * Writes clusters that follow each other to the drive.
+     * 
+     * @param firstCluster the first cluster to write.
+     * @param buffers what to write, one buffer per cluster, each from position to limit.
+     * @param offset the index of the buffer for the first cluster.
+     * @param count the number of clusters.
+     * @param kind what the clusters contain (ignored, there is no cache here).
+     * 
+     * @return the number of bytes written.
+     */
+    @Override
+    protected int writeClusterRun(int firstCluster,java.nio.ByteBuffer[]buffers,int offset,int count,int kind)
+    {
+        int total=0;
+        for (int i=0;i<count;i++)
+        {
+            total+=writeCluster(firstCluster+i,buffers[offset+i]);
+        }
+        return total;
+    }
+    
+    /**
+     * Writes one cluster to the drive.
+     */
+    private int writeCluster(int cluster,java.nio.ByteBuffer buffer)
+    {
+        int filePosition=cluster*this.clusterSize;          // where we write it to
+        int bytesWritten=buffer.remaining();
+        if (filePosition+bytesWritten>this.totalFile.capacity())
+            return 0;                                       // beyond end of drive
+        this.totalFile.limit(filePosition+bytesWritten);    // max nbr of bytes to write
+        this.totalFile.position(filePosition);
+        this.totalFile.put(buffer);
+        this.totalFile.position(0);
+        this.totalFile.limit(this.totalFile.capacity());
+        return bytesWritten;
+    }
+    
       /**
      * Reads bytes at a certain position in the drive to a buffer.
      * Used by the special file.
@@ -491,4 +582,90 @@ public class MemDrive extends WinDrive
             }
         }
     }
+    
+    /**
+     * Writes the drive back to a native file asynchronously : a copy of the drive is written by a worker thread, SMSQ/E doesn't
+     * wait for it. An error from that write is given (in D0) by the next write back, which also waits for it to be finished.
+     * That write back then writes the drive synchronously, as it is now.
+     * Drives bigger than ASYNC_WRITEBACK_LIMIT aren't copied, they are always written back synchronously.
+     * 
+     * @param driveName the name of the native file.
+     * @param asyncIO the object doing asynchronous I/O.
+     */
+    public void writeBack(final String driveName,AsyncIO asyncIO)
+    {
+        if (!this.isLocal)
+        {
+            this.cpu.data_regs[0]=Types.ERR_RDO;
+            return;
+        }
+        int previous=this.pendingWriteBack==null?0:finishWriteBack();
+        if (previous<0 || this.totalFile.capacity()>MemDrive.ASYNC_WRITEBACK_LIMIT)
+        {
+            writeBack(driveName);                           // write the drive as it is now, at once
+            if (previous<0 && this.cpu.data_regs[0]==0)
+                this.cpu.data_regs[0]=previous;             // but still report the error of the previous write back
+            return;
+        }
+        if (this.writeBackCopy==null)
+            this.writeBackCopy=java.nio.ByteBuffer.allocate(this.totalFile.capacity());
+        java.nio.ByteBuffer copy=this.writeBackCopy;        // no longer used by the previous write back, which is finished
+        copy.clear();
+        java.nio.ByteBuffer all=this.totalFile.duplicate();
+        all.clear();
+        copy.put(all);                                      // the drive as it is now
+        copy.flip();
+        this.pendingWriteBack=asyncIO.start(copy,new AsyncIO.Task()
+        {
+            @Override
+            public int run(java.nio.ByteBuffer data) throws java.io.IOException
+            {
+                java.io.RandomAccessFile raf;
+                try
+                {
+                    raf=new java.io.RandomAccessFile(new java.io.File(driveName),"rw");
+                }
+                catch (java.io.FileNotFoundException e)
+                {
+                    return Types.ERR_FDNF;
+                }
+                try
+                {
+                    java.nio.channels.FileChannel channel=raf.getChannel();
+                    while (data.hasRemaining())
+                    {
+                        channel.write(data);
+                    }
+                }
+                finally
+                {
+                    raf.close();
+                }
+                return data.limit();
+            }
+        });
+        this.cpu.data_regs[0]=0;
+    }
+    
+    /**
+     * Waits for the previous asynchronous write back to be finished.
+     * 
+     * @return 0 if it went OK, else the error, which is also set in D0.
+     */
+    private int finishWriteBack()
+    {
+        int result;
+        try
+        {
+            result=Math.min(this.pendingWriteBack.getResult(),0);
+        }
+        catch (java.io.IOException e)
+        {
+            result=Types.ERR_RDO;
+        }
+        this.pendingWriteBack=null;
+        if (result<0)
+            this.cpu.data_regs[0]=result;
+        return result;
+    }
 }
@@ -12,6 +12,7 @@ package smsqmulator;
  * @author and copyright (c) wolfgang Lenerz 2014.
  * 
  * @version  
+ * 1.03 writeBack may be done asynchronously (setAsyncIO).
  * 1.02 setNames adjusted.
  * 1.01 use StringBuilder in setNames.
  * 1.00 a rewrite of the WinDriver.
@@ -19,6 +20,8 @@ package smsqmulator;
  */
 public class MemDriver extends WinDriver implements DeviceDriver
 {
+    private AsyncIO asyncIO;                                // if not null, drives are written back asynchronously
+    
   /**
    * Creates the driver object.
    * 
@@ -177,10 +180,23 @@ public class MemDriver extends WinDriver implements DeviceDriver
         if (this.drives[driveNbr]!=null)
         {
             MemDrive m =(MemDrive)this.drives[driveNbr];
-            m.writeBack(this.nativeDir[driveNbr]);
+            if (this.asyncIO==null)
+                m.writeBack(this.nativeDir[driveNbr]);
+            else
+                m.writeBack(this.nativeDir[driveNbr],this.asyncIO);
         }
         else
             this.cpu.data_regs[0]=Types.ERR_FDNF;
     }
+    
+    /**
+     * Sets the object doing asynchronous I/O.
+     * 
+     * @param asyncIO the object, <code>null</code> if drives are to be written back at once.
+     */
+    public void setAsyncIO(AsyncIO asyncIO)
+    {
+        this.asyncIO=asyncIO;
+    }
 }
 
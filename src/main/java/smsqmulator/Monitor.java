@@ -25,6 +25,19 @@ package smsqmulator;
  * @see smsqmulator.Monitor#showHelp() 
  * @author and copyright (c) Wolfgang Lenerz 2012-2017. Very loosely based on Tony Headford's work, see his licence below.
  * @version 
+ * 1.29 waitForGoThreadToDie first lets the thread end by itself, Thread.stop is only used if it doesn't (and supported).
+ * 1.28 sets the sizes of the NFA and SFA file buffers.
+ * 1.27 gives the NFA and SFA devices a DirCache each if so configured, "nc" command shows their statistics.
+ * 1.26 creates the AsyncIO object for the NFA, SFA and MEM devices if so configured and gives it to the TrapDispatcher, "ai" command
+ *      shows its statistics.
+ * 1.25 "dc" command shows (or clears) the WIN drives cluster cache statistics.
+ * 1.24 "rc" command starts/stops recording the screen.
+ * 1.23 starts the RFB server if configured, "vs" command shows its statistics.
+ * 1.22 "sh" command shows the hash of (a region of) the screen, "sv" saves the screen (or a series of frames) as PNG files.
+ * 1.21 "ps" command shows (or clears) the screen paint statistics.
+ * 1.20 input events may be recorded to / replayed from an InputJournal, applyInput implemented ; get/setInputJournal, stopEmulation
+ *      and setDriveNamesFromIniFile for headless use (BenchmarkRunner) ; no gui needed for setScreenUpdateInterval.
+ * 1.19 "ts" command shows (or clears) the trap statistics.
  * 1.18 inputMouseWheel created, when setting device names handle "./".
  * 1.17 setCopyScreen amended to suit jva_qlscremu ; setNamesForDrives; forceRemoval parameter to force "unmount" of 
  *      exiting drives and remount.
@@ -55,14 +68,23 @@ public class Monitor
     private boolean logInstructions;                            // and whether we log the instructions traced (will make everything very slow)
     private javax.swing.JTextArea regLogger;                    // where we display
     private javax.swing.JTextArea dataLogger;               
-    private static final String commandNames="tgjbddikgbrhqrasxcbcdi1di2d1d2mwc1c2drdr1dr2sculslck0ck1wmspewrdp";// what commands are recognized by the monotir
+    private static final String commandNames="tgjbddikgbrhqrasxcbcdi1di2d1d2mwc1c2drdr1dr2sculslck0ck1wmspewrdptspsshsvvsrcdcainc";// what commands are recognized by the monotir
     private StringBuilder sbuffer;                              // avoid too much string creation
     private MonitorGoThread goThread=null;                      // the thread that does the actual emulation
     private static final int ERRORCODE=-123456789;              // an error code I use
+    private static final int GO_THREAD_STOP_TIME=100;           // how long, in milliseconds, the emulation thread may take to stop
     private java.util.ArrayList<Integer> breakpoints=new java.util.ArrayList<>();
     private String debugFilename;                               // where to put the logged istructions
     private QL50HzInterrupt ih =null;                           // the interrupt server I create
+    private InputJournal journal=null;                          // records or replays the input events, null if none
     private TrapDispatcher trapDispatcher;                      // where to dispatch calls to Java from the monitorGoThread.
+    private ScreenCapture screenCapture;                        // writes screen dumps, made when first needed
+    private RFBServer rfbServer;                                // the remote framebuffer (VNC) server, null if none
+    private ScreenRecorder recorder;                            // records the screen, null if not recording
+    private WinDriver winDriver;                                // the WIN device driver, null if disabled
+    private AsyncIO asyncIO;                                    // does big file reads/writes in the background, null if none
+    private DirCache nfaDirCache;                               // caches the dir buffers of the NFA device, null if none
+    private DirCache sfaDirCache;                               // same for the SFA device
     private int diPanelNbr=1;
     private javax.swing.JTextArea diTextArea;                   // the instruction window (to the right)
     private int dPanelNbr=2;
@@ -123,15 +145,69 @@ public class Monitor
         this.fastMode=fastmode;
         
         this.ih=new QL50HzInterrupt(0,this.cpu,this.cpu.screen); // interrupt server (registers to cpu automatically)
+        String journalName=inifile.getOptionValue("INPUT-REPLAY-FILE");
+        boolean replay=!journalName.isEmpty();
+        if (!replay)
+            journalName=inifile.getOptionValue("INPUT-RECORD-FILE");
+        if (!journalName.isEmpty())
+            this.journal=new InputJournal(journalName,replay,inifile.getOptionAsInt("INPUT-JOURNAL-TICK",100000),this);
         this.trapDispatcher=new TrapDispatcher(this.sam,throt,gui,beepVolume,snd,inifile,new IPHandler());
+        int rfbPort=inifile.getOptionAsInt("RFB-PORT",0);
+        if (rfbPort>0)
+        {
+            this.rfbServer=new RFBServer(this,inifile.getOptionValue("RFB-ADDRESS"),rfbPort);
+            try
+            {
+                this.rfbServer.start();
+            }
+            catch (java.io.IOException e)
+            {
+                System.err.println("Can't start RFB server on port "+rfbPort+" : "+e.toString());
+                this.rfbServer=null;
+            }
+        }
         if (!this.inifile.getTrueOrFalse("DISABLE-WIN-DEVICE"))
-            this.trapDispatcher.register(new WinDriver(cpu,warnings));// WIN driver is the first to be initialised
+        {
+            this.winDriver=new WinDriver(cpu,warnings);
+            this.trapDispatcher.register(this.winDriver);   // WIN driver is the first to be initialised
+        }
+        int asyncThreshold=inifile.getOptionAsInt("ASYNC-IO-THRESHOLD",0);
+        if (asyncThreshold>0 && this.journal==null)             // a replayed journal must always give the same result
+        {
+            this.asyncIO=new AsyncIO(2,asyncThreshold);
+            this.trapDispatcher.setAsyncIO(this.asyncIO);
+        }
+        long dirCacheSize=inifile.getOptionAsInt("DIR-CACHE-SIZE",4096)*1024L;// in KiB
         if (!this.inifile.getTrueOrFalse("DISABLE-MEM-DEVICE"))
-            this.trapDispatcher.register(new MemDriver(cpu,warnings));
+        {
+            MemDriver memDriver=new MemDriver(cpu,warnings);
+            memDriver.setAsyncIO(this.asyncIO);
+            this.trapDispatcher.register(memDriver);
+        }
         if (!this.inifile.getTrueOrFalse("DISABLE-NFA-DEVICE"))
-            this.trapDispatcher.register(new NfaDriver(cpu));
+        {
+            NfaDriver nfaDriver=new NfaDriver(cpu);
+            nfaDriver.setAsyncIO(this.asyncIO);
+            nfaDriver.setBufferSizes(inifile.getOptionValue("NFA-BUFFER-SIZE"));
+            if (dirCacheSize>0)
+            {
+                this.nfaDirCache=new DirCache(dirCacheSize);
+                nfaDriver.setDirCache(this.nfaDirCache);
+            }
+            this.trapDispatcher.register(nfaDriver);
+        }
         if (!this.inifile.getTrueOrFalse("DISABLE-SFA-DEVICE"))
-            this.trapDispatcher.register(new SfaDriver(cpu));
+        {
+            SfaDriver sfaDriver=new SfaDriver(cpu);
+            sfaDriver.setAsyncIO(this.asyncIO);
+            sfaDriver.setBufferSizes(inifile.getOptionValue("SFA-BUFFER-SIZE"));
+            if (dirCacheSize>0)
+            {
+                this.sfaDirCache=new DirCache(dirCacheSize);
+                sfaDriver.setDirCache(this.sfaDirCache);
+            }
+            this.trapDispatcher.register(sfaDriver);
+        }
         if (!this.inifile.getTrueOrFalse("DISABLE-FLP-DEVICE"))
         {
             this.floppy = new FloppyDriver (this.cpu,inifile);
@@ -369,7 +445,208 @@ public class Monitor
                 {
                     this.regLogger.append(String.format("%08x", this.cpu.pcs[k]*2).toUpperCase()+"\n");
                 }
+                break;
+            case 65:                                        // ts show trap statistics
+                showTrapStatistics(commands);
+                break;
+            case 67:                                        // ps show screen paint statistics
+                showPaintStatistics(commands);
+                break;
+            case 69:                                        // sh show screen hash
+                showScreenHash(commands);
+                break;
+            case 71:                                        // sv save screen as PNG
+                saveScreen(commands);
+                break;
+            case 73:                                        // vs show RFB server statistics
+                if (this.rfbServer==null)
+                    this.regLogger.setText("No RFB server\n");
+                else
+                    this.dataLogger.setText(this.rfbServer.getStatistics(commands.length>1 && commands[1].equals("c")));
+                break;
+            case 75:                                        // rc start/stop recording the screen
+                recordScreen(commands);
+                break;
+            case 77:                                        // dc show WIN drives cache statistics
+                if (this.winDriver==null)
+                    this.regLogger.setText("No WIN device\n");
+                else
+                    this.dataLogger.setText(this.winDriver.getCacheStatistics(commands.length>1 && commands[1].equals("c")));
+                break;
+            case 79:                                        // ai show asynchronous I/O statistics
+                if (this.asyncIO==null)
+                    this.regLogger.setText("No asynchronous I/O\n");
+                else
+                    this.dataLogger.setText(this.asyncIO.getStatistics(commands.length>1 && commands[1].equals("c")));
+                break;
+            case 81:                                        // nc show NFA/SFA dir cache statistics
+                if (this.nfaDirCache==null && this.sfaDirCache==null)
+                    this.regLogger.setText("No dir cache\n");
+                else
+                {
+                    boolean reset=commands.length>1 && commands[1].equals("c");
+                    this.dataLogger.setText("");
+                    if (this.nfaDirCache!=null)
+                        this.dataLogger.append("NFA : "+this.nfaDirCache.getStatistics(reset));
+                    if (this.sfaDirCache!=null)
+                        this.dataLogger.append("SFA : "+this.sfaDirCache.getStatistics(reset));
+                }
+                break;
+        }
+    }
+    
+    /**
+     * Shows the screen paint statistics (pixels pushed per second etc) in the data window, and clears them if the option "c" is given.
+     * 
+     * @param options Options[1] optionally is "c" (clear the statistics after showing them).
+     */
+    private void showPaintStatistics(String []options)
+    {
+        Screen screen=getScreen();
+        if (screen==null)
+        {
+            this.regLogger.setText("No screen\n");
+            return;
+        }
+        this.dataLogger.setText(screen.getPaintStatistics(options.length>1 && options[1].equals("c")));
+    }
+    
+    /**
+     * Shows the hash of the screen, or of a region of it, in the register window.
+     * 
+     * @param options Options[1] to [4] optionally are the x and y origin, width and height of the region.
+     */
+    private void showScreenHash(String []options)
+    {
+        Screen screen=getScreen();
+        if (screen==null)
+        {
+            this.regLogger.setText("No screen\n");
+            return;
+        }
+        if (options.length<5)
+        {
+            this.regLogger.setText(String.format("Screen hash : %016x\n",screen.getFrameHash()));
+            return;
+        }
+        int[]region=new int[4];
+        for (int i=0;i<4;i++)
+        {
+            region[i]=parseForInteger(options[i+1]);
+            if (region[i]==Monitor.ERRORCODE)
+            {
+                this.regLogger.setText("Bad region : "+options[i+1]+"\n");
+                return;
+            }
+        }
+        this.regLogger.setText(String.format("Region hash : %016x\n",screen.getRegionHash(region[0],region[1],region[2],region[3])));
+    }
+    
+    /**
+     * Saves the screen as a PNG file, or a series of frames as PNG files, in the background.
+     * 
+     * @param options Options[1] is the filename (or the start of the filenames for a series), options[2] and [3] optionally are
+     * the number of frames to save and the interval (in milliseconds) between frames.
+     */
+    private void saveScreen(String []options)
+    {
+        Screen screen=getScreen();
+        if (screen==null || options.length<2)
+        {
+            this.regLogger.setText(screen==null?"No screen\n":"Filename missing\n");
+            return;
+        }
+        if (this.screenCapture==null)
+            this.screenCapture=new ScreenCapture();
+        if (options.length<4)
+        {
+            this.screenCapture.dump(screen,new java.io.File(options[1]));
+            this.regLogger.setText("Saving screen to "+options[1]+"\n");
+            return;
+        }
+        int count=parseForInteger(options[2]);
+        int interval=parseForInteger(options[3]);
+        if (count==Monitor.ERRORCODE || interval==Monitor.ERRORCODE || count<1)
+        {
+            this.regLogger.setText("Bad number of frames or interval\n");
+            return;
+        }
+        this.screenCapture.dumpSeries(screen,options[1],count,interval);
+        this.regLogger.setText("Saving "+count+" frames to "+options[1]+"_xxxx.png\n");
+    }
+    
+    /**
+     * Starts recording the screen into a file, or stops recording if no filename is given.
+     * 
+     * @param options Options[1] is the filename, if recording is to be started.
+     */
+    private void recordScreen(String []options)
+    {
+        if (this.recorder!=null)
+        {
+            this.ih.setRecorder(null);
+            try
+            {
+                this.regLogger.setText("Recording stopped\n");
+                this.dataLogger.setText(this.recorder.stop());
+            }
+            catch (java.io.IOException e)
+            {
+                this.regLogger.setText("Error writing recording : "+e.getMessage()+"\n");
+            }
+            this.recorder=null;
+            if (options.length<2)
+                return;
+        }
+        if (options.length<2)
+        {
+            this.regLogger.setText("Filename missing\n");
+            return;
+        }
+        try
+        {
+            this.recorder=new ScreenRecorder(new java.io.File(options[1]));
+            this.ih.setRecorder(this.recorder);
+            this.regLogger.setText("Recording screen to "+options[1]+"\n");
+        }
+        catch (java.io.IOException e)
+        {
+            this.regLogger.setText("Can't record to "+options[1]+" : "+e.getMessage()+"\n");
+        }
+    }
+    
+    /**
+     * Shows the trap statistics in the data window, or clears them if the option "c" is given.
+     * 
+     * @param options Options[1] optionally is "c" (clear the statistics) or the max number of lines to show (default 40).
+     */
+    private void showTrapStatistics(String []options)
+    {
+        TrapStatistics stats=this.trapDispatcher.getTrapStatistics();
+        if (stats==null)
+        {
+            this.regLogger.setText("No trap statistics : set TRAP-STATISTICS to 1 in the ini file.\n");
+            return;
+        }
+        if (options.length>1 && options[1].equals("c"))
+        {
+            stats.clear();
+            this.regLogger.setText("Trap statistics cleared\n");
+            return;
+        }
+        int lines=40;
+        if (options.length>1)
+        {
+            lines=parseForInteger(options[1]);
+            if (lines==Monitor.ERRORCODE)
+            {
+                showError ("ts - wrong ","ts [c | number_of_lines]",options);
+                return;
+            }
         }
+        this.sbuffer.setLength(0);
+        stats.dump(this.sbuffer,lines);
+        this.dataLogger.setText(this.sbuffer.toString());
     }
     
     private void setMemToBeWatched(String []options)
@@ -484,6 +761,11 @@ public class Monitor
         }
         else
         {
+            if (this.journal!=null && this.cpu.isRomLoadedOk() && this.journal.start(this.cpu))
+            {
+                this.ih.setTicksGeneratedElsewhere(true);   // from now on, the journal generates the 50 Hz interrupt
+                this.trapDispatcher.setInputJournal(this.journal);
+            }
             this.goThread=new MonitorGoThread(nbrInst,this.cpu,this.breakpoints,this,this.debugFilename,this.watchBreakpoints, 
                     this.logInstructions,this.ih,this.fastMode,this.trapDispatcher,this.upperLimit,this.checkmem,this.memoryToBeWatched,provbkp,this.excludeSuper);
             setCondition();
@@ -889,7 +1171,15 @@ public class Monitor
         this.dataLogger.append("  wf - write file : write the logging file immediately.\n");
         this.dataLogger.append("  ck1 & ck0 start/stop checking memory.\n");
         this.dataLogger.append("  sp - special, could be anything.\n");
-        this.dataLogger.append("  sp - special, could be anything.\n");
+        this.dataLogger.append("  ts - show trap latency statistics <number_of_lines (default : 40)>, 'ts c' clears them.\n");
+        this.dataLogger.append("  ps - show screen paint statistics (pixels pushed per second), 'ps c' also clears them.\n");
+        this.dataLogger.append("  sh - show screen hash <x y width height of a region (default : entire screen)>.\n");
+        this.dataLogger.append("  sv - save screen as PNG file : filename <number_of_frames interval_in_ms (filenames get _0000.png etc)>.\n");
+        this.dataLogger.append("  rc - record the screen into a file : filename ('rc' alone stops recording, then use RecordingConverter).\n");
+        this.dataLogger.append("  vs - show RFB (VNC) server statistics (updates, bandwidth, encoding time), 'vs c' also clears them.\n");
+        this.dataLogger.append("  dc - show WIN drives cluster cache statistics (hits, misses, write backs), 'dc c' also clears them.\n");
+        this.dataLogger.append("  ai - show asynchronous I/O statistics (operations, host I/O time, retries), 'ai c' also clears them.\n");
+        this.dataLogger.append("  nc - show NFA/SFA dir cache statistics (hits, misses, dirs that changed), 'nc c' also clears them.\n");
         this.dataLogger.append("A simple ENTER will repeat the last t, d or di command.\n");
         this.dataLogger.append("Options are separated from the command and each other by single spaces.\n");
         this.dataLogger.append("Numbers can be given in decimal or hex format. The default is hex, decimals must be prefixed by '&'.\n");
@@ -1235,7 +1525,8 @@ public class Monitor
         if (this.ih!=null)
         {
             this.ih.setScreenUpdateInterval(tim);
-            this.gui.setScreenUpdateInterval(tim);
+            if (this.gui!=null)
+                this.gui.setScreenUpdateInterval(tim);
         }
     }
     
@@ -1293,10 +1584,8 @@ public class Monitor
      */
     public void inputKey(int key)
     {
-        if (!this.cpu.isRomLoadedOk())
-            return;
-        this.cpu.writeMemoryLong(this.cpu.getLinkageBlock()+Types.LINKAGE_KBD, key);
-        this.trapDispatcher.resetCounter();
+        if (this.journal==null || !this.journal.queueEvent(InputJournal.KEY,key,0,0,0))
+            applyInput(InputJournal.KEY,key,0,0,0);
     }
 
     
@@ -1312,13 +1601,8 @@ public class Monitor
      */
     public void inputMouse(int msmvtx,int msmvty,int msx,int msy)
     {
-        if (!this.cpu.isRomLoadedOk())
-            return;
-        msx=(msx<<16)+msy;                                  // mouse pos as long word
-        msmvtx=(msmvtx<<16) | (msmvty&0xffff);              // mouse relatvie position
-        this.cpu.writeMemoryLong(this.cpu.getLinkageBlock()+Types.LINKAGE_MOUSEPOS,msx);
-        this.cpu.writeMemoryLong(this.cpu.getLinkageBlock()+Types.LINKAGE_MOUSEREL,msmvtx);
-        this.trapDispatcher.resetCounter();
+        if (this.journal==null || !this.journal.queueEvent(InputJournal.MOUSE,msmvtx,msmvty,msx,msy))
+            applyInput(InputJournal.MOUSE,msmvtx,msmvty,msx,msy);
     }
     
     /**
@@ -1329,10 +1613,8 @@ public class Monitor
      */
     public void inputMouseButton(int btn)
     {
-        if (!this.cpu.isRomLoadedOk())
-            return;
-        this.cpu.writeMemoryWord(this.cpu.getLinkageBlock()+Types.LINKAGE_MOUSEBTN,btn);
-        this.trapDispatcher.resetCounter();
+        if (this.journal==null || !this.journal.queueEvent(InputJournal.BUTTON,btn,0,0,0))
+            applyInput(InputJournal.BUTTON,btn,0,0,0);
     }
     
     /**
@@ -1342,10 +1624,46 @@ public class Monitor
      * @param wheel  the wheel rotation & char
      */
     public void inputMouseWheel(int wheel)
+    {
+        if (this.journal==null || !this.journal.queueEvent(InputJournal.WHEEL,wheel,0,0,0))
+            applyInput(InputJournal.WHEEL,wheel,0,0,0);
+    }
+    
+    /**
+     * Puts an input event into the linkage block.
+     * This is called from the EDT or, if an InputJournal is used, from the emulation thread.
+     * 
+     * @param type the event type (InputJournal.KEY, MOUSE, BUTTON or WHEEL).
+     * @param p1 the key, mouse button, wheel movement or mouse x movement.
+     * @param p2 mouse y movement.
+     * @param p3 mouse x pos.
+     * @param p4 mouse y pos.
+     */
+    void applyInput(int type,int p1,int p2,int p3,int p4)
     {
         if (!this.cpu.isRomLoadedOk())
             return;
-        this.cpu.writeMemoryLong(this.cpu.getLinkageBlock()+Types.LINKAGE_MSEWHEEL,wheel);
+        switch (type)
+        {
+            case InputJournal.KEY:
+                this.cpu.writeMemoryLong(this.cpu.getLinkageBlock()+Types.LINKAGE_KBD, p1);
+                break;
+                
+            case InputJournal.MOUSE:
+                p3=(p3<<16)+p4;                             // mouse pos as long word
+                p1=(p1<<16) | (p2&0xffff);                  // mouse relatvie position
+                this.cpu.writeMemoryLong(this.cpu.getLinkageBlock()+Types.LINKAGE_MOUSEPOS,p3);
+                this.cpu.writeMemoryLong(this.cpu.getLinkageBlock()+Types.LINKAGE_MOUSEREL,p1);
+                break;
+                
+            case InputJournal.BUTTON:
+                this.cpu.writeMemoryWord(this.cpu.getLinkageBlock()+Types.LINKAGE_MOUSEBTN,p1);
+                break;
+                
+            case InputJournal.WHEEL:
+                this.cpu.writeMemoryLong(this.cpu.getLinkageBlock()+Types.LINKAGE_MSEWHEEL,p1);
+                break;
+        }
         this.trapDispatcher.resetCounter();
     }
       
@@ -1576,6 +1894,68 @@ public class Monitor
         }
     }
     
+    /**
+     * Gets the InputJournal recording or replaying the input events.
+     * 
+     * @return the journal, or <code>null</code> if there is none.
+     */
+    public InputJournal getInputJournal()
+    {
+        return this.journal;
+    }
+    
+    /**
+     * Sets the InputJournal to use. This must be called before the emulation is started.
+     * 
+     * @param journal the journal to use.
+     */
+    public void setInputJournal(InputJournal journal)
+    {
+        this.journal=journal;
+    }
+    
+    /**
+     * Sets the names of the drives of all devices from the ini file.
+     * This is what the MonitorGui does at startup, for when there is no gui.
+     */
+    public void setDriveNamesFromIniFile()
+    {
+        String expandTo=this.inifile.getOptionValue("EXPANDED_DIR");
+        String[] devices={"NFA","SFA","WIN","MEM"};
+        int[] ids={Types.NFADriver,Types.SFADriver,Types.WINDriver,Types.MEMDriver};
+        for (int dev=0;dev<devices.length;dev++)
+        {
+            String[] names=new String[8];
+            boolean addSep=dev<2;                               // NFA and SFA names are dirs
+            for (int i=0;i<8;i++)
+            {
+                String p=this.inifile.getOptionValue(devices[dev]+(i+1));
+                if (p!=null)
+                {
+                    if (addSep && !p.isEmpty() && !p.endsWith(java.io.File.separator))
+                        p+=java.io.File.separator;
+                    if (p.startsWith("./"))
+                        p=expandTo+p.substring(2);
+                }
+                names[i]=p;
+            }
+            this.trapDispatcher.setNamesForDrives(ids[dev],names,true);
+        }
+    }
+    
+    /**
+     * Stops the emulation for good : kills the emulation thread, stops the interrupt and screen threads and unmounts all drives,
+     * so that their native files are closed and unlocked.
+     */
+    public void stopEmulation()
+    {
+        waitForGoThreadToDie();
+        this.ih.stopInterruptHandler();
+        if (this.journal!=null)
+            this.journal.close();
+        this.trapDispatcher.unmountDrives();
+    }
+    
     /**
      * Gets the TrapDispatcher.
      * @return the TrapDispatcher.
@@ -1586,13 +1966,34 @@ public class Monitor
     }
     /**
      * This kills the emulation thread.
+     * The thread is first asked to stop, which ends it in slow mode or if it is about to end anyway (e.g. the instruction limit
+     * of the InputJournal was reached). Only if it is still running after a short while is it killed.
      * 
      * @return true.
      */
     private boolean waitForGoThreadToDie()
     {
-        if (this.goThread!=null)
-            this.goThread.stop();                       // kill the thread brutally whatever the consequences
+        if (this.goThread!=null && this.goThread.isAlive())
+        {
+            this.goThread.stopThread();
+            try
+            {
+                this.goThread.join(Monitor.GO_THREAD_STOP_TIME);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            if (this.goThread.isAlive())
+            {
+                try
+                {
+                    this.goThread.stop();               // kill the thread brutally whatever the consequences
+                }
+                catch (UnsupportedOperationException e)
+                { /*NOP*/ }                             // Java 20+ : the thread can't be killed
+            }
+        }
         this.goThread=null;
         return true;
     }
@@ -14,6 +14,10 @@ package smsqmulator;
  * 
  * @version 
  
+ * 1.10 the screen thread hands the frame to the ScreenRecorder, if any.
+ * 1.09 the screen thread converts the deferred lines of the screen before repainting.
+ * 1.08 the screen thread only repaints the dirty regions of the screen.
+ * 1.07 the 50 Hz interrupt may be generated elsewhere (setTicksGeneratedElsewhere), only the screen thread is then started.
  * 1.06 Update interval is selectable via the setScreenUpdateInterval. Interval variable added to screen thread.
  * 1.05 revert to earlier thread behaviour, just sleep for nominal 1/50th of a second (exit changes of 1.01),
  * 1.04 check whether screen is "dirty" is made here, not in the screen paintComponent routine.
@@ -32,6 +36,8 @@ public class QL50HzInterrupt implements ExternalInterruptHandler
     private ScreenThread sThread=null;
     private smsqmulator.cpu.MC68000Cpu cpu;
     private Screen screen;
+    private boolean ticksElsewhere=false;                   // true if the interrupt is generated elsewhere (InputJournal)
+    private volatile ScreenRecorder recorder;               // records the frames, null if none
     /**
      * Creates the object.
      * 
@@ -81,9 +87,12 @@ public class QL50HzInterrupt implements ExternalInterruptHandler
         if (this.iThread!=null)
             this.iThread.stopit();                          // let the interrupt thread die if there is any running (there shouldn't be)
         this.iThread=null;
-        this.iThread=new InterruptThread(this.cpu);         // set up new interrupt thread      
-        this.iThread.setName("50 Hz Interrupt");
-        this.iThread.setDaemon(true);
+        if (!this.ticksElsewhere)
+        {
+            this.iThread=new InterruptThread(this.cpu);     // set up new interrupt thread      
+            this.iThread.setName("50 Hz Interrupt");
+            this.iThread.setDaemon(true);
+        }
         
         if (this.sThread!=null)
             this.sThread.stopit();
@@ -92,7 +101,8 @@ public class QL50HzInterrupt implements ExternalInterruptHandler
         this.sThread.setName("Screen updater");
         this.sThread.setDaemon(true);
         
-        this.iThread.start();
+        if (this.iThread!=null)
+            this.iThread.start();
         this.sThread.start();
     }
     
@@ -152,6 +162,27 @@ public class QL50HzInterrupt implements ExternalInterruptHandler
         }
     }
     
+    /**
+     * Sets the recorder the screen thread hands each frame to.
+     * 
+     * @param rec the recorder, <code>null</code> if none.
+     */
+    public void setRecorder(ScreenRecorder rec)
+    {
+        this.recorder=rec;
+    }
+    
+    /**
+     * Sets whether the 50 Hz interrupt is generated by some other object (e.g. an InputJournal, from the emulation thread).
+     * In that case, no interrupt thread is started, only the screen thread. Takes effect when the handler is (re)started.
+     * 
+     * @param elsewhere <code>true</code> if the interrupt is generated elsewhere.
+     */
+    public void setTicksGeneratedElsewhere(boolean elsewhere)
+    {
+        this.ticksElsewhere=elsewhere;
+    }
+    
     /**
      * Sets the interval between screen updates.
      * 
@@ -246,10 +277,15 @@ public class QL50HzInterrupt implements ExternalInterruptHandler
                 while (!this.stopNow)
                 {
                     ScreenThread.sleep(this.interval);
+                    if (this.screen!=null)
+                        this.screen.convertDeferredLines(true);// if rendering is deferred, convert changed lines now
                     if (this.screen!=null && this.screen.isDirty)
                     {
-                        this.screen.repaint();
+                        this.screen.repaintDirtyRegions();  // only repaint what changed
                     }
+                    ScreenRecorder rec=QL50HzInterrupt.this.recorder;
+                    if (this.screen!=null && rec!=null)
+                        rec.captureFrame(this.screen);      // only copies the changed regions, never waits for the encoder
                 }
             }                                               
             catch(Exception e)
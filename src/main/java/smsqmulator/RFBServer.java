@@ -0,0 +1,1079 @@
+package smsqmulator;
+
+/**
+ * A remote framebuffer (RFB, as used by VNC) server, so that the emulated screen can be seen and used from a VNC viewer.
+ * <p>
+ * Only the regions of the screen that changed since the last update of a client are sent to it : each client has its own
+ * <code>Screen.TileTracker</code>, which the screen marks whenever it changes a tile, exactly as it does for the repaint. The
+ * changed tiles are merged into rectangles, which are then sent with the best encoding the client accepts :
+ * <ul>
+ * <li>ZLIB : the raw pixels, compressed with one deflate stream per client (most clients only use this over slow links).</li>
+ * <li>Hextile : 16x16 tiles, each one either a background colour with (coloured) subrectangles, or raw.</li>
+ * <li>RRE : a background colour with coloured subrectangles, only if that is smaller than raw.</li>
+ * <li>Raw : the pixels as they are.</li>
+ * </ul>
+ * Keys and pointer events from the clients are turned into AWT events and handed to the screen's handlers in the EDT, so that
+ * they go through the same translations as local keys and mouse movements.
+ * <p>
+ * There is no authentication (security type "None"), so by default the server only listens on the loopback address : use an
+ * ssh tunnel to reach it from elsewhere. Only true colour pixel formats are supported.
+ * <p>
+ * The server counts the updates and rectangles sent, the bytes sent (and the bytes the rectangles would have taken as raw
+ * 32 bit pixels) and the time spent encoding them (see the "vs" monitor command).
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class RFBServer
+{
+    private static final int ENCODING_RAW=0;
+    private static final int ENCODING_RRE=2;
+    private static final int ENCODING_HEXTILE=5;
+    private static final int ENCODING_ZLIB=6;
+    private static final int ENCODING_DESKTOP_SIZE=-223;        // pseudo encoding : framebuffer size changes
+    private static final int UPDATE_INTERVAL=20;                // in milliseconds, time between checks for changes
+    private static final String NAME="SMSQmulator";
+    private final Monitor monitor;
+    private final String bindAddress;
+    private final int port;
+    private java.net.ServerSocket serverSocket;
+    private final java.util.concurrent.CopyOnWriteArrayList<Connection> connections=new java.util.concurrent.CopyOnWriteArrayList<>();
+    private final java.util.concurrent.atomic.AtomicLong updates=new java.util.concurrent.atomic.AtomicLong();// statistics
+    private final java.util.concurrent.atomic.AtomicLong rectangles=new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong bytesSent=new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong rawBytes=new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong encodeTime=new java.util.concurrent.atomic.AtomicLong();// in nanoseconds
+    private volatile long statisticsStart=System.nanoTime();
+
+    /**
+     * Creates the server, it must then be started.
+     *
+     * @param monitor the monitor, to get the current screen from.
+     * @param bindAddress the address to listen on, e.g. "127.0.0.1" (only local connections) or "0.0.0.0" (all interfaces).
+     * @param port the port to listen on, usually 5900.
+     */
+    public RFBServer(Monitor monitor,String bindAddress,int port)
+    {
+        this.monitor=monitor;
+        this.bindAddress=bindAddress;
+        this.port=port;
+    }
+
+    /**
+     * Starts listening for clients, in a thread of its own.
+     *
+     * @throws java.io.IOException if the server socket can't be opened.
+     */
+    public synchronized void start() throws java.io.IOException
+    {
+        if (this.serverSocket!=null)
+            return;
+        this.serverSocket=new java.net.ServerSocket(this.port,5,java.net.InetAddress.getByName(this.bindAddress));
+        final java.net.ServerSocket server=this.serverSocket;
+        Thread t=new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (!server.isClosed())
+                {
+                    try
+                    {
+                        java.net.Socket socket=server.accept();
+                        Connection c=new Connection(socket);
+                        RFBServer.this.connections.add(c);
+                        c.start();
+                    }
+                    catch (java.io.IOException e)
+                    {
+                        if (!server.isClosed())
+                            System.err.println("RFB server : "+e.toString());
+                    }
+                }
+            }
+        },"SMSQmulator RFB server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops the server and closes all connections.
+     */
+    public synchronized void stop()
+    {
+        if (this.serverSocket!=null)
+        {
+            try
+            {
+                this.serverSocket.close();
+            }
+            catch (java.io.IOException e)
+            { /*NOP*/ }
+            this.serverSocket=null;
+        }
+        for (Connection c:this.connections)
+        {
+            c.close();
+        }
+    }
+
+    /**
+     * Gets the statistics of the server : clients, updates, bandwidth and encoding time.
+     *
+     * @param reset <code>true</code> if the statistics should be cleared after getting them.
+     *
+     * @return the statistics, as a string.
+     */
+    public String getStatistics(boolean reset)
+    {
+        long now=System.nanoTime();
+        double secs=(now-this.statisticsStart)/1e9;
+        if (secs<=0)
+            secs=1e-9;
+        long upd=this.updates.get();
+        long sent=this.bytesSent.get();
+        long raw=this.rawBytes.get();
+        String result=String.format("RFB on %s:%d, %d client(s)\n",this.bindAddress,this.port,this.connections.size());
+        result+=String.format("%d updates, %d rectangles, %d bytes sent (%.1f KB/s), %.1f%% of raw, %.1f s\n",upd,this.rectangles.get(),
+                sent,sent/secs/1024,raw==0?0.0:sent*100.0/raw,secs);
+        result+=String.format("encoding : %.3f ms in total, %.1f us per update\n",this.encodeTime.get()/1e6,
+                upd==0?0.0:this.encodeTime.get()/1e3/upd);
+        if (reset)
+        {
+            this.updates.set(0);
+            this.rectangles.set(0);
+            this.bytesSent.set(0);
+            this.rawBytes.set(0);
+            this.encodeTime.set(0);
+            this.statisticsStart=now;
+        }
+        return result;
+    }
+
+    /**
+     * One client : the reader thread handles the messages from the client, the sender thread sends the updates.
+     */
+    private class Connection
+    {
+        private final java.net.Socket socket;
+        private java.io.DataInputStream in;
+        private java.io.OutputStream out;
+        private volatile boolean closed;
+        // the pixel format of the client
+        private int bytesPerPixel=4;
+        private boolean bigEndian=false;
+        private int redMax=255,greenMax=255,blueMax=255;
+        private int redShift=16,greenShift=8,blueShift=0;
+        private boolean directPixels=true;                      // the format is the same as the screen's (0x00rrggbb, little endian)
+        // the encodings
+        private int encoding=RFBServer.ENCODING_RAW;
+        private boolean desktopSize=false;                      // the client accepts framebuffer size changes
+        private java.util.zip.Deflater deflater;
+        // the update requested by the client
+        private final Object lock=new Object();
+        private boolean requested;
+        private boolean incremental;
+        private java.awt.Rectangle requestedArea;
+        // the screen
+        private Screen screen;
+        private Screen.TileTracker tracker;
+        private int width,height;                               // size of the framebuffer as known by the client
+        // the output buffer
+        private byte[] buffer=new byte[65536];
+        private int bufferPos;
+        // input
+        private int buttons;                                    // pointer buttons down
+        private int lastX=-1,lastY=-1;
+        private int modifiers;                                  // AWT modifiers down (shift, ctrl, alt)
+
+        private Connection(java.net.Socket socket)
+        {
+            this.socket=socket;
+        }
+
+        /**
+         * Starts the reader thread, which does the handshake and then starts the sender thread.
+         */
+        private void start()
+        {
+            Thread t=new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Connection.this.socket.setTcpNoDelay(true);
+                        Connection.this.in=new java.io.DataInputStream(new java.io.BufferedInputStream(Connection.this.socket.getInputStream()));
+                        Connection.this.out=new java.io.BufferedOutputStream(Connection.this.socket.getOutputStream(),65536);
+                        handshake();
+                        Thread sender=new Thread(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                sendUpdates();
+                            }
+                        },"SMSQmulator RFB sender");
+                        sender.setDaemon(true);
+                        sender.start();
+                        readMessages();
+                    }
+                    catch (java.io.IOException e)
+                    {
+                        /* client went away */
+                    }
+                    close();
+                }
+            },"SMSQmulator RFB client "+this.socket.getRemoteSocketAddress());
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /**
+         * Closes the connection.
+         */
+        private void close()
+        {
+            this.closed=true;
+            try
+            {
+                this.socket.close();
+            }
+            catch (java.io.IOException e)
+            { /*NOP*/ }
+            RFBServer.this.connections.remove(this);
+            synchronized (this.lock)
+            {
+                this.lock.notifyAll();
+            }
+        }
+
+        /**
+         * Version, security and initialisation messages.
+         */
+        private void handshake() throws java.io.IOException
+        {
+            this.out.write("RFB 003.008\n".getBytes("US-ASCII"));
+            this.out.flush();
+            byte[]version=new byte[12];
+            this.in.readFully(version);
+            String v=new String(version,"US-ASCII");
+            if (!v.startsWith("RFB 003."))
+                throw new java.io.IOException("Bad RFB version "+v);
+            int minor=Integer.parseInt(v.substring(8,11));
+            java.io.DataOutputStream dos=new java.io.DataOutputStream(this.out);
+            if (minor<7)
+            {
+                dos.writeInt(1);                                // 3.3 : the server decides, security type "None"
+            }
+            else
+            {
+                dos.writeByte(1);                               // one security type ...
+                dos.writeByte(1);                               // ... "None"
+                dos.flush();
+                if (this.in.readUnsignedByte()!=1)
+                    throw new java.io.IOException("Bad security type");
+                if (minor>=8)
+                    dos.writeInt(0);                            // security result : OK
+            }
+            dos.flush();
+            this.in.readUnsignedByte();                         // shared flag : ignored, all clients share the screen
+            Screen s=RFBServer.this.monitor.getScreen();
+            this.width=s==null?512:s.getXSize();
+            this.height=s==null?256:s.getYSize();
+            dos.writeShort(this.width);
+            dos.writeShort(this.height);
+            dos.write(new byte[]{32,24,0,1,0,(byte)255,0,(byte)255,0,(byte)255,16,8,0,0,0,0});// 32 bpp true colour, 0x00rrggbb
+            byte[]name=RFBServer.NAME.getBytes("US-ASCII");
+            dos.writeInt(name.length);
+            dos.write(name);
+            dos.flush();
+        }
+
+        /**
+         * Reads and handles the messages from the client until it goes away.
+         */
+        private void readMessages() throws java.io.IOException
+        {
+            while (!this.closed)
+            {
+                int type=this.in.readUnsignedByte();
+                switch (type)
+                {
+                    case 0:                                     // SetPixelFormat
+                        skip(3);
+                        setPixelFormat();
+                        break;
+                    case 2:                                     // SetEncodings
+                        skip(1);
+                        int nbr=this.in.readUnsignedShort();
+                        int[]encodings=new int[nbr];
+                        for (int i=0;i<nbr;i++)
+                        {
+                            encodings[i]=this.in.readInt();
+                        }
+                        setEncodings(encodings);
+                        break;
+                    case 3:                                     // FramebufferUpdateRequest
+                        boolean inc=this.in.readUnsignedByte()!=0;
+                        java.awt.Rectangle r=new java.awt.Rectangle(this.in.readUnsignedShort(),this.in.readUnsignedShort(),
+                                                                    this.in.readUnsignedShort(),this.in.readUnsignedShort());
+                        synchronized (this.lock)
+                        {
+                            if (!this.requested || !inc)        // a full request always wins
+                                this.incremental=inc;
+                            this.requestedArea=this.requested && this.requestedArea!=null?this.requestedArea.union(r):r;
+                            this.requested=true;
+                            this.lock.notifyAll();
+                        }
+                        break;
+                    case 4:                                     // KeyEvent
+                        boolean down=this.in.readUnsignedByte()!=0;
+                        skip(2);
+                        keyEvent(down,this.in.readInt());
+                        break;
+                    case 5:                                     // PointerEvent
+                        int mask=this.in.readUnsignedByte();
+                        pointerEvent(mask,this.in.readUnsignedShort(),this.in.readUnsignedShort());
+                        break;
+                    case 6:                                     // ClientCutText : ignored
+                        skip(3);
+                        int len=this.in.readInt();
+                        skip(len);
+                        break;
+                    default:
+                        throw new java.io.IOException("Unknown RFB message "+type);
+                }
+            }
+        }
+
+        /**
+         * Skips bytes sent by the client.
+         */
+        private void skip(int n) throws java.io.IOException
+        {
+            while (n>0)
+            {
+                int skipped=this.in.skipBytes(n);
+                if (skipped<=0)
+                {
+                    this.in.readUnsignedByte();                 // throws EOFException at the end
+                    skipped=1;
+                }
+                n-=skipped;
+            }
+        }
+
+        /**
+         * Reads a new pixel format. Formats with a colour map are not supported, the previous format is kept for them.
+         */
+        private void setPixelFormat() throws java.io.IOException
+        {
+            int bpp=this.in.readUnsignedByte();
+            this.in.readUnsignedByte();                         // depth
+            boolean big=this.in.readUnsignedByte()!=0;
+            boolean trueColour=this.in.readUnsignedByte()!=0;
+            int rmax=this.in.readUnsignedShort();
+            int gmax=this.in.readUnsignedShort();
+            int bmax=this.in.readUnsignedShort();
+            int rshift=this.in.readUnsignedByte();
+            int gshift=this.in.readUnsignedByte();
+            int bshift=this.in.readUnsignedByte();
+            skip(3);
+            if (!trueColour || (bpp!=8 && bpp!=16 && bpp!=32))
+            {
+                System.err.println("RFB server : unsupported pixel format ("+bpp+" bpp"+(trueColour?")":", colour map)"));
+                return;
+            }
+            synchronized (this.lock)                            // don't change this in the middle of an update
+            {
+                this.bytesPerPixel=bpp/8;
+                this.bigEndian=big;
+                this.redMax=rmax;
+                this.greenMax=gmax;
+                this.blueMax=bmax;
+                this.redShift=rshift;
+                this.greenShift=gshift;
+                this.blueShift=bshift;
+                this.directPixels=bpp==32 && !big && rmax==255 && gmax==255 && bmax==255 && rshift==16 && gshift==8 && bshift==0;
+            }
+        }
+
+        /**
+         * Chooses the encoding : the first one in the client's list that is supported.
+         */
+        private void setEncodings(int[]encodings)
+        {
+            int chosen=-1;
+            boolean resize=false;
+            for (int e:encodings)
+            {
+                switch (e)
+                {
+                    case RFBServer.ENCODING_RAW:
+                    case RFBServer.ENCODING_RRE:
+                    case RFBServer.ENCODING_HEXTILE:
+                    case RFBServer.ENCODING_ZLIB:
+                        if (chosen==-1)
+                            chosen=e;
+                        break;
+                    case RFBServer.ENCODING_DESKTOP_SIZE:
+                        resize=true;
+                        break;
+                }
+            }
+            synchronized (this.lock)
+            {
+                this.encoding=chosen==-1?RFBServer.ENCODING_RAW:chosen;
+                this.desktopSize=resize;
+            }
+        }
+
+        /**
+         * The sender thread : sends the changed regions whenever the client asked for an update.
+         */
+        private void sendUpdates()
+        {
+            try
+            {
+                while (!this.closed)
+                {
+                    java.awt.Rectangle area;
+                    boolean inc;
+                    synchronized (this.lock)
+                    {
+                        while (!this.requested && !this.closed)
+                        {
+                            this.lock.wait();
+                        }
+                        area=this.requestedArea;
+                        inc=this.incremental;
+                    }
+                    if (this.closed)
+                        break;
+                    if (!sendUpdate(area,inc))
+                    {
+                        Thread.sleep(RFBServer.UPDATE_INTERVAL);// nothing changed, keep the request for later
+                        continue;
+                    }
+                    synchronized (this.lock)
+                    {
+                        if (this.requestedArea==area)           // no new request came in meanwhile
+                        {
+                            this.requested=false;
+                            this.requestedArea=null;
+                        }
+                    }
+                }
+            }
+            catch (InterruptedException | java.io.IOException e)
+            {
+                /* client went away */
+            }
+            if (this.screen!=null)
+                this.screen.removeTileTracker(this.tracker);
+            close();
+        }
+
+        /**
+         * Sends one update, if there is something to send.
+         *
+         * @param area the area the client is interested in.
+         * @param incremental <code>false</code> if the entire area must be sent, <code>true</code> if only the changed regions.
+         *
+         * @return <code>true</code> if an update was sent.
+         */
+        private boolean sendUpdate(java.awt.Rectangle area,boolean incremental) throws java.io.IOException
+        {
+            Screen s=RFBServer.this.monitor.getScreen();
+            if (s==null)
+                return false;
+            boolean resized=false;
+            if (s!=this.screen)                                 // new screen (e.g. new screen mode) : send all of it
+            {
+                if (this.screen!=null)
+                    this.screen.removeTileTracker(this.tracker);
+                this.tracker=s.addTileTracker();
+                this.screen=s;
+                incremental=false;
+                if (this.desktopSize && (s.getXSize()!=this.width || s.getYSize()!=this.height))
+                {
+                    this.width=s.getXSize();
+                    this.height=s.getYSize();
+                    resized=true;
+                }
+            }
+            long start=System.nanoTime();
+            java.util.ArrayList<java.awt.Rectangle> regions=s.takeChangedRegions(this.tracker);
+            java.awt.Rectangle limit=new java.awt.Rectangle(0,0,Math.min(this.width,s.getXSize()),Math.min(this.height,s.getYSize()));
+            if (resized)
+                area=limit;
+            else
+                area=area.intersection(limit);
+            if (!incremental)
+            {
+                regions.clear();
+                regions.add(area);
+            }
+            java.util.ArrayList<java.awt.Rectangle> rects=new java.util.ArrayList<>();
+            for (java.awt.Rectangle r:regions)
+            {
+                r=r.intersection(area);
+                if (!r.isEmpty())
+                    rects.add(r);
+            }
+            if (rects.isEmpty() && !resized)
+                return false;
+            synchronized (this.lock)                            // pixel format and encoding are stable during the update
+            {
+                this.bufferPos=0;
+                put8(0);                                        // FramebufferUpdate
+                put8(0);
+                put16(rects.size()+(resized?1:0));
+                if (resized)
+                {
+                    putHeader(new java.awt.Rectangle(0,0,this.width,this.height),RFBServer.ENCODING_DESKTOP_SIZE);
+                }
+                int[]pixels=new int[0];
+                long raw=0;
+                for (java.awt.Rectangle r:rects)
+                {
+                    if (pixels.length<r.width*r.height)
+                        pixels=new int[r.width*r.height];
+                    s.getPixels(r,pixels,0);
+                    raw+=r.width*r.height*4;
+                    switch (this.encoding)
+                    {
+                        case RFBServer.ENCODING_ZLIB:
+                            putZlib(r,pixels);
+                            break;
+                        case RFBServer.ENCODING_HEXTILE:
+                            putHextile(r,pixels);
+                            break;
+                        case RFBServer.ENCODING_RRE:
+                            putRRE(r,pixels);
+                            break;
+                        default:
+                            putHeader(r,RFBServer.ENCODING_RAW);
+                            putPixels(pixels,0,r.width,r.width,r.height);
+                            break;
+                    }
+                }
+                RFBServer.this.encodeTime.addAndGet(System.nanoTime()-start);
+                RFBServer.this.updates.incrementAndGet();
+                RFBServer.this.rectangles.addAndGet(rects.size());
+                RFBServer.this.bytesSent.addAndGet(this.bufferPos);
+                RFBServer.this.rawBytes.addAndGet(raw);
+            }
+            this.out.write(this.buffer,0,this.bufferPos);       // only the sender thread uses the buffer
+            this.out.flush();
+            return true;
+        }
+
+        /* ---------------------------------------- Encodings ----------------------------------------------*/
+
+        /**
+         * Puts a rectangle header.
+         */
+        private void putHeader(java.awt.Rectangle r,int enc)
+        {
+            put16(r.x);
+            put16(r.y);
+            put16(r.width);
+            put16(r.height);
+            put32(enc);
+        }
+
+        /**
+         * ZLIB : raw pixels, compressed with the deflate stream of this client.
+         */
+        private void putZlib(java.awt.Rectangle r,int[]pixels)
+        {
+            putHeader(r,RFBServer.ENCODING_ZLIB);
+            int lengthPos=this.bufferPos;
+            put32(0);                                           // length, filled in later
+            int rawStart=this.bufferPos;
+            putPixels(pixels,0,r.width,r.width,r.height);       // the raw pixels are put here, ...
+            int rawLength=this.bufferPos-rawStart;
+            byte[]raw=java.util.Arrays.copyOfRange(this.buffer,rawStart,this.bufferPos);
+            this.bufferPos=rawStart;                            // ... and replaced by the compressed ones
+            if (this.deflater==null)
+                this.deflater=new java.util.zip.Deflater(java.util.zip.Deflater.DEFAULT_COMPRESSION);
+            this.deflater.setInput(raw,0,rawLength);
+            int n,room;
+            do
+            {
+                ensure(rawLength/2+64);
+                room=this.buffer.length-this.bufferPos;
+                n=this.deflater.deflate(this.buffer,this.bufferPos,room,java.util.zip.Deflater.SYNC_FLUSH);
+                this.bufferPos+=n;
+            }
+            while (n==room);                                    // the buffer was full, there may be more
+            int length=this.bufferPos-rawStart;
+            this.buffer[lengthPos]=(byte)(length>>>24);
+            this.buffer[lengthPos+1]=(byte)(length>>>16);
+            this.buffer[lengthPos+2]=(byte)(length>>>8);
+            this.buffer[lengthPos+3]=(byte)length;
+        }
+
+        /**
+         * RRE : background colour and coloured subrectangles, raw if that would be smaller.
+         */
+        private void putRRE(java.awt.Rectangle r,int[]pixels)
+        {
+            int nbr=r.width*r.height;
+            int bg=mostFrequent(pixels,0,r.width,r.width,r.height);
+            int[][]subrects=findSubrects(pixels,0,r.width,r.width,r.height,bg,nbr);// can't be more than the pixels
+            int count=subrects[0].length;
+            if (4+this.bytesPerPixel+count*(this.bytesPerPixel+8)>=nbr*this.bytesPerPixel)
+            {
+                putHeader(r,RFBServer.ENCODING_RAW);
+                putPixels(pixels,0,r.width,r.width,r.height);
+                return;
+            }
+            putHeader(r,RFBServer.ENCODING_RRE);
+            put32(count);
+            putPixel(bg);
+            for (int i=0;i<count;i++)
+            {
+                putPixel(subrects[4][i]);
+                put16(subrects[0][i]);
+                put16(subrects[1][i]);
+                put16(subrects[2][i]);
+                put16(subrects[3][i]);
+            }
+        }
+
+        /**
+         * Hextile : the rectangle is cut into 16x16 tiles, each sent as background colour with (coloured) subrectangles, or raw.
+         */
+        private void putHextile(java.awt.Rectangle r,int[]pixels)
+        {
+            putHeader(r,RFBServer.ENCODING_HEXTILE);
+            int bpp=this.bytesPerPixel;
+            boolean bgValid=false,fgValid=false;
+            int lastBg=0,lastFg=0;
+            for (int ty=0;ty<r.height;ty+=16)
+            {
+                int h=Math.min(16,r.height-ty);
+                for (int tx=0;tx<r.width;tx+=16)
+                {
+                    int w=Math.min(16,r.width-tx);
+                    int offset=ty*r.width+tx;
+                    int bg=mostFrequent(pixels,offset,r.width,w,h);
+                    int[][]subrects=findSubrects(pixels,offset,r.width,w,h,bg,255);
+                    int count=subrects==null?-1:subrects[0].length;
+                    boolean mono=true;
+                    for (int i=1;i<count && mono;i++)
+                    {
+                        mono=subrects[4][i]==subrects[4][0];
+                    }
+                    boolean newBg=!bgValid || bg!=lastBg;
+                    boolean newFg=count>0 && mono && (!fgValid || subrects[4][0]!=lastFg);
+                    int size=count==-1?0:(newBg?bpp:0)+(count==0?0:1+(mono?(newFg?bpp:0)+2*count:(bpp+2)*count));
+                    if (count==-1 || size>=w*h*bpp)             // raw is smaller (or too many subrectangles)
+                    {
+                        put8(1);
+                        putPixels(pixels,offset,r.width,w,h);
+                        bgValid=false;                          // after a raw tile, colours must be given again
+                        fgValid=false;
+                        continue;
+                    }
+                    int flags=(newBg?2:0)|(count>0?8:0)|(newFg?4:0)|(count>0 && !mono?16:0);
+                    put8(flags);
+                    if (newBg)
+                        putPixel(bg);
+                    if (newFg)
+                        putPixel(subrects[4][0]);
+                    if (count>0)
+                    {
+                        put8(count);
+                        for (int i=0;i<count;i++)
+                        {
+                            if (!mono)
+                                putPixel(subrects[4][i]);
+                            put8((subrects[0][i]<<4)|subrects[1][i]);
+                            put8(((subrects[2][i]-1)<<4)|(subrects[3][i]-1));
+                        }
+                    }
+                    bgValid=true;
+                    lastBg=bg;
+                    if (count>0)
+                    {
+                        fgValid=mono;                           // after coloured subrects, the foreground must be given again
+                        lastFg=subrects[4][0];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Finds the colour used most often in a part of the pixels.
+         */
+        private int mostFrequent(int[]pixels,int offset,int stride,int w,int h)
+        {
+            java.util.HashMap<Integer,int[]>counts=new java.util.HashMap<>();
+            int best=pixels[offset];
+            int bestCount=0;
+            for (int y=0;y<h;y++)
+            {
+                int p=offset+y*stride;
+                int previous=pixels[p]+1;                       // not the same as the first pixel
+                int[]count=null;
+                for (int x=0;x<w;x++,p++)
+                {
+                    int pixel=pixels[p];
+                    if (pixel!=previous)                        // runs of the same colour don't need a lookup for each pixel
+                    {
+                        count=counts.get(pixel);
+                        if (count==null)
+                        {
+                            count=new int[1];
+                            counts.put(pixel,count);
+                        }
+                        previous=pixel;
+                    }
+                    if (++count[0]>bestCount)
+                    {
+                        bestCount=count[0];
+                        best=pixel;
+                    }
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Finds the subrectangles not of the background colour : runs of one colour in a row, merged with the same run (same
+         * columns and colour) in the row above.
+         *
+         * @return the x, y, width, height and colour of the subrectangles (relative to the part), in 5 arrays, or <code>null</code>
+         * if there are more than max subrectangles.
+         */
+        private int[][] findSubrects(int[]pixels,int offset,int stride,int w,int h,int bg,int max)
+        {
+            int[]sx=new int[16],sy=new int[16],sw=new int[16],sh=new int[16],sc=new int[16];
+            int count=0;
+            int[]open=new int[w];                               // subrects reaching the row above, in column order
+            int[]next=new int[w];                               // subrects reaching this row
+            int nbrOpen=0;
+            for (int y=0;y<h;y++)
+            {
+                int p=offset+y*stride;
+                int nbrNext=0;
+                int o=0;                                        // first open subrect that might still match
+                for (int x=0;x<w;)
+                {
+                    int colour=pixels[p+x];
+                    int start=x;
+                    while (x<w && pixels[p+x]==colour)
+                        x++;
+                    if (colour==bg)
+                        continue;
+                    while (o<nbrOpen && sx[open[o]]<start)
+                        o++;
+                    if (o<nbrOpen && sx[open[o]]==start && sw[open[o]]==x-start && sc[open[o]]==colour)
+                    {
+                        sh[open[o]]++;                          // extend the subrect of the row above
+                        next[nbrNext++]=open[o];
+                        continue;
+                    }
+                    if (count==max)
+                        return null;                            // too many, caller will send raw
+                    if (count==sx.length)
+                    {
+                        int n=count*2;
+                        sx=java.util.Arrays.copyOf(sx,n);
+                        sy=java.util.Arrays.copyOf(sy,n);
+                        sw=java.util.Arrays.copyOf(sw,n);
+                        sh=java.util.Arrays.copyOf(sh,n);
+                        sc=java.util.Arrays.copyOf(sc,n);
+                    }
+                    sx[count]=start;
+                    sy[count]=y;
+                    sw[count]=x-start;
+                    sh[count]=1;
+                    sc[count]=colour;
+                    next[nbrNext++]=count++;
+                }
+                int[]temp=open;
+                open=next;
+                next=temp;
+                nbrOpen=nbrNext;
+            }
+            return new int[][]{java.util.Arrays.copyOf(sx,count),java.util.Arrays.copyOf(sy,count),java.util.Arrays.copyOf(sw,count),
+                               java.util.Arrays.copyOf(sh,count),java.util.Arrays.copyOf(sc,count)};
+        }
+
+        /* ---------------------------------------- Output buffer ------------------------------------------*/
+
+        /**
+         * Makes sure there is room for a number of bytes in the buffer.
+         */
+        private void ensure(int n)
+        {
+            if (this.bufferPos+n>this.buffer.length)
+                this.buffer=java.util.Arrays.copyOf(this.buffer,Math.max(this.buffer.length*2,this.bufferPos+n));
+        }
+
+        private void put8(int v)
+        {
+            ensure(1);
+            this.buffer[this.bufferPos++]=(byte)v;
+        }
+
+        private void put16(int v)
+        {
+            ensure(2);
+            this.buffer[this.bufferPos++]=(byte)(v>>>8);
+            this.buffer[this.bufferPos++]=(byte)v;
+        }
+
+        private void put32(int v)
+        {
+            ensure(4);
+            this.buffer[this.bufferPos++]=(byte)(v>>>24);
+            this.buffer[this.bufferPos++]=(byte)(v>>>16);
+            this.buffer[this.bufferPos++]=(byte)(v>>>8);
+            this.buffer[this.bufferPos++]=(byte)v;
+        }
+
+        /**
+         * Puts one pixel in the pixel format of the client.
+         */
+        private void putPixel(int rgb)
+        {
+            int v;
+            if (this.directPixels)
+                v=rgb&0xffffff;
+            else
+                v=((((rgb>>>16)&0xff)*this.redMax+127)/255)<<this.redShift
+                 |((((rgb>>>8)&0xff)*this.greenMax+127)/255)<<this.greenShift
+                 |(((rgb&0xff)*this.blueMax+127)/255)<<this.blueShift;
+            ensure(this.bytesPerPixel);
+            for (int i=0;i<this.bytesPerPixel;i++)
+            {
+                int shift=this.bigEndian?(this.bytesPerPixel-1-i)*8:i*8;
+                this.buffer[this.bufferPos++]=(byte)(v>>>shift);
+            }
+        }
+
+        /**
+         * Puts a part of the pixels, row after row, in the pixel format of the client.
+         */
+        private void putPixels(int[]pixels,int offset,int stride,int w,int h)
+        {
+            ensure(w*h*this.bytesPerPixel);
+            if (this.directPixels)                              // the usual case : just the bytes of the ints
+            {
+                byte[]b=this.buffer;
+                int pos=this.bufferPos;
+                for (int y=0;y<h;y++)
+                {
+                    int p=offset+y*stride;
+                    for (int x=0;x<w;x++)
+                    {
+                        int v=pixels[p+x];
+                        b[pos++]=(byte)v;
+                        b[pos++]=(byte)(v>>>8);
+                        b[pos++]=(byte)(v>>>16);
+                        b[pos++]=0;
+                    }
+                }
+                this.bufferPos=pos;
+                return;
+            }
+            for (int y=0;y<h;y++)
+            {
+                int p=offset+y*stride;
+                for (int x=0;x<w;x++)
+                {
+                    putPixel(pixels[p+x]);
+                }
+            }
+        }
+
+        /* ---------------------------------------- Input --------------------------------------------------*/
+
+        /**
+         * Handles a key : the X11 keysym is turned into AWT key events for the screen.
+         *
+         * @param down <code>true</code> if the key was pressed, <code>false</code> if released.
+         * @param keysym the X11 keysym.
+         */
+        private void keyEvent(boolean down,int keysym)
+        {
+            int modifier=0;
+            switch (keysym)
+            {
+                case 0xffe1:
+                case 0xffe2:                                    // shift
+                    modifier=java.awt.event.InputEvent.SHIFT_DOWN_MASK;
+                    break;
+                case 0xffe3:
+                case 0xffe4:                                    // control
+                    modifier=java.awt.event.InputEvent.CTRL_DOWN_MASK;
+                    break;
+                case 0xffe7:
+                case 0xffe8:                                    // meta
+                case 0xffe9:
+                case 0xffea:                                    // alt
+                    modifier=java.awt.event.InputEvent.ALT_DOWN_MASK;
+                    break;
+            }
+            if (modifier!=0)
+            {
+                if (down)
+                    this.modifiers|=modifier;
+                else
+                    this.modifiers&=~modifier;
+                return;
+            }
+            int keyCode;
+            char keyChar=java.awt.event.KeyEvent.CHAR_UNDEFINED;
+            switch (keysym)
+            {
+                case 0xff08: keyCode=java.awt.event.KeyEvent.VK_BACK_SPACE; keyChar=8; break;
+                case 0xff09: keyCode=java.awt.event.KeyEvent.VK_TAB; keyChar=9; break;
+                case 0xff0d:
+                case 0xff8d: keyCode=java.awt.event.KeyEvent.VK_ENTER; keyChar='\n'; break;
+                case 0xff13: keyCode=java.awt.event.KeyEvent.VK_PAUSE; break;
+                case 0xff14: keyCode=java.awt.event.KeyEvent.VK_SCROLL_LOCK; break;
+                case 0xff1b: keyCode=java.awt.event.KeyEvent.VK_ESCAPE; keyChar=27; break;
+                case 0xff50: keyCode=java.awt.event.KeyEvent.VK_HOME; break;
+                case 0xff51: keyCode=java.awt.event.KeyEvent.VK_LEFT; break;
+                case 0xff52: keyCode=java.awt.event.KeyEvent.VK_UP; break;
+                case 0xff53: keyCode=java.awt.event.KeyEvent.VK_RIGHT; break;
+                case 0xff54: keyCode=java.awt.event.KeyEvent.VK_DOWN; break;
+                case 0xff55: keyCode=java.awt.event.KeyEvent.VK_PAGE_UP; break;
+                case 0xff56: keyCode=java.awt.event.KeyEvent.VK_PAGE_DOWN; break;
+                case 0xff57: keyCode=java.awt.event.KeyEvent.VK_END; break;
+                case 0xffff: keyCode=java.awt.event.KeyEvent.VK_DELETE; keyChar=0x7f; break;
+                default:
+                    if (keysym>=0xffbe && keysym<=0xffc9)       // F1 - F12
+                    {
+                        keyCode=java.awt.event.KeyEvent.VK_F1+keysym-0xffbe;
+                    }
+                    else if ((keysym>=0x20 && keysym<0x7f) || (keysym>=0xa0 && keysym<0x100))
+                    {
+                        keyChar=(char)keysym;                   // latin 1 keysyms are the characters
+                        char upper=Character.toUpperCase(keyChar);
+                        keyCode=(upper>='A' && upper<='Z') || (upper>='0' && upper<='9') || upper==' '?upper:java.awt.event.KeyEvent.VK_UNDEFINED;
+                        if ((this.modifiers & java.awt.event.InputEvent.CTRL_DOWN_MASK)!=0 && upper>='@' && upper<='_')
+                            keyChar=(char)(upper & 0x1f);       // ctrl + letter gives the control character, as with AWT
+                    }
+                    else
+                        return;                                 // unknown keysym
+                    break;
+            }
+            final Screen s=RFBServer.this.monitor.getScreen();
+            if (s==null)
+                return;
+            long when=System.currentTimeMillis();
+            final java.awt.event.KeyEvent[]events;
+            if (down)
+            {
+                java.awt.event.KeyEvent pressed=new java.awt.event.KeyEvent(s,java.awt.event.KeyEvent.KEY_PRESSED,when,this.modifiers,keyCode,keyChar);
+                if (keyChar==java.awt.event.KeyEvent.CHAR_UNDEFINED)
+                    events=new java.awt.event.KeyEvent[]{pressed};
+                else
+                    events=new java.awt.event.KeyEvent[]{pressed,new java.awt.event.KeyEvent(s,java.awt.event.KeyEvent.KEY_TYPED,when,
+                                                         this.modifiers,java.awt.event.KeyEvent.VK_UNDEFINED,keyChar)};
+            }
+            else
+                events=new java.awt.event.KeyEvent[]{new java.awt.event.KeyEvent(s,java.awt.event.KeyEvent.KEY_RELEASED,when,
+                                                     this.modifiers,keyCode,keyChar)};
+            javax.swing.SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (java.awt.event.KeyEvent e:events)
+                    {
+                        switch (e.getID())
+                        {
+                            case java.awt.event.KeyEvent.KEY_PRESSED:
+                                s.screenPanelKeyPressed(e);
+                                break;
+                            case java.awt.event.KeyEvent.KEY_TYPED:
+                                s.screenPanelKeyTyped(e);
+                                break;
+                            default:
+                                s.screenPanelKeyReleased(e);
+                                break;
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Handles the pointer : movements, buttons and wheel are turned into AWT mouse events for the screen.
+         *
+         * @param mask the buttons down (bit 0 = left, 1 = middle, 2 = right, 3 = wheel up, 4 = wheel down).
+         * @param x the x position in the framebuffer.
+         * @param y the y position in the framebuffer.
+         */
+        private void pointerEvent(int mask,int x,int y)
+        {
+            final Screen s=RFBServer.this.monitor.getScreen();
+            if (s==null)
+                return;
+            int k=s.isDoubleSize()?2:1;                         // the handlers expect component coordinates
+            int cx=x*k,cy=y*k;
+            long when=System.currentTimeMillis();
+            final java.util.ArrayList<java.awt.event.MouseEvent> events=new java.util.ArrayList<>();
+            if (x!=this.lastX || y!=this.lastY)
+            {
+                events.add(new java.awt.event.MouseEvent(s,java.awt.event.MouseEvent.MOUSE_MOVED,when,this.modifiers,cx,cy,0,false));
+                this.lastX=x;
+                this.lastY=y;
+            }
+            int[]awtButtons={java.awt.event.MouseEvent.BUTTON1,java.awt.event.MouseEvent.BUTTON2,java.awt.event.MouseEvent.BUTTON3};
+            for (int i=0;i<3;i++)
+            {
+                int bit=1<<i;
+                if ((mask & bit)!=(this.buttons & bit))
+                    events.add(new java.awt.event.MouseEvent(s,(mask & bit)!=0?java.awt.event.MouseEvent.MOUSE_PRESSED:
+                               java.awt.event.MouseEvent.MOUSE_RELEASED,when,this.modifiers,cx,cy,1,false,awtButtons[i]));
+            }
+            for (int i=3;i<5;i++)                               // the wheel "buttons" : only the press counts
+            {
+                int bit=1<<i;
+                if ((mask & bit)!=0 && (this.buttons & bit)==0)
+                    events.add(new java.awt.event.MouseWheelEvent(s,java.awt.event.MouseEvent.MOUSE_WHEEL,when,this.modifiers,cx,cy,0,false,
+                               java.awt.event.MouseWheelEvent.WHEEL_UNIT_SCROLL,1,i==3?-1:1));
+            }
+            this.buttons=mask;
+            if (events.isEmpty())
+                return;
+            javax.swing.SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (java.awt.event.MouseEvent e:events)
+                    {
+                        switch (e.getID())
+                        {
+                            case java.awt.event.MouseEvent.MOUSE_MOVED:
+                                s.screenPanelMouseMoved(e);
+                                break;
+                            case java.awt.event.MouseEvent.MOUSE_PRESSED:
+                                s.screenPanelMousePressed(e);
+                                break;
+                            case java.awt.event.MouseEvent.MOUSE_RELEASED:
+                                s.screenPanelMouseReleased(e);
+                                break;
+                            default:
+                                s.screenPanelMouseWheelMoved((java.awt.event.MouseWheelEvent)e);
+                                break;
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package smsqmulator;
+
+/**
+ * This converts a recording made by the <code>ScreenRecorder</code> into PNG files or into an animated PNG (APNG) file.
+ * <p>
+ * It is used offline, from the command line :
+ * <pre>
+ * java -cp SMSQmulator.jar smsqmulator.RecordingConverter recording output
+ * </pre>
+ * If the output ends with ".png" or ".apng", one animated PNG file is made : each frame only contains the bounding box of the
+ * regions that changed, the delays between frames are those of the recording. Since an APNG file has only one size, frames
+ * after a change of the screen size are not converted.
+ * <p>
+ * Else, the output is taken as the start of the names of PNG files, one per frame : output_0000.png, output_0001.png etc.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class RecordingConverter
+{
+    private final java.io.DataInputStream in;
+    private int[] image=new int[0];                             // the image as of the last frame read
+    private int width,height;
+    private long time;                                          // of the last frame read, in microseconds
+    private final java.awt.Rectangle changed=new java.awt.Rectangle();// bounding box of the regions of the last frame read
+    private boolean resized;                                    // the last frame read came with a new size
+
+    /**
+     * Opens a recording.
+     *
+     * @param file the recording.
+     *
+     * @throws java.io.IOException if the file can't be read or isn't a recording.
+     */
+    public RecordingConverter(java.io.File file) throws java.io.IOException
+    {
+        this.in=new java.io.DataInputStream(new java.io.BufferedInputStream(new java.util.zip.InflaterInputStream(
+                    new java.io.BufferedInputStream(new java.io.FileInputStream(file),65536)),65536));
+        byte[]magic=new byte[ScreenRecorder.MAGIC.length];
+        this.in.readFully(magic);
+        if (!java.util.Arrays.equals(magic,ScreenRecorder.MAGIC))
+        {
+            this.in.close();
+            throw new java.io.IOException(file+" is not a screen recording");
+        }
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @return <code>false</code> if there are no more frames.
+     *
+     * @throws java.io.IOException if the file can't be read.
+     */
+    public boolean readFrame() throws java.io.IOException
+    {
+        this.resized=false;
+        while (true)
+        {
+            int tag;
+            try
+            {
+                tag=this.in.readUnsignedByte();
+            }
+            catch (java.io.EOFException e)
+            {
+                return false;                                   // recording wasn't stopped properly : take what there is
+            }
+            switch (tag)
+            {
+                case 'S':
+                    this.width=this.in.readInt();
+                    this.height=this.in.readInt();
+                    this.image=new int[this.width*this.height];
+                    this.resized=true;
+                    break;
+                case 'F':
+                    readRegions();
+                    return true;
+                case 'E':
+                    return false;
+                default:
+                    throw new java.io.IOException("Bad tag in recording : "+tag);
+            }
+        }
+    }
+
+    /**
+     * Reads the regions of a frame into the image.
+     */
+    private void readRegions() throws java.io.IOException
+    {
+        this.time=this.in.readLong();
+        int nbr=this.in.readUnsignedShort();
+        this.changed.setBounds(0,0,0,0);
+        for (int i=0;i<nbr;i++)
+        {
+            java.awt.Rectangle r=new java.awt.Rectangle(this.in.readUnsignedShort(),this.in.readUnsignedShort(),
+                                                        this.in.readUnsignedShort(),this.in.readUnsignedShort());
+            if (r.x+r.width>this.width || r.y+r.height>this.height)
+                throw new java.io.IOException("Bad region in recording : "+r);
+            for (int y=0;y<r.height;y++)
+            {
+                int p=(r.y+y)*this.width+r.x;
+                int end=p+r.width;
+                while (p<end)
+                {
+                    p+=readNumber();                            // unchanged pixels
+                    int count=readNumber();
+                    if (p+count>end)
+                        throw new java.io.IOException("Bad run in recording");
+                    for (;count>0;count--)
+                    {
+                        this.image[p++]=(this.in.readUnsignedByte()<<16)|(this.in.readUnsignedByte()<<8)|this.in.readUnsignedByte();
+                    }
+                }
+            }
+            if (this.changed.isEmpty())
+                this.changed.setBounds(r);
+            else
+                this.changed.add(r);
+        }
+    }
+
+    /**
+     * Reads a number written with 7 bits per byte.
+     */
+    private int readNumber() throws java.io.IOException
+    {
+        int n=0;
+        for (int shift=0;;shift+=7)
+        {
+            int b=this.in.readUnsignedByte();
+            n|=(b&0x7f)<<shift;
+            if ((b&0x80)==0)
+                return n;
+        }
+    }
+
+    /**
+     * Closes the recording.
+     */
+    public void close()
+    {
+        try
+        {
+            this.in.close();
+        }
+        catch (java.io.IOException e)
+        { /*NOP*/ }
+    }
+
+    /**
+     * Makes an image of the current frame.
+     *
+     * @return the image.
+     */
+    public java.awt.image.BufferedImage getImage()
+    {
+        java.awt.image.BufferedImage img=new java.awt.image.BufferedImage(this.width,this.height,java.awt.image.BufferedImage.TYPE_INT_RGB);
+        img.getRaster().setDataElements(0,0,this.width,this.height,this.image);
+        return img;
+    }
+
+    /**
+     * Converts the recording into PNG files, one per frame.
+     *
+     * @param prefix the start of the filenames.
+     *
+     * @return the number of files written.
+     *
+     * @throws java.io.IOException if a file can't be read or written.
+     */
+    public int toPNGs(String prefix) throws java.io.IOException
+    {
+        int count=0;
+        while (readFrame())
+        {
+            ScreenCapture.writePNG(getImage(),new java.io.File(String.format("%s_%04d.png",prefix,count++)));
+        }
+        return count;
+    }
+
+    /**
+     * Converts the recording into an animated PNG file. The recording is read twice : the number of frames must be known first.
+     *
+     * @param recording the recording.
+     * @param file the APNG file.
+     *
+     * @return the number of frames written.
+     *
+     * @throws java.io.IOException if a file can't be read or written.
+     */
+    public static int toAPNG(java.io.File recording,java.io.File file) throws java.io.IOException
+    {
+        RecordingConverter rc=new RecordingConverter(recording);
+        int frames=0;
+        try
+        {
+            while (rc.readFrame() && (frames==0 || !rc.resized))
+                frames++;
+        }
+        finally
+        {
+            rc.close();
+        }
+        if (frames==0)
+            throw new java.io.IOException(recording+" contains no frames");
+        rc=new RecordingConverter(recording);
+        java.io.DataOutputStream out=new java.io.DataOutputStream(new java.io.BufferedOutputStream(new java.io.FileOutputStream(file),65536));
+        try
+        {
+            out.write(new byte[]{(byte)0x89,'P','N','G',13,10,26,10});
+            rc.readFrame();
+            java.io.ByteArrayOutputStream chunk=new java.io.ByteArrayOutputStream();
+            java.io.DataOutputStream c=new java.io.DataOutputStream(chunk);
+            c.writeInt(rc.width);
+            c.writeInt(rc.height);
+            c.write(new byte[]{8,2,0,0,0});                     // 8 bit RGB, no interlace
+            writeChunk(out,"IHDR",chunk);
+            c.writeInt(frames);
+            c.writeInt(0);                                      // loop forever
+            writeChunk(out,"acTL",chunk);
+            int sequence=0;
+            java.awt.Rectangle r=new java.awt.Rectangle(0,0,rc.width,rc.height);// first frame : all of it
+            byte[]data=compress(rc,r);
+            long frameTime=rc.time;
+            for (int i=0;i<frames;i++)
+            {
+                byte[]nextData=null;
+                java.awt.Rectangle next=null;
+                long delay=100000;                              // last frame : 1/10th of a second
+                if (i<frames-1)
+                {
+                    rc.readFrame();
+                    delay=rc.time-frameTime;
+                    frameTime=rc.time;
+                    next=new java.awt.Rectangle(rc.changed);
+                    nextData=compress(rc,next);                 // must be done before the image changes again
+                }
+                c.writeInt(sequence++);                         // fcTL
+                c.writeInt(r.width);
+                c.writeInt(r.height);
+                c.writeInt(r.x);
+                c.writeInt(r.y);
+                c.writeShort((int)Math.min(Math.max(delay/1000,1),65535));// delay in ms
+                c.writeShort(1000);
+                c.writeByte(0);                                 // dispose : none
+                c.writeByte(0);                                 // blend : source
+                writeChunk(out,"fcTL",chunk);
+                if (i>0)
+                    c.writeInt(sequence++);
+                c.write(data);
+                writeChunk(out,i==0?"IDAT":"fdAT",chunk);
+                data=nextData;
+                r=next;
+            }
+            writeChunk(out,"IEND",chunk);
+        }
+        finally
+        {
+            rc.close();
+            out.close();
+        }
+        return frames;
+    }
+
+    /**
+     * Compresses a region of the current image as PNG data (filter byte 0 + RGB for each row).
+     */
+    private static byte[] compress(RecordingConverter rc,java.awt.Rectangle r)
+    {
+        if (r.isEmpty())
+            r.setBounds(0,0,1,1);                               // nothing changed : a frame needs at least one pixel
+        byte[]raw=new byte[r.height*(1+3*r.width)];
+        int pos=0;
+        for (int y=0;y<r.height;y++)
+        {
+            raw[pos++]=0;
+            int p=(r.y+y)*rc.width+r.x;
+            for (int x=0;x<r.width;x++)
+            {
+                int pixel=rc.image[p++];
+                raw[pos++]=(byte)(pixel>>>16);
+                raw[pos++]=(byte)(pixel>>>8);
+                raw[pos++]=(byte)pixel;
+            }
+        }
+        java.util.zip.Deflater deflater=new java.util.zip.Deflater(java.util.zip.Deflater.BEST_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+        java.io.ByteArrayOutputStream result=new java.io.ByteArrayOutputStream();
+        byte[]buffer=new byte[65536];
+        while (!deflater.finished())
+        {
+            result.write(buffer,0,deflater.deflate(buffer));
+        }
+        deflater.end();
+        return result.toByteArray();
+    }
+
+    /**
+     * Writes a PNG chunk : length, type, data and CRC. The data stream is cleared afterwards.
+     */
+    private static void writeChunk(java.io.DataOutputStream out,String type,java.io.ByteArrayOutputStream data) throws java.io.IOException
+    {
+        byte[]t=type.getBytes("US-ASCII");
+        byte[]d=data.toByteArray();
+        java.util.zip.CRC32 crc=new java.util.zip.CRC32();
+        crc.update(t);
+        crc.update(d);
+        out.writeInt(d.length);
+        out.write(t);
+        out.write(d);
+        out.writeInt((int)crc.getValue());
+        data.reset();
+    }
+
+    /**
+     * Converts a recording from the command line.
+     *
+     * @param args the recording and the output (an APNG file if it ends with ".png" or ".apng", else the start of the PNG
+     * filenames).
+     */
+    public static void main(String[] args)
+    {
+        if (args.length!=2)
+        {
+            System.err.println("Usage : RecordingConverter recording output.png|output.apng|prefix");
+            System.exit(1);
+        }
+        try
+        {
+            String output=args[1].toLowerCase();
+            int frames;
+            if (output.endsWith(".png") || output.endsWith(".apng"))
+                frames=toAPNG(new java.io.File(args[0]),new java.io.File(args[1]));
+            else
+            {
+                RecordingConverter rc=new RecordingConverter(new java.io.File(args[0]));
+                try
+                {
+                    frames=rc.toPNGs(args[1]);
+                }
+                finally
+                {
+                    rc.close();
+                }
+            }
+            System.out.println(frames+" frames converted");
+        }
+        catch (java.io.IOException e)
+        {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
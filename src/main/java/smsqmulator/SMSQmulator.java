@@ -11,6 +11,17 @@ import java.io.IOException;
  * The inifile is searched for, in this order, in the command line, in the exec dir, in the install dir, in the user's dir.
  * 
  * 
+ * 1.34 help of INPUT-JOURNAL-TICK : the guest time then follows the instruction count.
+ * 1.33 config items NFA-BUFFER-SIZE and SFA-BUFFER-SIZE.
+ * 1.32 config item DIR-CACHE-SIZE.
+ * 1.31 config item ASYNC-IO-THRESHOLD.
+ * 1.30 config item WIN-FLUSH-DELAY.
+ * 1.29 config item WIN-CACHE-SIZE.
+ * 1.28 config items RFB-PORT and RFB-ADDRESS.
+ * 1.27 config item SCREEN-FILTER.
+ * 1.26 config item SCREEN-DEFERRED.
+ * 1.25 config items INPUT-RECORD-FILE, INPUT-REPLAY-FILE and INPUT-JOURNAL-TICK.
+ * 1.24 config items TRAP-STATISTICS and SLOW-TRAP-LOG.
  * 1.23 set new parameter for SoundDevice ; config item MOUSEWHEEL-ACCEL ; new way of handling finding of ini file ; 
  *      ./ expansion added ; may use command line parameter = entire ini file path.
  * 1.22 new config option to make unlockable qxl.win files read only ; correct window mode settings (when did they get 
@@ -333,6 +344,21 @@ public class SMSQmulator
                             "MAKE-UNLOCKABLE-QXLWIN-READONLY","0","When ignoring file lock errors, make an unlockable file read only",
                             "POPUP-ACTION","1","Action after JVA_POPUP : 0 = open wdw, 1 = blink taskbar entry",
                             "MOUSEWHEEL-ACCEL","1","Speed of mouse scroll wheel (1 - 9 = normal to fast)",
+                            "TRAP-STATISTICS","0","Keep latency statistics for all traps, shown with monitor command ts (0 = no, 1 = yes)",
+                            "SLOW-TRAP-LOG","0","Log traps taking longer than this (in microseconds) to the console (0 = don't log)",
+                            "INPUT-RECORD-FILE","","Record keys and mouse events into this file (empty = don't record)",
+                            "INPUT-REPLAY-FILE","","Replay keys and mouse events from this file (empty = don't replay)",
+                            "INPUT-JOURNAL-TICK","100000","When recording or replaying input events, nbr of instructions between two 50 Hz interrupts (the guest time then follows the instruction count, not the real time)",
+                            "SCREEN-DEFERRED","0","Convert writes to the screen at each screen update, in parallel, instead of at each write (0 = no, 1 = yes)",
+                            "SCREEN-FILTER","0","How an enlarged screen is scaled : 0 = pixel replication, 1 = smooth for non integer sizes, 2 = by Java2D at each repaint",
+                            "RFB-PORT","0","Port of the RFB (VNC) server, usually 5900 (0 = no server)",
+                            "RFB-ADDRESS","127.0.0.1","Address the RFB server listens on (there is no password : 127.0.0.1 = only this machine)",
+                            "WIN-CACHE-SIZE","4096","Size of the cluster cache for each WIN drive, in KiB, shown with monitor command dc (0 = no cache)",
+                            "WIN-FLUSH-DELAY","0","Delay, in milliseconds, before the FAT and the cache of a WIN drive are written after a file is closed (0 = at once)",
+                            "ASYNC-IO-THRESHOLD","0","NFA/SFA reads and writes of at least this many bytes, and MEM drive write backs, are done in the background (0 = never)",
+                            "DIR-CACHE-SIZE","4096","Size of the cache for the directories of the NFA and SFA devices, each, in KiB, shown with monitor command nc (0 = no cache)",
+                            "NFA-BUFFER-SIZE","4096","Size of the read ahead / write behind buffer of each file on NFA drives 1 to 8, in bytes, separated by commas, the last one is used for the remaining drives (0 = no buffer)",
+                            "SFA-BUFFER-SIZE","4096","Same for SFA drives",
                             "EXPANDED_DIR","","./ will be expanded to this - do not modify, will be overwritten!"
                             };
         for (int i=0;i<options.length;i+=3)
@@ -38,6 +38,8 @@ package smsqmulator;
  * <p>
  * @author and copyright (c)Wolfgang Lenerz 2012-2017
  * @version
+ *  1.07    without resampling, the words of a chunk are copied with MemoryTransfer.
+ *  1.06    no sound line at all (e.g. headless machine without sound device) is handled like an unavailable line.
  *  1.05    interface SMSQE <-> this objet totally revamped, uses a primitiv buffering system..
  *  1.04    resampling if 22.05 Khz is chosen, thanks to Marcel Kilgus for the algorithm.
  *  1.03    minor modification in queueIsEmpty
@@ -89,7 +91,7 @@ public class SampledSound
             this.playThread.setDaemon(true);
             this.playThread.start();
         } 
-        catch (javax.sound.sampled.LineUnavailableException e) 
+        catch (javax.sound.sampled.LineUnavailableException | IllegalArgumentException e) 
         {
             if (warn.warnIfSoundProblem)
             {
@@ -339,17 +341,8 @@ public class SampledSound
             return null;
         if (!this.reSample)
         {                                                       // no resamplng, split words into bytes
-            int index=0;
             buff=new byte[count];                               
-            for (int i=this.start/2;i<a1/2;i++)
-            {
-                short sh=mem[i];
-                buff[index]=(byte)(sh>>>8);
-                index++;
-                buff[index]=(byte)sh;
-                index++;
-            }
-            
+            smsqmulator.cpu.MemoryTransfer.fromMemory(mem,this.start&~1,java.nio.ByteBuffer.wrap(buff),0,Math.min(count,(a1/2-this.start/2)*2));
             return buff;
         }
         else
@@ -15,9 +15,36 @@ import java.awt.event.KeyEvent;
  * This now (as of 1.08) handles keypresses and mouse movements/buttons on the emulated screen.
  * 
  * Screen redrawing should be kicked off by the "50 Hz" QL50HzInterrupt object only.
+ * <p>
+ * The EDT never draws the image the emulation writes to, but a copy of it (one of three frames, see publishFrame) : a frame is 
+ * never drawn while it is being filled. Frames are NOT consistent snapshots of the emulated screen, though : the emulation keeps 
+ * writing to the image while the screen thread copies the changed regions into a frame, so a frame may still show a region half 
+ * way through a change (tearing), it only happens less often than when the image was drawn directly. This costs three more 
+ * images the size of the screen, plus three scaled ones if the component isn't the size of the image.
  * 
  * @author and copyright (c) 2012 -2017 Wolfgang Lenerz
  * @version 
+ *  1.35    the class doc says that frames may still tear and what the frames cost.
+ *  1.34    repaintDirtyRegions reuses its region list and run arrays.
+ *  1.33    LineConverter has a serialVersionUID.
+ *  1.32    clearScreen and fillScreen fill the image in place (fillImage), clearScreen(vram) also clears the video ram.
+ *  1.31    TileTrackers for other users of the dirty tiles, takeChangedRegions, getPixels, isDoubleSize ; the mouse wheel
+ *          listener calls screenPanelMouseWheelMoved.
+ *  1.30    getSnapshot, getRegionHash and getFrameHash (kept up to date per tile) for headless use and tests.
+ *  1.29    the frames are scaled to the size of the component by the screen thread (FrameScaler), only for the regions that 
+ *          changed ; paintComponent draws the scaled frame as is ; setScalingFilter.
+ *  1.28    blitter field for the block operations of the 8 and 16 bit colour screens.
+ *  1.27    the image written to by the emulation is no longer shown directly : at each frame, the dirty regions are copied into a
+ *          lock-free triple buffer of frames (publishFrame) and paintComponent draws the front frame ; dropped and duplicated frames 
+ *          are counted.
+ *  1.26    deferred rendering : writes to the screen memory may only mark lines that are then converted at each frame, in parallel
+ *          (setDeferredRendering, deferWrite, convertDeferredLines, abstract convertLine).
+ *  1.25    QL screen words are converted through lookup tables (setPixels), setDisplayRegion copies entire lines into the image, 
+ *          refreshQLScreen.
+ *  1.24    changes are tracked in a bitmap of dirty tiles (markDirty...), repaintDirtyRegions only repaints the changed regions of
+ *          the screen, paintComponent only draws the clip area ; getPaintStatistics (pixels pushed per second).
+ *  1.23    no invisible cursor is created when running headless.
+ *  1.22    paintComponent generates a JFR event if JFR is recording.
  *  1.21    diffetent way of handling mousewheel ; setMousewheelAccel created.
  *  1.20    CTRL + mousewheel procudes left/right scroll keycodes.
  *  1.19    CTRl-Shift +a..z produces keys 160+ ; mac : ctrl shift c is not the same as ctrl c.
@@ -67,6 +94,7 @@ public abstract class Screen extends javax.swing.JPanel
     protected int nbrOfBytesPerLine;                        // number of bytes per line;
     protected boolean vibrantColours =false;
     protected int divisior=1;                               // used when moving blocks of mem about
+    protected Blitter blitter;                              // does the block operations, null if the screen has none
     protected Monitor monitor;
     protected boolean isMac;
     private int oldX=-1,oldY=-1;
@@ -116,8 +144,6 @@ public abstract class Screen extends javax.swing.JPanel
 	134,154,153,155,135,253,254,255,
     };  
     
-    protected final int [] pixelmask4={0x101,0x202,0x404,0x808,0x1010,0x2020,0x4040,0x8080};// the pixel masks for each individual pixel in the word in QL mode 4
-    protected final int [] pixelmask8={0x203,0x80c,0x2030,0x80c0};//ignore flash bit
     protected final int black,blue,red,green,magenta,yellow,orange,white,cyan; // colours in QL compatible modes   
     protected int copyMode;                     // what mode we're supposed to be in when copying QL screen
     protected int QLmode;                       // mode set with mode command
@@ -138,6 +164,41 @@ public abstract class Screen extends javax.swing.JPanel
     private int [][] keyrowTable;
     private int mouseWheelAccel;
     
+    private static final int TILE_XSHIFT=5;                 // a dirty tile is 32 pixels wide
+    private static final int TILE_YSHIFT=4;                 // and 16 lines high
+    private static final int MAX_REGIONS=24;                // if more dirty regions than this, just repaint their union
+    private int tilesPerRow;                                // nbr of tiles in a row of tiles
+    private int tileRows;                                   // nbr of rows of tiles
+    private java.util.concurrent.atomic.AtomicLongArray dirtyTiles;// one bit per tile, set when a pixel in that tile changed
+    private long[] tileSnapshot;                            // copy of dirtyTiles taken when repainting (screen thread only)
+    private int[] runStart,runEnd,runTop;                   // open regions when merging dirty tiles (screen thread only)
+    private int[] rowStart,rowEnd;                          // runs of dirty tiles in the current row (screen thread only)
+    private final java.util.ArrayList<java.awt.Rectangle> dirtyRegions=new java.util.ArrayList<>();// regions found (screen thread only)
+    private final java.util.ArrayList<java.awt.Rectangle> pendingRegions=new java.util.ArrayList<>();// regions waiting to be painted in the EDT
+    private long pixelsPainted;                             // paint statistics : nbr of pixels drawn by paintComponent
+    private long paintCalls;                                // nbr of times paintComponent was called
+    private long regionsQueued;                             // nbr of dirty regions found
+    private long statisticsStart=System.nanoTime();         // when statistics were started
+    private int[] lineBuffer;                               // one line of pixels when copying the QL screen
+    private static final int MAX_STALE_REGIONS=256;         // if a frame has more stale regions than this, copy the entire image
+    private static final int FRESH_FRAME=4;                 // set in readyFrame if that frame wasn't shown yet
+    private final java.awt.image.BufferedImage[] frames=new java.awt.image.BufferedImage[3];// the triple buffered frames shown
+    private final java.util.ArrayList<java.util.ArrayList<java.awt.Rectangle>> staleRegions=new java.util.ArrayList<>();// per frame : regions changed since it was filled
+    private final java.util.concurrent.atomic.AtomicInteger readyFrame=new java.util.concurrent.atomic.AtomicInteger(1);// frame ready to be shown (| FRESH_FRAME)
+    private int backFrame=0;                                // frame filled by the screen thread
+    private int frontFrame=2;                               // frame shown by the EDT
+    private final java.awt.image.BufferedImage[] scaledFrames=new java.awt.image.BufferedImage[3];// per frame : scaled to component size, or null
+    private final FrameScaler scaler=new FrameScaler();     // scales the changed regions of the frames (screen thread only)
+    private long framesPublished,framesDropped,framesDuplicated;// frame statistics
+    private static final int LINES_PER_STRIPE=16;           // when converting lines in parallel, min nbr of lines per task
+    private volatile short[] deferredMemory;                // if not null, rendering is deferred, this is the memory with the vram
+    private java.util.concurrent.atomic.AtomicLongArray dirtyLines;// one bit per line to be converted when rendering is deferred
+    private volatile boolean linesPending;                  // true if there are lines to convert
+    private volatile TileTracker[] tileTrackers=new TileTracker[0];// other users of the dirty tiles (frame hash, RFB server)
+    private TileTracker hashTracker;                        // tiles to hash again, null if no frame hash kept
+    private long[] tileHashes;                              // hash of every tile
+    private long frameHash;                                 // combination of all tile hashes
+    
     /**
      * Creates the object.
      * Subclasses should always call this.
@@ -155,19 +216,39 @@ public abstract class Screen extends javax.swing.JPanel
         this.screenImage = new java.awt.image.BufferedImage(xsize,ysize, java.awt.image.BufferedImage.TYPE_INT_RGB);
         this.raster=this.screenImage.getRaster();
         this.dataBuffer=(java.awt.image.DataBufferInt)raster.getDataBuffer();
+        for (int i=0;i<this.frames.length;i++)
+        {
+            this.frames[i]=new java.awt.image.BufferedImage(xsize,ysize, java.awt.image.BufferedImage.TYPE_INT_RGB);
+            this.staleRegions.add(new java.util.ArrayList<java.awt.Rectangle>());
+        }
+        this.tilesPerRow=(xsize+(1<<Screen.TILE_XSHIFT)-1)>>Screen.TILE_XSHIFT;
+        this.tileRows=(ysize+(1<<Screen.TILE_YSHIFT)-1)>>Screen.TILE_YSHIFT;
+        int words=(this.tilesPerRow*this.tileRows+63)>>6;
+        this.dirtyTiles=new java.util.concurrent.atomic.AtomicLongArray(words);
+        this.tileSnapshot=new long[words];
+        this.runStart=new int[this.tilesPerRow];
+        this.runEnd=new int[this.tilesPerRow];
+        this.runTop=new int[this.tilesPerRow];
+        this.rowStart=new int[this.tilesPerRow];
+        this.rowEnd=new int[this.tilesPerRow];
         java.awt.Dimension d=new java.awt.Dimension(xsize,ysize);
         this.setSize(d);
         this.setPreferredSize(d);
         this.setMinimumSize(d);
         this.setMaximumSize(d); 
-        this.isDirty=true;
+        markAllDirty();
         this.monitor=monitor;
         this.isMac=isMac;
         
         byte[]imageByte=new byte[0];                        // empty byte array for cursor creation
         java.awt.Point myPoint=new java.awt.Point(0,0);
-        java.awt.Image cursorImage=java.awt.Toolkit.getDefaultToolkit().createImage(imageByte);//Create image for cursor using empty array
-        this.myCursor=java.awt.Toolkit.getDefaultToolkit().createCustomCursor(cursorImage,myPoint,"invisible_cursor");
+        if (java.awt.GraphicsEnvironment.isHeadless())
+            this.myCursor=null;                             // no cursors without a display (headless benchmark run)
+        else
+        {
+            java.awt.Image cursorImage=java.awt.Toolkit.getDefaultToolkit().createImage(imageByte);//Create image for cursor using empty array
+            this.myCursor=java.awt.Toolkit.getDefaultToolkit().createCustomCursor(cursorImage,myPoint,"invisible_cursor");
+        }
         setMouseAndKeys();
         setupKeyrowArray();
         this.black=java.awt.Color.black.getRGB();
@@ -299,29 +380,7 @@ public abstract class Screen extends javax.swing.JPanel
             @Override
             public void mouseWheelMoved(java.awt.event.MouseWheelEvent evt) 
             {
-                int count=evt.getWheelRotation();
-                int mschar;
-                if (count==0)
-                    return;
-                if (count<0)
-                {
-                    if (evt.isControlDown())
-                        mschar=0xc10000;
-                    else
-                        mschar=0xd10000;
-                    count=count*-1;
-                }
-                else
-                {
-                    if (evt.isControlDown())
-                        mschar=0xc90000;
-                    else
-                        mschar=0xd90000;
-                }
-                count*=mouseWheelAccel;
-                count--;                                        // prepare for dbf in smsqes
-                monitor.inputMouseWheel(count+mschar);                    // simulate skeystrokes
-                evt.consume();
+                screenPanelMouseWheelMoved(evt);
              /* int count=evt.getWheelRotation();
                 
                 if (count==0)
@@ -347,6 +406,38 @@ public abstract class Screen extends javax.swing.JPanel
         });
     }
     
+    /**
+     * Handles mouse wheel movements : they are sent to SMSQ/E as (possibly several) cursor up/down keystrokes.
+     * 
+     * @param evt the mouse wheel event.
+     */
+    public void screenPanelMouseWheelMoved(java.awt.event.MouseWheelEvent evt) 
+    {
+        int count=evt.getWheelRotation();
+        int mschar;
+        if (count==0)
+            return;
+        if (count<0)
+        {
+            if (evt.isControlDown())
+                mschar=0xc10000;
+            else
+                mschar=0xd10000;
+            count=count*-1;
+        }
+        else
+        {
+            if (evt.isControlDown())
+                mschar=0xc90000;
+            else
+                mschar=0xd90000;
+        }
+        count*=this.mouseWheelAccel;
+        count--;                                        // prepare for dbf in smsqes
+        this.monitor.inputMouseWheel(count+mschar);                    // simulate skeystrokes
+        evt.consume();
+    }
+    
     /**
      * Gets the key typed in the <code>Screen</code> object into the monitor (and thus the emulation).
      * 
@@ -947,9 +1038,22 @@ public abstract class Screen extends javax.swing.JPanel
  
        
     /**
-     * Clears the entire screen, on screen as well as in VramBuffer.
+     * Clears the entire screen image (not the video ram).
      */
-    public abstract void clearScreen();
+    public void clearScreen()
+    {
+        fillImage(0,null);
+    }
+    
+    /**
+     * Clears the entire screen, in the image as well as in the video ram.
+     * 
+     * @param vram the memory containing the video ram, or <code>null</code> if only the image is to be cleared.
+     */
+    public void clearScreen(short[]vram)
+    {
+        fillImage(0,vram);
+    }
     
     /**
      * Xors a block with colour : this updates the "screen memory" (vrambuffer) AND the underlying image.
@@ -1178,6 +1282,16 @@ public abstract class Screen extends javax.swing.JPanel
         return new java.awt.Dimension(this.screenImage.getWidth(), this.screenImage.getHeight());
     }
 
+    /**
+     * Gets the double sized status of this screen.
+     * 
+     * @return <code>true</code> if pixels are doubled.
+     */
+    public final boolean isDoubleSize()
+    {
+        return this.isDouble;
+    }
+    
     /**
      * Sets the double sized status of this screen (a pixel is doubled in every dimension).
      * 
@@ -1208,18 +1322,908 @@ public abstract class Screen extends javax.swing.JPanel
         return this.monitor;
     }
     
+    /* -------------------------------------- Dirty region tracking -----------------------------------------*/
+    /**
+     * Marks a tile as dirty.
+     * This may be called from the emulation thread whilst the screen thread takes the dirty tiles, hence the atomic update.
+     * The bit is only set if it isn't set already, which is the case most of the time.
+     * 
+     * @param tile the tile number (row*tilesPerRow+column).
+     */
+    private void markTile(int tile)
+    {
+        int word=tile>>>6;
+        long bit=1L<<tile;                                  // shift count is taken modulo 64
+        long old=this.dirtyTiles.get(word);
+        while ((old & bit)==0 && !this.dirtyTiles.compareAndSet(word,old,old|bit))
+            old=this.dirtyTiles.get(word);
+        for (TileTracker tracker:this.tileTrackers)         // normally none
+        {
+            old=tracker.tiles.get(word);
+            while ((old & bit)==0 && !tracker.tiles.compareAndSet(word,old,old|bit))
+                old=tracker.tiles.get(word);
+        }
+    }
+    
+    /**
+     * Keeps track of the tiles that changed, for a user of the screen other than the repaint (e.g. the frame hash, the RFB server).
+     */
+    public static final class TileTracker
+    {
+        private final java.util.concurrent.atomic.AtomicLongArray tiles;// one bit per tile
+        
+        private TileTracker(int nbrOfTiles)
+        {
+            this.tiles=new java.util.concurrent.atomic.AtomicLongArray((nbrOfTiles+63)>>6);
+            for (int i=0;i<this.tiles.length();i++)
+            {
+                this.tiles.set(i,-1L);                      // at first, everything has changed
+            }
+        }
+    }
+    
+    /**
+     * Creates a new tracker of the changed tiles. At first, all tiles are marked as changed.
+     * 
+     * @return the tracker.
+     */
+    public synchronized TileTracker addTileTracker()
+    {
+        TileTracker tracker=new TileTracker(this.tilesPerRow*this.tileRows);
+        TileTracker[] trackers=java.util.Arrays.copyOf(this.tileTrackers,this.tileTrackers.length+1);
+        trackers[trackers.length-1]=tracker;
+        this.tileTrackers=trackers;                         // copy on write, markTile never waits
+        return tracker;
+    }
+    
+    /**
+     * Removes a tracker of the changed tiles.
+     * 
+     * @param tracker the tracker.
+     */
+    public synchronized void removeTileTracker(TileTracker tracker)
+    {
+        java.util.ArrayList<TileTracker> trackers=new java.util.ArrayList<>(java.util.Arrays.asList(this.tileTrackers));
+        trackers.remove(tracker);
+        this.tileTrackers=trackers.toArray(new TileTracker[trackers.size()]);
+    }
+    
+    /**
+     * Gets (and clears) the regions that changed since the last call for a tracker.
+     * Neighbouring changed tiles in a row of tiles make up a region, regions with the same columns in consecutive rows are merged.
+     * 
+     * @param tracker the tracker.
+     * 
+     * @return the regions, in image coordinates.
+     */
+    public java.util.ArrayList<java.awt.Rectangle> takeChangedRegions(TileTracker tracker)
+    {
+        java.util.ArrayList<java.awt.Rectangle> regions=new java.util.ArrayList<>();
+        java.util.ArrayList<java.awt.Rectangle> previous=new java.util.ArrayList<>();// regions ending in the previous row
+        java.util.ArrayList<java.awt.Rectangle> current=new java.util.ArrayList<>();
+        int tileWidth=1<<Screen.TILE_XSHIFT;
+        int tileHeight=1<<Screen.TILE_YSHIFT;
+        long[]bits=new long[tracker.tiles.length()];
+        for (int i=0;i<bits.length;i++)
+        {
+            bits[i]=tracker.tiles.getAndSet(i,0);
+        }
+        for (int ty=0;ty<this.tileRows;ty++)
+        {
+            int tile=ty*this.tilesPerRow;
+            int y=ty*tileHeight;
+            int h=Math.min(tileHeight,this.ysize-y);
+            current.clear();
+            for (int tx=0;tx<this.tilesPerRow;)
+            {
+                if ((bits[(tile+tx)>>>6] & (1L<<(tile+tx)))==0)
+                {
+                    tx++;
+                    continue;
+                }
+                int start=tx;
+                while (tx<this.tilesPerRow && (bits[(tile+tx)>>>6] & (1L<<(tile+tx)))!=0)
+                    tx++;
+                int x=start*tileWidth;
+                int w=Math.min(tx*tileWidth,this.xsize)-x;
+                java.awt.Rectangle r=null;
+                for (java.awt.Rectangle p:previous)
+                {
+                    if (p.x==x && p.width==w)
+                    {
+                        r=p;                                // same columns as a region in previous row : extend it
+                        r.height+=h;
+                        break;
+                    }
+                }
+                if (r==null)
+                {
+                    r=new java.awt.Rectangle(x,y,w,h);
+                    regions.add(r);
+                }
+                current.add(r);
+            }
+            java.util.ArrayList<java.awt.Rectangle> temp=previous;
+            previous=current;
+            current=temp;
+        }
+        return regions;
+    }
+    
+    /**
+     * Copies pixels (RGB values) of a region of the screen image. The region must be within the screen.
+     * 
+     * @param r the region.
+     * @param dest where to copy to, row after row.
+     * @param offset where in dest to copy to.
+     */
+    public void getPixels(java.awt.Rectangle r,int[]dest,int offset)
+    {
+        int[]pixels=this.dataBuffer.getData();
+        for (int y=0;y<r.height;y++)
+        {
+            System.arraycopy(pixels,(r.y+y)*this.xsize+r.x,dest,offset+y*r.width,r.width);
+        }
+    }
+    
+    /**
+     * Marks a rectangle of the screen image as changed, so that it will be repainted.
+     * If rendering is deferred, the lines of the rectangle will also be converted again from the screen memory at the next frame, 
+     * since a conversion running at the same time might have overwritten the image with older data.
+     * 
+     * @param x x origin of the rectangle, in pixels.
+     * @param y y origin of the rectangle.
+     * @param w width of the rectangle, in pixels.
+     * @param h height of the rectangle.
+     */
+    protected final void markDirty(int x,int y,int w,int h)
+    {
+        markTiles(x,y,w,h);
+        if (this.deferredMemory!=null)
+            deferLines(y,h);
+    }
+    
+    /**
+     * Marks the tiles covering a rectangle of the screen image as dirty. The rectangle is clipped to the screen.
+     * 
+     * @param x x origin of the rectangle, in pixels.
+     * @param y y origin of the rectangle.
+     * @param w width of the rectangle, in pixels.
+     * @param h height of the rectangle.
+     */
+    private void markTiles(int x,int y,int w,int h)
+    {
+        if (x<0)
+        {
+            w+=x;
+            x=0;
+        }
+        if (y<0)
+        {
+            h+=y;
+            y=0;
+        }
+        if (x+w>this.xsize)
+            w=this.xsize-x;
+        if (y+h>this.ysize)
+            h=this.ysize-y;
+        if (w<1 || h<1)
+            return;
+        int tx1=(x+w-1)>>Screen.TILE_XSHIFT;
+        int ty1=(y+h-1)>>Screen.TILE_YSHIFT;
+        for (int ty=y>>Screen.TILE_YSHIFT;ty<=ty1;ty++)
+        {
+            int row=ty*this.tilesPerRow;
+            for (int tx=x>>Screen.TILE_XSHIFT;tx<=tx1;tx++)
+            {
+                markTile(row+tx);
+            }
+        }
+        this.isDirty=true;
+    }
+    
+    /**
+     * Marks one pixel of the screen image as changed.
+     * 
+     * @param x x coordinate of the pixel.
+     * @param y y coordinate of the pixel.
+     */
+    protected final void markDirtyPixel(int x,int y)
+    {
+        if (x<this.xsize && y<this.ysize && x>=0 && y>=0)
+        {
+            markTile((y>>Screen.TILE_YSHIFT)*this.tilesPerRow+(x>>Screen.TILE_XSHIFT));
+            this.isDirty=true;
+        }
+    }
+    
+    /**
+     * Marks one pixel of the screen image as changed.
+     * 
+     * @param index the index of the pixel in the image dataBuffer.
+     */
+    protected final void markDirtyIndex(int index)
+    {
+        int y=index/this.xsize;
+        markDirtyPixel(index-y*this.xsize,y);
+    }
+    
+    /**
+     * Marks all lines between two pixels in the image dataBuffer as changed (used when bytes were loaded to the screen).
+     * 
+     * @param first index of the first pixel in the image dataBuffer.
+     * @param last index of the last pixel in the image dataBuffer.
+     */
+    protected final void markDirtyLines(int first,int last)
+    {
+        int y=first/this.xsize;
+        markDirty(0,y,this.xsize,last/this.xsize-y+1);
+    }
+    
+    /**
+     * Marks a block as changed, the size and origin being given as for the block operations.
+     * 
+     * @param size the size of the block (xsize | ysize in long word).
+     * @param origin the origin of the block (x origin | y origin in long word).
+     */
+    protected final void markDirtyBlock(int size,int origin)
+    {
+        markDirty(origin>>>16,origin&0xffff,size>>>16,size&0xffff);
+    }
+    
+    /**
+     * Marks the entire screen image as changed.
+     */
+    public final void markAllDirty()
+    {
+        markTiles(0,0,this.xsize,this.ysize);
+    }
+    
+    /* -------------------------------------- Snapshots and hashes --------------------------------------------*/
+    /**
+     * Gets a copy of the screen image, as it is now. This may be called from any thread.
+     * With deferred rendering, the lines not yet converted (at the next frame) are not included.
+     * 
+     * @return the copy of the image.
+     */
+    public java.awt.image.BufferedImage getSnapshot()
+    {
+        java.awt.image.BufferedImage copy=new java.awt.image.BufferedImage(this.xsize,this.ysize,java.awt.image.BufferedImage.TYPE_INT_RGB);
+        int[]dest=((java.awt.image.DataBufferInt)copy.getRaster().getDataBuffer()).getData();
+        System.arraycopy(this.dataBuffer.getData(),0,dest,0,this.xsize*this.ysize);
+        return copy;
+    }
+    
+    /**
+     * Gets the hash of a region of the screen image, as it is now. This may be called from any thread.
+     * The region is clipped to the screen.
+     * 
+     * @param x x origin of the region, in pixels.
+     * @param y y origin of the region.
+     * @param w width of the region, in pixels.
+     * @param h height of the region.
+     * 
+     * @return the hash of the (RGB values of the) pixels of the region.
+     */
+    public long getRegionHash(int x,int y,int w,int h)
+    {
+        int x1=Math.min(x+w,this.xsize);
+        int y1=Math.min(y+h,this.ysize);
+        x=Math.max(x,0);
+        y=Math.max(y,0);
+        return Screen.hashPixels(this.dataBuffer.getData(),this.xsize,x,y,x1,y1);
+    }
+    
+    /**
+     * Hashes the pixels of a rectangle (FNV-1a on the RGB values).
+     */
+    private static long hashPixels(int[]pixels,int width,int x0,int y0,int x1,int y1)
+    {
+        long hash=0xcbf29ce484222325L;
+        for (int y=y0;y<y1;y++)
+        {
+            for (int i=y*width+x0,end=y*width+x1;i<end;i++)
+            {
+                hash=(hash^(pixels[i]&0xffffff))*0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+    
+    /**
+     * Gets the hash of the entire screen image, as it is now.
+     * <p>
+     * The first call starts keeping a hash per tile : from then on, changing the screen marks the tiles to hash again, and only those
+     * are hashed again at the next call. The frame hash is the sum of the tile hashes, each mixed with the tile number. This may be 
+     * called from any thread.
+     * 
+     * @return the hash of the screen image.
+     */
+    public synchronized long getFrameHash()
+    {
+        int nbrOfTiles=this.tilesPerRow*this.tileRows;
+        if (this.hashTracker==null)
+        {
+            this.tileHashes=new long[nbrOfTiles];
+            this.hashTracker=addTileTracker();              // hash all tiles now
+        }
+        int[]pixels=this.dataBuffer.getData();
+        for (int i=0;i<this.hashTracker.tiles.length();i++)
+        {
+            long bits=this.hashTracker.tiles.getAndSet(i,0);
+            while (bits!=0)
+            {
+                int tile=(i<<6)+Long.numberOfTrailingZeros(bits);
+                bits&=bits-1;
+                if (tile>=nbrOfTiles)
+                    break;
+                int x0=(tile%this.tilesPerRow)<<Screen.TILE_XSHIFT;
+                int y0=(tile/this.tilesPerRow)<<Screen.TILE_YSHIFT;
+                long hash=Screen.hashPixels(pixels,this.xsize,x0,y0,Math.min(x0+(1<<Screen.TILE_XSHIFT),this.xsize),
+                        Math.min(y0+(1<<Screen.TILE_YSHIFT),this.ysize));
+                this.frameHash+=Screen.mixTileHash(tile,hash)-Screen.mixTileHash(tile,this.tileHashes[tile]);
+                this.tileHashes[tile]=hash;
+            }
+        }
+        return this.frameHash;
+    }
+    
+    /**
+     * Mixes a tile hash with the tile number, so that the same tile contents at another place give another frame hash.
+     */
+    private static long mixTileHash(int tile,long hash)
+    {
+        hash^=tile*0x9e3779b97f4a7c15L;
+        hash*=0xbf58476d1ce4e5b9L;
+        return hash^(hash>>>31);
+    }
+    
+    /* -------------------------------------- Deferred rendering --------------------------------------------*/
+    /**
+     * Switches deferred rendering on or off.
+     * <p>
+     * Normally, every write to the screen memory is immediately converted into the screen image, in the emulation thread. When
+     * rendering is deferred, such a write only marks the line it is in (deferWrite) and the marked lines are converted from the screen
+     * memory at the next frame, in parallel stripes (convertDeferredLines, called from the screen thread).
+     * <p>
+     * When switching this off, all lines are converted at once, in the calling thread.
+     * 
+     * @param memory the memory containing the screen memory (the CPU's main memory), <code>null</code> to switch deferred rendering off.
+     */
+    public final void setDeferredRendering(short[]memory)
+    {
+        if (memory==null && this.deferredMemory!=null)
+        {
+            deferLines(0,this.ysize);
+            convertDeferredLines(false);
+        }
+        if (memory!=null && this.dirtyLines==null)
+            this.dirtyLines=new java.util.concurrent.atomic.AtomicLongArray((this.ysize+63)>>6);
+        this.deferredMemory=memory;
+    }
+    
+    /**
+     * Checks whether rendering is deferred.
+     * 
+     * @return <code>true</code> if writes to the screen memory are only converted to the image at the next frame.
+     */
+    public final boolean isRenderingDeferred()
+    {
+        return this.deferredMemory!=null;
+    }
+    
+    /**
+     * Marks the line a write to the screen memory went to, when rendering is deferred.
+     * 
+     * @param addr the address written to (this has already been checked to be within the screen memory).
+     */
+    protected final void deferWrite(int addr)
+    {
+        int y=(addr-this.startAddress)/this.nbrOfBytesPerLine;
+        if (y>=0 && y<this.ysize)
+        {
+            int word=y>>>6;
+            long bit=1L<<y;
+            long old=this.dirtyLines.get(word);
+            while ((old & bit)==0 && !this.dirtyLines.compareAndSet(word,old,old|bit))
+                old=this.dirtyLines.get(word);
+            this.linesPending=true;
+        }
+    }
+    
+    /**
+     * Marks lines to be converted from the screen memory at the next frame, when rendering is deferred.
+     * 
+     * @param y first line.
+     * @param h nbr of lines.
+     */
+    private void deferLines(int y,int h)
+    {
+        if (y<0)
+        {
+            h+=y;
+            y=0;
+        }
+        if (y+h>this.ysize)
+            h=this.ysize-y;
+        for (int i=0;i<h;i++)
+        {
+            int line=y+i;
+            int word=line>>>6;
+            long bit=1L<<line;
+            long old=this.dirtyLines.get(word);
+            while ((old & bit)==0 && !this.dirtyLines.compareAndSet(word,old,old|bit))
+                old=this.dirtyLines.get(word);
+        }
+        if (h>0)
+            this.linesPending=true;
+    }
+    
+    /**
+     * Converts the lines marked when rendering is deferred from the screen memory into the image and marks them as dirty.
+     * Normally called from the screen thread at each frame.
+     * 
+     * @param parallel <code>true</code> if the lines may be converted in parallel, in the common fork/join pool.
+     */
+    public final void convertDeferredLines(boolean parallel)
+    {
+        short[]memory=this.deferredMemory;
+        if (memory==null || !this.linesPending)
+            return;
+        this.linesPending=false;                            // set this first, a write from now on sets it again
+        int[]lines=new int[this.ysize];
+        int nbr=0;
+        for (int i=0;i<this.dirtyLines.length();i++)
+        {
+            long w=this.dirtyLines.getAndSet(i,0);
+            while (w!=0)
+            {
+                int bit=Long.numberOfTrailingZeros(w);
+                w&=w-1;
+                lines[nbr++]=(i<<6)+bit;
+            }
+        }
+        if (nbr==0)
+            return;
+        if (parallel && nbr>Screen.LINES_PER_STRIPE)
+            java.util.concurrent.ForkJoinPool.commonPool().invoke(new LineConverter(lines,0,nbr,memory));
+        else
+        {
+            for (int i=0;i<nbr;i++)
+            {
+                convertLine(lines[i],memory);
+            }
+        }
+        int first=lines[0];
+        for (int i=1;i<=nbr;i++)                            // mark consecutive lines as dirty in one go
+        {
+            if (i==nbr || lines[i]!=lines[i-1]+1)
+            {
+                markTiles(0,first,this.xsize,lines[i-1]-first+1);
+                if (i<nbr)
+                    first=lines[i];
+            }
+        }
+    }
+    
+    /**
+     * Converts a stripe of lines from the screen memory into the image, splitting it up into smaller stripes if need be.
+     */
+    private class LineConverter extends java.util.concurrent.RecursiveAction
+    {
+        private static final long serialVersionUID=1L;      // RecursiveAction is serializable, this is never serialized
+        private final int[]lines;
+        private final int from,to;
+        private final short[]memory;
+        
+        /**
+         * Creates the object.
+         * 
+         * @param lines the line numbers.
+         * @param from index of first line number to convert.
+         * @param to index after last line number to convert.
+         * @param memory the memory containing the screen memory.
+         */
+        LineConverter(int[]lines,int from,int to,short[]memory)
+        {
+            this.lines=lines;
+            this.from=from;
+            this.to=to;
+            this.memory=memory;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if (this.to-this.from<=Screen.LINES_PER_STRIPE)
+            {
+                for (int i=this.from;i<this.to;i++)
+                {
+                    convertLine(this.lines[i],this.memory);
+                }
+            }
+            else
+            {
+                int middle=(this.from+this.to)>>>1;
+                invokeAll(new LineConverter(this.lines,this.from,middle,this.memory),
+                          new LineConverter(this.lines,middle,this.to,this.memory));
+            }
+        }
+    }
+    
+    /**
+     * Converts one line of the screen memory into the image, when rendering is deferred.
+     * This may be called from several threads at once, for different lines.
+     * 
+     * @param y the line.
+     * @param memory the memory containing the screen memory.
+     */
+    protected abstract void convertLine(int y,short[]memory);
+    
+    /**
+     * Repaints the parts of the screen that changed since the last call.
+     * This should be called from the screen thread only (see QL50HzInterrupt). The changed parts are first published as a new frame.
+     * <p>
+     * The dirty tiles are taken (and cleared) row by row. Neighbouring dirty tiles in a row make up a run, runs that have the same
+     * columns in consecutive rows are merged into one rectangle. The rectangles, converted to the component size, are then painted
+     * in the EDT. If there are too many of them, their union is painted instead.
+     */
+    public void repaintDirtyRegions()
+    {
+        this.isDirty=false;                                 // set this first, so that any change made from now on will set it again
+        java.awt.Dimension t=this.getSize();
+        if (t.width<1 || t.height<1)
+            return;
+        boolean found=false;
+        for (int i=0;i<this.tileSnapshot.length;i++)
+        {
+            long w=this.dirtyTiles.getAndSet(i,0);
+            this.tileSnapshot[i]=w;
+            found|=w!=0;
+        }
+        if (!found)
+            return;
+        java.util.ArrayList<java.awt.Rectangle> regions=this.dirtyRegions;
+        regions.clear();
+        int open=0;                                         // nbr of runs in previous row of tiles
+        int[]start=this.rowStart;                           // runs found in this row
+        int[]end=this.rowEnd;
+        for (int ty=0;ty<=this.tileRows;ty++)
+        {
+            int runs=0;
+            if (ty<this.tileRows)
+            {
+                int tile=ty*this.tilesPerRow;
+                for (int tx=0;tx<this.tilesPerRow;tx++,tile++)
+                {
+                    if ((this.tileSnapshot[tile>>>6] & (1L<<tile))!=0)
+                    {
+                        if (runs>0 && end[runs-1]==tx)
+                            end[runs-1]=tx+1;               // extend current run
+                        else
+                        {
+                            start[runs]=tx;                 // start a new run
+                            end[runs++]=tx+1;
+                        }
+                    }
+                }
+            }
+            int newOpen=0;
+            int j=0;
+            for (int i=0;i<open;i++)                        // for every open region see whether it is continued in this row
+            {
+                while (j<runs && start[j]<this.runStart[i])
+                    j++;
+                if (j<runs && start[j]==this.runStart[i] && end[j]==this.runEnd[i])
+                {
+                    start[j]=-1;                            // run is used up by this region
+                    this.runStart[newOpen]=this.runStart[i];
+                    this.runEnd[newOpen]=this.runEnd[i];
+                    this.runTop[newOpen++]=this.runTop[i];
+                }
+                else
+                    addRegion(regions,this.runStart[i],this.runTop[i],this.runEnd[i],ty);
+            }
+            for (j=0;j<runs;j++)                            // all runs not continuing a region open a new one
+            {
+                if (start[j]!=-1)
+                {
+                    this.runStart[newOpen]=start[j];
+                    this.runEnd[newOpen]=end[j];
+                    this.runTop[newOpen++]=ty;
+                }
+            }
+            open=newOpen;
+            sortOpenRegions(open);
+        }
+        this.regionsQueued+=regions.size();
+        publishFrame(regions,t);
+        for (int i=0;i<regions.size();i++)                  // convert regions to component coordinates
+        {
+            java.awt.Rectangle r=regions.get(i);
+            int rx=(int)((long)r.x*t.width/this.xsize);
+            int ry=(int)((long)r.y*t.height/this.ysize);
+            int rw=(int)(((long)(r.x+r.width)*t.width+this.xsize-1)/this.xsize)-rx;
+            int rh=(int)(((long)(r.y+r.height)*t.height+this.ysize-1)/this.ysize)-ry;
+            regions.set(i,new java.awt.Rectangle(rx,ry,rw,rh));
+        }
+        boolean post;
+        synchronized (this.pendingRegions)
+        {
+            post=this.pendingRegions.isEmpty();             // if not empty, a runnable is already waiting in the EDT
+            this.pendingRegions.addAll(regions);
+        }
+        if (post)
+        {
+            javax.swing.SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    paintPendingRegions();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Sorts the open regions by their start column (there are very few of them, so a simple insertion sort is fine).
+     * 
+     * @param open nbr of open regions.
+     */
+    private void sortOpenRegions(int open)
+    {
+        for (int i=1;i<open;i++)
+        {
+            int s=this.runStart[i],e=this.runEnd[i],top=this.runTop[i];
+            int j=i-1;
+            while (j>=0 && this.runStart[j]>s)
+            {
+                this.runStart[j+1]=this.runStart[j];
+                this.runEnd[j+1]=this.runEnd[j];
+                this.runTop[j+1]=this.runTop[j];
+                j--;
+            }
+            this.runStart[j+1]=s;
+            this.runEnd[j+1]=e;
+            this.runTop[j+1]=top;
+        }
+    }
+    
+    /**
+     * Converts a rectangle of tiles into a rectangle in image coordinates and adds it to a list.
+     * 
+     * @param regions the list to add to.
+     * @param tx0 first tile column.
+     * @param ty0 first tile row.
+     * @param tx1 tile column after the last one.
+     * @param ty1 tile row after the last one.
+     */
+    private void addRegion(java.util.ArrayList<java.awt.Rectangle> regions,int tx0,int ty0,int tx1,int ty1)
+    {
+        int x0=tx0<<Screen.TILE_XSHIFT;
+        int y0=ty0<<Screen.TILE_YSHIFT;
+        int x1=Math.min(tx1<<Screen.TILE_XSHIFT,this.xsize);
+        int y1=Math.min(ty1<<Screen.TILE_YSHIFT,this.ysize);
+        regions.add(new java.awt.Rectangle(x0,y0,x1-x0,y1-y0));
+    }
+    
+    /**
+     * Copies the changed regions of the image into the back frame and publishes it as the frame ready to be shown.
+     * This is called from the screen thread only.
+     * <p>
+     * The three frames are used as a lock-free triple buffer : the screen thread fills the back frame, the EDT shows the front frame
+     * and the third one is the frame ready to be shown, which is swapped atomically with the back frame (here) or the front frame 
+     * (takeReadyFrame). A frame only gets the regions that changed since it was last filled.
+     * <p>
+     * The emulation thread isn't stopped while the regions are copied : a region the CPU writes to during the copy may be copied
+     * partly before and partly after the write, the frame then shows it half changed until the next frame.
+     * <p>
+     * If the component isn't the size of the image, the same regions are scaled into the scaled image of the back frame.
+     * 
+     * @param regions the regions (in image coordinates) that changed since the last frame was published.
+     * @param size the size of the component.
+     */
+    private void publishFrame(java.util.ArrayList<java.awt.Rectangle> regions,java.awt.Dimension size)
+    {
+        java.util.ArrayList<java.awt.Rectangle> stale=this.staleRegions.get(this.backFrame);
+        stale.addAll(regions);
+        int[]dest=((java.awt.image.DataBufferInt)this.frames[this.backFrame].getRaster().getDataBuffer()).getData();
+        int[]pixels=this.dataBuffer.getData();
+        for (java.awt.Rectangle r:stale)
+        {
+            for (int y=0,src=r.y*this.xsize+r.x;y<r.height;y++,src+=this.xsize)
+            {
+                System.arraycopy(pixels,src,dest,src,r.width);
+            }
+        }
+        scaleFrame(dest,stale,size);
+        stale.clear();
+        for (int i=0;i<this.frames.length;i++)
+        {
+            if (i!=this.backFrame)
+            {
+                stale=this.staleRegions.get(i);
+                if (stale.size()+regions.size()>Screen.MAX_STALE_REGIONS)
+                {
+                    stale.clear();                          // too many, copy entire image next time
+                    stale.add(new java.awt.Rectangle(0,0,this.xsize,this.ysize));
+                }
+                else
+                    stale.addAll(regions);
+            }
+        }
+        int old=this.readyFrame.getAndSet(this.backFrame|Screen.FRESH_FRAME);
+        if ((old & Screen.FRESH_FRAME)!=0)
+            this.framesDropped++;                           // previous frame was never shown
+        this.framesPublished++;
+        this.backFrame=old & ~Screen.FRESH_FRAME;
+    }
+    
+    /**
+     * Scales the regions of the back frame that changed into its scaled image, made if need be.
+     * This is called from the screen thread only.
+     * 
+     * @param pixels the pixels of the back frame.
+     * @param stale the regions of the back frame that changed.
+     * @param size the size of the component.
+     */
+    private void scaleFrame(int[]pixels,java.util.ArrayList<java.awt.Rectangle> stale,java.awt.Dimension size)
+    {
+        if ((size.width==this.xsize && size.height==this.ysize) || this.scaler.getFilter()==FrameScaler.NONE)
+        {
+            this.scaledFrames[this.backFrame]=null;         // image is drawn as is (or scaled by Java2D)
+            return;
+        }
+        java.awt.image.BufferedImage scaled=this.scaledFrames[this.backFrame];
+        if (scaled==null || scaled.getWidth()!=size.width || scaled.getHeight()!=size.height)
+        {
+            scaled=new java.awt.image.BufferedImage(size.width,size.height,java.awt.image.BufferedImage.TYPE_INT_RGB);
+            this.scaledFrames[this.backFrame]=scaled;
+            stale.clear();                                  // new scaled image : scale everything
+            stale.add(new java.awt.Rectangle(0,0,this.xsize,this.ysize));
+        }
+        int[]dest=((java.awt.image.DataBufferInt)scaled.getRaster().getDataBuffer()).getData();
+        for (java.awt.Rectangle r:stale)
+        {
+            this.scaler.scale(pixels,this.xsize,this.ysize,dest,size.width,size.height,r);
+        }
+    }
+    
+    /**
+     * Sets the filter used when the screen is shown enlarged.
+     * 
+     * @param filter FrameScaler.NEAREST (pixel replication), FrameScaler.SMOOTH (smooth for non integer sizes) 
+     * or FrameScaler.NONE (Java2D scales the image at each repaint).
+     */
+    public void setScalingFilter(int filter)
+    {
+        this.scaler.setFilter(filter);
+        markAllDirty();                                     // scale everything again
+    }
+    
+    /**
+     * Makes the frame ready to be shown, if there is one, the front frame. This is called from the EDT only.
+     * 
+     * @return <code>true</code> if there was a new frame.
+     */
+    private boolean takeReadyFrame()
+    {
+        if ((this.readyFrame.get() & Screen.FRESH_FRAME)==0)
+            return false;
+        this.frontFrame=this.readyFrame.getAndSet(this.frontFrame) & ~Screen.FRESH_FRAME;
+        return true;
+    }
+    
+    /**
+     * Paints the regions queued by repaintDirtyRegions. This must be called in the EDT.
+     */
+    private void paintPendingRegions()
+    {
+        java.awt.Rectangle[] regions;
+        synchronized (this.pendingRegions)
+        {
+            regions=this.pendingRegions.toArray(new java.awt.Rectangle[this.pendingRegions.size()]);
+            this.pendingRegions.clear();
+        }
+        if (!takeReadyFrame())
+            this.framesDuplicated++;                        // nothing new to show
+        if (regions.length>Screen.MAX_REGIONS)
+        {
+            java.awt.Rectangle union=regions[0];
+            for (java.awt.Rectangle r:regions)
+            {
+                union=union.union(r);
+            }
+            paintImmediately(union);
+        }
+        else
+        {
+            for (java.awt.Rectangle r:regions)
+            {
+                paintImmediately(r);
+            }
+        }
+    }
+    
+    /**
+     * Gets the paint statistics since the last time they were reset.
+     * 
+     * @param reset <code>true</code> if the statistics should be reset afterwards.
+     * 
+     * @return a string with the pixels pushed per second, the number of paints, of dirty regions and of frames published, dropped
+     * (never shown) and duplicated (shown again).
+     */
+    public String getPaintStatistics(boolean reset)
+    {
+        long now=System.nanoTime();
+        double secs=(now-this.statisticsStart)/1e9;
+        if (secs<=0)
+            secs=1e-9;
+        String result=String.format("%.0f pixels/s, %.1f paints/s, %.1f regions/s (%d pixels in %d paints, %d regions, %.1f s)\n",
+                this.pixelsPainted/secs,this.paintCalls/secs,this.regionsQueued/secs,this.pixelsPainted,this.paintCalls,
+                this.regionsQueued,secs);
+        result+=String.format("%d frames published, %d dropped, %d duplicated\n",this.framesPublished,this.framesDropped,
+                this.framesDuplicated);
+        if (reset)
+        {
+            this.framesPublished=0;
+            this.framesDropped=0;
+            this.framesDuplicated=0;
+            this.pixelsPainted=0;
+            this.paintCalls=0;
+            this.regionsQueued=0;
+            this.statisticsStart=now;
+        }
+        return result;
+    }
+    
     /* -------------------------------------- Component painting ------------------------------------------*/
     /**
      * Paints the component.
+     * Only the part of the front frame corresponding to the clip area is drawn. If the front frame has a scaled image of the size
+     * of the component, that is drawn as is, else the frame is scaled here.
      * 
      * @param g the <code>java.awt.Graphics</code> object to draw on.
      */
     @Override
     public  void paintComponent(java.awt.Graphics g) 
     {
+        FlightRecorderEvents.ScreenEvent event=FlightRecorderEvents.beginScreen();
         java.awt.Dimension t=this.getSize();   
-        this.isDirty=false;                                     // set this right away so that another screen op can set this to dirty whilst it is repainting
-        g.drawImage(this.screenImage,0,0,t.width,t.height,null);
+        if (t.width<1 || t.height<1)
+            return;
+        java.awt.Rectangle clip=g.getClipBounds();
+        if (clip==null)
+            clip=new java.awt.Rectangle(0,0,t.width,t.height);
+        int sx0=(int)((long)Math.max(clip.x,0)*this.xsize/t.width);// the part of the image to draw
+        int sy0=(int)((long)Math.max(clip.y,0)*this.ysize/t.height);
+        int sx1=(int)Math.min(((long)(clip.x+clip.width)*this.xsize+t.width-1)/t.width,this.xsize);
+        int sy1=(int)Math.min(((long)(clip.y+clip.height)*this.ysize+t.height-1)/t.height,this.ysize);
+        int dx0=(int)((long)sx0*t.width/this.xsize);        // and where it goes in the component
+        int dy0=(int)((long)sy0*t.height/this.ysize);
+        int dx1=(int)((long)sx1*t.width/this.xsize);
+        int dy1=(int)((long)sy1*t.height/this.ysize);
+        takeReadyFrame();
+        java.awt.image.BufferedImage scaled=this.scaledFrames[this.frontFrame];
+        if (scaled!=null && scaled.getWidth()==t.width && scaled.getHeight()==t.height)
+        {
+            dx0=Math.max(clip.x,0);                         // no scaling needed, use clip as is
+            dy0=Math.max(clip.y,0);
+            dx1=Math.min(clip.x+clip.width,t.width);
+            dy1=Math.min(clip.y+clip.height,t.height);
+            g.drawImage(scaled,dx0,dy0,dx1,dy1,dx0,dy0,dx1,dy1,null);
+        }
+        else
+        {
+            if ((t.width!=this.xsize || t.height!=this.ysize) && this.scaler.getFilter()!=FrameScaler.NONE)
+                markAllDirty();                             // no scaled frame of this size yet, make it at next frame
+            g.drawImage(this.frames[this.frontFrame],dx0,dy0,dx1,dy1,sx0,sy0,sx1,sy1,null);
+        }
+        this.pixelsPainted+=(long)(dx1-dx0)*(dy1-dy0);
+        this.paintCalls++;
+        if (event!=null)
+            event.finish("repaint",dx0,dy0,dx1-dx0,dy1-dy0);
     }
     
    /**
@@ -1240,15 +2244,39 @@ public abstract class Screen extends javax.swing.JPanel
      */
     public final void fillScreen(int newRGB) 
     {
-         int[]colArray=new int[this.xsize*this.ysize];
-         for (int i=0;i<this.xsize* this.ysize;i++)
-         {
-             colArray[i]=newRGB;
-         }
-         this.raster.setDataElements(0,0, this.xsize, this.ysize, colArray);
-         this.isDirty=true;
+        fillImage(newRGB,null);
     }  
     
+    /**
+     * Fills the image with a colour in place, row by row : the first row is filled, the others are copied from it. If the video
+     * ram is given, each line of it is cleared in the same pass. All tiles are then marked as dirty.
+     * 
+     * @param rgb the colour.
+     * @param vram the memory containing the video ram, or <code>null</code> if it is not to be cleared.
+     */
+    protected final void fillImage(int rgb,short[]vram)
+    {
+        int[]pixels=this.dataBuffer.getData();
+        int lineWords=this.nbrOfBytesPerLine/2;
+        int vramStart=this.startAddress/2;
+        int vramEnd=vram==null?0:Math.min(vram.length,(this.startAddress+getScreenSizeInBytes())/2);
+        java.util.Arrays.fill(pixels,0,this.xsize,rgb);
+        for (int y=0;y<this.ysize;y++)
+        {
+            if (y>0)
+                System.arraycopy(pixels,0,pixels,y*this.xsize,this.xsize);
+            if (vram!=null)
+            {
+                int start=vramStart+y*lineWords;
+                if (start<vramEnd)
+                    java.util.Arrays.fill(vram,start,Math.min(start+lineWords,vramEnd),(short)0);
+            }
+        }
+        if (vram!=null && vramStart+this.ysize*lineWords<vramEnd)
+            java.util.Arrays.fill(vram,vramStart+this.ysize*lineWords,vramEnd,(short)0);// anything beyond the last line
+        markAllDirty();
+    }
+    
     /**
      * Sets whether screen should be full size. If yes, it also covers the task bar.
      * 
@@ -1285,95 +2313,43 @@ public abstract class Screen extends javax.swing.JPanel
         else
             x*=2;                                           // number of pixels per byte IN MODE 8
         setPixels (x,y,value,md);                           // set the pixels
-        this.isDirty=true;
+        markTiles(md==4?x:x*2,y,8,1);                       // a word always makes 8 pixels in the image
     }
     
     /**
-     * Sets the colours of a QL screen mode word's worth of pixels..
-     * This sets either 8 pixels (QL mode 4) or 4 pixels (Ql mode 8).
-     * @param x x coordinate of pixel.
+     * Sets the colours of a QL screen mode word's worth of pixels.
+     * This sets either 8 pixels (QL mode 4) or 4 doubled pixels (Ql mode 8), taken from the lookup table for that mode.
+     * 
+     * @param x x coordinate of pixel (in mode 8, this is half the x coordinate in the image).
      * @param y y coordinate of pixel.
      * @param value the word containing the colours to set the pixels to, in QL mode 8 or 4.
-     * @param Qlmode the QL colour mode (must be 4 or 8).
+     * @param Qlmode the QL colour mode (8 for mode 8, anything else is mode 4).
      */
-    protected void setPixels (int x,int y,int value,int Qlmode)
+    protected final void setPixels (int x,int y,int value,int Qlmode)
     {
-        int colour,col;
-        y*=this.xsize;
-        switch (Qlmode)
+        int[]table;
+        if (Qlmode==8)
         {
-            case 4:                     
-                x+=7;
-                for (int i=0; i<8;i++)                      // 1 word = 8 pixels
-                {
-                    colour=(value & this.pixelmask4[i])>>>i;// blot out unwanted bits and shift to left for each pixel
-                    switch(colour)
-                    {
-                        case 0 :
-                            col=this.black;
-                            break;
-                        case 1 :
-                            col=this.red;
-                            break;
-                        case 0x100 :
-                            col=this.green;
-                            break;
-                        case 0x101 :
-                            col=this.white;
-                            break;
-                        default :
-                            col=this.blue;        // error!
-                            break;
-                    }
-                    this.dataBuffer.setElem(x+y, col);
-                    --x;
-                }
-                break;
-            case 8:                    
-                x+=3;
-                for (int i=0; i<4;i++)                  // 1 word = 4 pixels
-                {
-                    colour=(value & this.pixelmask8[i])>>>(i*2);
-                    switch(colour)
-                    {
-                        case 0 :
-                            col=this.black;
-                            break;
-                        case 1 :
-                            col=this.blue;
-                            break;
-                        case 2 :
-                            col=this.red;
-                            break;
-                        case 3 :
-                            col=this.magenta;
-                            break;
-                        case 0x200:
-                            col=this.green;
-                            break;
-                        case 0x201:
-                            col=this.cyan;
-                            break;
-                        case 0x202:
-                            col=this.yellow;
-                            break;
-                        case 0x203:
-                            col=this.white;
-                            break;
-                        default :
-                            col=this.orange;
-                            break;
-                    }
-                    this.dataBuffer.setElem(x*2+y, col);
-                    this.dataBuffer.setElem(x*2+y+1, col);
-                    --x;
-                }
+            table=QLColourTables.MODE8;
+            x*=2;                                           // every pixel is doubled
+        }
+        else
+            table=QLColourTables.MODE4;
+        int src=(value&0xffff)<<3;                          // 8 image pixels per screen word
+        int dest=y*this.xsize+x;
+        int nbr=Math.min(8,this.xsize-x);                   // don't go beyond end of line
+        for (int i=0;i<nbr;i++)
+        {
+            this.dataBuffer.setElem(dest+i,table[src+i]);
         }
     }
     
     /**
      * Copies a block of screen memory from an original QL screen to this screen, converting the colours.
      * Used by CPUforScreenEmulation.
+     * <p>
+     * The pixels of each line are first made in a line buffer, through the lookup tables, then the line is copied into the image
+     * in one go.
      * 
      * @param address start address of block in the screen memory.
      * @param nbrOfBytes nbr of bytes to treat.
@@ -1381,41 +2357,101 @@ public abstract class Screen extends javax.swing.JPanel
      */
     public final void setDisplayRegion(int address,int nbrOfBytes, short[]mem)
     {
+        if (this.xsize<512 || this.ysize<256) 
+            return;
         address &= 0xfffffffe;
-        int addr=address -0x20000;
-        int y=addr/128;                                     // the line (y coord) we're on
-        int x=addr-(y*128);                                 // the initial column (x coord) of the pixel
-        int maxX,incX;
+        int addr=address -0x20000;                          // offset of first byte in QL screen
+        int stop=Math.min(addr+nbrOfBytes,0x8000);          // offset of first byte after the region
+        if (addr<0 || addr>=stop)
+            return;
         int md;
         if (this.copyMode==-1)                              // the copymode is not explicily set, used mode from last MODE command
             md=this.QLmode;
         else
             md=this.copyMode;
-        
-        if (md==4)
-        {
-              x*=4;                                         // number of pixels per byte IN MODE 4;
-              maxX=512;
-              incX=8;
-        }
-        else
+        int[]table=md==8?QLColourTables.MODE8:QLColourTables.MODE4;
+        if (this.lineBuffer==null)
+            this.lineBuffer=new int[512];
+        int[]line=this.lineBuffer;
+        int y=addr/128;                                     // the line (y coord) we're on
+        int firstY=y;
+        int col=addr-(y*128);                               // the initial column (byte in line)
+        int index=address/2;                                // index into memory
+        while (addr<stop)
         {
-              x*=2;                                         // number of pixels per byte IN MODE 8
-              maxX=256;
-              incX=4;
+            int lineStop=Math.min(stop-y*128,128);          // column after last byte to treat in this line
+            int words=(lineStop-col+1)/2;
+            for (int i=0;i<words;i++)
+            {
+                System.arraycopy(table,(mem[index++]&0xffff)<<3,line,i<<3,8);
+            }
+            this.raster.setDataElements(col*4,y,words*8,1,line);// in mode 4 and 8, one byte = 4 image pixels
+            y++;
+            col=0;
+            addr=y*128;
         }
-        int maxY=nbrOfBytes/128+y;                          // number of lines starting from y
-        address/=2;                                         // index into memory
-        for (;y<maxY;y++)
+        markTiles(0,firstY,this.xsize,y-firstY);
+    }   
+    
+    /**
+     * Redraws the entire QL screen from the QL screen memory at $20000, when the QL screen is emulated.
+     * 
+     * @param mem the array with the "vram".
+     */
+    public final void refreshQLScreen(short[]mem)
+    {
+        setDisplayRegion(0x20000,0x8000,mem);
+    }
+    
+    /**
+     * The lookup tables converting a QL screen word into the RGB values of the corresponding 8 image pixels.
+     * These are only created when first used, i.e. when a QL screen is used or emulated.
+     */
+    private static class QLColourTables
+    {
+        static final int[] MODE4=makeTable(4);
+        static final int[] MODE8=makeTable(8);
+        
+        /**
+         * Makes a lookup table for a QL mode : 8 ints for each possible screen word.
+         * In mode 4, these are the 8 pixels of the word, in mode 8 the 4 pixels, each doubled.
+         * 
+         * @param mode the QL mode (4 or 8).
+         * 
+         * @return the table.
+         */
+        private static int[] makeTable(int mode)
         {
-            for (;x<maxX;x+=incX)
+            int black=java.awt.Color.black.getRGB(),red=java.awt.Color.red.getRGB(),green=java.awt.Color.green.getRGB();
+            int white=java.awt.Color.white.getRGB(),blue=java.awt.Color.blue.getRGB(),magenta=java.awt.Color.magenta.getRGB();
+            int cyan=java.awt.Color.cyan.getRGB(),yellow=java.awt.Color.yellow.getRGB();
+            int[]mode4Colours={black,red,green,white};      // index = green bit <<1 | red bit
+            int[]mode8Colours={black,blue,red,magenta,green,cyan,yellow,white};// index = green bit <<2 | red bit<<1 | blue bit
+            int[]table=new int[65536*8];
+            for (int value=0;value<65536;value++)
             {
-                int value=mem[address++]&0xffff;            // get one word
-                setPixels(x,y,value,md);
+                int base=value<<3;
+                if (mode==4)
+                {
+                    for (int i=0;i<8;i++)                   // bit 0 = rightmost pixel
+                    {
+                        int colour=((value>>>(i+7))&2) | ((value>>>i)&1);
+                        table[base+7-i]=mode4Colours[colour];
+                    }
+                }
+                else
+                {
+                    for (int i=0;i<4;i++)                   // bits 0,1 = rightmost pixel
+                    {
+                        int colour=((value>>>(i*2+7))&4) | ((value>>>(i*2))&3);
+                        table[base+6-i*2]=mode8Colours[colour];
+                        table[base+7-i*2]=mode8Colours[colour];
+                    }
+                }
             }
-            x=0;
+            return table;
         }
-    }   
+    }
     
     public void setMousewheelAccel(int mse)
     {
@@ -13,6 +13,10 @@ package smsqmulator;
  * 
  * @author and copyright (c) 2012 -2016 Wolfgang Lenerz
  * @version
+ * 1.15 clearScreen removed, the Screen object clears in place.
+ * 1.14 deferred rendering : writeWordToScreen only marks the line if rendering is deferred, convertLine implemented.
+ * 1.13 writeWordToScreen uses the lookup tables (Screen.setPixels).
+ * 1.12 changes mark the dirty regions of the screen (markDirty...) instead of just setting isDirty.
  * 1.11 readXXXXFromScreen and alphaBlock removed, copyScreen moved to Screen object.
  * 1.10 copyScreen implemented.
  * 1.09 set stopAddress correctly, don't write beyond screen.
@@ -105,90 +109,19 @@ public class Screen0 extends Screen
     {   
         if (addr>=this.stopAddress)
             return;
+        if (isRenderingDeferred())
+        {
+            deferWrite(addr);                               // will be converted at next frame
+            return;
+        }
         // in the QL screen, the screen memory is organized in words - we have to find the word in question
         value&=0xffff;
         addr-=this.startAddress;                            // where in my buffer the address lies : address is relative to start of screen
         int y=addr/this.nbrOfBytesPerLine;                  // the line (y coord) we're on
         int x=addr-(y*this.nbrOfBytesPerLine);              // the initial column (x coord) of the pixel
         x*=this.nbrOfPixelsPerByte;                         // these are the x & y coordinates of the pixel on the screen
-        y*=this.xsize;
-        int colour,col;  
-       
-        switch (this.mode)
-        {
-            case 0:                     
-                x+=7;
-                for (int i=0; i<8;i++)                      // 1 word = 8 pixels
-                {
-                    colour=(value & this.pixelmask4[i])>>>i;// blot out unwanted bits and shift to right for each pixel
-                    switch(colour)
-                    {
-                        case 0 :
-                            col=this.black;
-                            break;
-                        case 1 :
-                            col=this.red;
-                            break;
-                        case 0x100 :
-                            col=this.green;
-                            break;
-                        case 0x101 :
-                            col=this.white;
-                            break;
-                        default :
-                            col=this.blue;        // error!
-                            break;
-                    }
-                    this.dataBuffer.setElem(x+y, col);
-                    --x;
-                }
-                this.isDirty=true;
-                break;
-            case 8:                    
-                x+=3;
-                for (int i=0; i<4;i++)                  // 1 word = 4 pixels
-                {
-                    colour=(value & this.pixelmask8[i])>>>(i*2);
-                    switch(colour)
-                    {
-                        case 0 :
-                            col=this.black;
-                            break;
-                        case 1 :
-                            col=this.blue;
-                            break;
-                        case 2 :
-                            col=this.red;
-                            break;
-                        case 3 :
-                            col=this.magenta;
-                            break;
-                        case 0x200:
-                            col=this.green;
-                            break;
-                        case 0x201:
-                            col=this.cyan;
-                            break;
-                        case 0x202:
-                            col=this.yellow;
-                            break;
-                        case 0x203:
-                            col=this.white;
-                            break;
-                        default :
-                            col=this.orange;
-                            break;
-                    }
-                        if (x*2+1<=this.xsize)
-                        {
-                            this.dataBuffer.setElem(x*2+y, col);
-                            this.dataBuffer.setElem(x*2+y+1, col);
-                        }
-                    --x;
-                }
-                this.isDirty=true;
-                break;
-        }
+        markDirty(this.mode==8?x*2:x,y,8,1);                // a word always makes 8 pixels in the image
+        setPixels(x,y,value,this.mode);                     // set them through the lookup table for the mode
     }
       
     /**
@@ -232,17 +165,6 @@ public class Screen0 extends Screen
   
     /* -------------------------------------- Component painting ------------------------------------------*/
    
-    /**
-     * Clears the entire screen
-     */
-    @Override
-    public void clearScreen()
-    {
-        int[]colArray=new int[this.xsize*this.ysize];
-        this.raster.setDataElements(0,0, this.xsize, this.ysize, colArray);
-        this.isDirty=true;
-    }
-    
     /**
      * Fills a block with colour - not implemented here.
      * 
@@ -328,7 +250,7 @@ public class Screen0 extends Screen
         {
             paintPixels(start+i,vramBuffer);
         }
-        this.isDirty=true;
+        markDirty(0,start/this.nbrOfBytesPerLine,this.xsize,(start+nbrOfBytes*2-1)/this.nbrOfBytesPerLine-start/this.nbrOfBytesPerLine+1);
     }
     
     /**
@@ -347,6 +269,22 @@ public class Screen0 extends Screen
     }
        
       
+    /**
+     * Converts one line of the screen memory into the image, when rendering is deferred.
+     * 
+     * @param y the line.
+     * @param memory the memory containing the screen memory.
+     */
+    @Override
+    protected void convertLine(int y,short[]memory)
+    {
+        int index=(this.startAddress+y*this.nbrOfBytesPerLine)/2;
+        for (int col=0;col<this.nbrOfBytesPerLine;col+=2)   // one word = 8 pixels (mode 4) or 4 doubled pixels (mode 8)
+        {
+            setPixels(col*this.nbrOfPixelsPerByte,y,memory[index++],this.mode);
+        }
+    }
+    
     /**
      * Sets the new Vrambase for the screen buffer if we are in QL compatible mode (this implies that the CPU or its memory changed).
      * Adjust vramtop accordingly.
@@ -5,6 +5,10 @@ package smsqmulator;
  * 
  * It sets up video memory (vram) as an array of bytes.
  * @version  
+ *  1.14    clearScreen removed, the Screen object clears in place.
+ *  1.13    fillBlock, xorBlock, moveBlock and paintBlock use the Blitter.
+ *  1.12    deferred rendering : writeByteToScreen only marks the line if rendering is deferred, convertLine implemented.
+ *  1.11    changes mark the dirty regions of the screen (markDirty...) instead of just setting isDirty.
  *  1.10    xorBlock correct handling when trailing or leading, writeByte doesn't exceed max buffer size at bottom right.
  *  1.09    fillBlock and xorBlock totally rewritten, they are called from TrapDispatcher, not the cpu,   readXXXXFromScreen and 
  *          alphaBlock removed, copyScreen moved to Screen object.
@@ -121,6 +125,7 @@ public class Screen16 extends Screen
         this.nbrOfBytesPerLine=xsize;                       // nbr of bytes per line
         this.startAddress=vramBase;
         this.vramBuffer=new byte[xsize*ysize];         // the vram buffer is an array of bytes
+        this.blitter=new Blitter(1,Screen16.clut);
     }
     
     /**
@@ -132,6 +137,11 @@ public class Screen16 extends Screen
     @Override
     public void writeByteToScreen(int addr, int value,int wordValue)
     {
+        if (isRenderingDeferred())
+        {
+            deferWrite(addr);                               // will be converted at next frame
+            return;
+        }
         addr-=this.startAddress;                                // where in my buffer the address lies : address is relative to start of screen
         if (addr>=this.totsize)
             return;
@@ -139,7 +149,7 @@ public class Screen16 extends Screen
         if (this.dataBuffer.getElem(addr)!=value)
         {
             this.dataBuffer.setElem(addr, value);
-            this.isDirty=true;
+            markDirtyIndex(addr);
         }
     }
     
@@ -174,17 +184,6 @@ public class Screen16 extends Screen
         writeByteToScreen(addr,value,0);
     }
       
-    /**
-     * Clears the entire screen, but not the vramBuffer.
-     */
-    @Override
-    public void clearScreen()
-    {
-        int[]colArray=new int[this.xsize*this.ysize];
-        this.raster.setDataElements(0,0, this.xsize, this.ysize, colArray);
-        this.isDirty=true;
-    }
-    
     /**
      * Write a byte at a certain address in the vramBuffer.
      * 
@@ -289,27 +288,6 @@ public class Screen16 extends Screen
     {
         if (cpu.data_regs[1]==0)
             return;
-        int xo=cpu.data_regs[2]>>>16;                           // x origin of the block.
-        int yo=cpu.data_regs[2]&0xffff;                         // y origin of the block.
-        int xs=cpu.data_regs[1]>>>16;                           // x size of the block IN WORDS
-        int ys=cpu.data_regs[1]&0xffff;                         // y size of the block
-        if (xo+xs>this.xsize)
-        {
-            xs=this.xsize-xo-1;
-            if (xs<1)
-            {
-                return;
-            }
-        }
-        if (yo+ys>this.ysize)
-        {
-            ys=this.ysize-yo-1;
-            if (ys<1)
-            {
-                return;
-            }
-        }
-        short[] mainMemory=cpu.getMemory();
         boolean toScreen=(cpu.addr_regs[1]>=this.startAddress && cpu.addr_regs[1]<= this.stopAddress) ;     // is block in main memory (generally window save area)?
 
         int[]colours=new int [2];
@@ -319,108 +297,10 @@ public class Screen16 extends Screen
         {
             getColoursFromStipple(colours);                 // make colours if d6 was stipple number
         }
-        boolean leading=false,trailing=false;
-        if ((xo & 1)!=0)
-        {
-            leading=true;
-            xs--;
-        }
-        if ((xs &1 )!=0)
-        {
-            trailing=true;
-            xs--;
-        }
-        int cols=xs/2;                                      // nbr of double pixels (i.e. words)
-        boolean even = ((yo & 1)==0);                       // are we starting with an even or odd row?
- 
-        short col1H=(short)((colours[0]>>>8)&0xff);
-        int colour1H=this.clut[col1H&0xff];      
-        short col1L=(short)(colours[0]&0xff);
-        int colour1L=this.clut[col1L&0xff];     
-        short col1F=(short)(colours[0]&0xffff);
-
-        short col2H=(short)((colours[1]>>>8)&0xff);
-        int colour2H=this.clut[col2H&0xff];      
-        short col2L=(short)(colours[1]&0xff);
-        int colour2L=this.clut[col2L&0xff];
-        short col2F=(short)(colours[1]&0xffff);
-
-        int lineIncrease=cpu.addr_regs[2] ;                     // how much one row is, in bytes
-        int line=yo*lineIncrease +xo;                           // index into memeory array for first pixel
-        line+=cpu.addr_regs[1];                                 // 
-        line/=2;                                                // mainMemory is an array of shorts
-        lineIncrease/=2;                                        // increase 
-        yo*=this.xsize;                                         // index into screen buffer for first pixel of this line
-
-        int temp;
-        for (int iy=0;iy<ys;iy++)                               // do it for every line            
-        {
-            int xxo = xo+yo;                                    // start index into screen buffer array
-            int ix=line;                                        // start index in main memory array
-            if (leading)                                        // I have a leading byte, this is the lower byte of a word in main memory
-            {      
-               if (even)                                        // treat an even line
-                {
-                    temp=mainMemory[ix]&0xff00;                 // get current colour word & eliminate existing lower byte
-                    temp|=(col1L&0xff);                         // fill in my colour byte
-                    mainMemory[ix++]=(short)(temp&0xffff);      // set it in main memory
-                    if (toScreen)
-                        this.dataBuffer.setElem(xxo++, colour1L);// set colour in screen buffer
-                }
-                else                                                // same for odd lines
-                {
-                    temp=mainMemory[ix]&0xff00;
-                    temp|=(col2L&0xff);
-                    mainMemory[ix++]=(short)(temp&0xffff);
-                    if (toScreen)
-                        this.dataBuffer.setElem(xxo++, colour2L);
-                }  
-            }  
-            for (int i=0;i<cols;i++)                        // now treat all full words, i.e. 2 pixels at a time
-            {
-                if (even)
-                {
-                    mainMemory[ix++]=col1F;                 // set the colour word, for 2 pixels
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo++, colour1H);    
-                        this.dataBuffer.setElem(xxo++, colour1L);
-                    }
-                }
-                else
-                {
-                    mainMemory[ix++]=col2F;
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo++, colour2H);   
-                        this.dataBuffer.setElem(xxo++, colour2L);
-                    }
-                }
-            }
-            if (trailing)
-            {  
-               if (even)
-                {
-                    temp=mainMemory[ix]&0xff;                   //  current two colours
-                    temp|=(col1H<<8)&0xff00;                    // replace higher byte with mine
-                    mainMemory[ix++]=(short)(temp&0xffff);
-                    if (toScreen)
-                        this.dataBuffer.setElem(xxo++, colour1H);
-                }
-                else
-                {
-                    temp=mainMemory[ix]&0xff;                   //  current two colours
-                    temp|=(col2H<<8)&0xff00;                    // replace higher byte with mine
-                    mainMemory[ix++]=(short)(temp&0xffff);
-                    if (toScreen)
-                        this.dataBuffer.setElem(xxo++, colour2H);
-                }
-            }  
-            line+=lineIncrease;
-            yo+=this.xsize;
-            even=!even;
-        }
-        this.isDirty=true;
+        this.blitter.fill(cpu.getMemory(),cpu.addr_regs[1],cpu.addr_regs[2],cpu.data_regs[1],cpu.data_regs[2],colours[0],colours[1],false,
+                toScreen?this.dataBuffer.getData():null,this.xsize);
+        if (toScreen)
+            markDirtyBlock(cpu.data_regs[1],cpu.data_regs[2]);
     }
   
     /**
@@ -439,29 +319,8 @@ public class Screen16 extends Screen
     @Override
     public void xorBlock (smsqmulator.cpu.MC68000Cpu cpu, boolean resolveStipple)
     {
-        int xo=cpu.data_regs[2]>>>16;                           // x origin of the block.
-        int yo=cpu.data_regs[2]&0xffff;                         // y origin of the block.
-        int xs=cpu.data_regs[1]>>>16;                           // x size of the block IN WORDS
-        int ys=cpu.data_regs[1]&0xffff;                         // y size of the block
         if (cpu.data_regs[1]==0)
             return;
-        if (xo+xs>this.xsize)
-        {
-            xs=this.xsize-xo-1;
-            if (xs<1)
-            {
-                return;
-            }
-        }
-        if (yo+ys>this.ysize)
-        {
-            ys=this.ysize-yo-1;
-            if (ys<1)
-            {
-                return;
-            }
-        }
-        short[] mainMemory=cpu.getMemory();
         boolean toScreen=!(cpu.addr_regs[1]<this.startAddress || cpu.addr_regs[1]>= this.stopAddress) ;     // is block in main memory (generally window save area)?
 
         int[]colours=new int [2];
@@ -471,126 +330,10 @@ public class Screen16 extends Screen
         {
             getColoursFromStipple(colours);                 // make colours if d6 was stipple number
         }
-        boolean leading=false,trailing=false;
-        if ((xo & 1)!=0)
-        {
-            leading=true;
-            xs--;
-        }
-        if ((xs &1 )!=0)
-        {
-            trailing=true;
-            xs--;
-        }
-        int cols=xs/2;                                      // nbr of double pixels (i.e. words)
-        boolean even = ((yo & 1)==0);                       // are we treating even or odd row?
- 
-        short col1H=(short)((colours[0]>>>8)&0xff);
-        int colour1H=this.clut[col1H&0xff];      
-        short col1L=(short)(colours[0]&0xff);
-        int colour1L=this.clut[col1L&0xff];     
-        int colour1F=(colours[0]&0xffff);
-
-        short col2H=(short)((colours[1]>>>8)&0xff);
-        int colour2H=this.clut[col2H&0xff];      
-        short col2L=(short)(colours[1]&0xff);
-        int colour2L=this.clut[col2L&0xff];
-        int colour2F=(colours[1]&0xffff);
-
-        int lineIncrease=cpu.addr_regs[2] ;                     // how much one row is, in bytes
-        int line=yo*lineIncrease +xo;                           // index into memeory array for first pixel
-        line+=cpu.addr_regs[1];                                 // 
-        line/=2;                                                // mainMemory is an array of shorts
-        lineIncrease/=2;                                        // increase 
-        yo*=this.xsize;                                         // index into screen buffer for first pixel of this line
-
-        int temp,old;
-        for (int iy=0;iy<ys;iy++)                               // do it for every line            
-        {
-            int xxo = xo+yo;                                    // start index into screen buffer array
-            int ix=line;                                        // start index in main memory array
-            if (leading)                                        // I have a leading byte, this is the lower byte of a word in main memory
-            {      
-               if (even)                                        // treat an even line
-                {
-                    old=mainMemory[ix]&0xff;
-                    old^=(col1L&0xff);
-                    temp=mainMemory[ix]&0xff00;                 // get current colour word & eliminate existing lower byte
-                    temp|=(old&0xff);                           // fill in my colour byte
-                    mainMemory[ix++]=(short)(temp&0xffff);      // set it in main memory
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo, this.dataBuffer.getElem(xxo++)^colour1L);// set colour in screen buffer
-                    }
-                }
-                else                                                // same for odd lines
-                {
-                    old=mainMemory[ix]&0xff;
-                    old^=(col2L&0xff);
-                    temp=mainMemory[ix]&0xff00;                 // get current colour word & eliminate existing lower byte
-                    temp|=(old&0xff);                           // fill in my colour byte
-                    mainMemory[ix++]=(short)(temp&0xffff);      // set it in main memory
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo, this.dataBuffer.getElem(xxo++)^colour2L);// set colour in screen buffer
-                    }
-                }  
-            }  
-            for (int i=0;i<cols;i++)                            // now treat all full words, i.e. 2 pixels at a time
-            {
-                if (even)
-                {
-                    temp=mainMemory[ix]^(colour1F);
-                    mainMemory[ix++]=(short)temp;               // set the colour word, for 2 pixels
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo, this.dataBuffer.getElem(xxo++)^colour1H);
-                        this.dataBuffer.setElem(xxo, this.dataBuffer.getElem(xxo++)^colour1L);
-                    }
-                }
-                else
-                {
-                    temp=mainMemory[ix]^(colour2F);
-                    mainMemory[ix++]=(short)temp;               // set the colour word, for 2 pixels
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo, this.dataBuffer.getElem(xxo++)^colour2H);
-                        this.dataBuffer.setElem(xxo, this.dataBuffer.getElem(xxo++)^colour2L);
-                    }
-                }
-            }
-            if (trailing)
-            {  
-               if (even)
-                {
-                    old=mainMemory[ix]&0xff00;
-                    old^=((col1H<<8)&0xff00);
-                    temp=mainMemory[ix]&0xff;                   // get current colour word & eliminate existing lower byte
-                    temp|=old;                                  // fill in my colour byte
-                    mainMemory[ix++]=(short)(temp&0xffff);      // set it in main memory
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo, this.dataBuffer.getElem(xxo++)^colour1H);// set colour in screen buffer
-                    }
-                }
-                else
-                {
-                    old=mainMemory[ix]&0xff00;
-                    old^=((col2H<<8)&0xff00);
-                    temp=mainMemory[ix]&0xff;                   // get current colour word & eliminate existing lower byte
-                    temp|=old;                                  // fill in my colour byte
-                    mainMemory[ix++]=(short)(temp);             // set it in main memory
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo, this.dataBuffer.getElem(xxo++)^colour2H);// set colour in screen buffer
-                    }
-                }
-            }  
-            line+=lineIncrease;
-            yo+=this.xsize;
-            even=!even;
-        }
-        this.isDirty=true;
+        this.blitter.fill(cpu.getMemory(),cpu.addr_regs[1],cpu.addr_regs[2],cpu.data_regs[1],cpu.data_regs[2],colours[0],colours[1],true,
+                toScreen?this.dataBuffer.getData():null,this.xsize);
+        if (toScreen)
+            markDirtyBlock(cpu.data_regs[1],cpu.data_regs[2]);
     }
     
     /**
@@ -606,16 +349,8 @@ public class Screen16 extends Screen
     {    
         if (copyFromScreen)
         {
-            int xs = (cpu.data_regs[1]>>>16)&0xffff;
-            int ys=cpu.data_regs[1]&0xffff;
-            int srcXo=(cpu.data_regs[2]>>>16)&0xffff;
-            int srcYo=cpu.data_regs[2]&0xffff;
-            int destXo= (cpu.data_regs[3]>>>16) &0xffff;
-            int destYo=cpu.data_regs[3]&0xffff ;
-            int []colArray=new int[xs*ys];
-            this.raster.getDataElements(srcXo,srcYo, xs, ys, colArray);
-            this.raster.setDataElements(destXo,destYo, xs, ys, colArray);
-            this.isDirty=true;
+            Blitter.moveImage(this.dataBuffer.getData(),this.xsize,cpu.data_regs[1],cpu.data_regs[2],cpu.data_regs[3]);
+            markDirtyBlock(cpu.data_regs[1],cpu.data_regs[3]);
         }
         else
             paintBlock(cpu.data_regs[1],cpu.data_regs[3],cpu.getMemory());
@@ -713,26 +448,13 @@ public class Screen16 extends Screen
     /**
      * This takes data from the vramBuffer to paint the corresponding pixels in the BufferedImage.
      * 
-     * @param ys x and y sizes (x|y in long word) of block.
-     * @param yo same for origin of block.
+     * @param size x and y sizes (x|y in long word) of block.
+     * @param origin same for origin of block.
      */
-    private void paintBlock(int ys,int yo,short[]vramBuffer)
+    private void paintBlock(int size,int origin,short[]vramBuffer)
     {
-        int xs=ys>>>16;
-        ys&=0xffff;
-        int xo=yo>>>16;
-        yo&=0xffff;                                         // now we've got the correct x,y, origins and sizes as java ints
-        int start=yo*this.xsize+xo+this.startAddress;                         // index into vramBuffer of first pixel to paint
-        int iX;
-        for (int iY=0;iY<ys;iY++,start+=this.xsize)
-        {
-            for (iX=start;iX<xs+start;iX++)
-            {
-               int col=readByte(iX,vramBuffer)&0xff;
-               this.dataBuffer.setElem(iX-this.startAddress, Screen16.clut[col]); 
-            }
-        }
-        this.isDirty=true;
+        this.blitter.paint(vramBuffer,this.startAddress,this.nbrOfBytesPerLine,size,origin,this.dataBuffer.getData(),this.xsize);
+        markDirtyBlock(size,origin);
     }
     
     /**
@@ -763,7 +485,24 @@ public class Screen16 extends Screen
             value=readByte(i,vramBuffer);
             this.dataBuffer.setElem(i-this.startAddress, Screen16.clut[value]);
         }
-        this.isDirty=true;
+        markDirtyLines(start-this.startAddress,start+nbrOfBytes-1-this.startAddress);
+    }
+    
+    /**
+     * Converts one line of the screen memory into the image, when rendering is deferred.
+     * 
+     * @param y the line.
+     * @param memory the memory containing the screen memory.
+     */
+    @Override
+    protected void convertLine(int y,short[]memory)
+    {
+        int address=this.startAddress+y*this.xsize;         // one byte per pixel
+        int pos=y*this.xsize;
+        for (int x=0;x<this.xsize;x++)
+        {
+            this.dataBuffer.setElem(pos++,Screen16.clut[readByte(address++,memory)&0xff]);
+        }
     }
     
     /**
@@ -5,6 +5,10 @@ package smsqmulator;
  *
  * @author and copyright (c) 2012 -2017 Wolfgang Lenerz
  * @version 
+ *  1.18 clearScreen removed, the Screen object clears in place.
+ *  1.17 fillBlock, xorBlock, moveBlock and paintBlock use the Blitter.
+ *  1.16 deferred rendering : writeWord/LongToScreen only mark the line if rendering is deferred, convertLine implemented.
+ *  1.15 changes mark the dirty regions of the screen (markDirty...) instead of just setting isDirty.
  *  1.14 getColoursFromStipple correctly for horizontal stripes.
  *  1.14 fillBlock and xorBlock totally rewritten, they are called from TrapDispatcher,not the cpu ; writeWord and writeLonbg 
  *       slightly improved ; readXXXXFromScreen and alphaBlock removed ; copyScreen moved to Screen object ; cleaned up makeClutColours.
@@ -49,6 +53,7 @@ public class Screen32 extends Screen
         this.stopAddress+=this.startAddress-2;                // where screen stops
         this.vibrantColours=vibrantColours;
         makeClutColours(vibrantColours);
+        this.blitter=new Blitter(Screen32.nbrOfBytesPerPixel,this.clut);
     } 
    
      /**
@@ -75,16 +80,21 @@ public class Screen32 extends Screen
     @Override
     public void writeWordToScreen(int addr, final int value)
     {
+        if (isRenderingDeferred())
+        {
+            deferWrite(addr);                               // will be converted at next frame
+            return;
+        }
         addr-=this.startAddress;                            // where in my buffer the address lies : address is relative to start of screen
         int y=addr/this.nbrOfBytesPerLine;                  // the line (y coord) we're on
         int x=addr-(y*this.nbrOfBytesPerLine);              // the initial column (x coord) of the pixel
         x/=Screen32.nbrOfBytesPerPixel;
-        x+=y*this.xsize;
+        int pos=x+y*this.xsize;                             // index into image databuffer
         int index=this.clut[value&0xffff];                  // RGB colour corresponding to the 
-        if (this.dataBuffer.getElem(x)!=index)
+        if (this.dataBuffer.getElem(pos)!=index)
         {
-            this.dataBuffer.setElem(x, index);
-            this.isDirty=true;
+            this.dataBuffer.setElem(pos, index);
+            markDirtyPixel(x,y);
         }
     }
       
@@ -100,40 +110,37 @@ public class Screen32 extends Screen
     {
         if (addr>this.stopAddress-3)
             return;
+        if (isRenderingDeferred())
+        {
+            deferWrite(addr);                               // both pixels are always in the same line
+            return;
+        }
         int value1=value>>>16;                              // separate the two colours.
         value&=0xffff;
         addr-=this.startAddress;                            // where in my buffer the address lies : address is relative to start of screen
         int y=addr/this.nbrOfBytesPerLine;                  // the line (y coord) we're on
         int x=addr-(y*this.nbrOfBytesPerLine);              // the initial column (x coord) of the pixel
         x/=Screen32.nbrOfBytesPerPixel;
-        x+=y*this.xsize;
+        int pos=x+y*this.xsize;                             // index into image databuffer
         int colour=this.clut[value1];
-        if (this.dataBuffer.getElem(x)!=colour)
+        boolean changed=false;
+        if (this.dataBuffer.getElem(pos)!=colour)
         {
-            this.dataBuffer.setElem(x, colour);
-            this.isDirty=true;
+            this.dataBuffer.setElem(pos, colour);
+            changed=true;
         } 
         colour=this.clut[value];
-        x++;
-        if (this.dataBuffer.getElem(x)!=colour)
+        pos++;
+        if (this.dataBuffer.getElem(pos)!=colour)
         {
-            this.dataBuffer.setElem(x, colour);
-            this.isDirty=true;
+            this.dataBuffer.setElem(pos, colour);
+            changed=true;
         }
+        if (changed)
+            markDirty(x,y,2,1);
     } 
    
           
-    /**
-     * Clears the entire screen, on screen as well as in VramBuffer
-     */
-    @Override
-    public void clearScreen()
-    {
-        int[]colArray=new int[this.xsize*this.ysize];
-        this.raster.setDataElements(0,0, this.xsize, this.ysize, colArray);
-        this.isDirty=true;
-    }
-    
     /**
      * Makes two colour long words from the stipple/colour passed as parameter.
      * 
@@ -199,11 +206,6 @@ public class Screen32 extends Screen
     {
         if (cpu.data_regs[1]==0)
             return;
-        
-        int xo=cpu.data_regs[2]>>>16;                           // x origin of the block.
-        int yo=cpu.data_regs[2]&0xffff;                         // y origin of the block.
-        int xs=cpu.data_regs[1]>>>16;                           // x size of the block IN WORDS
-        int ys=cpu.data_regs[1]&0xffff;                         // y size of the block
         int address = cpu.addr_regs[1];                         // base address of block
         boolean toScreen= (address>=this.startAddress && address<= this.stopAddress) ; // is block in screen memory ?
 
@@ -212,109 +214,10 @@ public class Screen32 extends Screen
         colours[1]=cpu.data_regs[7];                            // if D6 is a stipple nbr, make colours from these regs 
         if (resolveStipple)                             
             getColoursFromStipple(colours);                     // make colours if d6 was stipple number
-        
-        boolean leading=false,trailing=false;
-        if ((xo & 1)!=0)                                        // xo is odd, so we might have leading stipple pixel
-        {
-            leading=true;   
-            xs--;
-        }
-        if ((xs &1 )!=0)                                        // xsize is odd, we might have training stipple pixel
-        {
-            trailing=true;
-            xs--;
-        }
-        
-        int cols=xs/2;                                          // nbr of double pixels (i.e. long words)
-        boolean even = (yo & 1)==0;                             // is start row odd or even?
-        
-        short col1H=(short)(colours[0]>>>16);                   // high word of colour for memory - short
-        int colour1H=this.clut[col1H&0xffff];                   // high word of colour in iamge databuffer - int
-        short col1L=(short)(colours[0]&0xffff);                 // same for low word
-        int colour1L=this.clut[col1L&0xffff];                   // this is for EVEN rows
-        short col2H=(short)(colours[1]>>>16);                   // same for odd rows
-        int colour2H=this.clut[col2H&0xffff];              
-        short col2L=(short)(colours[1]&0xffff);
-        int colour2L=this.clut[col2L&0xffff];      
-
-        int rowInc=cpu.addr_regs[2];                            // row increment in memory
-        address+=yo*rowInc;                                     // start of row
-        address+=xo*2;                                          // start pixel - each pixel takes 2 bytes
-                                                                // address now is the address of the start of the block
-        address/=2;                                             // index into memory array
-        rowInc/=2;                                              // row incement in words, not bytes
-        short[] mainMemory=cpu.getMemory();
-        
-        yo*=this.xsize;                                         // index into image databuffer for first pixel of this line
-        yo+=xo;
-        
-        // as of here : address = index into memory array ; yo = ndex into image databuffer array       
-       
-        xs=(cpu.data_regs[1]>>>16);                             // original x size
-        rowInc-=xs;                                             // deduct original xs size from row inc, after each loop
-        int bufRowInc=this.xsize-xs;                            // iteration, we've already added xs to start address
-        for (int iy=0;iy<ys;iy++)                               // do for all rows
-        {
-            if (leading)                                        // do we have a leading word?
-            {      
-                if (even)
-                {
-                    mainMemory[address++]=col1L;
-                    if (toScreen)
-                        this.dataBuffer.setElem(yo++, colour1L);
-                }
-                else
-                {
-                    mainMemory[address++]=col2L;
-                    if (toScreen)
-                        this.dataBuffer.setElem(yo++, colour2L);
-                }
-
-            }  
-            for (int i=0;i<cols;i++)                            // do it for each double pixel in row
-            {
-                if (even)
-                {
-                    mainMemory[address++]=col1H;
-                    mainMemory[address++]=col1L;
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(yo++, colour1H); 
-                        this.dataBuffer.setElem(yo++, colour1L);
-                    }
-                }
-                else
-                {
-                    mainMemory[address++]=col2H;
-                    mainMemory[address++]=col2L;
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(yo++, colour2H);    
-                        this.dataBuffer.setElem(yo++, colour2L);
-                    }
-                }
-            }
-            if (trailing)
-            {     
-                if (even)
-                {
-                    mainMemory[address++]=col1H;
-                    if (toScreen)
-                        this.dataBuffer.setElem(yo++, colour1H);
-                }
-                else
-                {
-                    mainMemory[address++]=col2H;
-                    if (toScreen)
-                        this.dataBuffer.setElem(yo++, colour2H);
-                }
-
-            }  
-            address+=rowInc;                                    //  go to start of next row in mem
-            yo+=bufRowInc;                                      // go to start of new row in image databuffer
-            even=!even;
-        }
-        this.isDirty=true;
+        this.blitter.fill(cpu.getMemory(),address,cpu.addr_regs[2],cpu.data_regs[1],cpu.data_regs[2],colours[0],colours[1],false,
+                toScreen?this.dataBuffer.getData():null,this.xsize);
+        if (toScreen)
+            markDirtyBlock(cpu.data_regs[1],cpu.data_regs[2]);
     }
     
     /**
@@ -349,18 +252,9 @@ public class Screen32 extends Screen
     @Override
     public void xorBlock (smsqmulator.cpu.MC68000Cpu cpu,boolean resolveStipple)
     {
-        //if (cpu.data_regs[1]<=0)
         if (cpu.data_regs[1]==0)
             return;
-        
-        int xo=cpu.data_regs[2]>>>16;                           // x origin of the block.
-        int yo=cpu.data_regs[2]&0xffff;                         // y origin of the block.
-        int xs=cpu.data_regs[1]>>>16;                           // x size of the block IN WORDS
-        int ys=cpu.data_regs[1]&0xffff;                         // y size of the block
- //       if ((ys&0x8000)!=0)
-   //         return;
         int address = cpu.addr_regs[1];                         // base address of block
- 
         boolean toScreen= (address>=this.startAddress && address<= this.stopAddress) ; // is block in screen memory ?
         if (!toScreen)                                          // not to screen?
         {
@@ -373,131 +267,9 @@ public class Screen32 extends Screen
         colours[1]=cpu.data_regs[7];                            // if D6 is a stipple nbr, make colours from these regs 
         if (resolveStipple)                             
             getColoursFromStipple(colours);                     // make colours if d6 was stipple number
-        
-        boolean leading=false,trailing=false;
-        if ((xo & 1)!=0)                                        // xo is odd, so we might have leading stipple pixel
-        {
-            leading=true;   
-            xs--;
-        }
-        if ((xs &1 )!=0)                                        // xsize is odd, we might have training stipple pixel
-        {
-            trailing=true;
-            xs--;
-        }
-        
-        int cols=xs/2;                                          // nbr of double pixels (i.e. long words)
-        boolean even = (yo & 1)==0;                             // is start row odd or even?
-        
-        short col1H=(short)(colours[0]>>>16);                   // high word of colour for memory - short
-        int colour1H=this.clut[col1H&0xffff];                   // high word of colour in iamge databuffer - int
-        short col1L=(short)(colours[0]&0xffff);                 // same for low word
-        int colour1L=this.clut[col1L&0xffff];                   // this is for EVEN rows
-        short col2H=(short)(colours[1]>>>16);                   // same for odd rows
-        int colour2H=this.clut[col2H&0xffff];              
-        short col2L=(short)(colours[1]&0xffff);
-        int colour2L=this.clut[col2L&0xffff];
-        
-        short xorcol;
-        
-        int rowInc=cpu.addr_regs[2];                            // row increment in memory
-        address+=yo*rowInc;                                     // start of row
-        address+=xo*2;                                          // start pixel - each pixel takes 2 bytes
-                                                                // address now is the address of the start of the block
-        address/=2;                                             // index into memory array
-        rowInc/=2;                                              // row incement in words, not bytes
-        short[] mainMemory=cpu.getMemory();
-        
-        yo*=this.xsize;                                         // index into image databuffer for first pixel of this line
-        yo+=xo;
-        
-        // as of here : address = index into memory array ; yo = index into image databuffer array       
-        for (int iy=0;iy<ys;iy++)                               // do for all rows
-        {
-            int xxo = yo;                                       // start in the databuffer array
-            int ix= address;                                    // start address in memeory
-            if (leading)                                        // do we have a leading word?
-            {      
-                if (even)
-                {
-                    xorcol=(short)(mainMemory [ix] ^ col1L);
-                    mainMemory[ix++]=xorcol;
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo,this.dataBuffer.getElem(xxo)^colour1L);
-                        xxo++;
-                    }
-                }
-                else
-                {
-                    xorcol=(short)(mainMemory [ix] ^ col2L);
-                    mainMemory[ix++]=xorcol;
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo,this.dataBuffer.getElem(xxo)^colour2L);
-                        xxo++;
-                    }
-                }
-            }  
-            for (int i=0;i<cols;i++)                            // do it for each double pixel in row
-            {
-                if (even)
-                {
-                    xorcol=(short)(mainMemory [ix] ^ col1H);
-                    mainMemory[ix++]=xorcol;
-                    xorcol=(short)(mainMemory [ix] ^ col1L);
-                    mainMemory[ix++]=xorcol;
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo,this.dataBuffer.getElem(xxo)^colour1H);
-                        xxo++;
-                        this.dataBuffer.setElem(xxo,this.dataBuffer.getElem(xxo)^colour1L);
-                        xxo++;
-                    } 
-                }
-                else
-                {
-                    xorcol=(short)(mainMemory [ix] ^ col2H);
-                    mainMemory[ix++]=xorcol;
-                    xorcol=(short)(mainMemory [ix] ^ col2L);
-                    mainMemory[ix++]=xorcol;
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo,this.dataBuffer.getElem(xxo)^colour2H);
-                        xxo++;
-                        this.dataBuffer.setElem(xxo,this.dataBuffer.getElem(xxo)^colour2L);
-                        xxo++;
-                    } 
-                }
-            }
-            if (trailing)
-            {     
-                if (even)
-                {
-                    xorcol=(short)(mainMemory [ix] ^ col1H);
-                    mainMemory[ix++]=xorcol;
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo,this.dataBuffer.getElem(xxo)^colour1H);
-                        xxo++;
-                    }
-                }
-                else
-                {
-                    xorcol=(short)(mainMemory [ix] ^ col2H);
-                    mainMemory[ix++]=xorcol;
-                    if (toScreen)
-                    {
-                        this.dataBuffer.setElem(xxo,this.dataBuffer.getElem(xxo)^colour2H);
-                        xxo++;
-                    }
-                }            
-            }  
-            address+=rowInc;
-            yo+=this.xsize;
-            even=!even;
-        }
-        this.isDirty=true;
+        this.blitter.fill(cpu.getMemory(),address,cpu.addr_regs[2],cpu.data_regs[1],cpu.data_regs[2],colours[0],colours[1],true,
+                this.dataBuffer.getData(),this.xsize);
+        markDirtyBlock(cpu.data_regs[1],cpu.data_regs[2]);
     }
     
     
@@ -585,56 +357,21 @@ public class Screen32 extends Screen
     public void moveBlock(smsqmulator.cpu.MC68000Cpu cpu,boolean copyFromScreen)
     {
         if (copyFromScreen)                                 // source and destination are n the screen
-        {
-            int xs = (cpu.data_regs[1]>>>16)&0xffff;
-            int ys=cpu.data_regs[1]&0xffff;
-            int srcXo=(cpu.data_regs[2]>>>16)&0xffff;
-            int srcYo=cpu.data_regs[2]&0xffff;
-            int destXo= (cpu.data_regs[3]>>>16) &0xffff;
-            int destYo=cpu.data_regs[3]&0xffff ;
-            
-            int []colArray=new int[xs*ys];
-            this.raster.getDataElements(srcXo,srcYo, xs, ys, colArray);
-            this.raster.setDataElements(destXo,destYo, xs, ys, colArray);// copy the part of the screen about, in the BufferedImage 
-        }
+            Blitter.moveImage(this.dataBuffer.getData(),this.xsize,cpu.data_regs[1],cpu.data_regs[2],cpu.data_regs[3]);
         else
-        {
             paintBlock(cpu.data_regs[1],cpu.data_regs[3],cpu.getMemory());
-        }
-        this.isDirty=true;
+        markDirtyBlock(cpu.data_regs[1],cpu.data_regs[3]);
     }
     
     /**
      * This takes data from the vramBuffer to paint the corresponding pixels in the BufferedImage.
      * 
-     * @param ys x and y sizes (x|y in long word) of block.
-     * @param yo same for origin of block.
+     * @param size x and y sizes (x|y in long word) of block.
+     * @param origin same for origin of block.
      */
-    private void paintBlock(int ys,int yo,short[]vramBuffer)
+    private void paintBlock(int size,int origin,short[]vramBuffer)
     {
-        int xs=ys>>>16;
-        ys&=0xffff;
-        int xo=yo>>>16;
-        yo&=0xffff;                                         // now we've got the correct x,y, origins and sizes as java ints
-        int lineIncrease=this.nbrOfBytesPerLine/2;
-        int line=yo*lineIncrease +xo;                       // index into array for first pixel
-        line+=this.startAddress/2;
-        
-        //short[]vramBuffer=cpu.getMemory();
-        yo*=this.xsize;                                     // index into screenimage buffer for first pixel of this line
-
-        for (int iy=0;iy<ys;iy++)
-        {
-            int xxo = xo+yo;
-            int end = line+xs;
-            for (int ix=line;ix<end;ix++)
-            {
-                int col =vramBuffer[ix]&0xffff;
-                this.dataBuffer.setElem(xxo++, this.clut[col]);
-            }
-            line+=lineIncrease;
-            yo+=this.xsize;
-        }
+        this.blitter.paint(vramBuffer,this.startAddress,this.nbrOfBytesPerLine,size,origin,this.dataBuffer.getData(),this.xsize);
     }
     
     /**
@@ -662,12 +399,13 @@ public class Screen32 extends Screen
         start-=this.startAddress;                                // make sure address is even
         short[]vramBuffer=cpu.getMemory();
         int value;
+        int first=start/Screen32.nbrOfBytesPerPixel;        // first pixel changed
         for (int i=0;i<nbrOfBytes/2;i++,start+=2,vramStart++)
         {
             value=vramBuffer[vramStart];
             paintPixel(start,value);
         }
-        this.isDirty=true;
+        markDirtyLines(first,(start-2)/Screen32.nbrOfBytesPerPixel);
     }
     
     /**
@@ -791,7 +529,25 @@ public class Screen32 extends Screen
             paintBlock(cpu.data_regs[1],cpu.data_regs[3],cpu.getMemory());  // now actually paint the screen with the data from the vram.
         cpu.data_regs[0]=0;
         cpu.reg_sr|=4;
-        this.isDirty=true;
+        if (writeBack)
+            markDirtyBlock(cpu.data_regs[1],cpu.data_regs[3]);
+    }
+    
+    /**
+     * Converts one line of the screen memory into the image, when rendering is deferred.
+     * 
+     * @param y the line.
+     * @param memory the memory containing the screen memory.
+     */
+    @Override
+    protected void convertLine(int y,short[]memory)
+    {
+        int index=this.startAddress/2+y*this.xsize;         // one word per pixel
+        int pos=y*this.xsize;
+        for (int x=0;x<this.xsize;x++)
+        {
+            this.dataBuffer.setElem(pos++,this.clut[memory[index++]&0xffff]);
+        }
     }
     
     /**
@@ -825,7 +581,7 @@ public class Screen32 extends Screen
            this.dataBuffer.setElem(iX, this.clut[col]); // strangely enough, profiling shows these two lines to be faster than the single line below:
         //   this.dataBuffer.setElem(iX, this.clut[this.vramBuffer[iX]&0xffff]);
         }
-        this.isDirty=true;
+        markAllDirty();
     }
      
     /**
@@ -0,0 +1,152 @@
+package smsqmulator;
+
+/**
+ * This saves the screen image as PNG files and waits for the screen to show something, mainly for automated tests.
+ * <p>
+ * It works with any screen object (QL, 8 and 16 bit colour modes) since it only uses the screen image, which is always kept in
+ * memory, window or no window. A snapshot of the image is taken in the calling thread (this is just an array copy), the PNG file
+ * is then written by a writer thread, so that the emulation is not held up by the encoding and the disk.
+ * <p>
+ * To know whether the screen shows what it should, tests don't have to compare pixels : they compare the hash of the screen, or of
+ * a region of it, with the hash of a known good screen (see <code>Screen.getFrameHash</code> and <code>Screen.getRegionHash</code>).
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class ScreenCapture
+{
+    private static final int POLL_INTERVAL=20;                  // in milliseconds, when waiting for a hash
+    private final java.util.concurrent.ScheduledExecutorService writer;
+
+    /**
+     * Creates the object and its writer thread.
+     */
+    public ScreenCapture()
+    {
+        this.writer=java.util.concurrent.Executors.newSingleThreadScheduledExecutor(new java.util.concurrent.ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t=new Thread(r,"SMSQmulator screen capture");
+                t.setDaemon(true);                              // never keep the JVM alive
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Writes an image to a PNG file.
+     *
+     * @param image the image.
+     * @param file the file, overwritten if it exists.
+     *
+     * @throws java.io.IOException if the file can't be written.
+     */
+    public static void writePNG(java.awt.image.BufferedImage image,java.io.File file) throws java.io.IOException
+    {
+        if (!javax.imageio.ImageIO.write(image,"png",file))
+            throw new java.io.IOException("No PNG writer available");
+    }
+
+    /**
+     * Takes a snapshot of the screen now and writes it to a PNG file in the writer thread.
+     *
+     * @param screen the screen.
+     * @param file the file, overwritten if it exists.
+     *
+     * @return the Future for the write, whose result is <code>true</code> if the file was written.
+     */
+    public java.util.concurrent.Future<Boolean> dump(Screen screen,java.io.File file)
+    {
+        final java.awt.image.BufferedImage image=screen.getSnapshot();
+        final java.io.File f=file;
+        return this.writer.submit(new java.util.concurrent.Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                return ScreenCapture.write(image,f);
+            }
+        });
+    }
+
+    /**
+     * Dumps a series of frames to PNG files, in the writer thread : the files are called prefix_0000.png, prefix_0001.png etc.
+     *
+     * @param screen the screen.
+     * @param prefix the start of the filenames, may contain a directory.
+     * @param count how many frames to dump.
+     * @param interval the time between two frames, in milliseconds.
+     */
+    public void dumpSeries(final Screen screen,final String prefix,final int count,int interval)
+    {
+        final int[]done=new int[1];
+        final java.util.concurrent.ScheduledFuture<?>[]future=new java.util.concurrent.ScheduledFuture<?>[1];
+        synchronized (future)
+        {
+            future[0]=this.writer.scheduleAtFixedRate(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (done[0]>=count)
+                    {
+                        synchronized (future)
+                        {
+                            future[0].cancel(false);
+                        }
+                        return;
+                    }
+                    ScreenCapture.write(screen.getSnapshot(),new java.io.File(String.format("%s_%04d.png",prefix,done[0]++)));
+                }
+            },0,Math.max(interval,1),java.util.concurrent.TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes an image to a file, errors are shown on the console.
+     *
+     * @return <code>true</code> if the file was written.
+     */
+    private static boolean write(java.awt.image.BufferedImage image,java.io.File file)
+    {
+        try
+        {
+            writePNG(image,file);
+            return true;
+        }
+        catch (Exception e)
+        {
+            System.err.println("Can't write screen to "+file+" : "+e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Waits until (a region of) the screen has a certain hash.
+     *
+     * @param screen the screen.
+     * @param region the region, or <code>null</code> for the entire screen (frame hash).
+     * @param hash the hash to wait for.
+     * @param timeout max time to wait, in milliseconds.
+     *
+     * @return <code>true</code> if the screen got that hash, <code>false</code> if the time ran out.
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public static boolean waitForHash(Screen screen,java.awt.Rectangle region,long hash,long timeout) throws InterruptedException
+    {
+        long end=System.currentTimeMillis()+timeout;
+        while (true)
+        {
+            long current=region==null?screen.getFrameHash():screen.getRegionHash(region.x,region.y,region.width,region.height);
+            if (current==hash)
+                return true;
+            if (System.currentTimeMillis()>=end)
+                return false;
+            Thread.sleep(ScreenCapture.POLL_INTERVAL);
+        }
+    }
+}
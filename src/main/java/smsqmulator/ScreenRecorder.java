@@ -0,0 +1,313 @@
+package smsqmulator;
+
+/**
+ * This records the screen into a file, for bug reports and demos. The file can then be converted into PNG files or an animated
+ * PNG with the <code>RecordingConverter</code>.
+ * <p>
+ * At each frame, the screen thread calls <code>captureFrame</code>, which only copies the regions of the screen image that
+ * changed since the last frame (see <code>Screen.TileTracker</code>) into a buffer taken from a small pool of reusable buffers,
+ * and queues it. An encoder thread writes the queued frames to the file and gives the buffers back to the pool. Neither the
+ * emulation nor the screen thread ever wait for the encoder : if no buffer is free, the frame is dropped (and counted), its
+ * regions are then added to the next frame.
+ * <p>
+ * The file format is a zlib stream of (all numbers big endian) :
+ * <ul>
+ * <li>the header : "SMSQREC" and a version byte (1).</li>
+ * <li>'S' width (int) height (int) : the size of the screen, all pixels are black.</li>
+ * <li>'F' time (long, microseconds since the start of the recording) nbr_of_regions (short), then for each region x, y,
+ *     width, height (shorts) and its pixels, row after row, as runs : number of unchanged pixels (compared to the previous
+ *     frame), number of changed pixels (both as variable length numbers, 7 bits per byte, high bit set = more to come) and the
+ *     changed pixels (3 bytes each, RGB). The runs go on until all pixels of the row are covered.</li>
+ * <li>'E' : the end of the recording.</li>
+ * </ul>
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class ScreenRecorder
+{
+    public static final byte[] MAGIC={'S','M','S','Q','R','E','C',1};// start of a recording file
+    private static final int POOL_SIZE=8;                       // nbr of frame buffers
+    private static final int MAX_MISSED=256;                    // max nbr of regions kept from dropped frames
+    private final java.io.DataOutputStream out;
+    private final java.util.concurrent.ArrayBlockingQueue<Frame> free=new java.util.concurrent.ArrayBlockingQueue<>(ScreenRecorder.POOL_SIZE);
+    private final java.util.concurrent.ArrayBlockingQueue<Frame> queue=new java.util.concurrent.ArrayBlockingQueue<>(ScreenRecorder.POOL_SIZE+1);
+    private final Frame endFrame=new Frame();                   // queued to stop the encoder
+    private final Thread encoder;
+    private final long startTime=System.nanoTime();
+    // used by the screen thread only
+    private Screen screen;
+    private Screen.TileTracker tracker;
+    private boolean newSize;                                    // the next frame must give the (new) size
+    private java.util.ArrayList<java.awt.Rectangle> missed=new java.util.ArrayList<>();// regions of dropped frames
+    // used by the encoder thread only
+    private int[] previous=new int[0];                          // the image as of the last frame written
+    private int width;
+    private java.io.IOException error;
+    // statistics
+    private volatile long framesRecorded;
+    private volatile long framesDropped;
+    private volatile long encodeTime;                           // in nanoseconds
+    private final java.util.concurrent.atomic.AtomicLong bytesWritten=new java.util.concurrent.atomic.AtomicLong();
+    private volatile boolean stopped;
+
+    /**
+     * A frame : the changed regions and their pixels.
+     */
+    private static class Frame
+    {
+        private int[] pixels=new int[0];                        // the pixels of all regions, one after the other
+        private final java.util.ArrayList<java.awt.Rectangle> regions=new java.util.ArrayList<>();
+        private long time;                                      // in microseconds since the start of the recording
+        private int width,height;                               // if not 0, the new size of the screen
+    }
+
+    /**
+     * Creates the recorder and starts its encoder thread.
+     *
+     * @param file the file to record to, overwritten if it exists.
+     *
+     * @throws java.io.IOException if the file can't be created.
+     */
+    public ScreenRecorder(java.io.File file) throws java.io.IOException
+    {
+        final java.util.concurrent.atomic.AtomicLong count=this.bytesWritten;
+        java.io.OutputStream fos=new java.io.FilterOutputStream(new java.io.FileOutputStream(file))
+        {
+            @Override
+            public void write(byte[]b,int off,int len) throws java.io.IOException
+            {
+                this.out.write(b,off,len);
+                count.addAndGet(len);                           // compressed bytes really written
+            }
+        };
+        this.out=new java.io.DataOutputStream(new java.io.BufferedOutputStream(new java.util.zip.DeflaterOutputStream(
+                    new java.io.BufferedOutputStream(fos,65536)),65536));
+        this.out.write(ScreenRecorder.MAGIC);
+        for (int i=0;i<ScreenRecorder.POOL_SIZE;i++)
+        {
+            this.free.add(new Frame());
+        }
+        this.encoder=new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                encode();
+            }
+        },"SMSQmulator screen recorder");
+        this.encoder.setDaemon(true);
+        this.encoder.start();
+    }
+
+    /**
+     * Captures the regions of the screen that changed since the last frame. This is called by the screen thread at each frame.
+     *
+     * @param s the screen.
+     */
+    public synchronized void captureFrame(Screen s)
+    {
+        if (this.stopped)
+            return;
+        if (s!=this.screen)                                     // first frame or new screen object : record all of it
+        {
+            if (this.screen!=null)
+                this.screen.removeTileTracker(this.tracker);
+            this.tracker=s.addTileTracker();
+            this.screen=s;
+            this.newSize=true;
+            this.missed.clear();
+        }
+        java.util.ArrayList<java.awt.Rectangle> regions=s.takeChangedRegions(this.tracker);
+        if (!this.missed.isEmpty())
+        {
+            regions.addAll(this.missed);                        // what the dropped frames didn't record
+            this.missed.clear();
+        }
+        if (regions.isEmpty() && !this.newSize)
+            return;                                             // nothing changed
+        Frame f=this.free.poll();
+        if (f==null)                                            // the encoder is behind : drop this frame
+        {
+            this.framesDropped++;
+            this.missed=regions;
+            if (this.missed.size()>ScreenRecorder.MAX_MISSED)  // don't let this grow forever : take the entire screen
+            {
+                this.missed.clear();
+                this.missed.add(new java.awt.Rectangle(0,0,s.getXSize(),s.getYSize()));
+            }
+            return;
+        }
+        f.time=(System.nanoTime()-this.startTime)/1000;
+        f.width=this.newSize?s.getXSize():0;
+        f.height=this.newSize?s.getYSize():0;
+        this.newSize=false;
+        f.regions.clear();
+        int nbr=0;
+        for (java.awt.Rectangle r:regions)
+        {
+            nbr+=r.width*r.height;
+        }
+        if (f.pixels.length<nbr)
+            f.pixels=new int[nbr];
+        int pos=0;
+        for (java.awt.Rectangle r:regions)
+        {
+            s.getPixels(r,f.pixels,pos);
+            pos+=r.width*r.height;
+            f.regions.add(r);
+        }
+        this.queue.offer(f);                                    // can't fail, there are never more frames than buffers
+    }
+
+    /**
+     * The encoder thread : writes the queued frames.
+     */
+    private void encode()
+    {
+        try
+        {
+            while (true)
+            {
+                Frame f=this.queue.take();
+                if (f==this.endFrame)
+                    break;
+                long start=System.nanoTime();
+                try
+                {
+                    if (this.error==null)
+                        writeFrame(f);
+                }
+                catch (java.io.IOException e)
+                {
+                    this.error=e;                               // further frames are just thrown away
+                }
+                this.encodeTime+=System.nanoTime()-start;
+                this.framesRecorded++;
+                this.free.offer(f);
+            }
+            this.out.writeByte('E');
+            this.out.close();
+        }
+        catch (InterruptedException | java.io.IOException e)
+        {
+            if (this.error==null && e instanceof java.io.IOException)
+                this.error=(java.io.IOException)e;
+        }
+    }
+
+    /**
+     * Writes one frame, only the pixels that changed since the previous frame.
+     */
+    private void writeFrame(Frame f) throws java.io.IOException
+    {
+        if (f.width!=0)
+        {
+            this.out.writeByte('S');
+            this.out.writeInt(f.width);
+            this.out.writeInt(f.height);
+            this.previous=new int[f.width*f.height];            // all black
+            this.width=f.width;
+        }
+        this.out.writeByte('F');
+        this.out.writeLong(f.time);
+        this.out.writeShort(f.regions.size());
+        int pos=0;
+        for (java.awt.Rectangle r:f.regions)
+        {
+            this.out.writeShort(r.x);
+            this.out.writeShort(r.y);
+            this.out.writeShort(r.width);
+            this.out.writeShort(r.height);
+            for (int y=0;y<r.height;y++,pos+=r.width)        // runs don't go beyond the end of a row
+            {
+                int prev=(r.y+y)*this.width+r.x-pos;            // index into previous image = prev + index into pixels
+                int end=pos+r.width;
+                int p=pos;
+                while (p<end)
+                {
+                    int same=p;
+                    while (same<end && f.pixels[same]==this.previous[prev+same])
+                        same++;
+                    int changed=same;
+                    while (changed<end && f.pixels[changed]!=this.previous[prev+changed])
+                        changed++;
+                    writeNumber(same-p);
+                    writeNumber(changed-same);
+                    for (int i=same;i<changed;i++)
+                    {
+                        int pixel=f.pixels[i];
+                        this.previous[prev+i]=pixel;
+                        this.out.writeByte(pixel>>>16);
+                        this.out.writeByte(pixel>>>8);
+                        this.out.writeByte(pixel);
+                    }
+                    p=changed;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a number, 7 bits per byte, the high bit is set if more bytes follow.
+     */
+    private void writeNumber(int n) throws java.io.IOException
+    {
+        while (n>0x7f)
+        {
+            this.out.writeByte(0x80|(n&0x7f));
+            n>>>=7;
+        }
+        this.out.writeByte(n);
+    }
+
+    /**
+     * Stops recording : the queued frames are written and the file is closed.
+     *
+     * @return the statistics of the recording.
+     *
+     * @throws java.io.IOException if there was an error writing the file.
+     */
+    public String stop() throws java.io.IOException
+    {
+        boolean stopNow;
+        synchronized (this)                                     // not while a frame is being captured
+        {
+            stopNow=!this.stopped;
+            if (stopNow)
+            {
+                this.stopped=true;
+                this.queue.offer(this.endFrame);                // there is always room for this one
+                if (this.screen!=null)
+                    this.screen.removeTileTracker(this.tracker);
+            }
+        }
+        if (stopNow)
+        {
+            try
+            {
+                this.encoder.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (this.error!=null)
+            throw this.error;
+        return getStatistics();
+    }
+
+    /**
+     * Gets the statistics of the recording : frames recorded and dropped, bytes written, encoding time.
+     *
+     * @return the statistics, as a string.
+     */
+    public String getStatistics()
+    {
+        long recorded=this.framesRecorded;
+        return String.format("%d frames recorded, %d dropped, %d bytes written, %.1f us encoding per frame\n",recorded,
+                this.framesDropped,this.bytesWritten.get(),recorded==0?0.0:this.encodeTime/1e3/recorded);
+    }
+}
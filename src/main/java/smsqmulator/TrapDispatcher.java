@@ -31,6 +31,12 @@ package smsqmulator;
  * @author and copyright (c) 2012-2017 Wolfgang Lenerz
  * 
  * @version
+ * 1.26 trap7 sleeps through the AsyncIO object, if there is one, so that it wakes up when an operation is done.
+ * 1.25 if there is an InputJournal, use its virtual time for trap5 cases 18, 27, 28 and don't sleep in trap7 when replaying or benchmarking ;
+ *      check that gui isn't null everywhere ; unmountDrives implemented.
+ * 1.24 JFR events for traps and screen block operations.
+ * 1.23 keep trap latency statistics and log slow traps if so configured (TrapStatistics object), dispatchTrap split into
+ *      dispatchTrap and handleTrap.
  * 1.22 don't add fileseparator at end of name if it is for win or mem drive ; get/setNamesForDives: if device not found in map (different
  *      usage name) use getDeviceFromMapValues ; expand scrap operations to include starting/stopping of clipboard monitor thread, all
  *      scrap ops now in TRAP D ; setDirForDrive : passing a single space is the same as no name at all ; trapC extended to take parameters.
@@ -82,6 +88,9 @@ public class TrapDispatcher
     private Arith arithpkg = new Arith();
     private final java.util.HashMap<Integer,DeviceDriver> devicesMap=new java.util.HashMap<>();// devices for I/Oops
     private volatile int schedCounter=0;                        
+    private final TrapStatistics trapStats;                     // latency histograms / slow trap log, null if none
+    private InputJournal journal=null;                          // gives virtual time when input is recorded/replayed
+    private AsyncIO asyncIO=null;                               // wakes up the idle emulation thread when an I/O operation is done
 //    private SWinDriver swindrive;
     
     
@@ -105,6 +114,12 @@ public class TrapDispatcher
         this.gui=mgui;
         this.inifile=inifile;
         this.ipHandler=ipHandler;
+        int slowThreshold=inifile.getOptionAsInt("SLOW-TRAP-LOG",0);
+        boolean keepStats=inifile.getTrueOrFalse("TRAP-STATISTICS");
+        if (keepStats || slowThreshold>0)
+            this.trapStats=new TrapStatistics(keepStats,slowThreshold);
+        else
+            this.trapStats=null;
         try
         {
             this.robot=new java.awt.Robot();                    // create the robot for mouse movement
@@ -119,6 +134,7 @@ public class TrapDispatcher
   
     /** 
      * The dispatcher's main method : Gets the correct trap handler and dispatches the trap to it.
+     * If so configured, the time taken by the trap is recorded. A JFR event is generated if JFR is recording.
      * 
      * @param trapType the type of trap we're dealing with (should be #2 to #8).
      * @param cpu the cpu to be used.
@@ -126,6 +142,33 @@ public class TrapDispatcher
     public void dispatchTrap(int trapType,smsqmulator.cpu.MC68000Cpu cpu)
     {
         trapType=-trapType;
+        FlightRecorderEvents.TrapEvent event=FlightRecorderEvents.beginTrap(trapType,cpu);// null if no JFR recording
+        if (this.trapStats==null)
+            handleTrap(trapType,cpu);
+        else
+        {
+            this.trapStats.trapStart(trapType,cpu);
+            try
+            {
+                handleTrap(trapType,cpu);
+            }
+            finally
+            {
+                this.trapStats.trapEnd(cpu);
+            }
+        }
+        if (event!=null)
+            event.finish(cpu);
+    }
+    
+    /** 
+     * Gets the correct trap handler and dispatches the trap to it.
+     * 
+     * @param trapType the type of trap we're dealing with (already negated).
+     * @param cpu the cpu to be used.
+     */
+    private void handleTrap(int trapType,smsqmulator.cpu.MC68000Cpu cpu)
+    {
         if (trapType>0xaaff)
         {
             this.arithpkg.handleOp(cpu,trapType-0xab00);
@@ -234,7 +277,10 @@ public class TrapDispatcher
                         
                     case 2:                                     // reset
                         resetDrives();
-                        this.gui.getMonitor().getCPU().setupSMSQE(true); 
+                        if (this.gui!=null)
+                            this.gui.getMonitor().getCPU().setupSMSQE(true); 
+                        else
+                            cpu.setupSMSQE(true);
                         break;
                         
                     case 3:                                     // sleep a bit when toggling cursor, no longer implemented
@@ -251,7 +297,12 @@ public class TrapDispatcher
                         break;
                        
                     case 6:                                     // move a block of (screen?) memory about
+                        FlightRecorderEvents.ScreenEvent sevent=FlightRecorderEvents.beginScreen();
+                        int blockSize=cpu.data_regs[1];
+                        int blockOrigin=cpu.data_regs[3];       // destination origin
                         cpu.moveBlock();                        
+                        if (sevent!=null)
+                            sevent.finish("move",blockOrigin>>>16,blockOrigin&0xffff,blockSize>>>16,blockSize&0xffff);
                         break;
                         
                     case 7:                                     // set USE name of a device, A0 points to device defn block
@@ -375,7 +426,7 @@ public class TrapDispatcher
                         break;
                        
                     case 18:                                    // get time into D1
-                        int tx=(int)((System.currentTimeMillis()/1000)+Monitor.TIME_OFFSET); // ** magic offset
+                        int tx=this.journal!=null?this.journal.getRTC():(int)((System.currentTimeMillis()/1000)+Monitor.TIME_OFFSET); // ** magic offset
                         cpu.data_regs[1]=tx;                    // write the time
                         cpu.data_regs[0]=0;
                         break;
@@ -387,7 +438,12 @@ public class TrapDispatcher
                         break;
                         
                     case 20:                                    // combine two blocks with alpha blending
+                        sevent=FlightRecorderEvents.beginScreen();
+                        blockSize=cpu.data_regs[1];
+                        blockOrigin=cpu.data_regs[3];
                         cpu.combineBlocks();
+                        if (sevent!=null)
+                            sevent.finish("combine",blockOrigin>>>16,blockOrigin&0xffff,blockSize>>>16,blockSize&0xffff);
                         break;
                  
                     case 22:                                    // set sound volume
@@ -419,13 +475,13 @@ public class TrapDispatcher
                         break;
                         
                     case 27:                                    // timer set
-                        this.currentClock=System.currentTimeMillis();
+                        this.currentClock=currentMillis();
                         cpu.data_regs[0]=0;
                         cpu.reg_sr |=4;    
                         break;
                         
                     case 28:                                    // timer get
-                        cpu.writeMemoryLong(cpu.readMemoryLong(cpu.addr_regs[1]+4),(int) (System.currentTimeMillis()-this.currentClock));
+                        cpu.writeMemoryLong(cpu.readMemoryLong(cpu.addr_regs[1]+4),(int) (currentMillis()-this.currentClock));
                    //     cpu.data_regs[1]=(int) (System.currentTimeMillis()-this.currentClock);
                         cpu.data_regs[0]=0;
                         cpu.reg_sr |=4;    
@@ -456,8 +512,13 @@ public class TrapDispatcher
                         
                     case 32:                                    // resolve stipple & fill a block with colour 
                     case 33:                                    // fill a block with colour
+                        sevent=FlightRecorderEvents.beginScreen();
+                        blockSize=cpu.data_regs[1];
+                        blockOrigin=cpu.data_regs[2];
                         Screen screen=cpu.getScreen();
                         screen.fillBlock(cpu, cpu.data_regs[0]==32);
+                        if (sevent!=null)
+                            sevent.finish("fill",blockOrigin>>>16,blockOrigin&0xffff,blockSize>>>16,blockSize&0xffff);
                         cpu.data_regs[0]=0;                    // show all was OK 
                         cpu.reg_sr |=4;    
                         cpu.pc_reg=cpu.readMemoryLong(cpu.addr_regs[7])/2;
@@ -470,7 +531,12 @@ public class TrapDispatcher
                         boolean x= cpu.data_regs[0]==34;
                         cpu.data_regs[0]=0;                     // show all was OK , may be modified by screen object
                         cpu.reg_sr |=4;    
+                        sevent=FlightRecorderEvents.beginScreen();
+                        blockSize=cpu.data_regs[1];
+                        blockOrigin=cpu.data_regs[2];
                         screen.xorBlock(cpu, x);
+                        if (sevent!=null)
+                            sevent.finish("xor",blockOrigin>>>16,blockOrigin&0xffff,blockSize>>>16,blockSize&0xffff);
                         cpu.pc_reg=cpu.readMemoryLong(cpu.addr_regs[7])/2;
                         cpu.addr_regs[7] += 4;                  // do an RTS here            
                         break;
@@ -482,7 +548,8 @@ public class TrapDispatcher
                         
                     case 37:                                    // set title for window
                         String s=cpu.readSmsqeString(cpu.addr_regs[1]);
-                        this.gui.setTitle(s);
+                        if (this.gui!=null)
+                            this.gui.setTitle(s);
                         noError(cpu);;        
                         break;
                         
@@ -532,7 +599,7 @@ public class TrapDispatcher
              */
             case Types.TRAP7:                                   // called on every scheduler loop   
                 this.schedCounter++;    
-                if (this.schedCounter>5)
+                if (this.schedCounter>5 && (this.journal==null || !this.journal.isUnattended()))// never sleep when replaying a journal or benchmarking
                 /*
                 long ctime=System.currentTimeMillis();          // current time - removed in 1.19
                 long tdiff=(ctime-this.lastTime);
@@ -543,7 +610,10 @@ public class TrapDispatcher
                 {   
                     try
                     {
-                        Thread.sleep (10);
+                        if (this.asyncIO!=null)
+                            this.asyncIO.sleep(10);             // so that a trap waiting for it is retried at once
+                        else
+                            Thread.sleep (10);
                     }
                     catch (Exception e)
                     {
@@ -637,11 +707,13 @@ public class TrapDispatcher
                 switch (cpu.data_regs[0])
                 {
                     case 0:                                   
-                        this.gui.deIconify();
+                        if (this.gui!=null)
+                            this.gui.deIconify();
                         noError(cpu);
                         break;
                     case 1:
-                        this.gui.iconify();
+                        if (this.gui!=null)
+                            this.gui.iconify();
                         noError(cpu);
                         break;
                 }
@@ -651,7 +723,8 @@ public class TrapDispatcher
                 switch (cpu.data_regs[0])
                 {
                     case 0 :
-                        this.gui.getMonitor().setCopyScreen(cpu.data_regs[1]&0xffff,cpu.data_regs[5]);
+                        if (this.gui!=null)
+                            this.gui.getMonitor().setCopyScreen(cpu.data_regs[1]&0xffff,cpu.data_regs[5]);
                         //                                      mode            origins (is ignored) 
                         break;
                     case 1:
@@ -742,6 +815,36 @@ public class TrapDispatcher
         this.schedCounter=0;
     }
     
+    /**
+     * Sets the InputJournal giving the (virtual) time.
+     * 
+     * @param journal the journal, <code>null</code> if none.
+     */
+    public void setInputJournal(InputJournal journal)
+    {
+        this.journal=journal;
+    }
+    
+    /**
+     * Sets the AsyncIO object doing I/O operations in the background : the idle emulation thread is woken up when one is done.
+     * 
+     * @param asyncIO the object, <code>null</code> if none.
+     */
+    public void setAsyncIO(AsyncIO asyncIO)
+    {
+        this.asyncIO=asyncIO;
+    }
+    
+    /**
+     * Gets the current time in milliseconds, virtual time if there is an InputJournal.
+     * 
+     * @return the time in milliseconds.
+     */
+    private long currentMillis()
+    {
+        return this.journal!=null?this.journal.getMillis():System.currentTimeMillis();
+    }
+    
     /**
      * Checks whether the throttle is in effect.
      * 
@@ -762,6 +865,16 @@ public class TrapDispatcher
        // this.throttle=throt;
     }
     
+    /**
+     * Gets the object keeping the trap statistics.
+     * 
+     * @return the TrapStatistics object, or <code>null</code> if no statistics are kept and no slow traps are logged.
+     */
+    public TrapStatistics getTrapStatistics()
+    {
+        return this.trapStats;
+    }
+    
     /**
      * Sets the FloppyDriver object.
      * @param floppy the FloppyDriver object to be set.
@@ -802,7 +915,8 @@ public class TrapDispatcher
         if (dd!=null)
         {
            dd.setNames(names,this.inifile,forceRemove,false);
-           this.gui.setNewDeviceNames(deviceID,names);
+           if (this.gui!=null)
+                this.gui.setNewDeviceNames(deviceID,names);
         }
     }
     
@@ -818,6 +932,20 @@ public class TrapDispatcher
         }
     }
     
+    /**
+     * Closes all files and removes all drives, so that all native files are closed and unlocked.
+     */
+    public void unmountDrives()
+    {
+        String[] names=new String[8];
+        java.util.Arrays.fill(names,"");
+        for (DeviceDriver dd :this.devicesMap.values() )
+        {
+            dd.closeAllFiles();
+            dd.setNames(names,this.inifile,true,true);
+        }
+    }
+    
     /**
      * Gets the names of the directories for the drives.
      * 
@@ -0,0 +1,289 @@
+package smsqmulator;
+
+/**
+ * This keeps latency histograms of the "traps" handled by the TrapDispatcher and logs the traps that take too long.
+ * <p>
+ * All traps are handled synchronously in the emulation thread : while a trap is being handled (file i/o, sockets, clipboard, screen
+ * fills...) SMSQ/E is frozen. This object helps to find out which traps cause such stalls.
+ * <p>
+ * Every combination of trap type, trap key (normally D0 on entry) and device ID (for trap #2 and #3 calls) gets a slot in a fixed
+ * size open addressing table. Each slot has a histogram with one bucket per power of two nanoseconds, as well as the number of calls,
+ * the total and the maximum time. All arrays are allocated when this object is created, so recording a trap never creates any object.
+ * Only logging a slow trap does.
+ * <p>
+ * Traps are recorded from the emulation thread only. The statistics may be shown (and cleared) from the monitor, i.e. in the EDT.
+ * No synchronisation is done, the figures shown might thus be very slightly off, which doesn't matter here.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.01 getDeviceID : trap #2 calls other than open and close have no device.
+ * 1.00 initial version.
+ */
+public class TrapStatistics
+{
+    public static final int ARITH_TRAP=0xab00;                  // "trap type" used for the maths ops
+    private static final int SLOTS=1024;                        // nbr of slots in table, MUST be a power of 2
+    private static final int MAX_USED=SLOTS*3/4;                // don't fill table more than this
+    private static final int BUCKETS=40;                        // bucket n = times from 2^n to (2^(n+1))-1 ns
+    private final long[] keys=new long[SLOTS];                  // combined trap type/key/device for each slot
+    private final boolean[] occupied=new boolean[SLOTS];        // is the slot used?
+    private final long[] histogram=new long[SLOTS*BUCKETS];     // the buckets of all slots
+    private final long[] calls=new long[SLOTS];                 // nbr of calls per slot
+    private final long[] totalTime=new long[SLOTS];             // total time (in ns) per slot
+    private final long[] maxTime=new long[SLOTS];               // max time (in ns) per slot
+    private int used=0;                                         // nbr of slots used
+    private long overflow=0;                                    // nbr of traps not recorded because table was full
+    private long slowThreshold;                                 // log trap taking longer than this (in ns), 0 = don't log
+    private final boolean keepHistograms;                       // do we keep the histograms at all?
+
+    // the following are set when a trap starts and used when it ends
+    private int trapType,trapKey,deviceID;
+    private int d1,d2,d3,a0,a1;
+    private long startTime;
+
+    /**
+     * Creates the object.
+     *
+     * @param keepHistograms <code>true</code> if the latency histograms should be kept.
+     * @param slowThreshold time in microseconds : traps taking longer than that are logged to the console, 0 = don't log.
+     */
+    public TrapStatistics(boolean keepHistograms,int slowThreshold)
+    {
+        this.keepHistograms=keepHistograms;
+        setSlowThreshold(slowThreshold);
+    }
+
+    /**
+     * Sets the threshold above which traps are logged.
+     *
+     * @param threshold time in microseconds : traps taking longer than that are logged to the console, 0 (or less) = don't log.
+     */
+    public final void setSlowThreshold(int threshold)
+    {
+        this.slowThreshold=threshold>0?threshold*1000L:0;
+    }
+
+    /**
+     * Notes the start of a trap : keep the parameters and the start time.
+     *
+     * @param type the trap type (Types.TRAP2 etc) or, for maths ops, the opcode (0xab00+).
+     * @param cpu the cpu the trap is called from.
+     */
+    public void trapStart(int type,smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        if (type>0xaaff)
+        {
+            this.trapKey=type-TrapStatistics.ARITH_TRAP;
+            this.trapType=TrapStatistics.ARITH_TRAP;
+        }
+        else
+        {
+            this.trapType=type;
+            this.trapKey=cpu.data_regs[0];
+        }
+        this.deviceID=TrapStatistics.getDeviceID(this.trapType,this.trapKey,cpu);
+        this.d1=cpu.data_regs[1];
+        this.d2=cpu.data_regs[2];
+        this.d3=cpu.data_regs[3];
+        this.a0=cpu.addr_regs[0];
+        this.a1=cpu.addr_regs[1];
+        this.startTime=System.nanoTime();
+    }
+
+    /**
+     * Notes the end of the trap started with trapStart : record the time it took and possibly log it.
+     *
+     * @param cpu the cpu the trap was called from.
+     */
+    public void trapEnd(smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        long time=System.nanoTime()-this.startTime;
+        if (this.keepHistograms)
+            record(this.trapType,this.trapKey,this.deviceID,time);
+        if (this.slowThreshold!=0 && time>this.slowThreshold)
+        {
+            System.err.format("Slow trap: %s key $%x dev %s : %d us - D0=$%08x D1=$%08x D2=$%08x D3=$%08x A0=$%08x A1=$%08x\n",
+                    getTrapName(this.trapType),this.trapKey,getDeviceName(this.deviceID),time/1000,cpu.data_regs[0],
+                    this.d1,this.d2,this.d3,this.a0,this.a1);
+        }
+    }
+
+    /**
+     * Records the time a trap took.
+     *
+     * @param type the trap type.
+     * @param key the trap key.
+     * @param device the device ID, or 0.
+     * @param time the time the trap took, in nanoseconds.
+     */
+    private void record(int type,int key,int device,long time)
+    {
+        long combined=((long)device<<32) | ((type&0xffffL)<<16) | (key&0xffffL);
+        int hash=(int)(combined ^ (combined>>>32));
+        hash*=0x9e3779b9;
+        int slot=hash>>>22;                                     // 10 top bits for 1024 slots
+        while (this.occupied[slot] && this.keys[slot]!=combined)
+            slot=(slot+1)&(TrapStatistics.SLOTS-1);             // linear probing
+        if (!this.occupied[slot])
+        {
+            if (this.used>=TrapStatistics.MAX_USED)
+            {
+                this.overflow++;                                // no more room
+                return;
+            }
+            this.occupied[slot]=true;
+            this.keys[slot]=combined;
+            this.used++;
+        }
+        int bucket=time<1?0:63-Long.numberOfLeadingZeros(time);
+        if (bucket>=TrapStatistics.BUCKETS)
+            bucket=TrapStatistics.BUCKETS-1;
+        this.histogram[slot*TrapStatistics.BUCKETS+bucket]++;
+        this.calls[slot]++;
+        this.totalTime[slot]+=time;
+        if (time>this.maxTime[slot])
+            this.maxTime[slot]=time;
+    }
+
+    /**
+     * Clears all statistics.
+     */
+    public void clear()
+    {
+        java.util.Arrays.fill(this.occupied,false);
+        java.util.Arrays.fill(this.histogram,0);
+        java.util.Arrays.fill(this.calls,0);
+        java.util.Arrays.fill(this.totalTime,0);
+        java.util.Arrays.fill(this.maxTime,0);
+        this.used=0;
+        this.overflow=0;
+    }
+
+    /**
+     * Writes the statistics, sorted by total time taken, into a StringBuilder.
+     *
+     * @param sb where to write to.
+     * @param max max number of lines to write.
+     */
+    public void dump(StringBuilder sb,int max)
+    {
+        if (!this.keepHistograms)
+        {
+            sb.append("Trap statistics are not being kept (set TRAP-STATISTICS to 1 in the ini file).\n");
+            return;
+        }
+        java.util.ArrayList<Integer> slots=new java.util.ArrayList<>();
+        for (int i=0;i<TrapStatistics.SLOTS;i++)
+        {
+            if (this.occupied[i])
+                slots.add(i);
+        }
+        java.util.Collections.sort(slots,new java.util.Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer o1,Integer o2)
+            {
+                return Long.compare(TrapStatistics.this.totalTime[o2],TrapStatistics.this.totalTime[o1]);
+            }
+        });
+        sb.append("Trap      Key   Device      Calls   Total ms     Avg us     Max us  <50% us  <99% us\n");
+        int lines=0;
+        for (int slot:slots)
+        {
+            if (lines++>=max)
+                break;
+            long combined=this.keys[slot];
+            long nbr=this.calls[slot];
+            if (nbr==0)
+                continue;
+            sb.append(String.format("%-8s %5x   %-6s %10d %10d %10d %10d %8d %8d\n",getTrapName((int)(combined>>>16)&0xffff),
+                    combined&0xffff,getDeviceName((int)(combined>>>32)),nbr,this.totalTime[slot]/1000000,
+                    this.totalTime[slot]/nbr/1000,this.maxTime[slot]/1000,percentile(slot,nbr,50),percentile(slot,nbr,99)));
+        }
+        if (this.overflow!=0)
+            sb.append("Traps not recorded (table full): ").append(this.overflow).append("\n");
+    }
+
+    /**
+     * Gets the (upper bound of the) time in which a certain percentage of the calls for a slot completed.
+     *
+     * @param slot the slot.
+     * @param nbr nbr of calls in this slot.
+     * @param percent the percentage.
+     *
+     * @return the upper bound of the bucket, in microseconds.
+     */
+    private long percentile(int slot,long nbr,int percent)
+    {
+        long limit=(nbr*percent+99)/100;
+        long count=0;
+        int base=slot*TrapStatistics.BUCKETS;
+        for (int i=0;i<TrapStatistics.BUCKETS;i++)
+        {
+            count+=this.histogram[base+i];
+            if (count>=limit)
+                return ((1L<<(i+1))-1)/1000;
+        }
+        return this.maxTime[slot]/1000;
+    }
+
+    /**
+     * Gets the ID of the device a trap is for, if any.
+     *
+     * @param type the trap type.
+     * @param key the trap key.
+     * @param cpu the cpu calling the trap.
+     *
+     * @return the device ID (eg 'WIN0') or 0 if this trap isn't for a device.
+     */
+    static int getDeviceID(int type,int key,smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        switch (type)
+        {
+            case Types.TRAP2:
+                if (key!=1 && key!=2)
+                    return 0;                                   // only open and close have the driver linkage in A3
+                return cpu.readMemoryLong(cpu.addr_regs[3]+0x3e);// fixed name of device (eg WIN0)
+            case Types.TRAP3:
+                return cpu.readMemoryLong(cpu.addr_regs[3]+0x3e);
+            case Types.TRAP5:
+                return key==23?cpu.data_regs[1]:0;              // only mem drive write back has a device
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Gets a printable name for a trap type.
+     *
+     * @param type the trap type.
+     *
+     * @return the name.
+     */
+    static String getTrapName(int type)
+    {
+        if (type==TrapStatistics.ARITH_TRAP)
+            return "ARITH";
+        return "TRAP#"+Integer.toHexString(type-Types.TRAP0).toUpperCase();
+    }
+
+    /**
+     * Gets a printable name for a device ID.
+     *
+     * @param device the device ID (eg 'WIN0').
+     *
+     * @return the name, or "-" if there is no device.
+     */
+    static String getDeviceName(int device)
+    {
+        if (device==0)
+            return "-";
+        StringBuilder sb=new StringBuilder(4);
+        for (int i=24;i>=0;i-=8)
+        {
+            int c=(device>>>i)&0xff;
+            sb.append(c>=0x20 && c<0x7f?(char)c:'.');
+        }
+        return sb.toString();
+    }
+}
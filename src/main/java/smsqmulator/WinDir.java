@@ -22,6 +22,8 @@ package smsqmulator;
  * @author and copyright (c) wolfgang lenerz 2013 -2015
  * 
  * @version
+ * 1.07 checkFile, findFreeEntryInDir and findInDirs use indexes (names of files, free entries, names of subdirs) made when first needed.
+ * 1.06 openFile : existing files are read cluster by cluster when needed, not entirely when opened.
  * 1.05 deleteFile: if file to be deleted is a subdir of mine, and if it is deleted, rebuid subdir list.
  * 1.04 checkForFile, findInDirs, optimized ; fileIsDir uses better index, openFile sets error in D0, setFileHeader sets the length passed to it.
  * 1.03 correct handling when a subdir is created and files should be moved into it.
@@ -64,6 +66,10 @@ public class WinDir extends WinFile
     private boolean listDone=false;                         // become true once this dir has read all of its subdirs
     private byte[] name;                                    // the name of this subdir
     private byte[] normalizedName;                          // and the name in SMSQE lower case
+    private java.util.HashMap<String,Integer> nameIndex;    // lower cased file name -> entry, null if not made yet
+    private java.util.TreeSet<Integer> freeEntries;         // the free entries below fileSize, made with the nameIndex
+    private boolean duplicateNames;                         // some file names are in this dir more than once (the first one is indexed)
+    private java.util.HashMap<String,WinDir> dirIndex;      // lower cased name -> subdir, null if not made (from the dirList) yet
     
     /**
      * This creates the directory object.
@@ -111,12 +117,17 @@ public class WinDir extends WinFile
     public WinFile openFile(int entry,byte[]filename,int openType,smsqmulator.cpu.MC68000Cpu cpu)
     {
         int eindex=entry/WinDriver.HEADER_LENGTH;            // index into arrays
+        java.nio.ByteBuffer buf;
         switch (openType)
         {
             case 0:                                         // open old exclusive (read/write)
                 java.util.ArrayList<Integer>cchain=new java.util.ArrayList<>();
-                java.nio.ByteBuffer buf = this.drive.readFile(this.buffer.getInt(entry), this.buffer.getShort(entry+WinDir.HDR_FLID)&0xffff, cchain);
-                WinFile wf = new WinFile(this.drive,this,entry,false,buf,cchain);  
+                if (!this.drive.readClusterChain(this.buffer.getInt(entry), this.buffer.getShort(entry+WinDir.HDR_FLID)&0xffff, cchain))
+                {
+                    cpu.data_regs[0]= Types.ERR_MCHK;           // the FAT doesn't match the file
+                    return null;
+                }
+                WinFile wf = new WinFile(this.drive,this,entry,false,cchain);  
                 this.openChannels[eindex]++;                // show one more channel open to that file
                 this.fileAccess.set(eindex);                // channel has read/write access now
                 return wf;
@@ -136,8 +147,12 @@ public class WinDir extends WinFile
                 else
                 {
                     cchain=new java.util.ArrayList<Integer>();
-                    buf = this.drive.readFile(this.buffer.getInt(entry), this.buffer.getShort(entry+WinDir.HDR_FLID)&0xffff, cchain);
-                    wf = new WinFile(this.drive,this,entry,true,buf,cchain);  
+                    if (!this.drive.readClusterChain(this.buffer.getInt(entry), this.buffer.getShort(entry+WinDir.HDR_FLID)&0xffff, cchain))
+                    {
+                        cpu.data_regs[0]= Types.ERR_MCHK;       // the FAT doesn't match the file
+                        return null;
+                    }
+                    wf = new WinFile(this.drive,this,entry,true,cchain);  
                 }
                 if (openType==4)
                     wf.setDirStatus(true);
@@ -169,6 +184,7 @@ public class WinDir extends WinFile
                 
           //     
                 
+                unindexEntry(entry);
                 this.buffer.putInt(entry,WinDriver.HEADER_LENGTH);
                 for (int indexx=entry+4 ;indexx<entry+WinDriver.HEADER_LENGTH;indexx+=4)
                 {
@@ -194,6 +210,7 @@ public class WinDir extends WinFile
                 
                 
                 this.buffer.putShort(entry+WinDir.HDR_FLID,(short)(cchain.get(0)&0xffff));// put in first cluster
+                indexEntry(entry);
                 wf= new WinFile(this.drive,this,entry,false,buf,cchain);  
                 wf.setDirAndFatChanged();
               //  this.writeFile(entry, WinDir.HDRLEN);           // write out 
@@ -294,12 +311,15 @@ public class WinDir extends WinFile
             }
         }
         // If we get here, this file may be deleted
+        unindexEntry(entry);
         for (int i=entry;i<entry+WinDir.HDRLEN;i+=4)
             this.buffer.putInt(i,0);                        // delete entire entry in my buffer now
+        indexEntry(entry);
         
         if (isSubdir)   // this subdir is empty now delete this dir from my list of dirs
         {
             this.dirList.clear();                           // remove all subdirs
+            this.dirIndex=null;
             makeDirList();                                  // and get them again   **** i should only remove the deleted one
         }
        
@@ -322,6 +342,7 @@ public class WinDir extends WinFile
     public boolean makeDirectory(int entry, java.util.ArrayList<Integer> cchain, java.nio.ByteBuffer buf)
     {
         boolean writeAll=false;                             // whether I have to write back the entire dir or not
+        this.nameIndex=null;                                // names are changed and entries moved : make the index again when needed
         int fsize=WinDriver.HEADER_LENGTH;                  // size of new subdir  = just the header (for now)
         this.buffer.putInt(entry+4,0x00ff0000);             // make fileype
         this.buffer.putInt(entry+8,0);                      // no additional info
@@ -424,6 +445,7 @@ public class WinDir extends WinFile
         
         this.buffer.putInt(entry,fsize);                    // set length of new dir in parent dir me
         this.dirList.add(newDir);
+        this.dirIndex=null;
         newDir.fileSize=fsize;                              // size of the new directory
         newDir.writeFile(0,0);                              // write out the entire new dir
         if (writeAll)
@@ -449,11 +471,14 @@ public class WinDir extends WinFile
         {                                                   // no, so copy from old to new, nuke entry in old dir
             int myentry=findFreeEntryInDir();               // this is where the file will go in the new dir
             java.nio.ByteBuffer oldBuffer=oldDir.getDirBuffer();// 
+            oldDir.unindexEntry(entry);
+            unindexEntry(myentry);
             for (int i=0;i<WinDriver.HEADER_LENGTH;i++)
             {
                 this.buffer.put(myentry+i,oldBuffer.get(entry+i));//copy fleheader accross
                 oldBuffer.put(entry+i,(byte)0);             // delete header in old dir
             }
+            oldDir.indexEntry(entry);
             oldDir.writeFile(entry,WinDriver.HEADER_LENGTH);// save the old dir
             wFile.setDir(this);                             // set the new dir and index in the file
             wFile.setIndex(myentry);
@@ -465,6 +490,8 @@ public class WinDir extends WinFile
             }
         }
 
+        else
+            unindexEntry(entry);
         int fnlength=fname.length;                           // length of new filename
         this.buffer.putShort(entry+WinDir.HDR_NAME,(short)fnlength);//set new length of filename in new dir
         this.buffer.position(entry+WinDir.HDRNAME+mylength);
@@ -476,6 +503,7 @@ public class WinDir extends WinFile
         {
             this.buffer.put((byte)0);                        // nuke out the rest of the old name
         }
+        indexEntry(entry);
         writeFile(entry,WinDriver.HEADER_LENGTH);
    }
     
@@ -626,6 +654,7 @@ public class WinDir extends WinFile
                 }
             }
         }
+        this.dirIndex=null;
         this.listDone=true;
     }
     
@@ -662,11 +691,22 @@ public class WinDir extends WinFile
                 return null;                                    // to belong here, after the subdir name there must be a path separator
         }
         
-        WinDir found;                                       // if we get here, file would at least belong in this dir
-        for (WinDir toSearch : this.dirList)                // now check whethr it would belong in any subdir
+        if (this.dirIndex==null)                            // if we get here, file would at least belong in this dir
+        {
+            this.dirIndex=new java.util.HashMap<>();
+            for (WinDir d : this.dirList)
+            {
+                this.dirIndex.putIfAbsent(WinDir.makeKey(d.getUncasedName(),d.getUncasedName().length),d);
+            }
+        }
+        if (!this.dirIndex.isEmpty())                       // now check whether it would belong in any subdir
         {
-            if ((found=toSearch.findInDirs(fname))!=null)
-                return found;                               // it would be in this subdir
+            WinDir found;
+            for (int i=dl+1;i<fname.length;i++)             // the name of a subdir is followed by an underscore in the filename
+            {
+                if (fname[i]==Types.UNDERSCORE && (found=this.dirIndex.get(WinDir.makeKey(fname,i)))!=null)
+                    return found.findInDirs(fname);         // it would be in this subdir
+            }
         }
         return this;                                        // it wouldn't be in any subdir, so it's in me.
     }
@@ -686,8 +726,15 @@ public class WinDir extends WinFile
     public int checkFile(boolean[] flags,byte[]fname)
     {
         int namelength=fname.length;
+        int start=WinDriver.HEADER_LENGTH;
+        if (namelength!=0)                                  // look the name up in the index, names of length 0 aren't in there
+        {
+            buildIndex();
+            Integer found=this.nameIndex.get(WinDir.makeKey(fname,namelength));
+            start=found==null?this.fileSize:found;          // if not found, the loop below ends at once
+        }
         outerloop:
-        for (int entry=WinDriver.HEADER_LENGTH;entry<this.fileSize;entry+=WinDriver.HEADER_LENGTH)
+        for (int entry=start;entry<this.fileSize;entry+=WinDriver.HEADER_LENGTH)
         {
             if ((this.buffer.get(entry+WinDir.HDRNAMEL)&0xff)!=namelength)
                 continue;                                   // name lengths don't match so names don't match
@@ -726,18 +773,9 @@ public class WinDir extends WinFile
     */
     public int findFreeEntryInDir()
     {
-        for (int indexx=WinDriver.HEADER_LENGTH; indexx<this.fileSize ; indexx+=WinDriver.HEADER_LENGTH)
-        {
-            try
-            {
-                if ((this.buffer.getInt(indexx)==0) && (this.buffer.getShort(indexx+WinDir.HDR_NAME)==0))
-                    return indexx;                              // there was a "hole" in the dir, fill it
-            }
-            catch (Exception e)
-            {
-                return -1;
-            }
-        }
+        buildIndex();
+        if (!this.freeEntries.isEmpty())
+            return this.freeEntries.first();                // there was a "hole" in the dir, fill it (it stays free until it is filled)
         
         // if we get here, we need to expand the (sub)dir. This may simple: there is still space in the buffer, or more complex:
         // we're also at the end of the buffer
@@ -751,6 +789,9 @@ public class WinDir extends WinFile
         }
         
         this.fileSize+=WinDriver.HEADER_LENGTH;             // we've expanded the filesize of this dir
+        int newEntry=this.fileSize-WinDriver.HEADER_LENGTH;
+        if (this.buffer.getInt(newEntry)==0 && this.buffer.getShort(newEntry+WinDir.HDR_NAME)==0)
+            this.freeEntries.add(newEntry);                 // it stays free until it is filled
         if (this.dir==null)                                 // this is the main dir
         {
             this.drive.setRootDirLength(this.fileSize);     // so set new filesize in map
@@ -781,6 +822,104 @@ public class WinDir extends WinFile
         return 0;
     }
        
+    /**
+     * Makes the index of the file names and the set of free entries in this dir, if they don't exist yet.
+     * If a name is in the dir more than once, only the first entry is indexed, as the first one is the one that would be found
+     * by going through the dir.
+     */
+    private void buildIndex()
+    {
+        if (this.nameIndex!=null)
+            return;
+        this.nameIndex=new java.util.HashMap<>(Math.max(16,this.fileSize/WinDriver.HEADER_LENGTH*2));
+        this.freeEntries=new java.util.TreeSet<>();
+        this.duplicateNames=false;
+        for (int entry=WinDriver.HEADER_LENGTH;entry<this.fileSize;entry+=WinDriver.HEADER_LENGTH)
+        {
+            indexEntry(entry);
+        }
+    }
+    
+    /**
+     * Adds an entry to the index (after it was changed) : its name, or the entry itself if it is free.
+     * 
+     * @param entry the entry.
+     */
+    private void indexEntry(int entry)
+    {
+        if (this.nameIndex==null)
+            return;                                         // there is no index yet
+        if (this.buffer.getInt(entry)==0 && this.buffer.getShort(entry+WinDir.HDR_NAME)==0)
+        {
+            this.freeEntries.add(entry);
+            return;
+        }
+        this.freeEntries.remove(entry);
+        int namelength=this.buffer.get(entry+WinDir.HDRNAMEL)&0xff;
+        if (namelength==0)
+            return;                                         // not free, but without a name
+        String key=getKey(entry);
+        Integer other=this.nameIndex.get(key);
+        if (other==null)
+            this.nameIndex.put(key,entry);
+        else
+        {
+            this.duplicateNames=true;
+            if (other>entry)
+                this.nameIndex.put(key,entry);              // the first one is the one that is found
+        }
+    }
+    
+    /**
+     * Removes an entry from the index (before it is changed).
+     * 
+     * @param entry the entry.
+     */
+    private void unindexEntry(int entry)
+    {
+        if (this.nameIndex==null)
+            return;                                         // there is no index yet
+        this.freeEntries.remove(entry);
+        if ((this.buffer.get(entry+WinDir.HDRNAMEL)&0xff)==0)
+            return;
+        String key=getKey(entry);
+        Integer indexed=this.nameIndex.get(key);
+        if (indexed!=null && indexed==entry)
+        {
+            if (this.duplicateNames)
+                this.nameIndex=null;                        // the name may be in another entry too : make the index again when needed
+            else
+                this.nameIndex.remove(key);
+        }
+    }
+    
+    /**
+     * Gets the key of the name of an entry for the index : the SMSQE lower cased name.
+     */
+    private String getKey(int entry)
+    {
+        int namelength=Math.min(this.buffer.get(entry+WinDir.HDRNAMEL)&0xff,WinDir.HDRNMLN);
+        byte[]nm=new byte[namelength];
+        for (int i=0,j=entry+WinDir.HDRNAME;i<namelength;i++,j++)
+        {
+            nm[i]=WinDrive.LOWER_CASE[this.buffer.get(j)&0xff];
+        }
+        return WinDir.makeKey(nm,namelength);
+    }
+    
+    /**
+     * Makes a key for the indexes from a lower cased name.
+     * 
+     * @param name the name.
+     * @param length the length of the name to take.
+     * 
+     * @return the key.
+     */
+    private static String makeKey(byte[]name,int length)
+    {
+        return new String(name,0,length,java.nio.charset.StandardCharsets.ISO_8859_1);
+    }
+       
     /**
      * Makes a new entry for a file.
      * Sets the filename. File size is set to "0" (for smsqe), ie. Windriver.HEADER_LENGTH; length of the header.
@@ -817,6 +956,7 @@ public class WinDir extends WinFile
     public void addToList(WinDir toAdd)
     {
         this.dirList.add(toAdd);
+        this.dirIndex=null;
     }
     
     /**
@@ -827,6 +967,7 @@ public class WinDir extends WinFile
     public void removeFromList(WinDir toRemove)
     {
         this.dirList.remove(toRemove);
+        this.dirIndex=null;
     }
     
     /**
@@ -852,6 +993,8 @@ public class WinDir extends WinFile
         {
             this.dirList.remove(f);                         // this is no nonger a subdir of mine
         }
+        if (!avoidComodification.isEmpty())
+            this.dirIndex=null;
     }
     
   
@@ -81,6 +81,14 @@ package smsqmulator;
  * @author and copyright (c) wolfgang lenerz 2013
  * 
  * @version  
+ * 1.15 only the FAT clusters that changed are written ; flushes may be deferred (WIN-FLUSH-DELAY) and done by a background
+ *      flusher, flushNow ; data, directories and FAT are written in that order ; the entry points are synchronized.
+ * 1.14 free clusters are allocated and freed through a FreeSpaceMap : runs of clusters, best fit, chains are extended contiguously.
+ * 1.13 files are read and written by extents (runs of consecutive clusters), with one scattering read or gathering write each.
+ * 1.12 all cluster reads and writes go through a ClusterCache (if WIN-CACHE-SIZE isn't 0), flushCache, getCacheStatistics.
+ * 1.11 readClusterChain, readClusters and writeClusters added for files that are read cluster by cluster when needed, addClusters is public.
+ *      truncateFile allocates the number of clusters needed for the new size, not that size in clusters.
+ * 1.10 readFile, writeFile and writePartOfFile generate JFR events if JFR is recording.
  * 1.09 readFat : if non standard drive, the warning wdw referred to the wrong drivename.
  * 1.08 openfile : if dir open for an inexisting dir, copy filename of underlying dir correctly
  * 1.07 readFat : unlockable files may be made read only.
@@ -180,8 +188,15 @@ public class WinDrive
     protected boolean readOnly=false;                           // will be true if this entire drive is read only
     protected java.nio.channels.FileLock flock;                 // file lock acquired on the native file
     protected int clusterSize;                                  // size of one cluster in bytes, not in sectors
+    protected ClusterCache cache;                               // cache for the clusters of this drive, null if none
     protected java.util.ArrayList <Integer> fatClusterChain;    // all of the clusters occupied by the FAT.
     protected java.nio.ByteBuffer driveFAT;                     // the FAT (+ header) of the drive
+    protected FreeSpaceMap freeSpace;                           // index of the free clusters in the FAT
+    protected java.nio.ByteBuffer writtenFAT;                   // the FAT (+ header) as it is on the drive, null if not known
+    protected int flushDelay;                                   // in milliseconds : if >0, flushes are deferred for that long
+    private java.util.concurrent.ScheduledFuture<?> pendingFlush;// the deferred flush, null if none
+    private static java.util.concurrent.ScheduledExecutorService flusher;// the background flusher thread, for all drives
+    private static final java.util.Set<WinDrive> deferredDrives=new java.util.HashSet<>();// drives with a deferred flush, flushed at shutdown
     protected WinDir mainDir;                                   // the root direcory
     protected WinFile[]fileNumber=new WinFile [WinDrive.MAX_FILES_OPEN];  // a primitive way to identify a file
     protected boolean specialFileIsOpen=false;                  // is true when the special access file is open - no other file may be open then.
@@ -233,6 +248,10 @@ public class WinDrive
         this.driveNumber=number;
         this.warnings=warn;
         readFAT(this.driveName,inifile.getTrueOrFalse("IGNORE-QXLWIN-LOCK-ERROR"),inifile.getTrueOrFalse("MAKE-UNLOCKABLE-QXLWIN-READONLY"));// read the header and the FAT, will generate an exception if error
+        int cacheSize=inifile.getOptionAsInt("WIN-CACHE-SIZE",4096);// in KiB
+        if (cacheSize>0)
+            this.cache=new ClusterCache(this,this.clusterSize,(int)(cacheSize*1024L/this.clusterSize));
+        this.flushDelay=inifile.getOptionAsInt("WIN-FLUSH-DELAY",0);// in milliseconds
         readMainDir();                                      // read the main directory
         if (this.mainDir==null)
         {
@@ -378,6 +397,11 @@ public class WinDrive
             this.ioChannel.position(filePosition);          // position in file
             this.ioChannel.read(this.driveFAT);             // read (part of) the file 
         }   
+        this.writtenFAT=java.nio.ByteBuffer.allocate(this.driveFAT.capacity());
+        this.driveFAT.position(0);
+        this.writtenFAT.put(this.driveFAT);                 // that's what is on the drive
+        this.driveFAT.position(0);
+        this.freeSpace=new FreeSpaceMap(this.driveFAT);
     }
     
     /**
@@ -428,7 +452,7 @@ public class WinDrive
      * 
      * @see DeviceDriver DeviceDriver for more information on file open operations.
      */
-    public boolean openFile(int devDriverLinkageBlock, int channelDefinitionBlock, int openType, int driveNumber, byte[] filename,byte[]uncased) 
+    public synchronized boolean openFile(int devDriverLinkageBlock, int channelDefinitionBlock, int openType, int driveNumber, byte[] filename,byte[]uncased) 
     {
         if (this.readOnly && openType!=1 && openType!=4)
         {
@@ -637,32 +661,175 @@ public class WinDrive
     /*********** ACTUAL READING/WRITING TO/FROM THE DRIVE ****************************/
      
     /**
-     * This writes the FAT + drive header back to the drive.
+     * This writes the FAT + drive header back to the drive : only the clusters that changed since they were last written.
      * 
      * @throws java.io.IOException 
      */
     private void writeFAT() throws java.io.IOException
     {
-        writeFile(this.driveFAT,this.fatClusterChain);
+        int nbr=this.fatClusterChain.size();
+        java.util.BitSet changed=new java.util.BitSet(nbr);
+        for (int i=0;i<nbr;i++)
+        {
+            int start=i*this.clusterSize;
+            int end=Math.min(start+this.clusterSize,this.driveFAT.capacity());
+            if (this.writtenFAT==null || !sameContent(this.driveFAT,this.writtenFAT,start,end))
+                changed.set(i);
+        }
+        if (!changed.isEmpty())
+        {
+            java.nio.ByteBuffer[]clusters=sliceClusters(this.driveFAT,nbr);
+            writeChangedClusters(this.fatClusterChain,changed,clusters,ClusterCache.FAT);
+            if (this.writtenFAT==null)
+                this.writtenFAT=java.nio.ByteBuffer.allocate(this.driveFAT.capacity());
+            this.writtenFAT.position(0);
+            this.writtenFAT.put(this.driveFAT);
+            this.writtenFAT.position(0);
+        }
      //   this.ioChannel.force(false);
         this.driveFAT.limit(this.driveFAT.capacity());
         this.driveFAT.position(0);
     }
     
     /**
-     * Writes the FAT  + drive header to the drive.
+     * Checks whether two buffers have the same content in a range.
+     */
+    private static boolean sameContent(java.nio.ByteBuffer a,java.nio.ByteBuffer b,int start,int end)
+    {
+        java.nio.ByteBuffer x=a.duplicate();
+        java.nio.ByteBuffer y=b.duplicate();
+        x.limit(end).position(start);
+        y.limit(end).position(start);
+        return x.equals(y);
+    }
+    
+    /**
+     * Writes the FAT  + drive header to the drive, after the data and the directories in the cache.
+     * <p>
+     * If there is a flush delay, this is deferred : the flush is done by the background flusher once the delay has passed, so
+     * that many changes (e.g. files created and deleted) are written in one go. Deferred flushes are also done when the program
+     * ends.
+     */
+    public synchronized void flush()
+    {
+        if (this.flushDelay<=0)
+            flushNow();
+        else
+            deferFlush();
+    }
+    
+    /**
+     * Writes the data and directories in the cache, the FAT + drive header to the drive, now.
+     * This is used when the flush must be synchronous (SMSQE flushes a file, the drive is unused).
      */
-    public void flush()
+    public synchronized void flushNow()
     {
+        if (this.pendingFlush!=null)
+        {
+            this.pendingFlush.cancel(false);
+            this.pendingFlush=null;
+            synchronized (WinDrive.deferredDrives)
+            {
+                WinDrive.deferredDrives.remove(this);
+            }
+        }
+        if (this.driveFAT==null)
+            return;
         try
         { 
-            writeFAT();
+            writeFAT();                                     // into the cache, if there is one...
+            if (this.cache!=null)
+                this.cache.flush();                         // ... which writes data, directories, then FAT
         }
         catch (Exception e)
         {
             Helper.reportError(Localization.Texts[45], Localization.Texts[71], null,e);
         }
     }
+    
+    /**
+     * Writes the clusters that changed in the cache (if any) to the drive. If there is a flush delay, this is deferred.
+     */
+    public synchronized void flushCache()
+    {
+        if (this.flushDelay>0)
+        {
+            deferFlush();
+            return;
+        }
+        if (this.cache==null)
+            return;
+        try
+        { 
+            this.cache.flush();
+        }
+        catch (Exception e)
+        {
+            Helper.reportError(Localization.Texts[45], Localization.Texts[71], null,e);
+        }
+    }
+    
+    /**
+     * Makes the background flusher flush this drive once the flush delay has passed, unless that is already planned.
+     */
+    private void deferFlush()
+    {
+        if (this.pendingFlush!=null)
+            return;
+        synchronized (WinDrive.deferredDrives)
+        {
+            WinDrive.deferredDrives.add(this);
+            if (WinDrive.flusher==null)
+            {
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        java.util.ArrayList<WinDrive> drives;
+                        synchronized (WinDrive.deferredDrives)
+                        {
+                            drives=new java.util.ArrayList<>(WinDrive.deferredDrives);
+                        }
+                        for (WinDrive drive:drives)
+                        {
+                            drive.flushNow();               // deferred flushes must be done before the program ends
+                        }
+                    }
+                },"SMSQmulator WIN flush at shutdown"));
+                WinDrive.flusher=java.util.concurrent.Executors.newSingleThreadScheduledExecutor(new java.util.concurrent.ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t=new Thread(r,"SMSQmulator WIN flusher");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        this.pendingFlush=WinDrive.flusher.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushNow();
+            }
+        },this.flushDelay,java.util.concurrent.TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Gets the statistics of the cluster cache.
+     * 
+     * @param reset if <code>true</code>, the statistics are reset afterwards.
+     * 
+     * @return the statistics, or <code>null</code> if this drive has no cache.
+     */
+    public String getCacheStatistics(boolean reset)
+    {
+        return this.cache==null?null:this.cache.getStatistics(reset);
+    }
    
     /**
      * Creates a ByteBuffer (for a file) and reads the file into it.
@@ -695,12 +862,13 @@ public class WinDrive
     
     /**
      * Reads a file from the drive into the given ByteBuffer.
-     * The file is read cluster by cluster.
+     * The clusterchain is split into extents (runs of clusters that follow each other on the drive), each extent is read in one go.
      * 
-     * @param fileLength the length of the file to be read | the remaining bytes to be read (will be decreased during read).
+     * @param fileLength the length of the file to be read.
      * @param cluster the first cluster of the file (index into the FAT).
      * @param buffer the ByteBuffer into which the file will be read. This must be long enough for the entire file, else
      *        the file will not be read.
+     * @param clusterchain the empty cluster chain, will be filled in here.
      * 
      * @return <code>true</code> if read was OK, <code>false</code> if not.
      */
@@ -708,33 +876,26 @@ public class WinDrive
     {
         if (buffer.capacity()<fileLength)                   // buffer must be this long to hold the file
             return false;
-        int bufferPosition=0;                               // start in buffer where bytes will be read to
-        int bytesRead;                                      // nbr of bytes read
-        long filePosition;                                  // position in qxl.win file to read from
+        FlightRecorderEvents.WinDriveEvent event=FlightRecorderEvents.beginWinDrive();
+        int totalRead=0;
         try
         {
-            do 
+            readClusterChain(fileLength,cluster,clusterchain);// if the chain is too short, read what there is
+            java.nio.ByteBuffer[]clusters=sliceClusters(buffer,clusterchain.size());
+            for (int i=0;i<clusters.length;)
             {
-                clusterchain.add(cluster);
-                if (fileLength>this.clusterSize)
-                    buffer.limit(bufferPosition+this.clusterSize);// end of where the bytes to read go - read cluster by cluster
-                else
-                    buffer.limit(bufferPosition+fileLength);// end of where the bytes to read go
-                buffer.position(bufferPosition);            // start of where the bytes to read go
-                filePosition=cluster*this.clusterSize;      // where the cluster lies in the QXL.Win file
-                this.ioChannel.position(filePosition);      // position in file
-                bytesRead=this.ioChannel.read(buffer);      // read (part of) the file
-                fileLength-=bytesRead;
-                if (fileLength<=0  || bytesRead!=this.clusterSize)
-                    cluster=0;                              // either end of file, or error, in both cases stop reading
-                else
-                {
-                    bufferPosition+=this.clusterSize;
-                    cluster=this.driveFAT.getShort(cluster*2+WinDrive.QWA_GMAP)&0xffff;
-                }
-            } while (cluster!=0);
+                int count=extentLength(clusterchain,i,clusters.length-i);
+                int bytesRead=readClusterRun(clusterchain.get(i),clusters,i,count);
+                if (bytesRead>0)
+                    totalRead+=bytesRead;
+                if (bytesRead!=count*this.clusterSize)
+                    break;                                  // end of drive or error : stop reading
+                i+=count;
+            }
             buffer.position(0);
             buffer.limit(buffer.capacity());
+            if (event!=null)
+                event.finish(this.driveName,false,cluster,clusterchain.size(),totalRead);
             return true;
         }
         catch (Exception e)
@@ -744,7 +905,7 @@ public class WinDrive
     }
     
     /**
-     * This writes an entire file in a byte buffer back to the drive.
+     * This writes an entire file in a byte buffer back to the drive, one extent at a time.
      * 
      * @param fileBuffer the ByteBuffer containing the file. The capacity of the buffer may be bigger than the true filesize.
      * @param clusterchain the first cluster of the file.
@@ -755,30 +916,16 @@ public class WinDrive
     {
         if (this.ioChannel==null)
             return;                                         // no iochannel? can't write!        
-        int bytesWritten;                                   // how many bytes were written
-        int buffpos=0;
-        int bufflim=this.clusterSize;                       // max write size for one cluster
         int oldbuffpos=fileBuffer.position();
         int oldbufflim=fileBuffer.limit();
-        
-        for (int cluster:clusterchain)                      // cluster to write
-        {
-            fileBuffer.limit(bufflim);                      // position - limit = nbr of bytes read from buffer & written to drive
-            fileBuffer.position(buffpos);                   // where to read bytes from
-            this.ioChannel.position((long)(cluster*this.clusterSize));// where in file we start to write
-            bytesWritten=this.ioChannel.write(fileBuffer);  // write that many bytes onto the disk
-            if (bytesWritten!=this.clusterSize)             // not enough bytes written, stop writing, perhaps eof
-                break;
-            else
-            {
-                bufflim+=bytesWritten;
-                buffpos+=bytesWritten;
-                if (bufflim>fileBuffer.capacity())
-                    bufflim=fileBuffer.capacity();
-            }
-        }
+        FlightRecorderEvents.WinDriveEvent event=FlightRecorderEvents.beginWinDrive();
+        int nbr=Math.min(clusterchain.size(),(fileBuffer.capacity()+this.clusterSize-1)/this.clusterSize);
+        java.nio.ByteBuffer[]clusters=sliceClusters(fileBuffer,nbr);
+        int totalWritten=writeExtents(clusterchain,0,nbr,clusters);
         fileBuffer.limit(oldbufflim);
         fileBuffer.position(oldbuffpos);
+        if (event!=null && !clusterchain.isEmpty())
+            event.finish(this.driveName,true,clusterchain.get(0),nbr,totalWritten);
     }
     
     /**
@@ -796,23 +943,312 @@ public class WinDrive
     {
         if (this.ioChannel==null)
             return;                                         // no iochannel? can't write!        
-        int bytesWritten;                                   // how many bytes were written
         int oldbuffpos=fileBuffer.position();
         int oldbufflim=fileBuffer.limit();
         int startCluster=start/this.clusterSize;
         int endCluster=(start+bytesToWrite)/this.clusterSize;
-        for (int i=startCluster;i<endCluster+1;i++)         // cluster to write
+        FlightRecorderEvents.WinDriveEvent event=FlightRecorderEvents.beginWinDrive();
+        java.nio.ByteBuffer[]clusters=sliceClusters(fileBuffer,endCluster+1);
+        int totalWritten=writeExtents(clusterchain,startCluster,endCluster+1-startCluster,clusters);
+        fileBuffer.limit(oldbufflim);
+        fileBuffer.position(oldbuffpos);
+        if (event!=null)
+            event.finish(this.driveName,true,clusterchain.get(startCluster),endCluster-startCluster+1,totalWritten);
+    }
+    
+    /**
+     * Writes some clusters of a directory, one extent at a time.
+     * 
+     * @param clusterchain the clusterchain of the file.
+     * @param first the index, into the clusterchain, of the first cluster to write.
+     * @param count how many clusters to write.
+     * @param clusters the buffers for the clusters (index into the clusterchain = index into this array).
+     * 
+     * @return the number of bytes written.
+     * 
+     * @throws java.io.IOException  any i/o exception from the java i/o operations.
+     */
+    private int writeExtents(java.util.ArrayList<Integer> clusterchain,int first,int count,java.nio.ByteBuffer[]clusters) throws java.io.IOException
+    {
+        int totalWritten=0;
+        for (int i=first;i<first+count;)
         {
-            int cluster=clusterchain.get(i);
-            fileBuffer.limit((i+1)*this.clusterSize);                     
-            fileBuffer.position(i*this.clusterSize);                   
-            this.ioChannel.position((long)(cluster*this.clusterSize));// where in file we start to write
-            bytesWritten=this.ioChannel.write(fileBuffer);  // write that many bytes onto the disk
-            if (bytesWritten!=this.clusterSize)             // not enough bytes written, stop writing, perhaps eof
+            int nbr=extentLength(clusterchain,i,first+count-i);
+            int bytesWritten=writeClusterRun(clusterchain.get(i),clusters,i,nbr,ClusterCache.DIRECTORY);
+            totalWritten+=bytesWritten;
+            if (bytesWritten!=nbr*this.clusterSize)         // not enough bytes written, stop writing, perhaps eof
                 break;
+            i+=nbr;
         }
-        fileBuffer.limit(oldbufflim);
-        fileBuffer.position(oldbuffpos);
+        return totalWritten;
+    }
+    
+    /**
+     * Gets the length of the extent starting at an element of a clusterchain, i.e. the number of clusters that follow each other
+     * on the drive as of there.
+     * 
+     * @param clusterchain the clusterchain.
+     * @param index the index into the clusterchain of the first cluster of the extent.
+     * @param max the maximum length wished.
+     * 
+     * @return the number of clusters in the extent, at least 1.
+     */
+    public static int extentLength(java.util.ArrayList<Integer> clusterchain,int index,int max)
+    {
+        int cluster=clusterchain.get(index);
+        int end=Math.min(clusterchain.size(),index+max);
+        int i=index+1;
+        while (i<end && clusterchain.get(i)==cluster+i-index)
+            i++;
+        return i-index;
+    }
+    
+    /**
+     * Makes one buffer per cluster out of a buffer containing a file : the buffers are slices of the file buffer, the last one may
+     * be shorter than a cluster.
+     * 
+     * @param buffer the buffer containing the file.
+     * @param nbr the number of clusters wished.
+     * 
+     * @return the buffers, from index 0 on. Clusters that would lie beyond the end of the buffer are <code>null</code>.
+     */
+    private java.nio.ByteBuffer[] sliceClusters(java.nio.ByteBuffer buffer,int nbr)
+    {
+        java.nio.ByteBuffer[]clusters=new java.nio.ByteBuffer[nbr];
+        for (int i=0,pos=0;i<nbr && pos<buffer.capacity();i++,pos+=this.clusterSize)
+        {
+            buffer.limit(Math.min(pos+this.clusterSize,buffer.capacity()));
+            buffer.position(pos);
+            clusters[i]=buffer.slice();
+        }
+        buffer.limit(buffer.capacity());
+        buffer.position(0);
+        return clusters;
+    }
+    
+    /**
+     * Gets the clusterchain of a file, without reading the file.
+     * 
+     * @param fileLength the length of the file (should include the length of the file header).
+     * @param cluster the first cluster of the file (index into the FAT).
+     * @param clusterchain the cluster chain, cleared and filled in here.
+     * 
+     * @return <code>true</code> if OK, <code>false</code> if the clusterchain ends before the end of the file.
+     */
+    public boolean readClusterChain(int fileLength,int cluster,java.util.ArrayList<Integer> clusterchain)
+    {
+        if (fileLength<1 || clusterchain==null)             // null or negative length files don't make sense, clusterchain must exist.
+            return false;
+        clusterchain.clear();
+        for (int i=nbrOfClusters(fileLength);i>0;i--)
+        {
+            if (cluster==0)
+                return false;                               // clusterchain too short for this file
+            clusterchain.add(cluster);
+            cluster=this.driveFAT.getShort(cluster*2+WinDrive.QWA_GMAP)&0xffff;// next cluster
+        }
+        return true;
+    }
+    
+    /**
+     * Reads some clusters of a file from the drive, each into its own buffer, one extent at a time.
+     * 
+     * @param clusterchain the clusterchain of the file.
+     * @param first the index, into the clusterchain, of the first cluster to read.
+     * @param count how many clusters to read.
+     * @param clusters the buffers for the clusters, one per element of the clusterchain. A buffer that is <code>null</code> is
+     *        created here, it will have the size of one cluster.
+     * 
+     * @return <code>true</code> if read was OK, <code>false</code> if not.
+     */
+    public boolean readClusters(java.util.ArrayList<Integer> clusterchain,int first,int count,java.nio.ByteBuffer[]clusters)
+    {
+        FlightRecorderEvents.WinDriveEvent event=FlightRecorderEvents.beginWinDrive();
+        int totalRead=0;
+        try
+        {
+            for (int i=first;i<first+count;i++)
+            {
+                if (clusters[i]==null)
+                    clusters[i]=java.nio.ByteBuffer.allocate(this.clusterSize);
+                clusters[i].clear();
+            }
+            for (int i=first;i<first+count;)
+            {
+                int nbr=extentLength(clusterchain,i,first+count-i);
+                int bytesRead=readClusterRun(clusterchain.get(i),clusters,i,nbr);
+                if (bytesRead<0)
+                    return false;
+                totalRead+=bytesRead;
+                i+=nbr;
+            }
+            for (int i=first;i<first+count;i++)
+            {
+                clusters[i].clear();
+            }
+        }
+        catch (Exception e)
+        {
+            return false;
+        }
+        if (event!=null)
+            event.finish(this.driveName,false,clusterchain.get(first),count,totalRead);
+        return true;
+    }
+    
+    /**
+     * Writes the changed clusters of a file back to the drive. Changed clusters that follow each other in the file and on the drive
+     * are written in one go.
+     * 
+     * @param clusterchain the clusterchain of the file.
+     * @param changed which clusters (index into the clusterchain) must be written.
+     * @param clusters the buffers for the clusters, one per element of the clusterchain.
+     * 
+     * @throws java.io.IOException  any i/o exception from the java i/o operations.
+     */
+    public void writeClusters(java.util.ArrayList<Integer> clusterchain,java.util.BitSet changed,java.nio.ByteBuffer[]clusters) throws java.io.IOException
+    {
+        if (changed.isEmpty())
+            return;
+        writeChangedClusters(clusterchain,changed,clusters,ClusterCache.DATA);
+    }
+    
+    /**
+     * Writes the changed clusters of a file (or of the FAT) back to the drive.
+     * 
+     * @param kind what the clusters contain : ClusterCache.DATA, DIRECTORY or FAT.
+     */
+    private void writeChangedClusters(java.util.ArrayList<Integer> clusterchain,java.util.BitSet changed,java.nio.ByteBuffer[]clusters,int kind) throws java.io.IOException
+    {
+        FlightRecorderEvents.WinDriveEvent event=FlightRecorderEvents.beginWinDrive();
+        int totalWritten=0;
+        int count=0;
+        for (int i=changed.nextSetBit(0);i>=0 && i<clusterchain.size();)
+        {
+            int end=Math.min(changed.nextClearBit(i),clusterchain.size());
+            int nbr=extentLength(clusterchain,i,end-i);
+            for (int j=i;j<i+nbr;j++)
+            {
+                clusters[j].clear();
+            }
+            int bytesWritten=writeClusterRun(clusterchain.get(i),clusters,i,nbr,kind);
+            for (int j=i;j<i+nbr;j++)
+            {
+                clusters[j].clear();
+            }
+            totalWritten+=bytesWritten;
+            if (bytesWritten!=nbr*this.clusterSize)         // not enough bytes written, stop writing, perhaps eof
+                break;
+            count+=nbr;
+            i=changed.nextSetBit(i+nbr);
+        }
+        if (event!=null)
+            event.finish(this.driveName,true,clusterchain.get(changed.nextSetBit(0)),count,totalWritten);
+    }
+    
+    /**
+     * Reads clusters that follow each other on the drive, through the cache if there is one.
+     * 
+     * @param firstCluster the first cluster to read.
+     * @param buffers where to read the clusters to, one buffer per cluster, each from position to limit.
+     * @param offset the index of the buffer for the first cluster.
+     * @param count the number of clusters.
+     * 
+     * @return the number of bytes read, -1 if end of drive.
+     * 
+     * @throws java.io.IOException  any i/o exception from the java i/o operations.
+     */
+    protected int readClusterRun(int firstCluster,java.nio.ByteBuffer[]buffers,int offset,int count) throws java.io.IOException
+    {
+        if (this.cache!=null)
+            return this.cache.read(firstCluster,buffers,offset,count);
+        return readDriveClusters(firstCluster,buffers,offset,count);
+    }
+    
+    /**
+     * Writes clusters that follow each other on the drive, through the cache if there is one.
+     * 
+     * @param firstCluster the first cluster to write.
+     * @param buffers what to write, one buffer per cluster, each from position to limit.
+     * @param offset the index of the buffer for the first cluster.
+     * @param count the number of clusters.
+     * @param kind what the clusters contain : ClusterCache.DATA, DIRECTORY or FAT.
+     * 
+     * @return the number of bytes written.
+     * 
+     * @throws java.io.IOException  any i/o exception from the java i/o operations.
+     */
+    protected int writeClusterRun(int firstCluster,java.nio.ByteBuffer[]buffers,int offset,int count,int kind) throws java.io.IOException
+    {
+        if (this.cache!=null)
+            return this.cache.write(firstCluster,buffers,offset,count,kind);
+        return writeDriveClusters(firstCluster,buffers,offset,count);
+    }
+    
+    /**
+     * Reads clusters that follow each other from the native file, bypassing the cache : this is one positional read for one
+     * cluster, else one scattering read.
+     * 
+     * @param firstCluster the first cluster to read.
+     * @param buffers where to read the clusters to, one buffer per cluster, each from position to limit.
+     * @param offset the index of the buffer for the first cluster.
+     * @param count the number of clusters.
+     * 
+     * @return the number of bytes read, -1 if end of drive.
+     * 
+     * @throws java.io.IOException  any i/o exception from the java i/o operations.
+     */
+    protected int readDriveClusters(int firstCluster,java.nio.ByteBuffer[]buffers,int offset,int count) throws java.io.IOException
+    {
+        long position=(long)firstCluster*this.clusterSize;
+        if (count==1)
+            return this.ioChannel.read(buffers[offset],position);
+        this.ioChannel.position(position);
+        long total=0;
+        while (buffers[offset+count-1].hasRemaining())      // a scattering read may not fill all buffers at once
+        {
+            long bytesRead=this.ioChannel.read(buffers,offset,count);
+            if (bytesRead<=0)
+            {
+                if (total==0 && bytesRead<0)
+                    return -1;
+                break;
+            }
+            total+=bytesRead;
+        }
+        return (int)total;
+    }
+    
+    /**
+     * Writes clusters that follow each other to the native file, bypassing the cache : this is one positional write for one
+     * cluster, else one gathering write.
+     * 
+     * @param firstCluster the first cluster to write.
+     * @param buffers what to write, one buffer per cluster, each from position to limit.
+     * @param offset the index of the buffer for the first cluster.
+     * @param count the number of clusters.
+     * 
+     * @return the number of bytes written.
+     * 
+     * @throws java.io.IOException  any i/o exception from the java i/o operations.
+     */
+    protected int writeDriveClusters(int firstCluster,java.nio.ByteBuffer[]buffers,int offset,int count) throws java.io.IOException
+    {
+        if (this.ioChannel==null)
+            return 0;                                       // no iochannel? can't write!        
+        long position=(long)firstCluster*this.clusterSize;
+        if (count==1)
+            return this.ioChannel.write(buffers[offset],position);
+        this.ioChannel.position(position);
+        long total=0;
+        while (buffers[offset+count-1].hasRemaining())      // a gathering write may not write all buffers at once
+        {
+            long bytesWritten=this.ioChannel.write(buffers,offset,count);
+            if (bytesWritten<=0)
+                break;
+            total+=bytesWritten;
+        }
+        return (int)total;
     }
     
     /**
@@ -863,7 +1299,7 @@ public class WinDrive
         if (nbrOfClusters(oldsize)==nbrOfClusters(newsize))
             return currentClusterchain;                     // old and new sizes need the same number of clusters - nothing to do
         freeClusters(currentClusterchain.get(0));
-        return allocateClusters(newsize);
+        return allocateClusters(nbrOfClusters(newsize));
     }
     
    /**
@@ -882,6 +1318,7 @@ public class WinDrive
             return -1;
         try
         {
+            flushNow();                                     // the drive must be up to date
             buffer.limit(nbrOfBytes);
             buffer.position (0);
             return this.ioChannel.read(buffer,position);
@@ -908,6 +1345,8 @@ public class WinDrive
             return -1;
         try
         {
+            if (this.cache!=null)
+                this.cache.clear();                         // the cache mustn't hold old content
             int bufpos=buffer.position();
             int buflim=buffer.limit();
             buffer.limit(nbrOfBytes+startInBuffer);
@@ -926,55 +1365,24 @@ public class WinDrive
     /****************************************   CLUSTER MANIPULATION ***************************************/
     
     
-    /**
-     * Adds one cluster to this clusterchain.
-     * This marks everything necessary in the FAT but does NOT save the FAT back to the drive.
-     * 
-     * @param clusterchain the clusterchain where to add a cluster
-     * 
-     * @return true if operation successful, else false.
-     */
-    private boolean addCluster(java.util.ArrayList<Integer> clusterchain)
-    {
-        int cluster=clusterchain.get(clusterchain.size()-1);// get last cluster of clusterchain.
-        if (this.driveFAT.getShort(WinDrive.QWA_GMAP+cluster*2)!=0)// check that this is inded the last cluster
-            return false;                                   // there is smmething very wrong here!
-        short fcluster=this.driveFAT.getShort(WinDrive.QWA_FGRP);// nbr of clusters still free on drive
-        if (fcluster==0)
-            return false;                                   // oops, nothing free on drive
-        int freecluster=this.driveFAT.getShort(WinDrive.QWA_FREE)&0xffff;// pointer to 1rst free cluster, will become cluster I add to mY clusterchain
-        if (freecluster==0)
-            return false;                                   // there is no free cluster
-        short newfirst=this.driveFAT.getShort(WinDrive.QWA_GMAP+freecluster*2);// pointer to next free cluster =  new first free cluster
-        this.driveFAT.putShort(WinDrive.QWA_FREE,newfirst);          // set new first free cluster
-        this.driveFAT.putShort(WinDrive.QWA_GMAP+cluster*2,(short)(freecluster&0xffff));// new last cluster in the clusterchain
-        this.driveFAT.putShort(WinDrive.QWA_GMAP+freecluster*2,(short)0);// there is no next cluster in the clusterchain
-        this.driveFAT.putShort(WinDrive.QWA_FGRP,--fcluster);        // new number of free clusters
-        clusterchain.add(freecluster);                      // last element of clusterchain now
-        return true;
-    }
-    
     /**
      * Adds a certain number of free clusters to an existing clusterchain.
-     * The clusters are then occupied (no longer marked as free).
+     * The clusters are then occupied (no longer marked as free). The clusters right after the end of the chain are taken if
+     * they are free, so that the file stays contiguous.
+     * This marks everything necessary in the FAT but does NOT save the FAT back to the drive.
      * 
      * @param clustersNeeded number of free clusters needed.
      * @param currentClusterchain the clusterchain to which free clusters are to be added.
      * 
      * @return true if OK, false if there weren't enough free clusters. In that case, no new clusters are occupied. at all
      */
-    private boolean addClusters (int clustersNeeded,java.util.ArrayList<Integer> currentClusterchain)
+    public boolean addClusters (int clustersNeeded,java.util.ArrayList<Integer> currentClusterchain)
     {
-        if ((this.driveFAT.getShort(WinDrive.QWA_FGRP)&0xffff)<clustersNeeded)
-            return false;                                   // there are not enough free clusters
-        for (int i=0;i<clustersNeeded;i++)
-            addCluster(currentClusterchain);                // add the clusters
-     //   flush();                                            // flush fat
-        return true;
+        return this.freeSpace.allocate(clustersNeeded,currentClusterchain);
     }
     
     /**
-     * This allocates a new clusterchain with as many clusters as needed.
+     * This allocates a new clusterchain with as many clusters as needed, if possible clusters that follow each other.
      * The newly occupied clusters are marked as occupied in the FAT, but the FAT is not written to the disk.
      * 
      * @param clustersNeeded the number of clusters needed
@@ -983,87 +1391,37 @@ public class WinDrive
      */
     public java.util.ArrayList<Integer> allocateClusters(int clustersNeeded)
     { 
-        int fcluster=this.driveFAT.getShort(WinDrive.QWA_FGRP)&0xffff;// nbr of clusters still free on drive
-        if (fcluster < clustersNeeded)
-            return null;                                   // there are not enough free clusters
-        int freecluster=this.driveFAT.getShort(WinDrive.QWA_FREE)&0xffff;// pointer to 1rst free cluster, will become cluster I add to my clusterchain
-        if (freecluster==0)
-            return null;                                   // there is no free cluster, this would be a serious error and indicate a corrupted FAT/hreader
-        short newfirst=this.driveFAT.getShort(WinDrive.QWA_GMAP+freecluster*2);// pointer to next free cluster =  new first free cluster
-        this.driveFAT.putShort(WinDrive.QWA_FREE,newfirst);  // set new first free cluster in FAT
-        fcluster--;
-        this.driveFAT.putShort(WinDrive.QWA_FGRP,(short)(fcluster & 0xffff));// set new number of free clusters in FAT
-        this.driveFAT.putShort(WinDrive.QWA_GMAP+freecluster*2,(short)0);// there is no next cluster in the new clusterchain
+        if (clustersNeeded<1)
+            return null;
         java.util.ArrayList<Integer>clusterchain=new java.util.ArrayList<>();
-        clusterchain.add(freecluster);                      // set the first element of the new clusterchain
-        clustersNeeded--;                                   // one less cluster needed 
-        if (clustersNeeded!=0)
-            addClusters(clustersNeeded,clusterchain);       // add as many clusters as needed
-        if (clusterchain.size()!=(clustersNeeded+1))        // check that clusters were indeed added
-        {
-            freeClusters(clusterchain.get(0));              // oops!
-            return null;                                    // error
-        }
+        if (!this.freeSpace.allocate(clustersNeeded,clusterchain))
+            return null;                                    // there are not enough free clusters
         return clusterchain;                                // all went OK.
     }
     
-    
     /**
      * Frees clusters in the FAT, freeing all clusters in a clusterchain.
      * The new number of free clusters IS set in the FAT.
-     * The newly freed clusters are added to the free clusters list. 
+     * The newly freed clusters are added to the free clusters list, which stays sorted in increasing order (SMSQE wants that).
      * The modified FAT is not written back to the drive here.
      * 
      * @param cluster the first cluster to be freed, all other clusters this cluster refers to will also be freed.
      */
     public void freeClusters(int cluster)
     {
-        int count=0;                                        // at least one more free cluster : the one we start with
-        int oldcluster;
-        do
-        {   
-            oldcluster=cluster;                             // cluster currently being unlinked
-            cluster=this.driveFAT.getShort(cluster*2+WinDrive.QWA_GMAP)&0xffff;// next cluster in list to be unlinked on next run through loop
-            freeOneCluster(oldcluster);                     // but free current cluster first
-            count++;
-        } while(cluster!=0);
-        
-        count+=this.driveFAT.getShort(WinDrive.QWA_FGRP)&0xffff;// nbr of old free clusters + new free clusters = tot nbr of free clusters
-        this.driveFAT.putShort(WinDrive.QWA_FGRP, (short)count);// put it in
-    //    flush();
+        this.freeSpace.free(cluster);
     }
     
     /**
-     * This frees one cluster, making sure that it is inserted in the correct place in the free cluster chain.
-     * SMSQE wants the free cluster list to be sorted in increasing order.
-     * The FAT is not written back to the drive here.
+     * Gets the statistics of the free space on this drive.
+     * 
+     * @param reset if <code>true</code>, the allocation statistics are reset afterwards.
      * 
-     * @param cluster the cluster to be freed.
+     * @return the statistics.
      */
-    private void freeOneCluster(int cluster)
+    public String getFreeSpaceStatistics(boolean reset)
     {
-        int oldFirst=this.driveFAT.getShort(WinDrive.QWA_FREE)&0xffff;   // first free cluster
-        if (oldFirst==0)                                    // there is none, cluster in chain become the first next cluster                                                                              
-        { 
-            this.driveFAT.putShort(WinDrive.QWA_FREE,(short)(cluster&0xffff));
-            this.driveFAT.putShort(cluster*2+WinDrive.QWA_GMAP,(short)0);   // there is no other free space pointer atter that
-            return;
-        }
-        if (oldFirst>cluster)                               // cluster to free is smaller, so make that the first free cluster
-        {
-            this.driveFAT.putShort(WinDrive.QWA_FREE,(short)(cluster&0xffff));
-            this.driveFAT.putShort(cluster*2+WinDrive.QWA_GMAP,(short)(oldFirst&0xffff));
-            return;
-        }
-        int oldclust=oldFirst;
-        while(oldFirst<cluster && oldFirst!=0)
-        {
-            oldclust=oldFirst;                                                      
-            oldFirst=this.driveFAT.getShort(oldFirst*2+WinDrive.QWA_GMAP)&0xffff;
-        }
-        // here : oldclust = cluster before my cluster, oldfirst=cluster after my cluster
-         this.driveFAT.putShort(oldclust*2+WinDrive.QWA_GMAP,(short)(cluster&0xffff));// cluster before points to me
-         this.driveFAT.putShort(cluster*2+WinDrive.QWA_GMAP,(short)(oldFirst&0xffff));// I point to cluster after me
+        return this.freeSpace.getStatistics(reset);
     }
     
     /**
@@ -1117,8 +1475,9 @@ public class WinDrive
     /**
      * Unuses (frees) the locked channel.
      */
-    public void unuse()
+    public synchronized void unuse()
     {
+        flushNow();
         try
         {
             this.ioChannel.force(true);
@@ -1162,7 +1521,7 @@ public class WinDrive
      * @param trapKey what kind of trap #3 is it?
      * @param fileNbr the file number given by the ddd when file was opened (A0+0x1e)
      */
-    public void trap3OK(int driveNumber,int trapKey, int fileNbr) 
+    public synchronized void trap3OK(int driveNumber,int trapKey, int fileNbr) 
     {
         if (this.readOnly)
         {
@@ -1252,6 +1611,7 @@ public class WinDrive
                 WinDir thisDir=nFile.getDir();              // dir currently holding the file
                 this.cpu.data_regs[0]=0;                    // as of here, let's presume the rename goes OK
                 newDir.renameFile(thisDir,nFile,name);      // rename the file in the new dir
+                flushCache();
                 break;
                
             case 0x4f:                                      //  get extended info  
@@ -1302,7 +1662,7 @@ public class WinDrive
      * 
      * @return <code>true</code> if closed ok, else <code>false</code>.
      */
-    public boolean closeFile(int fileNbr)
+    public synchronized boolean closeFile(int fileNbr)
     {
         WinFile winFile=this.fileNumber[fileNbr];
         if (winFile==null)
@@ -1400,8 +1760,9 @@ public class WinDrive
     /**
      * "Closes" all files by just forgetting about them.
      */
-    public void closeAllFiles()
+    public synchronized void closeAllFiles()
     {
+        flushNow();
         this.fileNumber=new WinFile [WinDrive.MAX_FILES_OPEN];
         readMainDir();
     }
@@ -8,6 +8,8 @@ package smsqmulator;
  * @author and copyright (c) wolfgang Lenerz 2013-2017.
  * 
  * @version  
+ * 1.06 getCacheStatistics also gives the free space statistics.
+ * 1.05 getCacheStatistics.
  * 1.04 setNames adjusted.
  * 1.04 modified open.
  * 1.03 implement closeAllFiles.
@@ -515,6 +517,30 @@ public class WinDriver implements DeviceDriver
     {
     }
 
+    /**
+     * Gets the statistics of the cluster caches and of the free space of all drives.
+     * 
+     * @param reset if <code>true</code>, the statistics are reset afterwards.
+     * 
+     * @return the statistics, two lines per drive.
+     */
+    public String getCacheStatistics(boolean reset)
+    {
+        StringBuilder sb=new StringBuilder();
+        for (int i=0;i<this.drives.length;i++)
+        {
+            if (this.drives[i]!=null)
+            {
+                String stats=this.drives[i].getCacheStatistics(reset);
+                sb.append("WIN").append(i+1).append(" : ").append(stats==null?"no cache\n":stats);
+                sb.append("       ").append(this.drives[i].getFreeSpaceStatistics(reset));
+            }
+        }
+        if (sb.length()==0)
+            sb.append("No drives\n");
+        return sb.toString();
+    }
+    
     @Override 
     /**
      * Closes all files opened by all drives of this device driver.
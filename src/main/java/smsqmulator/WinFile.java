@@ -4,9 +4,13 @@ package smsqmulator;
 /**
  * This is the class representing one file on a QXL.WIN device.
  * 
- * Each file maintains a ByteBuffer containing the entire contents of the file.
- * The limit of this buffer must always be set to its capacity on entry/exit to any routine.
- * The position should correspond to the current file position (+ header).
+ * The content of a file is kept cluster by cluster : there is one ByteBuffer per element of the clusterchain, each the size of a
+ * cluster. A cluster is only read from the drive when it is first needed (by reading, getting a line, writing into it), so opening
+ * a file costs nothing, however big it is. Clusters that were written to are marked in the changedClusters set and only they are
+ * written back to the drive when the file is flushed or closed. Clusters added at the end of the file are never read.
+ * <p>
+ * Directories (and files made from an existing buffer) still have a ByteBuffer containing the entire contents of the file,
+ * the cluster buffers are then just slices of it.
  * <p>
  * There are 4 flags:
  * <ul>
@@ -31,6 +35,11 @@ package smsqmulator;
  * <p>
  * @author and copyright (c) wolfgang lenerz 2013-2017
  * @version  
+ *  1.12 makeSpace comment describes the allocation by runs.
+ *  1.11 the flush trap flushes the drive synchronously (even if drive flushes are deferred).
+ *  1.10 the array of cluster buffers grows geometrically when the file grows, so that appending is linear in time.
+ *  1.09 close and flush also write the drive's cluster cache back.
+ *  1.08 the file is read cluster by cluster when needed, only clusters that changed are written back ; new constructor for that.
  *  1.07 when getting the length of the roor dir, get the length set in root sector - the fileheader length.
  *  1.06 readbytes, getLine, sendMultipleBytes: return bytes read / sent in D1.L, not only D1.W, trap#3,D0=6 implemented.
  *  1.05 small optimizations, files aren't passed chan defn blk,setFileHeader call uses the true length of the file, not the one passed in the header block 
@@ -46,7 +55,10 @@ public class WinFile
 {
     protected int filePosition=WinDriver.HEADER_LENGTH;     // this is the JAVA file position in the  buffer = smsqe position + fileheader(now points after the header of the file).
     protected int fileSize;                                 // file size INCLUDING the header.
-    protected java.nio.ByteBuffer buffer;                   // buffer containing the content of the file.
+    protected java.nio.ByteBuffer buffer;                   // buffer containing the content of the file, null if it is read cluster by cluster.
+    protected java.nio.ByteBuffer[] clusters;               // the content of the file, one buffer per cluster, null if not read yet (may be longer than the clusterchain)
+    protected java.util.BitSet changedClusters=new java.util.BitSet();// the clusters that must be written back to the drive
+    protected int clusterSize;                              // size of one cluster on the drive
     protected int index;                                    // index into the directory where file is in  = position, in bytes, in the dir.
                                                             // unless the is the root directory, this will always be<>0 (1st file is after file header)
     protected WinDir dir;                                   // the dir containing the file, null if this is the root dir.
@@ -71,14 +83,39 @@ public class WinFile
      * @param cchain the clusterchain for this object.
      */
     public WinFile(WinDrive drive,WinDir dir, int index,boolean readOnly,java.nio.ByteBuffer buf,java.util.ArrayList<Integer> cchain)
+    {
+        this(drive,dir,index,readOnly,cchain);
+        this.buffer=buf;
+        this.buffer.position(this.filePosition);
+        int nbr=Math.min(buf.capacity()/this.clusterSize,this.clusters.length);
+        for (int i=0;i<nbr;i++)                             // the clusters are already in the buffer
+        {
+            buf.limit((i+1)*this.clusterSize);
+            buf.position(i*this.clusterSize);
+            this.clusters[i]=buf.slice();
+        }
+        buf.limit(buf.capacity());
+        buf.position(this.filePosition);
+    }
+    
+    /**
+     * Creates the object for a file whose content will be read from the drive, cluster by cluster, when it is needed.
+     * 
+     * @param drive the WinDrive the file is on.
+     * @param dir the directory where this file is in.
+     * @param index index into the buffer of the dir containing this file (if file is not the root dir) (this index point to the file header for this file).
+     * @param readOnly set to true of this file is opened for read only access.
+     * @param cchain the clusterchain for this object.
+     */
+    public WinFile(WinDrive drive,WinDir dir, int index,boolean readOnly,java.util.ArrayList<Integer> cchain)
     {
         this.drive=drive;
         this.readOnly=readOnly;
         this.index=index;
         this.dir=dir;
-        this.buffer=buf;
-        this.buffer.position(this.filePosition);
         this.clusterchain=cchain;
+        this.clusterSize=drive.getClusterSize();
+        this.clusters=new java.nio.ByteBuffer[cchain.size()];
         if (this.dir!=null)
             this.fileSize=this.dir.getFileLength(this.index);
         else
@@ -126,16 +163,26 @@ public class WinFile
     {
         if (!this.readOnly)                                 // if file is read only, nothing of the file should be saved to dsik
         {
-            if (this.fileChanged)                           // something in the file has changed, write out the current cluster
+            if (this.fileChanged)                           // something in the file has changed, write out the changed clusters
             {
-                writeFile(0,0);
+                try
+                {
+                    writeClusters();
+                }
+                catch (Exception e)
+                {
+                    /*nop*/
+                }
             }
         }
         if (this.dir!=null)
             this.dir.closeFile(this.index, this.dirChanged,this.setDate);  // close this file in dir: set size & dates, write dir back to file
-        if (this.mapChanged)                                // if something in the FAT has changed, write out the FAT.
+        if (this.mapChanged)                                // if something in the FAT has changed, write out the FAT (and the cache).
             this.drive.flush();
+        else
+            this.drive.flushCache();                        // write out what was written to the cache
         this.buffer=null;
+        this.clusters=null;
     }
     
     /**
@@ -164,7 +211,13 @@ public class WinFile
                     cpu.data_regs[0]=Types.ERR_EOF;         //... there is none 
                 else
                 {
-                    cpu.data_regs[1]=(cpu.data_regs[1]&0xffffff00)+ (this.buffer.get()&0xff);// set byte (increases buffer position)
+                    int res=getByte(this.filePosition);
+                    if (res<0)
+                    {
+                        cpu.data_regs[0]=Types.ERR_TRNS;    // couldn't read the cluster
+                        break;
+                    }
+                    cpu.data_regs[1]=(cpu.data_regs[1]&0xffffff00)+res;// set byte
                     this.filePosition++;                    // increase fileposition
                     cpu.data_regs[0]=0; 
                 }
@@ -212,7 +265,7 @@ public class WinFile
                 {
                     try
                     {
-                        this.drive.writeFile(this.buffer, this.clusterchain);
+                        writeClusters();
                     }
                     catch (Exception e)
                     {
@@ -224,11 +277,8 @@ public class WinFile
                         this.dir.writeFile(0,0);
                      //   this.dirChanged=false;            // do not set this to false, else file might not have correct date when closed
                     }
-                    if (this.mapChanged)
-                    {
-                        this.drive.flush();
-                        this.mapChanged=false;
-                    }
+                    this.drive.flushNow();                  // data, dir and the FAT (if it changed), now
+                    this.mapChanged=false;
                 }
                 break;  
                  
@@ -245,7 +295,6 @@ public class WinFile
                 if (this.filePosition<WinDriver.HEADER_LENGTH)
                     this.filePosition=WinDriver.HEADER_LENGTH;  // negative position is set to "0" without error
                 cpu.data_regs[1]=this.filePosition-WinDriver.HEADER_LENGTH;// file position for SMSQ/E (no header)
-                this.buffer.position(this.filePosition);    // keep those in sync
                 break;
                 
             //case 0x45: already done by driver
@@ -289,9 +338,7 @@ public class WinFile
                 
             case 0x48:                                      // load entire file from disk into mem
                 this.filePosition=WinDriver.HEADER_LENGTH;
-                this.buffer.position(this.filePosition);
                 readBytes(cpu,this.fileSize-WinDriver.HEADER_LENGTH);
-                this.filePosition=this.buffer.position();
                 break;
                 
             case 0x49:                                      // save entire file from mem to disk
@@ -314,7 +361,23 @@ public class WinFile
                 }
                 else
                 {
+                    int nbr=(this.filePosition+this.clusterSize-1)/this.clusterSize;// nbr of clusters the file keeps
+                    if (nbr!=this.clusterchain.size())      // the file will be given a new clusterchain : read what is kept of it
+                    {
+                        if (!readClusters(0,nbr))
+                        {
+                            cpu.data_regs[0]=Types.ERR_TRNS;
+                            break;
+                        }
+                    }
+                    java.util.ArrayList<Integer> oldchain=this.clusterchain;
                     this.clusterchain=this.drive.truncateFile(this.fileSize,this.filePosition,this.clusterchain);
+                    if (this.clusterchain!=oldchain)        // all clusters are now elsewhere on the drive
+                    {
+                        this.clusters=java.util.Arrays.copyOf(this.clusters,this.clusterchain.size());
+                        this.changedClusters.clear();
+                        this.changedClusters.set(0,this.clusters.length);
+                    }
                     this.fileSize=this.filePosition;        // truncate file now
                     this.dir.setInHeader(this.index,this.fileSize);// set new filesize in header in dir
                     this.dirChanged=true;
@@ -408,15 +471,28 @@ public class WinFile
         if (this.filePosition+bytesToRead > this.fileSize)  // reading would exceed EOF : get as many bytes as possible.
             bytesToRead=this.fileSize-this.filePosition;
         
-        int bytesRead=cpu.readFromBuffer(cpu.addr_regs[1], bytesToRead, this.buffer, this.filePosition);// nbr of bytes read
-        if (bytesRead==-1)
+        int first=this.filePosition/this.clusterSize;           // first and last cluster to read from
+        int last=(this.filePosition+bytesToRead-1)/this.clusterSize;
+        if (!readClusters(first,last+1-first))
         {
             cpu.data_regs[1]&=0xffff0000;                       // no bytes gotten
-            cpu.data_regs[0]=Types.ERR_EOF;                     // show that we tried to read more than the file has to give (end of file reached)
+            cpu.data_regs[0]=Types.ERR_TRNS;                    // couldn't read the clusters
             return;
         }
-        this.filePosition+=bytesRead;
-        this.buffer.position(this.filePosition);                // new file position
+        int bytesRead=0;
+        while (bytesRead<bytesToRead)                           // copy cluster by cluster
+        {
+            int offset=this.filePosition%this.clusterSize;
+            int nbr=Math.min(bytesToRead-bytesRead,this.clusterSize-offset);
+            int read=cpu.readFromBuffer(cpu.addr_regs[1]+bytesRead, nbr, this.clusters[this.filePosition/this.clusterSize], offset);
+            if (read>0)
+            {
+                bytesRead+=read;
+                this.filePosition+=read;
+            }
+            if (read!=nbr)
+                break;                                          // no more memory to read into
+        }
         cpu.addr_regs[1]+=bytesRead;                            // updated buffer pointer for SMSQE
       //  cpu.data_regs[1]=(cpu.data_regs[1]&0xffff0000)|bytesRead;// necessary for iob.fmul, not for iof.load
         cpu.data_regs[1]=bytesRead;                             // necessary for iob.fmul, not for iof.load
@@ -444,7 +520,7 @@ public class WinFile
             cpu.data_regs[0]=Types.ERR_EOF;                 // I can't read anything : am at the end of the file
             return;  
         }                                                   
-        this.buffer.position(this.filePosition);            // this is where I read from
+        int pos=this.filePosition;                          // this is where I read from
         
         int A1 = cpu.addr_regs[1];                          // where to read to - THIS MAY BE AN ODD ADDRESS!!!!!
         int bufflen=cpu.data_regs[2]&0xffff;                // length of buffer to read into
@@ -453,11 +529,16 @@ public class WinFile
             bufflen=this.fileSize-this.filePosition;        // nbr of bytes to get
         }
         boolean foundit=false;
-        byte res;
+        int res;
         int oldA1=A1;
         for (;A1<oldA1+bufflen;A1++)                        // used to be (;A1<A1+bufflen;A1++) but apparently A1+bufflen get re-evaluated each time in the loop (HUH????)
         {
-            res=this.buffer.get();                          // get byte from my buffer
+            res=getByte(pos++);                             // get byte from my clusters
+            if (res<0)
+            {
+                cpu.data_regs[0]=Types.ERR_TRNS;            // couldn't read the cluster
+                return;
+            }
             cpu.writeMemoryByte(A1, res);                   // write it into memory
             if (res==10)                                    // check for LF
             {
@@ -488,7 +569,7 @@ public class WinFile
             }
             else
             {                                               // check for CR before LF and strip it
-                if (bufflen>1 && this.buffer.get(this.buffer.position()-2)==0x0d)
+                if (bufflen>1 && getByte(pos-2)==0x0d)
                 {
                     cpu.writeMemoryByte(A1-2,0x0a);         // convert CR into LF
                     A1--;                                   
@@ -500,7 +581,7 @@ public class WinFile
         cpu.addr_regs[1]=A1;
    //     cpu.data_regs[1]=(cpu.data_regs[1]&0xffff0000)| bufflen;// nbr of bytes read in lower word
         cpu.data_regs[1]=bufflen;                               // nbr of bytes read
-        this.filePosition=this.buffer.position();               // new file position
+        this.filePosition=pos;                                  // new file position
     }
     
     /**
@@ -511,21 +592,19 @@ public class WinFile
      */
     private void sendByte(smsqmulator.cpu.MC68000Cpu cpu)
     {
-        if (this.filePosition>=this.buffer.capacity())      // is there enough space to add one byte?
+        if (!makeSpace(this.filePosition+1))                // is there enough space to add one byte?
         {
-            this.buffer.position(0);                        // no, increase space
-            this.buffer.limit(this.fileSize);               // prepare for increase capacity
-            java.nio.ByteBuffer buf = this.drive.increaseCapacity(this.buffer,1,this.clusterchain);
-            if (buf==null)
-            {
-                cpu.data_regs[0]=Types.ERR_DRFL;
-                return;
-            }
-            this.buffer=buf;
-            this.mapChanged=true;
+            cpu.data_regs[0]=Types.ERR_DRFL;
+            return;
         }   
-        this.buffer.position(this.filePosition);
-        this.buffer.put((byte)(cpu.data_regs[1]&0xff));
+        int cluster=this.filePosition/this.clusterSize;
+        if (!readClusters(cluster,1))
+        {
+            cpu.data_regs[0]=Types.ERR_TRNS;
+            return;
+        }
+        this.clusters[cluster].put(this.filePosition%this.clusterSize,(byte)(cpu.data_regs[1]&0xff));
+        this.changedClusters.set(cluster);
         this.filePosition++;                                    
         if (this.filePosition>this.fileSize)
         {
@@ -552,23 +631,21 @@ public class WinFile
             return;
         }
         
-        // check whether we have enough space in the buffer  
-        int spaceLeft=this.buffer.capacity()-this.filePosition; // how much space I have left in the buffer to write as of here
-        if (spaceLeft<bytesToWrite)
+        // check whether we have enough clusters
+        if (!makeSpace(this.filePosition+bytesToWrite))
         {
-            this.buffer.position(0);                            // prepare for increaseCapacity call.
-            this.buffer.limit(this.fileSize);
-            java.nio.ByteBuffer buf = this.drive.increaseCapacity(this.buffer,bytesToWrite-spaceLeft,this.clusterchain);
-            if (buf==null)
-            {
-                cpu.data_regs[0]=Types.ERR_DRFL;
-                return;
-            }
-            this.buffer=null;
-            this.buffer=buf;
-            this.mapChanged=true;
+            cpu.data_regs[0]=Types.ERR_DRFL;
+            return;
         }   
-        this.buffer.position(this.filePosition);            // start to write as of here
+        // clusters only partly overwritten must be read first, those that are entirely overwritten needn't be
+        int first=this.filePosition/this.clusterSize;
+        int last=(this.filePosition+bytesToWrite-1)/this.clusterSize;
+        if ((this.filePosition%this.clusterSize!=0 && !readClusters(first,1)) ||
+            ((this.filePosition+bytesToWrite)%this.clusterSize!=0 && !readClusters(last,1)))
+        {
+            cpu.data_regs[0]=Types.ERR_TRNS;
+            return;
+        }
       
         /* special case if only one byte is sent - but the extra complication isn't worth it, no noticeable speed increase
         if (bytesToWrite==1)
@@ -589,16 +666,21 @@ public class WinFile
             return;
         } 
         */
-        bytesToWrite= cpu.writeToBuffer(this.buffer,cpu.addr_regs[1],bytesToWrite);
-        if (bytesToWrite == -1)
+        for (int written=0;written<bytesToWrite;)               // write cluster by cluster
         {
-            cpu.data_regs[0]=Types.ERR_DRFL;
-            return;
+            int cluster=this.filePosition/this.clusterSize;
+            int offset=this.filePosition%this.clusterSize;
+            int nbr=Math.min(bytesToWrite-written,this.clusterSize-offset);
+            if (this.clusters[cluster]==null)                   // entirely overwritten, no need to read it
+                this.clusters[cluster]=java.nio.ByteBuffer.allocate(this.clusterSize);
+            this.clusters[cluster].position(offset);
+            cpu.writeToBuffer(this.clusters[cluster],cpu.addr_regs[1]+written,nbr);
+            this.changedClusters.set(cluster);
+            written+=nbr;
+            this.filePosition+=nbr;
         }
-        this.filePosition+=bytesToWrite;
         if (this.filePosition>this.fileSize)                
             this.fileSize=this.filePosition;
-        this.buffer.position(this.filePosition);
         cpu.addr_regs[1]+=bytesToWrite;
     //    cpu.data_regs[1]&=0xffff0000;                       // eliminate lower word of D1
       //  cpu.data_regs[1]|= (bytesToWrite&0xffff);           // put nbr of bytes there
@@ -625,7 +707,12 @@ public class WinFile
              return;
         }
         
-        if (this.dir.makeDirectory(this.index, this.clusterchain, this.buffer))// make me into a directory within the direcory that contains me
+        if (!readClusters(0,1))
+        {
+            cpu.data_regs[0]=Types.ERR_TRNS;
+            return;
+        }
+        if (this.dir.makeDirectory(this.index, this.clusterchain, this.clusters[0]))// make me into a directory within the direcory that contains me
         {
             this.fileSize=this.dir.getFileLength(this.index);
             //this.fileSize=WinDriver.HEADER_LENGTH;         
@@ -637,7 +724,94 @@ public class WinFile
     }
     
     /**
-     * Writes all or part of this file back to the disk.
+     * Makes sure that a cluster buffer exists for some clusters, reading them from the drive if need be.
+     * 
+     * @param first the first cluster (index into the clusterchain).
+     * @param count how many clusters.
+     * 
+     * @return <code>true</code> if OK, <code>false</code> if a cluster couldn't be read.
+     */
+    private boolean readClusters(int first,int count)
+    {
+        int end=Math.min(first+count,this.clusterchain.size());
+        for (int i=first;i<end;i++)
+        {
+            if (this.clusters[i]==null)
+            {
+                int j=i+1;
+                while (j<end && this.clusters[j]==null)
+                    j++;                                    // read consecutive missing clusters in one go
+                if (!this.drive.readClusters(this.clusterchain,i,j-i,this.clusters))
+                    return false;
+                i=j;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Gets one byte of the file.
+     * 
+     * @param position where in the file (including the header).
+     * 
+     * @return the byte (0...255), or -1 if the cluster couldn't be read.
+     */
+    private int getByte(int position)
+    {
+        int cluster=position/this.clusterSize;
+        if (!readClusters(cluster,1))
+            return -1;
+        return this.clusters[cluster].get(position%this.clusterSize)&0xff;
+    }
+    
+    /**
+     * Makes sure that the file has enough clusters for a certain size, adding clusters at the end of the clusterchain if need be.
+     * Added clusters are not read from the drive, they start out empty.
+     * <p>
+     * The clusters are allocated by the FreeSpaceMap of the drive, by runs : first the free clusters right after the end of the
+     * chain, then the smallest free run that is big enough (best fit), else the biggest runs until there are enough clusters.
+     * Each run taken costs O(log r) (r = number of free runs) to update the index, plus the FAT links around it ; each cluster
+     * costs O(1) to link into the chain. On a nearly full drive, where the free space is scattered over many small runs, a file
+     * thus takes more runs and allocating is slower than when there is contiguous free space. The array of cluster buffers
+     * grows by half its size when it is full, so that it isn't copied each time a file that is written sequentially gets
+     * a new cluster.
+     * 
+     * @param size the size the file must be able to have (including the header).
+     * 
+     * @return <code>true</code> if OK, <code>false</code> if the drive is full.
+     */
+    private boolean makeSpace(int size)
+    {
+        int needed=(size+this.clusterSize-1)/this.clusterSize-this.clusterchain.size();// nbr of clusters to add
+        if (needed<=0)
+            return true;
+        int old=this.clusterchain.size();
+        if (!this.drive.addClusters(needed,this.clusterchain))
+            return false;
+        int nbr=this.clusterchain.size();
+        if (nbr>this.clusters.length)                       // grow geometrically
+            this.clusters=java.util.Arrays.copyOf(this.clusters,Math.max(nbr,this.clusters.length+(this.clusters.length>>1)));
+        for (int i=old;i<nbr;i++)
+        {
+            this.clusters[i]=java.nio.ByteBuffer.allocate(this.clusterSize);
+        }
+        this.mapChanged=true;
+        return true;
+    }
+    
+    /**
+     * Writes the clusters that changed back to the drive.
+     * 
+     * @throws java.io.IOException  any i/o exception from the java i/o operations.
+     */
+    private void writeClusters() throws java.io.IOException
+    {
+        this.drive.writeClusters(this.clusterchain,this.changedClusters,this.clusters);
+        this.changedClusters.clear();
+    }
+    
+    /**
+     * Writes all or part of the buffer of this file (a directory) back to the disk.
      * 
      * @param start where to start writing from (index into the buffer).
      * @param nbr  how many bytes to write.
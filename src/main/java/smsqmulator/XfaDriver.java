@@ -14,6 +14,13 @@ package smsqmulator;
  * 
  * @author and copyright (c) 2012 -2017 Wolfgang Lenerz
  * @version 
+ * 1.12 the DirCache is told of writes by the files themselves, when the bytes reach the native file, not at every trap#3 call.
+ * 1.11 channels to the same file : the bytes the others must still write are written before a file is opened or used, a
+ *      channel that changed the file then writes its own and the others throw their buffers away.
+ * 1.10 closeFile : the channel is released even if closing the file fails.
+ * 1.09 setBufferSizes : files get a read ahead / write behind buffer, kept coherent between channels to the same file.
+ * 1.08 setDirCache : dirs are opened with the buffers from a DirCache, which is told of every change made to the files.
+ * 1.07 setAsyncIO : files get the object doing asynchronous I/O.
  * 1.06 openFile as directory, use root dir if no part of the file is a dir ; use correct subdir found, if any. .
  * 1.05 openFile don't crash if directory not found.
  * 1.04 openFile better handling of names in chan defn block when opening a directory file
@@ -37,6 +44,9 @@ public class XfaDriver implements DeviceDriver
     protected int usage;                                    // usage name for device.
     protected int filenameChange=0;                         //  0 = no change,  1= set to UPPER, 2 =set to lower.
     protected java.nio.ByteBuffer tempHeader;               // this should speed up Sfa drive operations
+    protected AsyncIO asyncIO;                              // if not null, big reads and writes of files are done asynchronously
+    protected DirCache dirCache;                            // if not null, the dir buffers are cached here
+    protected int[] bufferSize=new int[8];                  // size of the read ahead / write behind buffer of files, per drive
     
     /*
      *  TODO close all channels on a drive when drive name changes. 'NFA_DRIVE x,yyyyyyy'
@@ -148,7 +158,8 @@ public class XfaDriver implements DeviceDriver
                     this.cpu.data_regs[0]=Types.ERR_FEX;// signal file already exists
                     return false;  
                 }                 
-                fileOpen(driveNumber,file,filename,channelDefinitionBlock,false, true);
+                if (fileOpen(driveNumber,file,filename,channelDefinitionBlock,false, true) && this.dirCache!=null)
+                    this.dirCache.invalidate(file);         // a new file in the dir
                 break;
                 
             case 3:                                         // open overwrite - delete old file if it exists
@@ -173,7 +184,8 @@ public class XfaDriver implements DeviceDriver
                         return false;  
                     }
                 }
-                fileOpen(driveNumber,file,filename,channelDefinitionBlock,false, true);
+                if (fileOpen(driveNumber,file,filename,channelDefinitionBlock,false, true) && this.dirCache!=null)
+                    this.dirCache.invalidate(file);         // a new (or emptied) file in the dir
                 break;
                 
             case 4:                                         // open dir - this is special - if any name on the path isn't a subdir, use the earlier dir, SMSQE does the filetrings
@@ -327,9 +339,17 @@ public class XfaDriver implements DeviceDriver
         }
         else
         {
-            xfaFile.close(this.cpu);
-            this.fileMap[driveNumber].remove(fileID);
-            this.fileNumber[driveNumber][fileID]=false;
+            try
+            {
+                xfaFile.close(this.cpu);                    // D0 is set there, also on error
+            }
+            finally
+            {
+                if (this.dirCache!=null && !xfaFile.isIsDir())
+                    this.dirCache.invalidate(xfaFile.getFile());// the header and dates may have been set when closing
+                this.fileMap[driveNumber].remove(fileID);   // the channel is gone anyway
+                this.fileNumber[driveNumber][fileID]=false;
+            }
             return true;
         }
     }
@@ -368,7 +388,11 @@ public class XfaDriver implements DeviceDriver
         else
         {
             if (file.delete())
+            {
                 this.cpu.data_regs[0]=0;// signal DELETE ok
+                if (this.dirCache!=null)
+                    this.dirCache.invalidate(file);
+            }
             else
             {
                 if (file.exists())
@@ -437,6 +461,8 @@ public class XfaDriver implements DeviceDriver
             if (names[i]!=null)
                 this.nativeDir[i]=names[i];
         }                                 
+        if (this.dirCache!=null)
+            this.dirCache.clear();                          // the filenames in the dir buffers depend on the drive names
         return true;
     }
     
@@ -452,6 +478,8 @@ public class XfaDriver implements DeviceDriver
         if (driveNumber<0 || driveNumber>7 || dirname==null)
             return;
         this.nativeDir[driveNumber]=dirname;
+        if (this.dirCache!=null)
+            this.dirCache.clear();
     }
     
     /**
@@ -476,7 +504,7 @@ public class XfaDriver implements DeviceDriver
         {
             if (isDir)
             {
-                xfaFile=new XfaFile(file,filename,true,driveNumber,this.nativeDir,this.deviceID,this.filenameChange,this.usage);// open file as dir
+                xfaFile=new XfaFile(file,filename,true,driveNumber,this.nativeDir,this.deviceID,this.filenameChange,this.usage,this.dirCache);// open file as dir
             }
             else
             {
@@ -507,6 +535,9 @@ public class XfaDriver implements DeviceDriver
                     }
                 }
                 xfaFile=new XfaFile(raFile,inoutChannel,doLock,file,filename,isDir,this.deviceID,driveNumber,this.nativeDir,this.filenameChange,this.usage);
+                xfaFile.setAsyncIO(this.asyncIO);
+                xfaFile.setDirCache(this.dirCache);
+                xfaFile.setBufferSize(this.bufferSize[driveNumber]);
             }
             int fileNbr=getFreeNumber(driveNumber);         // try to find a space for the file.
             if (fileNbr==-1)
@@ -516,6 +547,8 @@ public class XfaDriver implements DeviceDriver
             }
             this.fileNumber[driveNumber][fileNbr]=true;
             this.fileMap[driveNumber].put(fileNbr,xfaFile);
+            if (!isDir)
+                flushOtherChannels(driveNumber,xfaFile);    // this channel must read what the others wrote
             this.cpu.writeMemoryWord(channelDefinitionBlock+0x1e, fileNbr);
             this.cpu.writeMemoryWord(channelDefinitionBlock+0x5e, fileNbr);
             this.cpu.data_regs[0]=0;                            // open went OK
@@ -556,10 +589,175 @@ public class XfaDriver implements DeviceDriver
             this.cpu.data_regs[0]=Types.ERR_FDNF;                   //*** was word, not long
         }
         else
+        {
+            java.io.File file=nfaFile.getFile();            // before a rename
+            boolean shared=!nfaFile.isIsDir() && this.fileMap[driveNumber].size()>1 && flushOtherChannels(driveNumber,nfaFile);
             nfaFile.handleTrap3(trapKey,channelDefinitionBlock,this.cpu,this.nativeDir[driveNumber]);
+            if (shared && XfaDriver.changesFile(trapKey))
+                syncOtherChannels(driveNumber,nfaFile);
+            if (this.dirCache!=null && !nfaFile.isIsDir() && XfaDriver.changesDir(trapKey))
+            {
+                if (trapKey==0x4d)
+                    this.dirCache.clear();                  // make directory moves files about
+                else
+                {
+                    this.dirCache.invalidate(file);
+                    if (nfaFile.getFile()!=file)
+                        this.dirCache.invalidate(nfaFile.getFile());// renamed, perhaps into another dir
+                }
+            }
+        }
         return true;
     }
     
+    /**
+     * Makes a channel to a file see what the other channels to the same file wrote : the bytes still in their buffers are written
+     * to the native file (they keep their buffers). This must be done before the channel reads or writes the file.
+     * 
+     * @param driveNumber the drive the file is on.
+     * @param xfaFile the channel about to use the file.
+     * 
+     * @return <code>true</code> if there are other channels to the same file.
+     */
+    private boolean flushOtherChannels(int driveNumber,XfaFile xfaFile)
+    {
+        boolean shared=false;
+        for (XfaFile other:this.fileMap[driveNumber].values())
+        {
+            if (other!=xfaFile && !other.isIsDir() && other.getFile().equals(xfaFile.getFile()))
+            {
+                other.syncBuffer(true);
+                shared=true;
+            }
+        }
+        return shared;
+    }
+    
+    /**
+     * Makes the other channels to a file that was changed see the change : the bytes still in the buffer of the channel that changed
+     * the file are written to the native file, the other channels then throw their buffers away. Their own bytes were written by
+     * flushOtherChannels, before the change, so that they don't overwrite it now.
+     * 
+     * @param driveNumber the drive the file is on.
+     * @param xfaFile the channel that changed the file.
+     */
+    private void syncOtherChannels(int driveNumber,XfaFile xfaFile)
+    {
+        xfaFile.syncBuffer(true);
+        for (XfaFile other:this.fileMap[driveNumber].values())
+        {
+            if (other!=xfaFile && !other.isIsDir() && other.getFile().equals(xfaFile.getFile()))
+                other.syncBuffer(false);
+        }
+    }
+    
+    /**
+     * Checks whether a trap #3 call may change the contents of a file, which the other channels to that file must then see.
+     * 
+     * @param trapKey the trap call (D0).
+     * 
+     * @return <code>true</code> if it may.
+     */
+    private static boolean changesFile(int trapKey)
+    {
+        switch (trapKey)
+        {
+            case 0x05:                                      // send byte(s)
+            case 0x06:
+            case 0x07:
+            case 0x46:                                      // set header
+            case 0x49:                                      // save file
+            case 0x4b:                                      // truncate
+            case 0x4c:                                      // set dates
+            case 0x4e:                                      // set version
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Checks whether a trap #3 call may change what a dir shows about a file (its header, dates or name) at once. Bytes sent to
+     * the file (D0=5,6,7,$49) only change its length and date when they reach the native file : the file itself then tells
+     * the DirCache.
+     * 
+     * @param trapKey the trap call (D0).
+     * 
+     * @return <code>true</code> if it may.
+     */
+    private static boolean changesDir(int trapKey)
+    {
+        switch (trapKey)
+        {
+            case 0x46:                                      // set header
+            case 0x4a:                                      // rename
+            case 0x4b:                                      // truncate
+            case 0x4c:                                      // set dates
+            case 0x4d:                                      // make directory
+            case 0x4e:                                      // set version
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Sets the object doing asynchronous I/O for the files opened from now on.
+     * 
+     * @param asyncIO the object, <code>null</code> if all I/O is to be done at once.
+     */
+    public void setAsyncIO(AsyncIO asyncIO)
+    {
+        this.asyncIO=asyncIO;
+    }
+    
+    /**
+     * Sets the sizes of the read ahead / write behind buffers of the files opened from now on.
+     * 
+     * @param sizes the sizes in bytes, for drives 1 to 8, separated by commas. The last size given is used for the remaining drives.
+     *        0 means no buffer.
+     */
+    public void setBufferSizes(String sizes)
+    {
+        int size=0;
+        String[] parts=sizes==null?new String[0]:sizes.split(",");
+        for (int i=0;i<this.bufferSize.length;i++)
+        {
+            if (i<parts.length)
+            {
+                try
+                {
+                    size=Math.max(Integer.parseInt(parts[i].trim()),0);
+                }
+                catch (NumberFormatException e)
+                {
+                    size=0;
+                }
+            }
+            this.bufferSize[i]=size;
+        }
+    }
+    
+    /**
+     * Sets the cache for the buffers of the dirs opened from now on. The files already open tell it of their writes, too.
+     * 
+     * @param dirCache the cache, <code>null</code> if dirs are always to be read anew.
+     */
+    public void setDirCache(DirCache dirCache)
+    {
+        if (this.dirCache!=null)
+            this.dirCache.clear();
+        this.dirCache=dirCache;
+        for (java.util.HashMap<Integer,XfaFile> files:this.fileMap)
+        {
+            for (XfaFile xfaFile:files.values())
+            {
+                if (!xfaFile.isIsDir())
+                    xfaFile.setDirCache(dirCache);
+            }
+        }
+    }
+    
     /**
      * This sets the usage name of the device, eg. "NFA_USE WIN"
      * 
@@ -674,6 +872,8 @@ public class XfaDriver implements DeviceDriver
         if (change>2 || change<0)
             return;
         this.filenameChange=change;
+        if (this.dirCache!=null)
+            this.dirCache.clear();                          // the dir buffers only show files with names in the right case
     }
     
     /**
@@ -714,9 +914,15 @@ public class XfaDriver implements DeviceDriver
                 if (this.fileNumber[drive][files])          // any files open?
                 {
                     file=this.fileMap[drive].get(files);    // yes, get it from map      
-                    file.close(this.cpu);                   // close file  
-                    this.fileMap[drive].remove(files);      // remove from map
-                    this.fileNumber[drive][files]=false;    // show no file open
+                    try
+                    {
+                        file.close(this.cpu);               // close file  
+                    }
+                    finally
+                    {
+                        this.fileMap[drive].remove(files);  // remove from map
+                        this.fileNumber[drive][files]=false;// show no file open
+                    }
                 }
             }
         }
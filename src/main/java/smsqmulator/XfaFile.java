@@ -9,6 +9,13 @@ package smsqmulator;
  * @author and copyright (c) 2012 - 2017 Wolfgang Lenerz.
  * 
  * @version  
+ *   1.18  setDirCache : the cache of dir buffers is told when bytes of the file reach the native file.
+ *   1.17  close returns ERR_DRFL if the bytes still in the buffer couldn't be written.
+ *   1.16  sameAsMemory compares words with MemoryTransfer.isSame.
+ *   1.15  small reads and writes (trap#3 D0=1,2,3,5,6,7) go through a read ahead / write behind buffer, if there is one.
+ *   1.14  the dir constructor takes the dir buffer from a DirCache, if it is there, and puts it there if not.
+ *   1.13  big reads and writes (trap#3 D0=3,7,$48,$49) may be done asynchronously (see AsyncIO), returning ERR_NC until they are done.
+ *   1.12  loadFile and saveFile generate JFR events if JFR is recording.
  *   1.11  use NfaFileheader.setAttrs in makeDirBuffer to set some file attributes in SMSQE file header.
  *   1.10  don't show files whose filenames are too long.
  *   1.09  if file is a dir on sfa and file has qemuheader : set correct filelength in dirBuffer ; getExtendedInfo is for all files, not ony dirs..
@@ -63,6 +70,15 @@ public class XfaFile
     private boolean setVersion=true;                        // same for version
     protected java.util.TimeZone timeZone=java.util.TimeZone.getDefault();
     protected java.nio.ByteBuffer dirBuffer;                // a buffer with space for headers of all files
+    protected AsyncIO asyncIO;                              // if not null, big reads and writes are done asynchronously
+    private AsyncIO.Operation pending;                      // asynchronous read or write whose result wasn't given to SMSQ/E yet
+    private boolean pendingWrite;                           // that operation is a write
+    private java.nio.ByteBuffer ioBuffer;                   // read ahead / write behind buffer for small reads and writes, null if none
+    private int bufferStart;                                // position in native file of first byte in ioBuffer
+    private int bufferLength;                               // nbr of valid bytes in ioBuffer, from its start
+    private int dirtyStart;                                 // bytes from dirtyStart to dirtyEnd in ioBuffer must still be written
+    private int dirtyEnd;                                   // to the native file (none if both are the same)
+    private DirCache dirCache;                              // told when bytes reach the native file, null if none
     
     
     /*********************** File open & close  *************************************/
@@ -126,8 +142,9 @@ public class XfaFile
      * @param deviceID the deviceID of the driver.
      * @param filenameChange type of filename change (0,1,2).
      * @param usageName usage name for this device.
+     * @param dirCache the cache of dir buffers, <code>null</code> if none.
      */
-    public XfaFile (java.io.File file,String filename,boolean isDir,int driveNumber,String [] names,int deviceID,int filenameChange,int usageName)
+    public XfaFile (java.io.File file,String filename,boolean isDir,int driveNumber,String [] names,int deviceID,int filenameChange,int usageName,DirCache dirCache)
     {
         this.file=file;
         this.isDir=isDir;
@@ -139,11 +156,20 @@ public class XfaFile
         this.deviceID=deviceID;
         if (file.isDirectory())
         {
-            this.myFiles=file.listFiles();
-            this.myFileNames=file.list();
             this.freeSize=(int)(file.getUsableSpace()/XfaFile.allocSize);
             this.totalSize=(int)(file.getTotalSpace()/XfaFile.allocSize);
-            makeDirBuffer();
+            byte[]cached=dirCache==null?null:dirCache.get(driveNumber,file);
+            if (cached!=null)
+                this.dirBuffer=java.nio.ByteBuffer.wrap(cached);// only ever read, may be shared
+            else
+            {
+                long stamp=dirCache==null?0:dirCache.prepare(file);// before the dir is listed
+                this.myFiles=file.listFiles();
+                this.myFileNames=file.list();
+                makeDirBuffer();
+                if (dirCache!=null)
+                    dirCache.put(driveNumber,file,this.dirBuffer.array(),this.myFiles,stamp);
+            }
         }
         makeFileheader(file,this.filename,null);
     }
@@ -207,10 +233,13 @@ public class XfaFile
    /**
      * Close this file : release file locks, if any and flush headers.
      * The SMSQE close routine for ths driver handles releasing the cdb lock etc
+     * The file is always closed, D0 is set to ERR_DRFL if the bytes still in the buffer couldn't be written.
      * @param cpu the CPU object used for executing the program.
      */
     public void close(smsqmulator.cpu.MC68000Cpu cpu)
     {
+        abandonPending();
+        boolean flushed=syncBuffer(false);                  // before the header is flushed and the dates are set
         boolean doDateChange=false;
         if (!this.readOnly && this.header!=null)
             doDateChange = this.header.flushHeader(this.inoutChannel,this.setDate);
@@ -231,7 +260,7 @@ public class XfaFile
         {
             this.header.setFileDates(this.file);
         }
-        cpu.data_regs[0]=0;
+        cpu.data_regs[0]=flushed?0:Types.ERR_DRFL;          // pretend that drive is full if write error, as for the other writes
         this.header=null;       
     } 
 
@@ -247,6 +276,13 @@ public class XfaFile
      */
     public void handleTrap3(int trapKey,int channelDefinitionBlock,smsqmulator.cpu.MC68000Cpu cpu,String nativeDir)
     {
+        if (this.pending!=null && finishPending(trapKey,cpu))
+            return;                                         // this was the retry of an asynchronous operation
+        if (this.ioBuffer!=null && !XfaFile.usesBuffer(trapKey) && !syncBuffer(XfaFile.keepsBuffer(trapKey)))
+        {
+            cpu.data_regs[0]=Types.ERR_DRFL;                // what was still in the buffer couldn't be written
+            return;
+        }
         int temp;
         switch (trapKey)
         {
@@ -256,8 +292,12 @@ public class XfaFile
                 {
                     try
                     {
-                        if (this.inoutChannel.position()>= this.raFile.length())
-                            cpu.data_regs[0]=Types.ERR_EOF;
+                        if (!isInBuffer())                  // (else there is some)
+                        {
+                            syncBuffer(true);               // bytes still to be written may make the file longer
+                            if (this.inoutChannel.position()>= this.raFile.length())
+                                cpu.data_regs[0]=Types.ERR_EOF;
+                        }
                     }
                     catch (Exception e)
                     {
@@ -280,6 +320,10 @@ public class XfaFile
                 break;
                 
             case 0x03:                                      // get a number of bytes from the file
+                if (!this.isDir && readBuffered(cpu))
+                    break;
+                if (!this.isDir && startPending(trapKey,cpu,false,cpu.data_regs[2]&0xffff,this.filePosition))
+                    break;
                 getBytes(cpu);                
                 break;
                 
@@ -300,7 +344,7 @@ public class XfaFile
             case 0x07:                                      // send multiple bytes
                 if (this.isDir || this.readOnly)            // but you can't if this is a directory
                     cpu.data_regs[0]=Types.ERR_RDO;               
-                else
+                else if (!writeBuffered(cpu) && !startPending(trapKey,cpu,true,cpu.data_regs[2]&0xffff,this.filePosition))
                 {
                     saveFile(cpu,false);
                 }
@@ -363,13 +407,15 @@ public class XfaFile
                 break;
                 
             case 0x48:                                      // load file into mem from disk
+                if (!this.isDir && startPending(trapKey,cpu,false,cpu.data_regs[2],this.headerOffset))
+                    break;
                 loadFile(cpu,true,true);
                 break;
                 
             case 0x49:                                      // save entire file from mem to disk
                 if (this.isDir || this.readOnly)            // but you can't if this is a directory or a read only file
                     cpu.data_regs[0]=Types.ERR_RDO;             
-                else
+                else if (!startPending(trapKey,cpu,true,cpu.data_regs[2],this.filePosition))
                     saveFile(cpu,true);                     // (must reposition pointer & length is longword)
                 break; 
                 
@@ -602,8 +648,12 @@ public class XfaFile
             else
                 this.inoutChannel.position(this.filePosition);  // start reading where we're supposed to
             
+            FlightRecorderEvents.XfaFileEvent event=FlightRecorderEvents.beginXfaFile();
+            int startPosition=(int) this.inoutChannel.position();
             int bytesRead=cpu.readFromFile(A1,length, this.inoutChannel);// read length bytes
             this.filePosition=(int) this.inoutChannel.position();// make sure we've got the correct file IO position
+            if (event!=null)
+                event.finish(this.file,false,startPosition,bytesRead,A1);
             if (bytesRead==-1)                                  // if we get this, the file was EOF before the read
             {
                 cpu.data_regs[0]=Types.ERR_EOF;                 // so set the error  
@@ -632,6 +682,167 @@ public class XfaFile
         }
     }
     
+    /**
+     * Sets the object doing asynchronous I/O.
+     * 
+     * @param asyncIO the object, <code>null</code> if all I/O is to be done at once.
+     */
+    public void setAsyncIO(AsyncIO asyncIO)
+    {
+        this.asyncIO=asyncIO;
+    }
+    
+    /**
+     * Sets the cache of dir buffers that must be told when bytes of this file reach the native file.
+     * 
+     * @param dirCache the cache, <code>null</code> if none.
+     */
+    public void setDirCache(DirCache dirCache)
+    {
+        this.dirCache=dirCache;
+    }
+    
+    /**
+     * Tells the cache of dir buffers, if any, that bytes of this file reached the native file : the length and date the dir
+     * shows may have changed.
+     */
+    private void writtenToFile()
+    {
+        if (this.dirCache!=null)
+            this.dirCache.invalidate(this.file);
+    }
+    
+    /**
+     * Starts reading or writing bytes asynchronously, if that is worth it. D1 and A1 are not changed, D0 is set to ERR_NC.
+     * The file position is only changed when the result is given to SMSQ/E.
+     * 
+     * @param trapKey the trap call.
+     * @param cpu the cpu.
+     * @param write <code>true</code> to write bytes from (A1), <code>false</code> to read bytes to (A1).
+     * @param length the number of bytes.
+     * @param position where to read or write in the native file.
+     * 
+     * @return <code>true</code> if the operation was started, <code>false</code> if it must be done at once.
+     */
+    private boolean startPending(int trapKey,smsqmulator.cpu.MC68000Cpu cpu,final boolean write,int length,final int position)
+    {
+        final int A1=cpu.addr_regs[1];
+        if (this.asyncIO==null || !this.asyncIO.isWorthIt(length) || this.inoutChannel==null ||
+            (A1&smsqmulator.cpu.MC68000Cpu.cutOff)+length>cpu.getMemory().length*2)
+            return false;
+        java.nio.ByteBuffer data=java.nio.ByteBuffer.allocate(length);
+        if (write)
+        {
+            cpu.writeToBuffer(data,A1&smsqmulator.cpu.MC68000Cpu.cutOff,length);// what is written is what is in memory now
+            data.flip();
+        }
+        final java.nio.channels.FileChannel channel=this.inoutChannel;
+        final java.io.File f=this.file;
+        this.pending=this.asyncIO.start(trapKey,A1,cpu.data_regs[2],data,new AsyncIO.Task()
+        {
+            @Override
+            public int run(java.nio.ByteBuffer buffer) throws java.io.IOException
+            {
+                FlightRecorderEvents.XfaFileEvent event=FlightRecorderEvents.beginXfaFile();
+                int total=0;
+                int nbr=0;
+                while (buffer.hasRemaining() && nbr>=0)
+                {
+                    nbr=write?channel.write(buffer,position+total):channel.read(buffer,position+total);
+                    if (nbr>0)
+                        total+=nbr;
+                }
+                if (event!=null)
+                    event.finish(f,write,position,total,A1);
+                return total==0 && nbr<0?-1:total;          // -1 : EOF before the read
+            }
+        });
+        this.pendingWrite=write;
+        cpu.data_regs[0]=Types.ERR_NC;
+        return true;
+    }
+    
+    /**
+     * Called when there is an asynchronous operation whose result wasn't given to SMSQ/E yet.
+     * If this trap call is SMSQ/E retrying the call that started the operation, D0 is set to ERR_NC if the operation isn't done,
+     * else the result is given as if the operation had been done at once.
+     * If it is another call, the operation is abandoned (its result is thrown away, the file position isn't changed). 
+     * 
+     * @param trapKey the trap call.
+     * @param cpu the cpu.
+     * 
+     * @return <code>true</code> if this trap call was handled here.
+     */
+    private boolean finishPending(int trapKey,smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        AsyncIO.Operation op=this.pending;
+        int A1=cpu.addr_regs[1];
+        if (!op.isRetryOf(trapKey,A1,cpu.data_regs[2]) || (this.pendingWrite && !sameAsMemory(op.getData(),A1,cpu)))
+        {
+            abandonPending();
+            return false;
+        }
+        if (!op.isDone())
+        {
+            cpu.data_regs[0]=Types.ERR_NC;                  // not yet : SMSQ/E will try again
+            return true;
+        }
+        this.pending=null;
+        if (this.pendingWrite)
+            writtenToFile();
+        int position=trapKey==0x48?this.headerOffset:this.filePosition;
+        int bytes;
+        try
+        {
+            bytes=op.getResult();
+        }
+        catch (java.io.IOException e)
+        {
+            cpu.data_regs[0]=Types.ERR_DRFL;                // pretend that drive is full if error, as for the other reads and writes
+            return true;
+        }
+        if (bytes<0)                                        // the file was EOF before the read
+        {
+            cpu.data_regs[0]=Types.ERR_EOF;
+            return true;
+        }
+        if (!this.pendingWrite)
+            cpu.readFromBuffer(A1,bytes,op.getData(),0);
+        this.filePosition=position+bytes;
+        try
+        {
+            this.inoutChannel.position(this.filePosition);
+        }
+        catch (java.io.IOException e)
+        {/*nop*/}
+        cpu.addr_regs[1]=A1+bytes;
+        cpu.data_regs[1]=bytes;
+        cpu.data_regs[0]=0;
+        return true;
+    }
+    
+    /**
+     * Waits for an asynchronous operation whose result wasn't given to SMSQ/E yet, its result is thrown away.
+     */
+    private void abandonPending()
+    {
+        if (this.pending!=null)
+        {
+            this.pending.abandon();
+            this.pending=null;
+            if (this.pendingWrite)
+                writtenToFile();                            // the bytes were written all the same
+        }
+    }
+    
+    /**
+     * Checks whether the data to write of an asynchronous write is still what is in memory.
+     */
+    private boolean sameAsMemory(java.nio.ByteBuffer data,int A1,smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        return smsqmulator.cpu.MemoryTransfer.isSame(cpu.getMemory(),A1&smsqmulator.cpu.MC68000Cpu.cutOff,data,0,data.limit());
+    }
+    
     /**
      * Gets a number of bytes from the file.
      * @param cpu 
@@ -672,6 +883,11 @@ public class XfaFile
      */
     private void getLine(smsqmulator.cpu.MC68000Cpu cpu)
     {
+        if (this.ioBuffer!=null)
+        {
+            getLineBuffered(cpu);
+            return;
+        }
         int A1 = cpu.addr_regs[1];                // where to read to -start of buffer, keep
         int mypos=this.filePosition;                        // this is the current file position.
         if (!loadFile(cpu,false,false))                     // load as much as we can get - this changes the fileposition
@@ -751,7 +967,11 @@ public class XfaFile
             if (length!=0)
             {
                 this.inoutChannel.position(this.filePosition);
+                FlightRecorderEvents.XfaFileEvent event=FlightRecorderEvents.beginXfaFile();
                 int bytesWritten=cpu.writeToFile(A1,length, this.inoutChannel);
+                writtenToFile();
+                if (event!=null)
+                    event.finish(this.file,true,this.filePosition,bytesWritten,A1);
                 this.filePosition=(int) this.inoutChannel.position();
                 cpu.addr_regs[1]= A1+bytesWritten;
              //   if (!longword)
@@ -784,7 +1004,22 @@ public class XfaFile
         }
         try
         {
-            this.raFile.writeByte(cpu.data_regs[1]&0xff);
+            if (this.ioBuffer!=null)
+            {
+                int offset=this.filePosition-this.bufferStart;
+                if (offset<0 || offset>this.bufferLength || offset>=this.ioBuffer.capacity())
+                {
+                    offset=0;                               // not in (or right after) the buffer : start a new one here
+                    startBuffer();
+                }
+                this.ioBuffer.put(offset,(byte)cpu.data_regs[1]);
+                setDirty(offset,1);
+            }
+            else
+            {
+                this.raFile.writeByte(cpu.data_regs[1]&0xff);
+                writtenToFile();
+            }
             this.filePosition++;
             cpu.data_regs[0]=0;
         }
@@ -801,7 +1036,14 @@ public class XfaFile
     {
         try
         {
-            cpu.data_regs[1]=this.raFile.readByte()& 0xff;
+            if (this.ioBuffer!=null)
+            {
+                if (!fillBuffer())
+                    throw new java.io.EOFException();
+                cpu.data_regs[1]=this.ioBuffer.get(this.filePosition-this.bufferStart)& 0xff;
+            }
+            else
+                cpu.data_regs[1]=this.raFile.readByte()& 0xff;
             this.filePosition++;
             cpu.data_regs[0]=0;
         }
@@ -815,6 +1057,315 @@ public class XfaFile
         }
     }
     
+    /**
+     * Sets the size of the read ahead / write behind buffer. Only files that aren't dirs get one.
+     * 
+     * @param size the size in bytes, 0 if reads and writes are to go to the native file at once.
+     */
+    public void setBufferSize(int size)
+    {
+        if (size>0 && !this.isDir && this.inoutChannel!=null)
+            this.ioBuffer=java.nio.ByteBuffer.allocate(size);
+    }
+    
+    /**
+     * Checks whether a trap#3 call reads or writes through the buffer itself (as far as possible).
+     */
+    private static boolean usesBuffer(int trapKey)
+    {
+        return trapKey<=7;
+    }
+    
+    /**
+     * Checks whether the bytes in the buffer are still valid after a trap#3 call that doesn't use it : the call doesn't change
+     * the native file.
+     */
+    private static boolean keepsBuffer(int trapKey)
+    {
+        switch (trapKey)
+        {
+            case 0x40:                                      // check pending I/O
+            case 0x41:                                      // flush
+            case 0x42:                                      // set file position
+            case 0x43:
+            case 0x45:                                      // medium info
+            case 0x47:                                      // read header
+            case 0x48:                                      // load file
+            case 0x4f:                                      // extended info
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Writes the bytes in the buffer that must still be written to the native file and sets the position of the native file to
+     * the file position. This must be done before any operation that doesn't go through the buffer.
+     * 
+     * @param keep if <code>false</code>, the bytes in the buffer are thrown away (the operation will change the native file).
+     * 
+     * @return <code>false</code> if the bytes couldn't be written.
+     */
+    public boolean syncBuffer(boolean keep)
+    {
+        if (this.ioBuffer==null)
+            return true;
+        boolean ok=true;
+        try
+        {
+            flushBuffer();
+            this.inoutChannel.position(this.filePosition);
+        }
+        catch (Exception e)
+        {
+            ok=false;                                       // (the bytes are lost)
+            this.dirtyStart=this.dirtyEnd=0;
+        }
+        if (!keep)
+            this.bufferLength=0;
+        return ok;
+    }
+    
+    /**
+     * Writes the bytes in the buffer that must still be written to the native file.
+     */
+    private void flushBuffer() throws java.io.IOException
+    {
+        if (this.dirtyEnd==this.dirtyStart)
+            return;
+        FlightRecorderEvents.XfaFileEvent event=FlightRecorderEvents.beginXfaFile();
+        int start=this.bufferStart+this.dirtyStart;
+        int nbr=this.dirtyEnd-this.dirtyStart;
+        this.ioBuffer.limit(this.dirtyEnd);
+        this.ioBuffer.position(this.dirtyStart);
+        this.dirtyStart=this.dirtyEnd=0;
+        try
+        {
+            while (this.ioBuffer.hasRemaining())
+            {
+                this.inoutChannel.write(this.ioBuffer,this.bufferStart+this.ioBuffer.position());
+            }
+        }
+        finally
+        {
+            this.ioBuffer.limit(this.ioBuffer.capacity());  // bytes are put and got by index
+        }
+        writtenToFile();
+        if (event!=null)
+            event.finish(this.file,true,start,nbr,0);
+    }
+    
+    /**
+     * Makes the buffer start at the file position, after writing what must still be written. The buffer is then empty.
+     */
+    private void startBuffer() throws java.io.IOException
+    {
+        flushBuffer();
+        this.bufferStart=this.filePosition;
+        this.bufferLength=0;
+    }
+    
+    /**
+     * Checks whether the byte at the file position is in the buffer.
+     */
+    private boolean isInBuffer()
+    {
+        return this.ioBuffer!=null && this.filePosition>=this.bufferStart && this.filePosition<this.bufferStart+this.bufferLength;
+    }
+    
+    /**
+     * Makes sure that the byte at the file position is in the buffer : if it isn't, the buffer is filled from the native file,
+     * starting at the file position.
+     * 
+     * @return <code>false</code> if the file position is at (or beyond) the end of the file.
+     */
+    private boolean fillBuffer() throws java.io.IOException
+    {
+        if (isInBuffer())
+            return true;
+        startBuffer();
+        this.ioBuffer.clear();
+        FlightRecorderEvents.XfaFileEvent event=FlightRecorderEvents.beginXfaFile();
+        while (this.ioBuffer.hasRemaining() && this.inoutChannel.read(this.ioBuffer,this.bufferStart+this.ioBuffer.position())>0)
+        { /* read as much as there is */ }
+        this.bufferLength=this.ioBuffer.position();
+        if (event!=null)
+            event.finish(this.file,false,this.bufferStart,this.bufferLength,0);
+        return this.bufferLength>0;
+    }
+    
+    /**
+     * Marks bytes in the buffer as written (they become part of the valid bytes of the buffer, if they weren't).
+     */
+    private void setDirty(int offset,int length)
+    {
+        if (this.dirtyEnd==this.dirtyStart)
+        {
+            this.dirtyStart=offset;
+            this.dirtyEnd=offset+length;
+        }
+        else
+        {
+            this.dirtyStart=Math.min(this.dirtyStart,offset);
+            this.dirtyEnd=Math.max(this.dirtyEnd,offset+length);
+        }
+        if (offset+length>this.bufferLength)
+            this.bufferLength=offset+length;
+    }
+    
+    /**
+     * Gets bytes (trap#3 D0=3) through the buffer, if there is one and they fit into it.
+     * 
+     * @param cpu the cpu.
+     * 
+     * @return <code>true</code> if the call was handled here.
+     */
+    private boolean readBuffered(smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        if (this.ioBuffer==null)
+            return false;
+        int length=cpu.data_regs[2]&0xffff;
+        if (length>this.ioBuffer.capacity())
+        {
+            if (syncBuffer(true))
+                return false;                               // done without the buffer
+            cpu.data_regs[0]=Types.ERR_DRFL;
+            return true;
+        }
+        int A1=cpu.addr_regs[1];
+        int count=0;
+        try
+        {
+            while (count<length && fillBuffer())
+            {
+                int offset=this.filePosition-this.bufferStart;
+                int nbr=Math.min(this.bufferLength-offset,length-count);
+                int copied=cpu.readFromBuffer(A1+count,nbr,this.ioBuffer,offset);
+                count+=copied;
+                this.filePosition+=copied;
+                if (copied<nbr)
+                    break;                                  // end of memory
+            }
+        }
+        catch (java.io.IOException e)
+        {
+            cpu.data_regs[0]=Types.ERR_DRFL;                // as for loadFile
+            return true;
+        }
+        if (count==0 && length!=0)
+        {
+            cpu.data_regs[0]=Types.ERR_EOF;                 // the file was EOF before the read
+            return true;
+        }
+        cpu.addr_regs[1]=A1+count;
+        cpu.data_regs[1]=count;
+        cpu.data_regs[0]=0;
+        return true;
+    }
+    
+    /**
+     * Sends bytes (trap#3 D0=6,7) through the buffer, if there is one and they fit into it.
+     * 
+     * @param cpu the cpu.
+     * 
+     * @return <code>true</code> if the call was handled here.
+     */
+    private boolean writeBuffered(smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        if (this.ioBuffer==null)
+            return false;
+        int length=cpu.data_regs[2]&0xffff;
+        int A1=cpu.addr_regs[1];
+        if (length>this.ioBuffer.capacity() || (A1&smsqmulator.cpu.MC68000Cpu.cutOff)+length>cpu.getMemory().length*2)
+        {
+            if (syncBuffer(false))
+                return false;                               // done without the buffer
+            cpu.data_regs[0]=Types.ERR_DRFL;
+            return true;
+        }
+        try
+        {
+            int offset=this.filePosition-this.bufferStart;
+            if (offset<0 || offset>this.bufferLength || offset+length>this.ioBuffer.capacity())
+            {
+                offset=0;                                   // not in (or right after) the buffer : start a new one here
+                startBuffer();
+            }
+            if (length>0)
+            {
+                this.ioBuffer.position(offset);
+                cpu.writeToBuffer(this.ioBuffer,A1&smsqmulator.cpu.MC68000Cpu.cutOff,length);
+                setDirty(offset,length);
+            }
+        }
+        catch (java.io.IOException e)
+        {
+            cpu.data_regs[0]=Types.ERR_DRFL;                // pretend that drive is full if write error, as for saveFile
+            return true;
+        }
+        this.filePosition+=length;
+        cpu.addr_regs[1]=A1+length;
+        cpu.data_regs[1]=length;
+        cpu.data_regs[0]=0;
+        return true;
+    }
+    
+    /**
+     * Gets a line (trap#3 D0=2) through the buffer : as getLine, but only the bytes up to the LF are read into memory.
+     * 
+     * @param cpu the cpu.
+     */
+    private void getLineBuffered(smsqmulator.cpu.MC68000Cpu cpu)
+    {
+        int A1=cpu.addr_regs[1];
+        int length=cpu.data_regs[2]&0xffff;
+        int count=0;
+        boolean foundit=false;
+        try
+        {
+            while (count<length && !foundit && fillBuffer())
+            {
+                int offset=this.filePosition-this.bufferStart;
+                int nbr=Math.min(this.bufferLength-offset,length-count);
+                int k=0;
+                while (k<nbr && !foundit)
+                {
+                    foundit=this.ioBuffer.get(offset+k++)==0x0a;
+                }
+                int copied=cpu.readFromBuffer(A1+count,k,this.ioBuffer,offset);
+                count+=copied;
+                this.filePosition+=copied;
+                if (copied<k)
+                {
+                    foundit=false;
+                    break;                                  // end of memory
+                }
+            }
+        }
+        catch (java.io.IOException e)
+        {
+            cpu.data_regs[0]=Types.ERR_DRFL;                // as for loadFile
+            return;
+        }
+        if (count==0 && length!=0)
+        {
+            cpu.data_regs[0]=Types.ERR_EOF;                 // the file was EOF before the read
+            return;
+        }
+        cpu.data_regs[0]=0;
+        if (!foundit)                                       // no LF found - buffer must be too small or there is no LF!
+        {
+            cpu.data_regs[0]=count<cpu.data_regs[2]?Types.ERR_EOF:Types.ERR_BFFL;
+        }
+        else if (count>1 && cpu.readMemoryByte(A1+count-2)==0x0d)// eliminate the CR before the LF
+        {
+            cpu.writeMemoryByte(A1+count-2,0x0a);
+            count--;
+        }
+        cpu.addr_regs[1]=A1+count;
+        cpu.data_regs[1]=count;
+    }
+    
       /**
      * Checks whether this file is a dir.
      * @return <code>true</code> if this file is a dir, <code>false</code> if not.
@@ -961,6 +1512,15 @@ public class XfaFile
         return this.filename;
     }
     
+    /**
+     * Gets the native file.
+     * @return the native file.
+     */
+    public java.io.File getFile()
+    {
+        return this.file;
+    }
+    
     private void renameFile(smsqmulator.cpu.MC68000Cpu cpu,String nativeDir)
     {       
         String s=cpu.readSmsqeString(cpu.addr_regs[1]);// new name
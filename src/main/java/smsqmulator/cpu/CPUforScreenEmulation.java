@@ -5,6 +5,8 @@ package smsqmulator.cpu;
  * 
  * @author and copyright (C) Wolfgang Lenerz 2016-2017.
  * @version 
+ * 1.02 readFromBuffer copies with MemoryTransfer, checks the end of the QL screen with the address, not the word index.
+ * 1.01 when QL screen emulation is switched on, the entire QL screen is copied to the display and deferred rendering is switched off.
  * 1.00 derived from MC68000Cpu v.2.10.
  */
 public class CPUforScreenEmulation extends MC68000Cpu
@@ -166,6 +168,11 @@ public class CPUforScreenEmulation extends MC68000Cpu
     {
         this.copyQLScreen=QLScreenMode!=0;
         this.screen.setQLEmulationMode (QLScreenMode);
+        if (this.copyQLScreen)
+        {
+            this.screen.setDeferredRendering(null);         // converting whole lines would overwrite the copied QL screen
+            this.screen.refreshQLScreen(this.mainMemory);   // show the current QL screen at once, line by line
+        }
         this.data_regs[0]=0;
         this.reg_sr|=4;
     }
@@ -213,50 +220,19 @@ public class CPUforScreenEmulation extends MC68000Cpu
                 toScreen=true;                              // check whether we're LBYTESing to the screen
             }
         }
-        int start=address;
         buffer.limit(buffer.capacity());
         if (nbrOfBytes+startInBuffer>buffer.capacity()) 
         {
             nbrOfBytes = buffer.capacity()-startInBuffer;
         }
-        boolean startAddressIsOdd=(address&1)==1;
-
-        address/=2;
-        if (startAddressIsOdd)
-        {
-           nbrOfBytes--; 
-           short p=(short)(this.mainMemory[address]&0xff00);
-           short m=(short) (buffer.get(startInBuffer)&0xff);
-           this.mainMemory[address]=(short) (p|m);
-           address++;
-           startInBuffer++;
-        }
-       
-        // now copy from byte buffer to my array in word sized chunks
-        int i;
-        for (i=startInBuffer;i<nbrOfBytes+startInBuffer-1;i+=2,address++)
-        {
-            this.mainMemory[address]=buffer.getShort(i);
-        }
-        
-        if ((nbrOfBytes & 1) == 1)                          // handle possible last byte (not word)
-        {
-            short res=this.mainMemory[address];
-            res&=0xff;
-            res|=(buffer.get(i)<<8);
-            this.mainMemory[address]=res;
-        }
-        if (startAddressIsOdd) 
-        {
-            nbrOfBytes++;
-        }
+        MemoryTransfer.toMemory(this.mainMemory,address,buffer,startInBuffer,nbrOfBytes);
         if (toScreen) 
         {
-            this.screen.displayRegion(this,start,nbrOfBytes);
+            this.screen.displayRegion(this,address,nbrOfBytes);
         }
-        else if (this.copyQLScreen && !specialRead && (start>=0x20000 && address+nbrOfBytes<0x28000)) 
+        else if (this.copyQLScreen && !specialRead && (address>=0x20000 && address+nbrOfBytes<=0x28000)) 
         {
-            this.screen.setDisplayRegion(start,nbrOfBytes, this.mainMemory);
+            this.screen.setDisplayRegion(address,nbrOfBytes, this.mainMemory);
         }
         return nbrOfBytes;
     }
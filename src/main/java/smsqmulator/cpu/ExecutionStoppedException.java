@@ -0,0 +1,14 @@
+package smsqmulator.cpu;
+
+/**
+ * Thrown by an InstructionCountListener to stop the execution of instructions for good : the continuous execution loop of the CPU
+ * then returns, a single step execution throws it to its caller.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version
+ */
+public class ExecutionStoppedException extends RuntimeException
+{
+    private static final long serialVersionUID=1L;
+}
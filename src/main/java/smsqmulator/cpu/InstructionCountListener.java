@@ -0,0 +1,29 @@
+package smsqmulator.cpu;
+
+/**
+ * A simple interface for objects that want to be called back by the CPU when a certain number of instructions has been executed.
+ * <p>
+ * While a listener is set, the CPU counts all instructions it executes (see <code>MC68000Cpu.instructionCount</code>). When the count reaches the value
+ * returned by the last call to the listener, the listener is called again, from the CPU execution thread, between two instructions.
+ * The listener may then safely change the memory or generate an interrupt, or stop the execution by throwing an
+ * <code>ExecutionStoppedException</code>.
+ * 
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version 
+ * 1.01 may stop the execution (ExecutionStoppedException).
+ * 1.00 initial version
+ */
+public interface InstructionCountListener
+{
+    /**
+     * Called by the CPU when the instruction count has been reached.
+     * 
+     * @param cpu the CPU calling this.
+     * @param count the number of instructions executed so far.
+     * 
+     * @return the instruction count at which this should be called again, <code>Long.MAX_VALUE</code> if never.
+     * 
+     * @throws ExecutionStoppedException if no more instructions are to be executed.
+     */
+    public long instructionCountReached(MC68000Cpu cpu,long count);
+}
@@ -37,6 +37,14 @@ import smsqmulator.Types;
  * Based on Tony Headford's code, see his copyright in the attached file.
  * <p>
  * @version :
+ *   2.21 the continuous execution loop returns when the InstructionCountListener throws an ExecutionStoppedException.
+ *   2.20 instructions are only counted while there is an InstructionCountListener : executeContinuous then uses a separate loop.
+ *   2.19 file and buffer transfers go through MemoryTransfer : pooled direct buffers, word copies also from odd addresses.
+ *   2.18 clear the video ram together with the screen at reset.
+ *   2.17 screen scaling filter set from config item SCREEN-FILTER.
+ *   2.16 copyMem uses the Blitter, no more byte by byte copying with screen callbacks for odd addresses.
+ *   2.15 if config item SCREEN-DEFERRED is set, the screen only converts writes to its memory at each frame.
+ *   2.14 instructionCount : all instructions executed are counted, an InstructionCountListener may be called back at a given count.
  *   2.13 writeSMSQEString : if string is empty but not null, write 0 word ; set and removeKeyrow : do not presume sysvars at $28000.
  *   2.12 RESET instruction is actually linked in (though it doesn't really do anything)..
  *   2.11 fillBlock, xorBlock deleted ; setEmuScreenMode fallthrough method implemented.
@@ -117,6 +125,9 @@ public class MC68000Cpu
     public static final int SUPERVISOR_FLAG = 0x2000;
     public static final int TRACE_FLAG = 0x8000;
     public int stopNow;
+    public long instructionCount=0;                             // nbr of instructions executed so far, while there is a countListener
+    private long nextCallback=Long.MAX_VALUE;                   // instruction count at which the listener is to be called
+    private InstructionCountListener countListener=null;        // called when nextCallback is reached
     
     public int []pcs=new int [10];                              // used in slow mode  
  
@@ -182,6 +193,10 @@ public class MC68000Cpu
             this.screenStop=0x28000-2;
         }
         this.screen.setVramBase(this.screenStart);              // set the base of the video ram, let the screen object handle the details
+        if (iniFile!=null && iniFile.getTrueOrFalse("SCREEN-DEFERRED"))
+            this.screen.setDeferredRendering(this.mainMemory);  // writes to the screen are converted at each frame
+        if (iniFile!=null)
+            this.screen.setScalingFilter(iniFile.getOptionAsInt("SCREEN-FILTER",0));// how to scale an enlarged screen
     }
     
     /* ---------------------------------  Execute instructions - monitor mode & fast(er) mode ---------------------------*/
@@ -235,6 +250,8 @@ public class MC68000Cpu
         int opcode = this.mainMemory[this.pc_reg]&0xffff;
         this.pc_reg ++;
         this.i_table[opcode].execute(opcode,this);              // execute this smsqmulator2.cpu.Instruction
+        if (this.countListener!=null && ++this.instructionCount>=this.nextCallback)
+            this.nextCallback=this.countListener.instructionCountReached(this,this.instructionCount);
 
         //if ((this.reg_sr &0x8000)!=0 && (opcode!=0x4e73)) 
         if (this.traceFlag && (opcode!=0x4e73))    // is trace bit set and are we not doing an rte?
@@ -245,43 +262,20 @@ public class MC68000Cpu
     /**
      * Continuous execution loop. 
      * This is the fastest way to execute an MC 68000 prog.
+     * If there is an InstructionCountListener, the instructions are counted in a separate loop, so that this one doesn't pay for it.
      */
     public final void executeContinuous()
     { 
+        if (this.countListener!=null)
+        {
+            executeContinuousCounted();
+            return;
+        }
         int trace=0x4e73;
         while(true)
         {
             if (this.newInterruptGenerated)                     // an interrupt occurred : generate the exception directly
-            {
-                int old_sr = this.reg_sr;                       // SR BEFORE the exception
-                if ((this.reg_sr & MC68000Cpu.SUPERVISOR_FLAG) == 0)  // were we in supervisor mode already?....
-                {                           
-                    this.reg_sr |= MC68000Cpu.SUPERVISOR_FLAG;        // ...no, so set supervisor bit
-                    this.reg_usp = this.addr_regs[7];           // and change stack pointers
-                    this.addr_regs[7] = reg_ssp;
-                }       
-                this.addr_regs[7]-=6;
-                int op= this.addr_regs[7]/2;
-                this.mainMemory[op]=(short)old_sr;
-                this.pc_reg*=2;
-                this.mainMemory[op+1]=(short)((this.pc_reg>>16)&0xffff);
-                this.mainMemory[op+2]=(short)(this.pc_reg&0xffff);
-                this.reg_sr&=~TRACE_FLAG;
-                this.traceFlag=false;
-                this.pc_reg = readMemoryLong(0x68)/2;             // exception vector 2 - let's just presume it exists
-                if(this.pc_reg == 0)
-                {
-                    this.pc_reg = readMemoryLong(0x003c)/2;     // interrupt vector is uninitialised : raise an uninitialised interrupt vector exception instead (vector 15 == 0x003c)
-                    if(this.pc_reg == 0)                        // if this is zero as well then the CPU should halt
-                    { 
-                        throw new IllegalArgumentException("Interrupt vector not set for uninitialised interrupt vector while trapping uninitialised vector " + 26);
-                    }
-                }
-                
-                this.reg_sr &= ~(MC68000Cpu.INTERRUPT_FLAGS_MASK);
-                this.reg_sr |= 0x0200;
-                this.newInterruptGenerated=false;
-            }
+                acceptInterrupt();
             int opcode = this.mainMemory[this.pc_reg]&0xffff; // get the primary instruction
             this.pc_reg ++;                                   // point next Instruction or possible data for this instruction
             smsqmulator.cpu.Instruction i = this.i_table[opcode];
@@ -301,6 +295,70 @@ public class MC68000Cpu
             
         }
     }
+    
+    /**
+     * Continuous execution loop counting the instructions and calling the InstructionCountListener.
+     * This returns when the listener stops the execution.
+     */
+    private void executeContinuousCounted()
+    { 
+        int trace=0x4e73;
+        try
+        {
+            while(true)
+            {
+                if (this.newInterruptGenerated)                 // an interrupt occurred : generate the exception directly
+                    acceptInterrupt();
+                int opcode = this.mainMemory[this.pc_reg]&0xffff; // get the primary instruction
+                this.pc_reg ++;                               // point next Instruction or possible data for this instruction
+                this.i_table[opcode].execute(opcode,this);
+                if (++this.instructionCount>=this.nextCallback)
+                    this.nextCallback=this.countListener.instructionCountReached(this,this.instructionCount);
+                if (this.traceFlag && (opcode!=trace))// is trace bit set and are we not doing an rte?
+                {
+                    raiseException (9);                         // yes, so raise trace exception
+                }
+            }
+        }
+        catch (ExecutionStoppedException e)
+        { /*NOP*/ }                                             // the listener stopped the execution
+    }
+    
+    /**
+     * Generates the level 2 interrupt exception in the continuous execution loops.
+     */
+    private void acceptInterrupt()
+    {
+        int old_sr = this.reg_sr;                           // SR BEFORE the exception
+        if ((this.reg_sr & MC68000Cpu.SUPERVISOR_FLAG) == 0) // were we in supervisor mode already?....
+        {                           
+            this.reg_sr |= MC68000Cpu.SUPERVISOR_FLAG;      // ...no, so set supervisor bit
+            this.reg_usp = this.addr_regs[7];               // and change stack pointers
+            this.addr_regs[7] = reg_ssp;
+        }       
+        this.addr_regs[7]-=6;
+        int op= this.addr_regs[7]/2;
+        this.mainMemory[op]=(short)old_sr;
+        this.pc_reg*=2;
+        this.mainMemory[op+1]=(short)((this.pc_reg>>16)&0xffff);
+        this.mainMemory[op+2]=(short)(this.pc_reg&0xffff);
+        this.reg_sr&=~TRACE_FLAG;
+        this.traceFlag=false;
+        this.pc_reg = readMemoryLong(0x68)/2;               // exception vector 2 - let's just presume it exists
+        if(this.pc_reg == 0)
+        {
+            this.pc_reg = readMemoryLong(0x003c)/2;         // interrupt vector is uninitialised : raise an uninitialised interrupt vector exception instead (vector 15 == 0x003c)
+            if(this.pc_reg == 0)                            // if this is zero as well then the CPU should halt
+            { 
+                throw new IllegalArgumentException("Interrupt vector not set for uninitialised interrupt vector while trapping uninitialised vector " + 26);
+            }
+        }
+        
+        this.reg_sr &= ~(MC68000Cpu.INTERRUPT_FLAGS_MASK);
+        this.reg_sr |= 0x0200;
+        this.newInterruptGenerated=false;
+    }
+    
     /* debug / profile
     public final void execute(int opcode)
     { 
@@ -309,6 +367,20 @@ public class MC68000Cpu
     }
     */
     
+    /**
+     * Sets the object to be called back when the instruction count reaches a certain value.
+     * Instructions are only counted while there is such an object.
+     * This must be called when the CPU isn't executing instructions : the continuous execution loop only checks for it when it starts.
+     * 
+     * @param listener the listener to call, <code>null</code> if none.
+     * @param firstCall the instruction count at which the listener is to be called for the first time.
+     */
+    public void setInstructionCountListener(InstructionCountListener listener,long firstCall)
+    {
+        this.countListener=listener;
+        this.nextCallback=listener==null?Long.MAX_VALUE:firstCall;
+    }
+    
     /* ---------------------------- Dealing with external interrupt handlers -----------------------------------------------*/
     
     
@@ -1548,10 +1620,13 @@ public class MC68000Cpu
       * Copies a block of memory within the main memory or within or to/from screen.
       * !!USE ONLY IN 8 OR 16 BIT COLOUR MODES !!!
       * 
-      * The source and the destination might overlap.
+      * The source and the destination might overlap. Rows starting at odd addresses are moved as bytes by the Blitter, 
+      * without going through the screen for every byte : the screen is painted afterwards, in moveBlock.
       * 
       * @param A4 base address of source 
       * @param A5 base address of destination
+      * 
+      * @return <code>true</code> if the block was moved, <code>false</code> if not (negative sizes or outside of memory).
       */
     private boolean copyMem(int srcStart,int destStart)
     {
@@ -1567,85 +1642,10 @@ public class MC68000Cpu
         int destYo=this.data_regs[3]&0xffff ;                   // same for destination
         int srcInc=this.addr_regs[2];
         int destInc=this.addr_regs[3];
-        int divisor=this.screen.getDivisor();                   // 1 for screen mode 32; 2 for 16
-
-        if( divisor ==2 && ( ((destXo & 1)!=0) || ((srcXo & 1)!=0) ||((srcStart &1)!=0) || ((destStart &1)!=0) || ((srcInc &1 )!=0) || ((destInc &1)!=0) ||((xs &1)!=0)))
-        {
-                                                                // any address is uneven, or size to move is uneven
-            divisor = divisor==1?2:1;                           // flip divisor
-            xs*=divisor;
-            srcXo*=divisor;
-            destXo*=divisor;                                    // 1 for screen mode 32; 2 for 16
+        int bytesPerPixel=2/this.screen.getDivisor();           // 2 for screen mode 32; 1 for 16
 
-            destInc*=divisor;
-            srcInc*=divisor;                                    // adjust for word sized accesses
-            srcStart+=(srcYo*srcInc)+srcXo;                     // index into array for first pixel : src
-            destStart+=(destYo*destInc)+destXo;                 // index into array for first pixel : dest 
-            if (srcStart>destStart)
-            {
-                for (int iY=0;iY<ys;iY++)
-                {
-                    int destl=destStart;
-                    for (int iX=srcStart;iX<srcStart+xs;iX++,destStart++)
-                    {
-                        writeMemoryByte(destStart,readMemoryByteSigned(iX));
-                    }
-                    srcStart+=srcInc;                           // pop down to next source line 
-                    destStart=destl+destInc;                    // same for destination line
-                }
-            }
-            else
-            {
-                srcStart+=(ys-1)*srcInc;
-                destStart+=(ys-1)*destInc;
-                for (int iY=0;iY<ys;iY++)
-                {   
-                    int destl=destStart;
-                    for (int iX=srcStart;iX<srcStart+xs;iX++,destStart++)
-                    {
-                        writeMemoryByte(destStart,readMemoryByteSigned(iX));
-                    }
-                    srcStart-=srcInc;                           // pop down to next source line 
-                    destStart=destl-destInc;                    // same for destination line
-                }
-            } 
-        }
-        else
-        {                                               
-            xs/=divisor;
-            srcXo/=divisor;
-            destXo/=divisor;                                    // 1 for screen mode 32; 2 for 16
-
-            srcStart+=srcInc*srcYo + srcXo*2;
-            srcStart/=2;
-            destStart+=destInc*destYo + destXo*2;
-            destStart/=2;
-            
-            srcInc/=2;
-            destInc/=2;
-            
-            if (srcStart>destStart)
-            {
-                for (int iY=0;iY<ys;iY++)
-                {   
-                    System.arraycopy(this.mainMemory,srcStart, this.mainMemory,destStart,xs);
-                    srcStart+=srcInc;                               // pop down to next source line 
-                    destStart+=destInc;                             // same for destination line
-                }
-            }
-            else
-            {
-                srcStart+=(ys-1)*srcInc;
-                destStart+=(ys-1)*destInc;
-                for (int iY=0;iY<ys;iY++)
-                {   
-                    System.arraycopy(this.mainMemory,srcStart, this.mainMemory,destStart,xs);
-                    srcStart-=srcInc;                               // pop down to next source line 
-                    destStart-=destInc;                             // same for destination line
-                }
-            } 
-        }
-        return true;
+        return smsqmulator.Blitter.moveMemory(this.mainMemory,srcStart+srcYo*srcInc+srcXo*bytesPerPixel,srcInc,
+                destStart+destYo*destInc+destXo*bytesPerPixel,destInc,xs*bytesPerPixel,ys);
     }
     
      /**
@@ -1801,26 +1801,26 @@ public class MC68000Cpu
             if (nbrOfBytes<1)
                 return 0;                                   // should this generate an error ?
         }
-        // first make a bytebuffer of sufficient capacity
-        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(nbrOfBytes);
-        if ((address&1)==1)                                 // start at an odd address
-        {
-            for (int i=0;i<nbrOfBytes;i++,address++)
-                buffer.put(i,(byte)(readMemoryByte(address)));
-        }
-        else
+        java.nio.ByteBuffer buffer=MemoryTransfer.getBuffer(); // write through a transfer buffer, chunk by chunk
+        try
         {
-            address/=2;
-            for (int i=0;i<nbrOfBytes-1;i+=2,address++)
+            int total=0;
+            while (total<nbrOfBytes)
             {
-                buffer.putShort(i, this.mainMemory[address]);
+                int nbr=Math.min(nbrOfBytes-total,buffer.capacity());
+                MemoryTransfer.fromMemory(this.mainMemory,address+total,buffer,0,nbr);
+                buffer.clear();
+                buffer.limit(nbr);
+                total+=outChannel.write(buffer);
+                if (buffer.hasRemaining())
+                    break;                                  // not all could be written
             }
-            
-            if (((nbrOfBytes) & 1) == 1)
-                buffer.put(nbrOfBytes-1, (byte)(this.mainMemory[address]>>8));
+            return total;                                   // nbr of bytes written
+        }
+        finally
+        {
+            MemoryTransfer.releaseBuffer(buffer);
         }
-            // now write to file
-        return outChannel.write(buffer);                    // write and return nbr of bytes written
     }
     
     /**
@@ -1830,9 +1830,6 @@ public class MC68000Cpu
      * @param offsetInBuffer nbr of bytes to add to the size, and also start of where to put these bytes in the newly created buffer.
      * 
      * @return the newly created ByteBuuffer or null if there was an error.
-     * 
-     * NOTE THIS PRESUMES THAT THE START ADDRESS IS EVEN
-     * 
      */
     public java.nio.ByteBuffer writeToBuffer(int offsetInBuffer)
     {
@@ -1844,8 +1841,7 @@ public class MC68000Cpu
     
     /**
      * Writes bytes read from the memory to a ByteBuffer.
-     * The start address where to take the bytes from and length (nbr of bytes to get) are in the registers A1 and D2 (long).<p>
-     * <b>NOTE THIS PRESUMES THAT THE START ADDRESS IS EVEN!</b>
+     * The start address where to take the bytes from and length (nbr of bytes to get) are in the registers A1 and D2 (long).
      * 
      * @param buffer the ByteBuffer into which the bytes read from memory are to be written.
      * @param offsetInBuffer nbr of bytes to add to the size, and also start of where to put these bytes in the newly created buffer.
@@ -1854,31 +1850,18 @@ public class MC68000Cpu
      */
     public int writeToBuffer(java.nio.ByteBuffer buffer,int offsetInBuffer)
     {
-        int A1=this.addr_regs[1];
-        if ((A1&1)==1)
-        {
-            smsqmulator.Helper.reportError(Localization.Texts[45], Localization.Texts[67], null);
-            return 0;
-        }
+        int A1=this.addr_regs[1]&MC68000Cpu.cutOff;
         int total=this.data_regs[2];
         if (total+offsetInBuffer > buffer.capacity())
             return 0;                                       // this would overshoot
-        if ((A1+total+offsetInBuffer)>this.totMemSize)      // don't read above max ROM address
+        if ((A1+total)>this.totMemSize)                     // don't read above max ROM address
         {
-            total=this.totMemSize-this.addr_regs[1];
-            if (total<offsetInBuffer)
+            total=this.totMemSize-A1;
+            if (total<1)
                 return 0;
         }
-        total/=2;
-        A1/=2; 
         buffer.position(offsetInBuffer);
-        for (int i=0;i<total;i++,A1++) 
-        {
-            buffer.putShort(i*2+offsetInBuffer, this.mainMemory[A1]);
-        }
-        total=this.data_regs[2];
-        if (((total) & 1) == 1)
-            buffer.put(offsetInBuffer+total-1, (byte)(this.mainMemory[A1]>>8));
+        MemoryTransfer.fromMemory(this.mainMemory,A1,buffer,offsetInBuffer,total);
         return total;
     }
     
@@ -1896,32 +1879,13 @@ public class MC68000Cpu
     public int writeToBuffer(java.nio.ByteBuffer buffer,int A1,int bytesToWrite)
     {
         if (buffer.position()+bytesToWrite > buffer.capacity())
-       // if (buffer.position()+bytesToWrite >= buffer.capacity())
             return -1;
-        boolean isOdd;
-        int nbr=bytesToWrite;                               // keep
         buffer.limit(buffer.capacity());
-        if ((A1 & 1 ) !=0)                                  // start of mem read is odd
-        {
-            buffer.put((byte)(readMemoryByte(A1++)));       // make it even
-            bytesToWrite--;                                 // one less byte to read
-            if (bytesToWrite==0)
-                return 1;                                   // just one byte to write
-        }
-        isOdd = (bytesToWrite & 1 ) !=0;
-        int address=A1+bytesToWrite-1;
-        bytesToWrite/=2;                                    // nbr of words to write
-        A1/=2;                                              // where in mem to take them from
-        for (int i=0;i<bytesToWrite;i++,A1++)
-            
-        {  
-            buffer.putShort(this.mainMemory[A1]);           // copy from mem to buffer
-        }
-        if (isOdd)                                          // there remained an odd number of bytes to move
-        {
-            buffer.put((byte)(readMemoryByte(address)));
-        }
-        return nbr;
+        if (bytesToWrite<1)
+            return 0;
+        MemoryTransfer.fromMemory(this.mainMemory,A1,buffer,buffer.position(),bytesToWrite);
+        buffer.position(buffer.position()+bytesToWrite);
+        return bytesToWrite;
     }
     
     /**
@@ -1942,7 +1906,7 @@ public class MC68000Cpu
     
     /**
      * Read bytes from a filechannel and write them into memory.
-     * This creates a temporary ByteBuffer, reads the file into it and then copies from that ByteBuffer into the memory
+     * This reads the file into a transfer buffer and then copies from that buffer into the memory, chunk by chunk.
      * @param address where to read to.
      * @param nbrOfBytes how many bytes to read.
      * @param inChannel the channel to read from.
@@ -1956,11 +1920,31 @@ public class MC68000Cpu
     {
         if (nbrOfBytes<1)
             return 0;                                       // there is nothing to read!
-        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(nbrOfBytes);        // first make a bytebuffer of sufficient capacity
-        nbrOfBytes=inChannel.read(buffer);                  // read into buffer
-        if (nbrOfBytes<0)
-            return -1;
-        return readFromBuffer(address,nbrOfBytes,buffer,0,specialRead);
+        java.nio.ByteBuffer buffer=MemoryTransfer.getBuffer();
+        try
+        {
+            int total=0;
+            while (nbrOfBytes>0)
+            {
+                int wanted=Math.min(nbrOfBytes,buffer.capacity());
+                buffer.clear();
+                buffer.limit(wanted);
+                int nbr=inChannel.read(buffer);             // read into buffer
+                if (nbr<0)
+                    return total==0?-1:total;               // EOF
+                int copied=readFromBuffer(address,nbr,buffer,0,specialRead);
+                total+=copied;
+                if (copied<nbr || nbr<wanted)
+                    break;                                  // end of memory or end of file
+                address+=nbr;
+                nbrOfBytes-=nbr;
+            }
+            return total;
+        }
+        finally
+        {
+            MemoryTransfer.releaseBuffer(buffer);
+        }
     }
     
     /**
@@ -2005,46 +1989,15 @@ public class MC68000Cpu
                 toScreen=true;                              // check whether we're LBYTESing to the screen
             }
         }
-        int start=address;
         buffer.limit(buffer.capacity());
         if (nbrOfBytes+startInBuffer>buffer.capacity()) 
         {
             nbrOfBytes = buffer.capacity()-startInBuffer;
         }
-        boolean startAddressIsOdd=(address&1)==1;
-
-        address/=2;
-        if (startAddressIsOdd)
-        {
-           nbrOfBytes--; 
-           short p=(short)(this.mainMemory[address]&0xff00);
-           short m=(short) (buffer.get(startInBuffer)&0xff);
-           this.mainMemory[address]=(short) (p|m);
-           address++;
-           startInBuffer++;
-        }
-       
-        // now copy from byte buffer to my array in word sized chunks
-        int i;
-        for (i=startInBuffer;i<nbrOfBytes+startInBuffer-1;i+=2,address++)
-        {
-            this.mainMemory[address]=buffer.getShort(i);
-        }
-        
-        if ((nbrOfBytes & 1) == 1)                          // handle possible last byte (not word)
-        {
-            short res=this.mainMemory[address];
-            res&=0xff;
-            res|=(buffer.get(i)<<8);
-            this.mainMemory[address]=res;
-        }
-        if (startAddressIsOdd) 
-        {
-            nbrOfBytes++;
-        }
+        MemoryTransfer.toMemory(this.mainMemory,address,buffer,startInBuffer,nbrOfBytes);
         if (toScreen) 
         {
-            this.screen.displayRegion(this,start,nbrOfBytes);
+            this.screen.displayRegion(this,address,nbrOfBytes);
         }
         return nbrOfBytes;
     }
@@ -2446,7 +2399,7 @@ public class MC68000Cpu
         // prepare screen and setup screen info for SMSQ/E
         if (this.screen!=null)
         {
-            this.screen.clearScreen();
+            this.screen.clearScreen(this.mainMemory);
             writeMemoryLong(this.ramSize+smsqmulator.Types.LINKAGE_SCREENBASE,this.screenStart);
             writeMemoryLong(this.ramSize+smsqmulator.Types.LINKAGE_SCREENSIZE,this.screen.getScreenSizeInBytes());
             this.mainMemory[(this.ramSize+smsqmulator.Types.LINKAGE_SCREEN_LINE_SIZE)/2]=(short)this.screen.getLineSize();
@@ -0,0 +1,196 @@
+package smsqmulator.cpu;
+
+/**
+ * This copies blocks of bytes between the emulated memory (an array of big endian words) and ByteBuffers, and lends out the
+ * buffers used to transfer blocks between the memory and FileChannels.
+ * <p>
+ * The memory is an array of shorts, a FileChannel can't read into it or write from it directly : the bytes always go through a
+ * ByteBuffer. This buffer is a direct one, taken from a small pool, so that the channel needn't copy them once more into a direct
+ * buffer of its own, and so that no buffer has to be allocated for each transfer. Transfers that are bigger than a buffer are made
+ * in several chunks.
+ * <p>
+ * The bytes are copied word by word, even if the address in memory is odd : only the first and last bytes are then copied on
+ * their own. Long blocks are copied with the bulk operations of a ShortBuffer view of the ByteBuffer.
+ * <p>
+ * The copy methods do not check the addresses, this must be done by the caller.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.01 the limit of the buffer isn't used for short copies either.
+ * 1.00 initial version.
+ */
+public final class MemoryTransfer
+{
+    public static final int BUFFER_SIZE=64*1024;               // size of a transfer buffer (even)
+    private static final int MAX_POOLED=4;                      // max nbr of buffers kept in the pool
+    private static final int BULK_WORDS=32;                     // min nbr of words for a bulk copy
+    private static final java.util.concurrent.ConcurrentLinkedQueue<java.nio.ByteBuffer> pool=new java.util.concurrent.ConcurrentLinkedQueue<>();
+
+    private MemoryTransfer()
+    {
+    }
+
+    /**
+     * Gets a transfer buffer from the pool, or a new one if the pool is empty. It must be given back with <code>releaseBuffer</code>.
+     *
+     * @return a cleared direct buffer of <code>BUFFER_SIZE</code> bytes.
+     */
+    public static java.nio.ByteBuffer getBuffer()
+    {
+        java.nio.ByteBuffer buffer=MemoryTransfer.pool.poll();
+        if (buffer==null)
+            buffer=java.nio.ByteBuffer.allocateDirect(MemoryTransfer.BUFFER_SIZE);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a transfer buffer back to the pool.
+     *
+     * @param buffer the buffer got with <code>getBuffer</code>, it must not be used afterwards.
+     */
+    public static void releaseBuffer(java.nio.ByteBuffer buffer)
+    {
+        if (MemoryTransfer.pool.size()<MemoryTransfer.MAX_POOLED)
+            MemoryTransfer.pool.offer(buffer);
+    }
+
+    /**
+     * Copies bytes from a ByteBuffer into the memory. The position and limit of the buffer are not used, nor changed.
+     *
+     * @param memory the memory.
+     * @param address where in memory to copy to (may be odd).
+     * @param buffer the buffer to copy from.
+     * @param index where in the buffer to start copying from.
+     * @param nbrOfBytes how many bytes to copy.
+     */
+    public static void toMemory(short[]memory,int address,java.nio.ByteBuffer buffer,int index,int nbrOfBytes)
+    {
+        if (nbrOfBytes<1)
+            return;
+        buffer=indexable(buffer,index+nbrOfBytes);
+        int word=address>>>1;
+        if ((address&1)!=0)                                     // odd start : only the low byte of the first word
+        {
+            memory[word]=(short)((memory[word]&0xff00)|(buffer.get(index)&0xff));
+            word++;
+            index++;
+            nbrOfBytes--;
+        }
+        int words=nbrOfBytes>>>1;
+        if (words>=MemoryTransfer.BULK_WORDS)
+        {
+            java.nio.ByteBuffer view=buffer.duplicate();
+            view.order(java.nio.ByteOrder.BIG_ENDIAN);          // as the memory
+            view.clear();
+            view.position(index);
+            view.asShortBuffer().get(memory,word,words);
+        }
+        else
+        {
+            for (int i=0;i<words;i++)
+            {
+                memory[word+i]=buffer.getShort(index+i*2);      // (index may be odd, this doesn't matter)
+            }
+        }
+        if ((nbrOfBytes&1)!=0)                                  // odd end : only the high byte of the last word
+        {
+            word+=words;
+            memory[word]=(short)((memory[word]&0xff)|(buffer.get(index+words*2)<<8));
+        }
+    }
+
+    /**
+     * Copies bytes from the memory into a ByteBuffer. The position and limit of the buffer are not used, nor changed.
+     *
+     * @param memory the memory.
+     * @param address where in memory to copy from (may be odd).
+     * @param buffer the buffer to copy to.
+     * @param index where in the buffer to start copying to.
+     * @param nbrOfBytes how many bytes to copy.
+     */
+    public static void fromMemory(short[]memory,int address,java.nio.ByteBuffer buffer,int index,int nbrOfBytes)
+    {
+        if (nbrOfBytes<1)
+            return;
+        buffer=indexable(buffer,index+nbrOfBytes);
+        int word=address>>>1;
+        if ((address&1)!=0)                                     // odd start : only the low byte of the first word
+        {
+            buffer.put(index,(byte)memory[word]);
+            word++;
+            index++;
+            nbrOfBytes--;
+        }
+        int words=nbrOfBytes>>>1;
+        if (words>=MemoryTransfer.BULK_WORDS)
+        {
+            java.nio.ByteBuffer view=buffer.duplicate();
+            view.order(java.nio.ByteOrder.BIG_ENDIAN);          // as the memory
+            view.clear();
+            view.position(index);
+            view.asShortBuffer().put(memory,word,words);
+        }
+        else
+        {
+            for (int i=0;i<words;i++)
+            {
+                buffer.putShort(index+i*2,memory[word+i]);
+            }
+        }
+        if ((nbrOfBytes&1)!=0)                                  // odd end : only the high byte of the last word
+            buffer.put(index+words*2,(byte)(memory[word+words]>>8));
+    }
+
+    /**
+     * Checks whether bytes in a ByteBuffer are the same as those in memory. The position and limit of the buffer are not used, nor changed.
+     *
+     * @param memory the memory.
+     * @param address where in memory the bytes are (may be odd).
+     * @param buffer the buffer with the bytes.
+     * @param index where in the buffer they start.
+     * @param nbrOfBytes how many bytes to compare.
+     *
+     * @return <code>true</code> if they are all the same.
+     */
+    public static boolean isSame(short[]memory,int address,java.nio.ByteBuffer buffer,int index,int nbrOfBytes)
+    {
+        if (nbrOfBytes<1)
+            return true;
+        buffer=indexable(buffer,index+nbrOfBytes);
+        int word=address>>>1;
+        if ((address&1)!=0)
+        {
+            if ((byte)memory[word]!=buffer.get(index))
+                return false;
+            word++;
+            index++;
+            nbrOfBytes--;
+        }
+        int words=nbrOfBytes>>>1;
+        for (int i=0;i<words;i++)
+        {
+            if (memory[word+i]!=buffer.getShort(index+i*2))
+                return false;
+        }
+        return (nbrOfBytes&1)==0 || (byte)(memory[word+words]>>8)==buffer.get(index+words*2);
+    }
+
+    /**
+     * Gets a buffer with the same bytes as a buffer, whose bytes up to an index can be got and put by index, as big endian words.
+     *
+     * @param buffer the buffer.
+     * @param end the index after the last byte to get or put.
+     *
+     * @return the buffer itself if its limit and order allow this (the usual case), else a view of it.
+     */
+    private static java.nio.ByteBuffer indexable(java.nio.ByteBuffer buffer,int end)
+    {
+        if (buffer.limit()>=end && buffer.order()==java.nio.ByteOrder.BIG_ENDIAN)
+            return buffer;
+        java.nio.ByteBuffer view=buffer.duplicate();
+        view.order(java.nio.ByteOrder.BIG_ENDIAN);              // as the memory
+        view.clear();
+        return view;
+    }
+}
@@ -0,0 +1,120 @@
+package smsqmulator;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the AsyncIO : results and errors of the operations, and the sleep of the emulation thread that ends when one is done.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class AsyncIOTest
+{
+    private static final long LONG_SLEEP=10000;                 // in ms, a sleep that mustn't last that long
+
+    /**
+     * A task that waits until it is released, then returns the number of bytes in its data.
+     */
+    private static class WaitingTask implements AsyncIO.Task
+    {
+        private final java.util.concurrent.CountDownLatch release=new java.util.concurrent.CountDownLatch(1);
+
+        @Override
+        public int run(java.nio.ByteBuffer data) throws java.io.IOException
+        {
+            try
+            {
+                this.release.await();
+            }
+            catch (InterruptedException e)
+            {
+                throw new java.io.InterruptedIOException();
+            }
+            return data.remaining();
+        }
+    }
+
+    @Test
+    public void resultsAndErrorsAreDelivered() throws java.io.IOException
+    {
+        AsyncIO asyncIO=new AsyncIO(2,100);
+        assertFalse(asyncIO.isWorthIt(99));
+        assertTrue(asyncIO.isWorthIt(100));
+        AsyncIO.Operation op=asyncIO.start(0x07,0x2000,123,java.nio.ByteBuffer.allocate(123),new AsyncIO.Task()
+        {
+            @Override
+            public int run(java.nio.ByteBuffer data)
+            {
+                return data.remaining();
+            }
+        });
+        assertTrue(op.isRetryOf(0x07,0x2000,123));
+        assertFalse(op.isRetryOf(0x07,0x2002,123));
+        assertEquals(123,op.getResult());
+        assertTrue(op.isDone());
+        op=asyncIO.start(java.nio.ByteBuffer.allocate(1),new AsyncIO.Task()
+        {
+            @Override
+            public int run(java.nio.ByteBuffer data) throws java.io.IOException
+            {
+                throw new java.io.IOException("disk gone");
+            }
+        });
+        try
+        {
+            op.getResult();
+            fail("no exception");
+        }
+        catch (java.io.IOException e)
+        {
+            assertEquals("disk gone",e.getMessage());
+        }
+    }
+
+    @Test
+    public void sleepEndsWhenAnOperationIsDone() throws Exception
+    {
+        AsyncIO asyncIO=new AsyncIO(1,1);
+        final WaitingTask task=new WaitingTask();
+        AsyncIO.Operation op=asyncIO.start(java.nio.ByteBuffer.allocate(10),task);
+        assertFalse(op.isDone());
+        Thread releaser=new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(50);
+                }
+                catch (InterruptedException e)
+                { /*NOP*/ }
+                task.release.countDown();
+            }
+        });
+        long start=System.currentTimeMillis();
+        releaser.start();
+        asyncIO.sleep(AsyncIOTest.LONG_SLEEP);
+        assertTrue(System.currentTimeMillis()-start<AsyncIOTest.LONG_SLEEP/2);
+        assertEquals(10,op.getResult());
+        releaser.join();
+    }
+
+    @Test
+    public void sleepReturnsAtOnceIfAnOperationWasDoneBefore() throws Exception
+    {
+        AsyncIO asyncIO=new AsyncIO(1,1);
+        WaitingTask task=new WaitingTask();
+        AsyncIO.Operation op=asyncIO.start(java.nio.ByteBuffer.allocate(10),task);
+        task.release.countDown();
+        op.getResult();
+        long start=System.currentTimeMillis();
+        asyncIO.sleep(AsyncIOTest.LONG_SLEEP);                  // the operation was done since the last sleep
+        assertTrue(System.currentTimeMillis()-start<AsyncIOTest.LONG_SLEEP/2);
+        start=System.currentTimeMillis();
+        asyncIO.sleep(50);                                      // nothing done since then
+        assertTrue(System.currentTimeMillis()-start>=40);
+    }
+}
@@ -0,0 +1,228 @@
+package smsqmulator;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the ClusterCache with a drive kept in memory, which logs the reads and writes that reach it.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class ClusterCacheTest
+{
+    private static final int CLUSTER_SIZE=16;
+    private static final int CLUSTERS=32;                       // nbr of clusters on the test drive
+
+    /**
+     * A drive in memory.
+     */
+    private static class MemoryDrive extends WinDrive
+    {
+        private final byte[]content=new byte[ClusterCacheTest.CLUSTER_SIZE*ClusterCacheTest.CLUSTERS];
+        private final java.util.ArrayList<String> log=new java.util.ArrayList<>();// "read first,count" or "write first,count"
+
+        private MemoryDrive()
+        {
+            super(null,null);
+            for (int i=0;i<this.content.length;i++)
+            {
+                this.content[i]=(byte)(i/ClusterCacheTest.CLUSTER_SIZE);// each cluster is filled with its number
+            }
+        }
+
+        @Override
+        protected int readDriveClusters(int firstCluster,java.nio.ByteBuffer[]buffers,int offset,int count)
+        {
+            this.log.add("read "+firstCluster+","+count);
+            int position=firstCluster*ClusterCacheTest.CLUSTER_SIZE;
+            if (position>=this.content.length)
+                return -1;
+            int total=0;
+            for (int i=offset;i<offset+count && position<this.content.length;i++)
+            {
+                int nbr=Math.min(buffers[i].remaining(),this.content.length-position);
+                buffers[i].put(this.content,position,nbr);
+                position+=nbr;
+                total+=nbr;
+            }
+            return total;
+        }
+
+        @Override
+        protected int writeDriveClusters(int firstCluster,java.nio.ByteBuffer[]buffers,int offset,int count)
+        {
+            this.log.add("write "+firstCluster+","+count);
+            int position=firstCluster*ClusterCacheTest.CLUSTER_SIZE;
+            int total=0;
+            for (int i=offset;i<offset+count;i++)
+            {
+                int nbr=buffers[i].remaining();
+                buffers[i].get(this.content,position,nbr);
+                position+=nbr;
+                total+=nbr;
+            }
+            return total;
+        }
+
+        private byte[] getCluster(int cluster)
+        {
+            return java.util.Arrays.copyOfRange(this.content,cluster*ClusterCacheTest.CLUSTER_SIZE,(cluster+1)*ClusterCacheTest.CLUSTER_SIZE);
+        }
+    }
+
+    private static byte[] filled(int value,int length)
+    {
+        byte[]result=new byte[length];
+        java.util.Arrays.fill(result,(byte)value);
+        return result;
+    }
+
+    /**
+     * Reads one cluster through the cache.
+     */
+    private static byte[] read(ClusterCache cache,int cluster) throws java.io.IOException
+    {
+        java.nio.ByteBuffer buffer=java.nio.ByteBuffer.allocate(ClusterCacheTest.CLUSTER_SIZE);
+        assertEquals(ClusterCacheTest.CLUSTER_SIZE,cache.read(cluster,new java.nio.ByteBuffer[]{buffer},0,1));
+        return buffer.array();
+    }
+
+    /**
+     * Writes one cluster through the cache.
+     */
+    private static void write(ClusterCache cache,int cluster,byte[]data,int kind) throws java.io.IOException
+    {
+        assertEquals(data.length,cache.write(cluster,new java.nio.ByteBuffer[]{java.nio.ByteBuffer.wrap(data)},0,1,kind));
+    }
+
+    @Test
+    public void clustersAreReadOnce() throws java.io.IOException
+    {
+        MemoryDrive drive=new MemoryDrive();
+        ClusterCache cache=new ClusterCache(drive,ClusterCacheTest.CLUSTER_SIZE,8);
+        assertArrayEquals(filled(3,ClusterCacheTest.CLUSTER_SIZE),read(cache,3));
+        assertArrayEquals(filled(3,ClusterCacheTest.CLUSTER_SIZE),read(cache,3));
+        assertEquals(java.util.Arrays.asList("read 3,1"),drive.log);
+    }
+
+    @Test
+    public void missesAreReadInOneGo() throws java.io.IOException
+    {
+        MemoryDrive drive=new MemoryDrive();
+        ClusterCache cache=new ClusterCache(drive,ClusterCacheTest.CLUSTER_SIZE,8);
+        read(cache,3);
+        java.nio.ByteBuffer[]buffers=new java.nio.ByteBuffer[4];
+        for (int i=0;i<buffers.length;i++)
+        {
+            buffers[i]=java.nio.ByteBuffer.allocate(ClusterCacheTest.CLUSTER_SIZE);
+        }
+        assertEquals(4*ClusterCacheTest.CLUSTER_SIZE,cache.read(1,buffers,0,4));// 1,2 miss, 3 hits, 4 misses
+        for (int i=0;i<buffers.length;i++)
+        {
+            assertArrayEquals(filled(1+i,ClusterCacheTest.CLUSTER_SIZE),buffers[i].array());
+        }
+        assertEquals(java.util.Arrays.asList("read 3,1","read 1,2","read 4,1"),drive.log);
+    }
+
+    @Test
+    public void endOfDriveIsReported() throws java.io.IOException
+    {
+        MemoryDrive drive=new MemoryDrive();
+        ClusterCache cache=new ClusterCache(drive,ClusterCacheTest.CLUSTER_SIZE,8);
+        java.nio.ByteBuffer buffer=java.nio.ByteBuffer.allocate(ClusterCacheTest.CLUSTER_SIZE);
+        assertEquals(-1,cache.read(ClusterCacheTest.CLUSTERS,new java.nio.ByteBuffer[]{buffer},0,1));
+    }
+
+    @Test
+    public void writesAreDeferredUntilFlushed() throws java.io.IOException
+    {
+        MemoryDrive drive=new MemoryDrive();
+        ClusterCache cache=new ClusterCache(drive,ClusterCacheTest.CLUSTER_SIZE,8);
+        write(cache,5,filled(0x55,ClusterCacheTest.CLUSTER_SIZE),ClusterCache.DATA);
+        assertTrue(drive.log.isEmpty());                       // a whole cluster : nothing to read first
+        assertArrayEquals(filled(5,ClusterCacheTest.CLUSTER_SIZE),drive.getCluster(5));
+        assertArrayEquals(filled(0x55,ClusterCacheTest.CLUSTER_SIZE),read(cache,5));// read after write, from the cache
+        cache.flush();
+        assertArrayEquals(filled(0x55,ClusterCacheTest.CLUSTER_SIZE),drive.getCluster(5));
+        cache.flush();                                          // nothing dirty any more
+        assertEquals(java.util.Arrays.asList("write 5,1"),drive.log);
+    }
+
+    @Test
+    public void partialWriteKeepsTheRestOfTheCluster() throws java.io.IOException
+    {
+        MemoryDrive drive=new MemoryDrive();
+        ClusterCache cache=new ClusterCache(drive,ClusterCacheTest.CLUSTER_SIZE,8);
+        write(cache,6,filled(0x66,4),ClusterCache.DATA);
+        byte[]expected=filled(6,ClusterCacheTest.CLUSTER_SIZE);
+        java.util.Arrays.fill(expected,0,4,(byte)0x66);
+        assertArrayEquals(expected,read(cache,6));
+        cache.flush();
+        assertArrayEquals(expected,drive.getCluster(6));
+        assertEquals(java.util.Arrays.asList("read 6,1","write 6,1"),drive.log);
+    }
+
+    @Test
+    public void leastRecentlyUsedClusterIsEvicted() throws java.io.IOException
+    {
+        MemoryDrive drive=new MemoryDrive();
+        ClusterCache cache=new ClusterCache(drive,ClusterCacheTest.CLUSTER_SIZE,2);
+        read(cache,1);
+        read(cache,2);
+        read(cache,1);                                          // 2 is now the least recently used
+        read(cache,3);
+        drive.log.clear();
+        read(cache,1);
+        assertTrue(drive.log.isEmpty());
+        read(cache,2);
+        assertEquals(java.util.Arrays.asList("read 2,1"),drive.log);
+    }
+
+    @Test
+    public void evictedDirtyClusterIsWrittenBack() throws java.io.IOException
+    {
+        MemoryDrive drive=new MemoryDrive();
+        ClusterCache cache=new ClusterCache(drive,ClusterCacheTest.CLUSTER_SIZE,2);
+        write(cache,1,filled(0x11,ClusterCacheTest.CLUSTER_SIZE),ClusterCache.DATA);
+        read(cache,2);
+        read(cache,3);                                          // evicts 1
+        assertArrayEquals(filled(0x11,ClusterCacheTest.CLUSTER_SIZE),drive.getCluster(1));
+        assertEquals(java.util.Arrays.asList("read 2,1","write 1,1","read 3,1"),drive.log);
+        drive.log.clear();
+        assertArrayEquals(filled(0x11,ClusterCacheTest.CLUSTER_SIZE),read(cache,1));
+        assertEquals(java.util.Arrays.asList("read 1,1"),drive.log);
+    }
+
+    @Test
+    public void flushWritesDataThenDirectoriesThenFat() throws java.io.IOException
+    {
+        MemoryDrive drive=new MemoryDrive();
+        ClusterCache cache=new ClusterCache(drive,ClusterCacheTest.CLUSTER_SIZE,8);
+        write(cache,0,filled(0xf0,ClusterCacheTest.CLUSTER_SIZE),ClusterCache.FAT);
+        write(cache,9,filled(0xd9,ClusterCacheTest.CLUSTER_SIZE),ClusterCache.DIRECTORY);
+        write(cache,8,filled(0xa8,ClusterCacheTest.CLUSTER_SIZE),ClusterCache.DATA);
+        write(cache,7,filled(0xa7,ClusterCacheTest.CLUSTER_SIZE),ClusterCache.DATA);
+        write(cache,12,filled(0xac,ClusterCacheTest.CLUSTER_SIZE),ClusterCache.DATA);
+        cache.flush();
+        assertEquals(java.util.Arrays.asList("write 7,2","write 12,1","write 9,1","write 0,1"),drive.log);
+        assertArrayEquals(filled(0xa7,ClusterCacheTest.CLUSTER_SIZE),drive.getCluster(7));
+        assertArrayEquals(filled(0xa8,ClusterCacheTest.CLUSTER_SIZE),drive.getCluster(8));
+    }
+
+    @Test
+    public void evictedDirectoryClusterWritesTheDataFirst() throws java.io.IOException
+    {
+        MemoryDrive drive=new MemoryDrive();
+        ClusterCache cache=new ClusterCache(drive,ClusterCacheTest.CLUSTER_SIZE,3);
+        write(cache,9,filled(0xd9,ClusterCacheTest.CLUSTER_SIZE),ClusterCache.DIRECTORY);
+        write(cache,7,filled(0xa7,ClusterCacheTest.CLUSTER_SIZE),ClusterCache.DATA);
+        write(cache,8,filled(0xa8,ClusterCacheTest.CLUSTER_SIZE),ClusterCache.DATA);
+        read(cache,20);                                         // evicts 9
+        assertEquals(java.util.Arrays.asList("write 7,2","write 9,1","read 20,1"),drive.log);
+        drive.log.clear();
+        cache.flush();                                          // all was written already
+        assertTrue(drive.log.isEmpty());
+    }
+}
@@ -0,0 +1,257 @@
+package smsqmulator;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the FreeSpaceMap : the free list in the FAT must always be sorted, complete and counted right.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class FreeSpaceMapTest
+{
+    private static final int CLUSTERS=64;                       // nbr of clusters of the test drives
+
+    /**
+     * Makes a FAT with a free list, in the order given. All other clusters are in use and end a chain.
+     */
+    private static java.nio.ByteBuffer makeFat(int...free)
+    {
+        java.nio.ByteBuffer fat=java.nio.ByteBuffer.allocate(WinDrive.QWA_GMAP+FreeSpaceMapTest.CLUSTERS*2);
+        fat.putShort(WinDrive.QWA_NGRP,(short)FreeSpaceMapTest.CLUSTERS);
+        fat.putShort(WinDrive.QWA_FGRP,(short)free.length);
+        fat.putShort(WinDrive.QWA_FREE,(short)(free.length==0?0:free[0]));
+        for (int i=0;i<free.length;i++)
+        {
+            setLink(fat,free[i],i==free.length-1?0:free[i+1]);
+        }
+        return fat;
+    }
+
+    /**
+     * Makes the list of the clusters from first to last (inclusive).
+     */
+    private static int[] range(int first,int last)
+    {
+        int[]result=new int[last-first+1];
+        for (int i=0;i<result.length;i++)
+        {
+            result[i]=first+i;
+        }
+        return result;
+    }
+
+    private static int[] concat(int[]...parts)
+    {
+        java.util.ArrayList<Integer> all=new java.util.ArrayList<>();
+        for (int[]part:parts)
+        {
+            for (int c:part)
+                all.add(c);
+        }
+        int[]result=new int[all.size()];
+        for (int i=0;i<result.length;i++)
+        {
+            result[i]=all.get(i);
+        }
+        return result;
+    }
+
+    private static void setLink(java.nio.ByteBuffer fat,int cluster,int next)
+    {
+        fat.putShort(WinDrive.QWA_GMAP+cluster*2,(short)next);
+    }
+
+    private static int getLink(java.nio.ByteBuffer fat,int cluster)
+    {
+        return fat.getShort(WinDrive.QWA_GMAP+cluster*2)&0xffff;
+    }
+
+    /**
+     * Walks the free list in the FAT.
+     */
+    private static java.util.ArrayList<Integer> freeList(java.nio.ByteBuffer fat)
+    {
+        java.util.ArrayList<Integer> result=new java.util.ArrayList<>();
+        int cluster=fat.getShort(WinDrive.QWA_FREE)&0xffff;
+        while (cluster!=0 && result.size()<=FreeSpaceMapTest.CLUSTERS)
+        {
+            result.add(cluster);
+            cluster=getLink(fat,cluster);
+        }
+        return result;
+    }
+
+    /**
+     * Checks that the free list in the FAT holds exactly the expected clusters, in increasing order, and that their number is right.
+     */
+    private static void assertFree(java.nio.ByteBuffer fat,FreeSpaceMap map,java.util.Collection<Integer> expected)
+    {
+        java.util.ArrayList<Integer> sorted=new java.util.ArrayList<>(new java.util.TreeSet<>(expected));
+        assertEquals(sorted,freeList(fat));
+        assertEquals(sorted.size(),fat.getShort(WinDrive.QWA_FGRP)&0xffff);
+        assertEquals(sorted.size(),map.getFreeClusters());
+    }
+
+    private static java.util.ArrayList<Integer> list(int...clusters)
+    {
+        java.util.ArrayList<Integer> result=new java.util.ArrayList<>();
+        for (int c:clusters)
+            result.add(c);
+        return result;
+    }
+
+    /**
+     * Checks that the clusters of a chain are linked in the FAT, in the order of the chain.
+     */
+    private static void assertLinked(java.nio.ByteBuffer fat,java.util.List<Integer> chain)
+    {
+        for (int i=0;i<chain.size();i++)
+        {
+            assertEquals("link of cluster "+chain.get(i),i==chain.size()-1?0:chain.get(i+1),getLink(fat,chain.get(i)));
+        }
+    }
+
+    @Test
+    public void unsortedListIsLinkedAnew()
+    {
+        java.nio.ByteBuffer fat=makeFat(9,3,5,4);
+        fat.putShort(WinDrive.QWA_FGRP,(short)7);               // wrong as well
+        FreeSpaceMap map=new FreeSpaceMap(fat);
+        assertFree(fat,map,list(3,4,5,9));
+    }
+
+    @Test
+    public void brokenListStopsAtTheLoop()
+    {
+        java.nio.ByteBuffer fat=makeFat(3,4,5);
+        setLink(fat,5,4);                                       // 5 -> 4 again
+        FreeSpaceMap map=new FreeSpaceMap(fat);
+        assertFree(fat,map,list(3,4,5));
+    }
+
+    @Test
+    public void bestFitRunIsTaken()
+    {
+        java.nio.ByteBuffer fat=makeFat(concat(range(2,3),range(10,14),range(20,22)));
+        FreeSpaceMap map=new FreeSpaceMap(fat);
+        java.util.ArrayList<Integer> chain=new java.util.ArrayList<>();
+        assertTrue(map.allocate(3,chain));
+        assertEquals(list(20,21,22),chain);
+        assertLinked(fat,chain);
+        assertFree(fat,map,list(concat(range(2,3),range(10,14))));
+    }
+
+    @Test
+    public void chainIsExtendedWithTheClustersAfterIt()
+    {
+        java.nio.ByteBuffer fat=makeFat(concat(range(2,3),range(6,9)));
+        FreeSpaceMap map=new FreeSpaceMap(fat);
+        java.util.ArrayList<Integer> chain=list(5);
+        assertTrue(map.allocate(2,chain));
+        assertEquals(list(5,6,7),chain);
+        assertLinked(fat,chain);
+        assertFree(fat,map,list(2,3,8,9));
+    }
+
+    @Test
+    public void biggestRunsAreTakenIfNoneIsBigEnough()
+    {
+        java.nio.ByteBuffer fat=makeFat(concat(range(2,3),range(10,12)));
+        FreeSpaceMap map=new FreeSpaceMap(fat);
+        java.util.ArrayList<Integer> chain=new java.util.ArrayList<>();
+        assertTrue(map.allocate(4,chain));
+        assertEquals(list(10,11,12,2),chain);
+        assertLinked(fat,chain);
+        assertFree(fat,map,list(3));
+    }
+
+    @Test
+    public void nothingIsTakenIfThereIsNotEnough()
+    {
+        java.nio.ByteBuffer fat=makeFat(range(2,4));
+        FreeSpaceMap map=new FreeSpaceMap(fat);
+        java.util.ArrayList<Integer> chain=new java.util.ArrayList<>();
+        assertFalse(map.allocate(4,chain));
+        assertTrue(chain.isEmpty());
+        assertFree(fat,map,list(2,3,4));
+    }
+
+    @Test
+    public void nothingIsTakenIfTheChainDoesNotEndThere()
+    {
+        java.nio.ByteBuffer fat=makeFat(range(2,4));
+        setLink(fat,10,11);
+        FreeSpaceMap map=new FreeSpaceMap(fat);
+        java.util.ArrayList<Integer> chain=list(10);
+        assertFalse(map.allocate(1,chain));
+        assertEquals(list(10),chain);
+        assertFree(fat,map,list(2,3,4));
+    }
+
+    @Test
+    public void freedClustersAreMergedWithTheirNeighbours()
+    {
+        java.nio.ByteBuffer fat=makeFat(concat(range(2,3),range(7,9)));
+        setLink(fat,6,4);                                       // chain 6 -> 4 -> 5
+        setLink(fat,4,5);
+        FreeSpaceMap map=new FreeSpaceMap(fat);
+        map.free(6);
+        assertFree(fat,map,list(range(2,9)));
+        java.util.ArrayList<Integer> chain=new java.util.ArrayList<>();
+        assertTrue(map.allocate(8,chain));                      // one run now
+        assertEquals(list(range(2,9)),chain);
+        assertFree(fat,map,list());
+    }
+
+    @Test
+    public void freeClustersAreNotFreedTwice()
+    {
+        java.nio.ByteBuffer fat=makeFat(3,20);
+        setLink(fat,4,3);                                       // bad chain 4 -> 3, 3 is free
+        FreeSpaceMap map=new FreeSpaceMap(fat);
+        map.free(4);
+        assertFree(fat,map,list(3,4,20));
+    }
+
+    @Test
+    public void randomAllocationsKeepTheFreeListRight()
+    {
+        java.util.Random random=new java.util.Random(44);
+        java.nio.ByteBuffer fat=makeFat(range(1,FreeSpaceMapTest.CLUSTERS-1));
+        FreeSpaceMap map=new FreeSpaceMap(fat);
+        java.util.TreeSet<Integer> free=new java.util.TreeSet<>(list(range(1,FreeSpaceMapTest.CLUSTERS-1)));
+        java.util.ArrayList<java.util.ArrayList<Integer>> chains=new java.util.ArrayList<>();
+        for (int i=0;i<2000;i++)
+        {
+            if (!chains.isEmpty() && random.nextInt(3)==0)
+            {
+                java.util.ArrayList<Integer> chain=chains.remove(random.nextInt(chains.size()));
+                map.free(chain.get(0));
+                free.addAll(chain);
+            }
+            else
+            {
+                java.util.ArrayList<Integer> chain=chains.isEmpty() || random.nextBoolean()?new java.util.ArrayList<Integer>()
+                                                                                           :chains.get(random.nextInt(chains.size()));
+                int old=chain.size();
+                int needed=1+random.nextInt(6);
+                boolean ok=map.allocate(needed,chain);
+                assertEquals(needed<=free.size(),ok);
+                if (ok)
+                {
+                    for (int c:chain.subList(old,chain.size()))
+                    {
+                        assertTrue("cluster "+c+" wasn't free",free.remove(c));
+                    }
+                    if (old==0)
+                        chains.add(chain);
+                }
+                assertLinked(fat,chain);
+            }
+            assertFree(fat,map,free);
+        }
+    }
+}
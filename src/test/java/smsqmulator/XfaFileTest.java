@@ -0,0 +1,263 @@
+package smsqmulator;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the read ahead / write behind buffer of the XfaFile : what was written must be read back, whether it is still in the
+ * buffer or not, and must be on the native file once the file is flushed or closed. Two channels to the same file must see
+ * what the other one wrote.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.01 two channels to the same file.
+ * 1.00 initial version.
+ */
+public class XfaFileTest
+{
+    private static final int BUFFER=0x1000;                     // where the bytes to write / read are in memory
+    private static final int BUFFER_SIZE=16;                    // small, so that reads and writes cross its boundaries
+    private static final int CHANNEL_A=0x2000;                  // the channel definition blocks of the two channels
+    private static final int CHANNEL_B=0x2100;
+
+    private final smsqmulator.cpu.MC68000Cpu cpu=new smsqmulator.cpu.MC68000Cpu(0x10000,0,0);
+
+    /**
+     * Opens a native file as an nfa file, with a buffer.
+     */
+    private static XfaFile open(java.io.File file) throws java.io.IOException
+    {
+        java.io.RandomAccessFile raFile=new java.io.RandomAccessFile(file,"rw");
+        XfaFile xfaFile=new XfaFile(raFile,raFile.getChannel(),true,file,file.getName(),false,Types.NFADriver,0,
+                                    new String[]{file.getParent()+java.io.File.separator,"","","","","","",""},0,0);
+        xfaFile.setBufferSize(XfaFileTest.BUFFER_SIZE);
+        return xfaFile;
+    }
+
+    /**
+     * Makes a trap#3 call.
+     *
+     * @return D0 after the call.
+     */
+    private int trap3(XfaFile file,int trapKey,int d1,int d2,int a1)
+    {
+        this.cpu.data_regs[0]=12345;
+        this.cpu.data_regs[1]=d1;
+        this.cpu.data_regs[2]=d2;
+        this.cpu.addr_regs[1]=a1;
+        file.handleTrap3(trapKey,0,this.cpu,"");
+        return this.cpu.data_regs[0];
+    }
+
+    private void write(XfaFile file,byte[]data)
+    {
+        for (int i=0;i<data.length;i++)
+        {
+            this.cpu.writeMemoryByte(XfaFileTest.BUFFER+i,data[i]);
+        }
+        assertEquals(0,trap3(file,0x07,0,data.length,XfaFileTest.BUFFER));
+        assertEquals(data.length,this.cpu.data_regs[1]&0xffff);
+    }
+
+    private byte[] read(XfaFile file,int length)
+    {
+        assertEquals(0,trap3(file,0x03,0,length,XfaFileTest.BUFFER));
+        assertEquals(length,this.cpu.data_regs[1]&0xffff);
+        byte[]result=new byte[length];
+        for (int i=0;i<length;i++)
+        {
+            result[i]=(byte)this.cpu.readMemoryByte(XfaFileTest.BUFFER+i);
+        }
+        return result;
+    }
+
+    /**
+     * Opens a file through the driver, on drive 1.
+     *
+     * @return the file number of the channel.
+     */
+    private int open(XfaDriver driver,int channelDefinitionBlock,int openType,String name)
+    {
+        this.cpu.writeMemoryWord(channelDefinitionBlock+0x32,name.length());
+        for (int i=0;i<name.length();i++)
+        {
+            this.cpu.writeMemoryByte(channelDefinitionBlock+0x34+i,name.charAt(i));
+        }
+        assertTrue(driver.openFile(0,channelDefinitionBlock,openType,0,null,null));
+        assertEquals(0,this.cpu.data_regs[0]);
+        return this.cpu.readMemoryWord(channelDefinitionBlock+0x1e);
+    }
+
+    /**
+     * Makes a trap#3 call through the driver.
+     *
+     * @return D0 after the call.
+     */
+    private int trap3(XfaDriver driver,int channelDefinitionBlock,int fileNbr,int trapKey,int d1,int d2,int a1)
+    {
+        this.cpu.data_regs[0]=12345;
+        this.cpu.data_regs[1]=d1;
+        this.cpu.data_regs[2]=d2;
+        this.cpu.addr_regs[1]=a1;
+        driver.trap3OK(0,trapKey,channelDefinitionBlock,fileNbr);
+        return this.cpu.data_regs[0];
+    }
+
+    private void write(XfaDriver driver,int channelDefinitionBlock,int fileNbr,byte[]data)
+    {
+        for (int i=0;i<data.length;i++)
+        {
+            this.cpu.writeMemoryByte(XfaFileTest.BUFFER+i,data[i]);
+        }
+        assertEquals(0,trap3(driver,channelDefinitionBlock,fileNbr,0x07,0,data.length,XfaFileTest.BUFFER));
+    }
+
+    private byte[] read(XfaDriver driver,int channelDefinitionBlock,int fileNbr,int length)
+    {
+        assertEquals(0,trap3(driver,channelDefinitionBlock,fileNbr,0x03,0,length,XfaFileTest.BUFFER));
+        assertEquals(length,this.cpu.data_regs[1]&0xffff);
+        byte[]result=new byte[length];
+        for (int i=0;i<length;i++)
+        {
+            result[i]=(byte)this.cpu.readMemoryByte(XfaFileTest.BUFFER+i);
+        }
+        return result;
+    }
+
+    private static byte[] bytes(int length,int seed)
+    {
+        byte[]result=new byte[length];
+        new java.util.Random(seed).nextBytes(result);
+        return result;
+    }
+
+    @Test
+    public void writtenBytesAreReadBack() throws java.io.IOException
+    {
+        java.io.File file=java.io.File.createTempFile("xfa",".tst");
+        try
+        {
+            XfaFile xfaFile=open(file);
+            byte[]expected=bytes(100,49);
+            write(xfaFile,java.util.Arrays.copyOf(expected,5));     // in the buffer only
+            write(xfaFile,java.util.Arrays.copyOfRange(expected,5,100));// bigger than the buffer
+            assertEquals(0,trap3(xfaFile,0x42,3,0,0));              // back to where the first write still is in the buffer
+            assertArrayEquals(java.util.Arrays.copyOfRange(expected,3,40),read(xfaFile,37));
+            expected[40]=(byte)0xa5;
+            assertEquals(0,trap3(xfaFile,0x05,0xa5,0,0));           // one byte, right after the last read
+            assertEquals(0,trap3(xfaFile,0x42,38,0,0));
+            assertArrayEquals(java.util.Arrays.copyOfRange(expected,38,43),read(xfaFile,5));
+            assertEquals(0,trap3(xfaFile,0x42,40,0,0));
+            assertEquals(0,trap3(xfaFile,0x01,0,0,0));
+            assertEquals(0xa5,this.cpu.data_regs[1]&0xff);
+            xfaFile.close(this.cpu);
+            assertEquals(0,this.cpu.data_regs[0]);
+            assertArrayEquals(expected,java.nio.file.Files.readAllBytes(file.toPath()));
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void flushWritesTheBuffer() throws java.io.IOException
+    {
+        java.io.File file=java.io.File.createTempFile("xfa",".tst");
+        try
+        {
+            XfaFile xfaFile=open(file);
+            byte[]expected=bytes(7,50);
+            write(xfaFile,expected);
+            assertEquals(0,file.length());                          // still in the buffer
+            assertEquals(0,trap3(xfaFile,0x41,0,0,0));
+            assertArrayEquals(expected,java.nio.file.Files.readAllBytes(file.toPath()));
+            xfaFile.close(this.cpu);
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readsAfterTheEndOfFileStopThere() throws java.io.IOException
+    {
+        java.io.File file=java.io.File.createTempFile("xfa",".tst");
+        try
+        {
+            XfaFile xfaFile=open(file);
+            byte[]expected=bytes(10,51);
+            write(xfaFile,expected);
+            assertEquals(0,trap3(xfaFile,0x42,4,0,0));
+            assertEquals(0,trap3(xfaFile,0x03,0,20,XfaFileTest.BUFFER));  // what there is is read
+            assertEquals(6,this.cpu.data_regs[1]&0xffff);
+            for (int i=0;i<6;i++)
+            {
+                assertEquals(expected[4+i],(byte)this.cpu.readMemoryByte(XfaFileTest.BUFFER+i));
+            }
+            assertEquals(Types.ERR_EOF,trap3(xfaFile,0x03,0,20,XfaFileTest.BUFFER));
+            xfaFile.close(this.cpu);
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void failedFlushOnCloseIsReported() throws java.io.IOException
+    {
+        java.io.File file=java.io.File.createTempFile("xfa",".tst");
+        try
+        {
+            java.io.RandomAccessFile raFile=new java.io.RandomAccessFile(file,"rw");
+            XfaFile xfaFile=new XfaFile(raFile,raFile.getChannel(),true,file,file.getName(),false,Types.NFADriver,0,
+                                        new String[]{file.getParent()+java.io.File.separator,"","","","","","",""},0,0);
+            xfaFile.setBufferSize(XfaFileTest.BUFFER_SIZE);
+            write(xfaFile,bytes(3,52));
+            raFile.getChannel().close();                            // the bytes in the buffer can't be written any more
+            xfaFile.close(this.cpu);
+            assertEquals(Types.ERR_DRFL,this.cpu.data_regs[0]);
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void channelsToTheSameFileSeeEachOthersBytes() throws java.io.IOException
+    {
+        java.io.File dir=java.nio.file.Files.createTempDirectory("xfa").toFile();
+        java.io.File file=new java.io.File(dir,"two");
+        try
+        {
+            byte[]expected=bytes(20,53);
+            java.nio.file.Files.write(file.toPath(),expected);
+            XfaDriver driver=new NfaDriver(this.cpu);
+            driver.setDirname(0,dir.getPath()+java.io.File.separator);
+            driver.setBufferSizes(Integer.toString(XfaFileTest.BUFFER_SIZE));
+            int writer=open(driver,XfaFileTest.CHANNEL_A,0,"two");
+            byte[]written=bytes(5,54);
+            write(driver,XfaFileTest.CHANNEL_A,writer,written);
+            System.arraycopy(written,0,expected,0,5);
+            int reader=open(driver,XfaFileTest.CHANNEL_B,1,"two");  // opened while the bytes are still in the writer's buffer
+            assertArrayEquals(java.util.Arrays.copyOf(expected,8),read(driver,XfaFileTest.CHANNEL_B,reader,8));
+            assertEquals(0,trap3(driver,XfaFileTest.CHANNEL_A,writer,0x42,2,0,0));
+            written=bytes(3,55);
+            write(driver,XfaFileTest.CHANNEL_A,writer,written);  // where the reader has these bytes in its buffer
+            System.arraycopy(written,0,expected,2,3);
+            assertEquals(0,trap3(driver,XfaFileTest.CHANNEL_B,reader,0x42,0,0,0));
+            assertArrayEquals(java.util.Arrays.copyOf(expected,8),read(driver,XfaFileTest.CHANNEL_B,reader,8));
+            assertTrue(driver.closeFile(0,reader));
+            assertTrue(driver.closeFile(0,writer));
+            assertArrayEquals(expected,java.nio.file.Files.readAllBytes(file.toPath()));
+        }
+        finally
+        {
+            file.delete();
+            dir.delete();
+        }
+    }
+}
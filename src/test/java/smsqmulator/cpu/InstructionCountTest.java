@@ -0,0 +1,41 @@
+package smsqmulator.cpu;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests that the InstructionCountListener is called when the count is reached and that it may stop the continuous execution.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class InstructionCountTest
+{
+    private static final int LOOP=0x400;                        // where the endless loop is in memory
+
+    @Test
+    public void listenerStopsTheEndlessLoop()
+    {
+        MC68000Cpu cpu=new MC68000Cpu(0x10000,0,0);
+        cpu.writeMemoryWord(InstructionCountTest.LOOP,0x60fe);  // bra.s * : without the listener, this never ends
+        cpu.pc_reg=InstructionCountTest.LOOP/2;
+        final long[]calls=new long[2];
+        cpu.setInstructionCountListener(new InstructionCountListener()
+        {
+            @Override
+            public long instructionCountReached(MC68000Cpu cpu,long count)
+            {
+                calls[0]++;
+                calls[1]=count;
+                if (count>=3000)
+                    throw new ExecutionStoppedException();
+                return count+1000;
+            }
+        },1000);
+        cpu.executeContinuous();
+        assertEquals(3,calls[0]);
+        assertEquals(3000,calls[1]);
+        assertEquals(InstructionCountTest.LOOP/2,cpu.pc_reg);
+    }
+}
@@ -0,0 +1,194 @@
+package smsqmulator.cpu;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the copies of MemoryTransfer against a simple byte by byte copy, for odd and even addresses, indexes and lengths, short and
+ * long enough for the bulk copies.
+ *
+ * @author and copyright (c) the SMSQmulator contributors 2026.
+ * @version
+ * 1.00 initial version.
+ */
+public class MemoryTransferTest
+{
+    private static final int MEMORY_SIZE=512;                   // in bytes
+    private static final int[]LENGTHS={0,1,2,3,4,5,62,63,64,65,66,67,130,131};// around the bulk copy threshold too
+
+    private static short[] makeMemory(java.util.Random random)
+    {
+        short[]memory=new short[MemoryTransferTest.MEMORY_SIZE/2];
+        for (int i=0;i<memory.length;i++)
+        {
+            memory[i]=(short)random.nextInt();
+        }
+        return memory;
+    }
+
+    private static java.nio.ByteBuffer makeBuffer(java.util.Random random,boolean direct)
+    {
+        java.nio.ByteBuffer buffer=direct?java.nio.ByteBuffer.allocateDirect(MemoryTransferTest.MEMORY_SIZE)
+                                         :java.nio.ByteBuffer.allocate(MemoryTransferTest.MEMORY_SIZE);
+        for (int i=0;i<buffer.capacity();i++)
+        {
+            buffer.put(i,(byte)random.nextInt());
+        }
+        return buffer;
+    }
+
+    private static int getByte(short[]memory,int address)
+    {
+        return (address&1)==0?(memory[address>>>1]>>8)&0xff:memory[address>>>1]&0xff;
+    }
+
+    private static void setByte(short[]memory,int address,int value)
+    {
+        int word=address>>>1;
+        if ((address&1)==0)
+            memory[word]=(short)((memory[word]&0xff)|((value&0xff)<<8));
+        else
+            memory[word]=(short)((memory[word]&0xff00)|(value&0xff));
+    }
+
+    private static byte[] contents(java.nio.ByteBuffer buffer)
+    {
+        java.nio.ByteBuffer all=buffer.duplicate();
+        all.clear();
+        byte[]result=new byte[all.capacity()];
+        all.get(result);
+        return result;
+    }
+
+    @Test
+    public void toMemoryCopiesExactlyTheBytes()
+    {
+        java.util.Random random=new java.util.Random(50);
+        for (boolean direct:new boolean[]{false,true})
+        {
+            for (int address=0;address<4;address++)
+            {
+                for (int index=0;index<4;index++)
+                {
+                    for (int length:MemoryTransferTest.LENGTHS)
+                    {
+                        short[]memory=makeMemory(random);
+                        java.nio.ByteBuffer buffer=makeBuffer(random,direct);
+                        short[]expected=memory.clone();
+                        for (int i=0;i<length;i++)
+                        {
+                            setByte(expected,address+i,buffer.get(index+i));
+                        }
+                        buffer.position(7).limit(9);
+                        MemoryTransfer.toMemory(memory,address,buffer,index,length);
+                        assertArrayEquals("address "+address+" index "+index+" length "+length,expected,memory);
+                        assertEquals(7,buffer.position());
+                        assertEquals(9,buffer.limit());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fromMemoryCopiesExactlyTheBytes()
+    {
+        java.util.Random random=new java.util.Random(50);
+        for (boolean direct:new boolean[]{false,true})
+        {
+            for (int address=0;address<4;address++)
+            {
+                for (int index=0;index<4;index++)
+                {
+                    for (int length:MemoryTransferTest.LENGTHS)
+                    {
+                        short[]memory=makeMemory(random);
+                        java.nio.ByteBuffer buffer=makeBuffer(random,direct);
+                        byte[]expected=contents(buffer);
+                        for (int i=0;i<length;i++)
+                        {
+                            expected[index+i]=(byte)getByte(memory,address+i);
+                        }
+                        short[]before=memory.clone();
+                        buffer.position(7).limit(9);
+                        MemoryTransfer.fromMemory(memory,address,buffer,index,length);
+                        assertArrayEquals("address "+address+" index "+index+" length "+length,expected,contents(buffer));
+                        assertArrayEquals(before,memory);
+                        assertEquals(7,buffer.position());
+                        assertEquals(9,buffer.limit());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void isSameFindsEveryDifferentByte()
+    {
+        java.util.Random random=new java.util.Random(50);
+        for (int address=0;address<4;address++)
+        {
+            for (int index=0;index<4;index++)
+            {
+                for (int length:MemoryTransferTest.LENGTHS)
+                {
+                    short[]memory=makeMemory(random);
+                    java.nio.ByteBuffer buffer=makeBuffer(random,false);
+                    MemoryTransfer.fromMemory(memory,address,buffer,index,length);
+                    String where="address "+address+" index "+index+" length "+length;
+                    assertTrue(where,MemoryTransfer.isSame(memory,address,buffer,index,length));
+                    for (int i=0;i<length;i++)
+                    {
+                        buffer.put(index+i,(byte)(buffer.get(index+i)^0x10));
+                        assertFalse(where+" changed "+i,MemoryTransfer.isSame(memory,address,buffer,index,length));
+                        buffer.put(index+i,(byte)(buffer.get(index+i)^0x10));
+                    }
+                    if (address>0)                              // the bytes just outside don't count
+                        setByte(memory,address-1,getByte(memory,address-1)^0xff);
+                    setByte(memory,address+length,getByte(memory,address+length)^0xff);
+                    assertTrue(where,MemoryTransfer.isSame(memory,address,buffer,index,length));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void wordsAreBigEndianWhateverTheBufferOrder()
+    {
+        java.nio.ByteBuffer buffer=java.nio.ByteBuffer.allocate(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        buffer.put(0,(byte)0x12).put(1,(byte)0x34).put(2,(byte)0x56).put(3,(byte)0x78);
+        short[]memory=new short[4];
+        MemoryTransfer.toMemory(memory,2,buffer,0,4);
+        assertArrayEquals(new short[]{0,0x1234,0x5678,0},memory);
+        assertTrue(MemoryTransfer.isSame(memory,2,buffer,0,4));
+        MemoryTransfer.fromMemory(memory,2,buffer,4,4);
+        assertArrayEquals(new byte[]{0x12,0x34,0x56,0x78,0x12,0x34,0x56,0x78},contents(buffer));
+        assertEquals(java.nio.ByteOrder.LITTLE_ENDIAN,buffer.order());
+    }
+
+    @Test
+    public void roundTripThroughAPooledBuffer()
+    {
+        java.util.Random random=new java.util.Random(50);
+        short[]memory=makeMemory(random);
+        short[]copy=new short[memory.length];
+        java.nio.ByteBuffer buffer=MemoryTransfer.getBuffer();
+        try
+        {
+            assertTrue(buffer.isDirect());
+            assertEquals(MemoryTransfer.BUFFER_SIZE,buffer.remaining());
+            MemoryTransfer.fromMemory(memory,1,buffer,0,MemoryTransferTest.MEMORY_SIZE-2);
+            MemoryTransfer.toMemory(copy,1,buffer,0,MemoryTransferTest.MEMORY_SIZE-2);
+        }
+        finally
+        {
+            MemoryTransfer.releaseBuffer(buffer);
+        }
+        for (int i=1;i<MemoryTransferTest.MEMORY_SIZE-1;i++)
+        {
+            assertEquals("byte "+i,getByte(memory,i),getByte(copy,i));
+        }
+        assertEquals(0,getByte(copy,0));
+        assertEquals(0,getByte(copy,MemoryTransferTest.MEMORY_SIZE-1));
+    }
+}